@@ -5,6 +5,7 @@ import android.app.Application;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
 import com.crashlytics.android.Crashlytics;
@@ -12,9 +13,22 @@ import com.crashlytics.android.core.CrashlyticsCore;
 import com.google.analytics.tracking.android.GoogleAnalytics;
 import com.riverflows.data.UserAccount;
 import com.riverflows.db.CachingHttpClientWrapper;
+import com.riverflows.wsclient.AHPSXmlDataSource;
+import com.riverflows.wsclient.CDECDataSource;
+import com.riverflows.wsclient.CODWRDataSource;
+import com.riverflows.wsclient.CoalescingHttpClientWrapper;
 import com.riverflows.wsclient.DataSourceController;
-
+import com.riverflows.wsclient.DefaultHttpClientWrapper;
+import com.riverflows.wsclient.DiskLruResponseCache;
+import com.riverflows.wsclient.ParsedDataCache;
+import com.riverflows.wsclient.SiteListSnapshot;
+import com.riverflows.wsclient.USACEDataSource;
+import com.riverflows.wsclient.UsgsCsvDataSource;
+
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +48,53 @@ public class App extends Application {
      */
     public static final long CACHE_TTL = 20 * 60 * 1000;
 
+    /**
+     * 10 MiB
+     */
+    public static final long DATASET_CACHE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * 5 MiB
+     */
+    public static final long PARSED_CACHE_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * how long past CACHE_TTL each agency's cached data is still shown while it is refreshed
+     */
+    private static final Map<String, Long> MAX_STALE = new HashMap<String, Long>();
+
+    static {
+        //USGS and AHPS update every 15 to 60 minutes
+        MAX_STALE.put(UsgsCsvDataSource.AGENCY, 2 * 60 * 60 * 1000L);
+        MAX_STALE.put(AHPSXmlDataSource.AGENCY, 2 * 60 * 60 * 1000L);
+        MAX_STALE.put(CDECDataSource.AGENCY, 6 * 60 * 60 * 1000L);
+        MAX_STALE.put(CODWRDataSource.AGENCY, 6 * 60 * 60 * 1000L);
+        MAX_STALE.put(USACEDataSource.AGENCY, 6 * 60 * 60 * 1000L);
+    }
+
+    /**
+     * wait for a burst of revalidations to finish before reloading
+     */
+    private static final long REVALIDATION_RELOAD_DELAY = 2000;
+
+    private final Handler handler = new Handler();
+
+    private final Runnable reloadFavorites = new Runnable() {
+        @Override
+        public void run() {
+            Favorites.softReloadNeeded = true;
+            sendBroadcast(Home.getWidgetUpdateIntent());
+        }
+    };
+
+    private final CachingHttpClientWrapper.RevalidationListener revalidationListener = new CachingHttpClientWrapper.RevalidationListener() {
+        @Override
+        public void onRevalidated(String url) {
+            handler.removeCallbacks(reloadFavorites);
+            handler.postDelayed(reloadFavorites, REVALIDATION_RELOAD_DELAY);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -53,11 +114,42 @@ public class App extends Application {
             throw new RuntimeException("could not find keystore", ioe);
         }
 
-        DataSourceController.setHttpClientWrapper(new CachingHttpClientWrapper(
-                getApplicationContext(), getCacheDir(), CACHE_TTL, "text/plain"));
-        DataSourceController.getDataSource("AHPS").setHttpClientWrapper(new CachingHttpClientWrapper(
-                getApplicationContext(), getCacheDir(), CACHE_TTL, "text/xml"));
+        try {
+            DiskLruResponseCache datasetCache = DiskLruResponseCache.open(new File(getCacheDir(), "datasets"), DATASET_CACHE_SIZE);
+
+            for(Map.Entry<String, Long> agencyMaxStale: MAX_STALE.entrySet()) {
+                String agency = agencyMaxStale.getKey();
+                CachingHttpClientWrapper cachingWrapper = new CachingHttpClientWrapper(datasetCache, CACHE_TTL,
+                        agencyMaxStale.getValue(), AHPSXmlDataSource.AGENCY.equals(agency) ? "text/xml" : "text/plain");
+                cachingWrapper.setStats(DataSourceController.getCacheStats(agency));
+                cachingWrapper.addRevalidationListener(revalidationListener);
+
+                //the widget and the app often refresh the same favorites at the same time
+                DataSourceController.getDataSource(agency).setHttpClientWrapper(new CoalescingHttpClientWrapper(cachingWrapper));
+            }
+
+            //the site list is large, and rarely changes between refreshes
+            CachingHttpClientWrapper siteListWrapper = new CachingHttpClientWrapper(datasetCache, CACHE_TTL, "text/csv");
+            siteListWrapper.setAccept("text/csv");
+            siteListWrapper.setStats(DataSourceController.getCacheStats(DataSourceController.SITE_LIST_STATS));
+            DataSourceController.setSiteListHttpClientWrapper(new CoalescingHttpClientWrapper(siteListWrapper));
+        } catch (IOException ioe) {
+            Log.e(TAG, "could not open dataset cache", ioe);
+            DataSourceController.setHttpClientWrapper(new CoalescingHttpClientWrapper(new DefaultHttpClientWrapper()));
+        }
+        try {
+            ParsedDataCache.install(new File(getCacheDir(), "parsed"), PARSED_CACHE_SIZE);
+        } catch (IOException ioe) {
+            Log.e(TAG, "could not open parsed data cache", ioe);
+        }
+        try {
+            SiteListSnapshot.install(new File(getCacheDir(), "sitelists"));
+            DataSourceController.enableSiteListSync(CACHE_TTL);
+        } catch (IOException ioe) {
+            Log.e(TAG, "could not create site list snapshot directory", ioe);
+        }
         DataSourceController.initCache(getCacheDir());
+        DataSourceController.enableUsgsFormatSelection();
 
         //disable Google Analytics when in debug mode
         GoogleAnalytics myInstance = GoogleAnalytics.getInstance(this);
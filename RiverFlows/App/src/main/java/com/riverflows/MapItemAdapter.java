@@ -18,6 +18,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.riverflows.data.MapItem;
+import com.riverflows.data.NameSearchIndex;
 import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.wsclient.Utils;
@@ -33,6 +34,9 @@ public class MapItemAdapter extends BaseAdapter implements Filterable {
     private List<MapItem> items;
     private List<MapItem> displayedItems;
 
+    /** built the first time the items are filtered, and again after they change */
+    private NameSearchIndex<MapItem> searchIndex;
+
     public MapItemAdapter(Context context, List<MapItem> items) {
         // Cache the LayoutInflate to avoid asking for a new one each time.
         this.inflater = LayoutInflater.from(context);
@@ -149,32 +153,7 @@ public class MapItemAdapter extends BaseAdapter implements Filterable {
                 results.values = list;
                 results.count = list.size();
             } else {
-                String prefixString = constraint.toString().toLowerCase();
-
-                final List<MapItem> values = MapItemAdapter.this.items;
-                final int count = values.size();
-
-                final ArrayList<MapItem> newValues = new ArrayList<MapItem>(count);
-
-                for (int i = 0; i < count; i++) {
-                    final MapItem item = values.get(i);
-                    final String valueText = item.getName().toLowerCase();
-
-                    // First match against the whole, non-splitted value
-                    if (valueText.startsWith(prefixString)) {
-                        newValues.add(item);
-                    } else {
-                        final String[] words = valueText.split(" ");
-                        final int wordCount = words.length;
-
-                        for (int k = 0; k < wordCount; k++) {
-                            if (words[k].startsWith(prefixString)) {
-                                newValues.add(item);
-                                break;
-                            }
-                        }
-                    }
-                }
+                final List<MapItem> newValues = getSearchIndex().search(constraint);
 
                 results.values = newValues;
                 results.count = newValues.size();
@@ -200,6 +179,15 @@ public class MapItemAdapter extends BaseAdapter implements Filterable {
 		return mapItemFilter;
 	}
 
+    private NameSearchIndex<MapItem> getSearchIndex() {
+        synchronized (arrayLock) {
+            if (searchIndex == null) {
+                searchIndex = new NameSearchIndex<MapItem>(items, MapItem.NAMER);
+            }
+            return searchIndex;
+        }
+    }
+
     static class ViewHolder {
     	MapItem mapItem;
         TextView text;
@@ -218,6 +206,7 @@ public class MapItemAdapter extends BaseAdapter implements Filterable {
         if (items != null) {
             synchronized (arrayLock) {
             	items.add(index, object);
+                searchIndex = null;
                 notifyDataSetChanged();
             }
         } else {
@@ -235,6 +224,7 @@ public class MapItemAdapter extends BaseAdapter implements Filterable {
         if (items != null) {
             synchronized (arrayLock) {
                 items.remove(object);
+                searchIndex = null;
             }
         } else {
         	displayedItems.remove(object);
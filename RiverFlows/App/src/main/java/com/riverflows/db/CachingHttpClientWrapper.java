@@ -1,106 +1,304 @@
 package com.riverflows.db;
 
-import android.content.Context;
 import android.util.Log;
 
 import com.crashlytics.android.Crashlytics;
 import com.riverflows.Home;
-import com.riverflows.data.CachedDataset;
+import com.riverflows.data.CacheEditor;
 import com.riverflows.data.WrappedHttpResponse;
+import com.riverflows.wsclient.CacheStats;
+import com.riverflows.wsclient.DataSourceController;
+import com.riverflows.wsclient.DiskLruResponseCache;
+import com.riverflows.wsclient.FetchExecutor;
 import com.riverflows.wsclient.HttpClientWrapper;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Date;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
 
+/**
+ * Serves responses from a DiskLruResponseCache while they are younger than lifetimeMs.
+ * <p>
+ * Expired entries less than maxStaleMs past their lifetime are still returned immediately,
+ * marked as stale, while a fresh copy is fetched in the background.  Listeners are notified
+ * once the fresh copy has been cached.  Entries older than that, or older than
+ * {@link #MAX_STALE_LIMIT}, are fetched before returning.
+ * <p>
+ * Requests for URLs that have a cached copy send its ETag and Last-Modified validators, so a
+ * 304 Not Modified response can be answered from the cache without downloading the body again.
+ */
 public class CachingHttpClientWrapper implements HttpClientWrapper {
 	private static final String TAG = Home.TAG;
-	
-	private static final Random filenameGenerator = new Random(System.currentTimeMillis());
-	
-	private File cacheDir;
+
+	/**
+	 * stale entries older than this are never returned, regardless of maxStaleMs
+	 */
+	public static final long MAX_STALE_LIMIT = 24 * 60 * 60 * 1000;
+
+	public interface RevalidationListener {
+		/**
+		 * Called on a background thread once a fresh copy of a stale response has been cached.
+		 */
+		void onRevalidated(String url);
+	}
+
+	private static final FetchExecutor revalidationExecutor = new FetchExecutor("revalidate", 2, 1);
+
+	private DiskLruResponseCache cache;
 	private long lifetimeMs;
-	private Context dbContext;
+	private long maxStaleMs;
 	private String contentType;
-	
-	public CachingHttpClientWrapper(Context dbContext, File cacheDir, long lifetimeMs, String contentType) {
-		this.cacheDir = cacheDir;
+	private String accept;
+	private CacheStats stats = new CacheStats();
+
+	/** URLs currently being revalidated */
+	private final ConcurrentHashMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+
+	private final List<RevalidationListener> listeners = new CopyOnWriteArrayList<RevalidationListener>();
+
+	public CachingHttpClientWrapper(DiskLruResponseCache cache, long lifetimeMs, String contentType) {
+		this(cache, lifetimeMs, 0, contentType);
+	}
+
+	/**
+	 * @param maxStaleMs how long after lifetimeMs an entry may still be returned while it is revalidated
+	 */
+	public CachingHttpClientWrapper(DiskLruResponseCache cache, long lifetimeMs, long maxStaleMs, String contentType) {
+		this.cache = cache;
 		this.lifetimeMs = lifetimeMs;
-		this.dbContext = dbContext;
+		this.maxStaleMs = Math.min(maxStaleMs, MAX_STALE_LIMIT);
 		this.contentType = contentType;
 	}
-	
+
+	/**
+	 * @param stats counters to update for requests made through this wrapper
+	 */
+	public void setStats(CacheStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @param accept value of the Accept header to send, or null to leave it out
+	 */
+	public void setAccept(String accept) {
+		this.accept = accept;
+	}
+
+	public void addRevalidationListener(RevalidationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeRevalidationListener(RevalidationListener listener) {
+		listeners.remove(listener);
+	}
+
 	@Override
 	public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
 
-		InputStream responseStream;
-		
-		File cacheFile = null;
-
-		boolean databaseError = false;
-		
-		CachedDataset cacheEntry = null;
+		//try to build a response from a cache entry
+		DiskLruResponseCache.CachedResponse cacheEntry = null;
 		try {
-			// crashlytics #27
-			cacheEntry = DatasetsDaoImpl.getDataset(dbContext, requestUrl);
-		} catch (IllegalStateException ise) {
-			Crashlytics.getInstance().core.logException(ise);
-			databaseError = true;
+			cacheEntry = cache.get(requestUrl);
+		} catch (IOException ioe) {
+			Crashlytics.getInstance().core.logException(ioe);
 		}
-		
-		if(cacheEntry != null) {
-			cacheFile = new File(cacheDir, cacheEntry.getCacheFileName());
-			
-			if(!hardRefresh) {
-				//try to build a response from a cache entry
-
-				if(cacheEntry.getTimestamp().after(new Date(System.currentTimeMillis() - lifetimeMs))) {
-					if(cacheFile.exists()) {
-						Log.i(TAG,"cache hit");
-						
-						return new WrappedHttpResponse(new FileInputStream(cacheFile), null, 200, null);
-					} else {
-						Log.e(TAG, "could not find cache file: " + cacheFile);
-					}
-				} else {
-					Log.d(TAG, "expired cache entry");
-				}
+
+		if(cacheEntry != null && !hardRefresh) {
+			long age = System.currentTimeMillis() - cacheEntry.metadata.validatedTime;
+
+			if(age < lifetimeMs) {
+				Log.i(TAG,"cache hit");
+				stats.recordHit();
+
+				return new WrappedHttpResponse(cacheEntry.body, null, null, cacheEntry.metadata.fetchTime, 200, null);
+			} else if(age < lifetimeMs + maxStaleMs) {
+				Log.i(TAG, "stale cache hit");
+				stats.recordStaleHit();
+
+				revalidate(requestUrl, cacheEntry.metadata);
+
+				return new WrappedHttpResponse(cacheEntry.body, null, null, cacheEntry.metadata.fetchTime, true, 200, null);
 			}
-		} else {
+			Log.d(TAG, "expired cache entry");
+		} else if(cacheEntry == null) {
 			Log.d(TAG, "cache miss");
 		}
 
+		HttpURLConnection conn;
+		try {
+			//even a hard refresh doesn't need to download the body again if it hasn't changed
+			conn = connect(requestUrl, cacheEntry == null ? null : cacheEntry.metadata);
+
+			if(cacheEntry != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				Log.i(TAG, "not modified: " + requestUrl);
+				stats.recordNotModified();
+				conn.disconnect();
+
+				markValidated(requestUrl);
+
+				return new WrappedHttpResponse(cacheEntry.body, null, null, cacheEntry.metadata.fetchTime, 200, null);
+			}
+		} catch(IOException ioe) {
+			if(cacheEntry != null) {
+				cacheEntry.body.close();
+			}
+			throw ioe;
+		}
+
+		if(cacheEntry != null) {
+			cacheEntry.body.close();
+		}
+		stats.recordMiss();
+
+		InputStream responseStream = conn.getInputStream();
+
+		CacheEditor cacheEditor = null;
+		try {
+			cacheEditor = cache.edit(requestUrl, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+		} catch (IOException ioe) {
+			//don't even try to use cache
+			Crashlytics.getInstance().core.logException(ioe);
+		}
+
+		if(cacheEditor != null) {
+			Log.i(TAG, "caching " + requestUrl);
+		}
+
+		long cacheTimestamp = (cacheEditor == null) ? 0 : cacheEditor.getFetchTime();
+
+		return new WrappedHttpResponse(responseStream, null, cacheEditor, cacheTimestamp, conn.getResponseCode(), conn.getResponseMessage());
+	}
+
+	/**
+	 * @param cached the cached copy of the response, whose validators are sent if it isn't null
+	 */
+	private HttpURLConnection connect(String requestUrl, DiskLruResponseCache.Metadata cached) throws IOException {
 		URL url = new URL(requestUrl);
 		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		DataSourceController.prepareConnection(conn);
 		conn.setReadTimeout(10000 /* milliseconds */);
 		conn.setConnectTimeout(15000 /* milliseconds */);
 		conn.setRequestMethod("GET");
 		conn.setDoInput(true);
+		//responses are cached here, not by the platform
+		conn.setUseCaches(false);
+		if(accept != null) {
+			conn.setRequestProperty("Accept", accept);
+		}
+		if(cached != null) {
+			if(cached.etag != null) {
+				conn.setRequestProperty("If-None-Match", cached.etag);
+			}
+			if(cached.lastModified != null) {
+				conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+			}
+		}
 		// Start the query
 		conn.connect();
-		responseStream = conn.getInputStream();
+		return conn;
+	}
 
-		if (databaseError) {
-			//don't even try to use cache
+	private void markValidated(String requestUrl) {
+		try {
+			cache.markValidated(requestUrl);
+		} catch(IOException ioe) {
+			Crashlytics.getInstance().core.logException(ioe);
+		}
+	}
 
-			return new WrappedHttpResponse(responseStream, null, conn.getResponseCode(), conn.getResponseMessage());
+	/**
+	 * Fetch a fresh copy of a URL in the background, unless that is already happening.
+	 */
+	private void revalidate(final String requestUrl, final DiskLruResponseCache.Metadata cached) {
+		if(revalidating.putIfAbsent(requestUrl, Boolean.TRUE) != null) {
+			return;
 		}
-		
-		if(cacheFile == null) {
-			cacheFile = new File(cacheDir, "" + filenameGenerator.nextLong());
-			
-			DatasetsDaoImpl.saveDataset(dbContext, requestUrl, cacheFile.getName());
-		} else {
-			DatasetsDaoImpl.updateDatasetTimestamp(dbContext, requestUrl, cacheEntry.getCacheFileName());
+
+		String host;
+		try {
+			host = new URL(requestUrl).getHost();
+		} catch(IOException ioe) {
+			revalidating.remove(requestUrl);
+			return;
 		}
-		
-		Log.i(TAG, "caching " + requestUrl + " to " + cacheFile.getAbsolutePath());
 
-		return new WrappedHttpResponse(responseStream, cacheFile, conn.getResponseCode(), conn.getResponseMessage());
+		revalidationExecutor.submit(host, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					if(fetchIntoCache(requestUrl, cached)) {
+						for(RevalidationListener listener: listeners) {
+							listener.onRevalidated(requestUrl);
+						}
+					}
+				} catch(IOException ioe) {
+					Log.w(TAG, "failed to revalidate " + requestUrl, ioe);
+				} finally {
+					revalidating.remove(requestUrl);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return true if a new copy was cached
+	 */
+	private boolean fetchIntoCache(String requestUrl, DiskLruResponseCache.Metadata cached) throws IOException {
+		HttpURLConnection conn = connect(requestUrl, cached);
+
+		if(conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			stats.recordNotModified();
+			conn.disconnect();
+			markValidated(requestUrl);
+			return false;
+		}
+
+		if(conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			Log.w(TAG, conn.getResponseCode() + " response revalidating " + requestUrl);
+			conn.disconnect();
+			return false;
+		}
+
+		InputStream in = conn.getInputStream();
+		CacheEditor cacheEditor = null;
+		try {
+			cacheEditor = cache.edit(requestUrl, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+			if(cacheEditor == null) {
+				//a foreground request is already caching this URL
+				return false;
+			}
+
+			CRC32 checksum = new CRC32();
+			long length = 0;
+
+			OutputStream out = cacheEditor.newOutputStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int count;
+				while((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+					checksum.update(buffer, 0, count);
+					length += count;
+				}
+			} finally {
+				out.close();
+			}
+
+			cacheEditor.commit(length, checksum.getValue());
+			return true;
+		} finally {
+			if(cacheEditor != null) {
+				cacheEditor.abort();
+			}
+			in.close();
+		}
 	}
 }
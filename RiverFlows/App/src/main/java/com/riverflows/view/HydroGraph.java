@@ -15,8 +15,6 @@ import android.view.View;
 
 import com.riverflows.Home;
 import com.riverflows.data.DecoratedCategory;
-import com.riverflows.data.Forecast;
-import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Variable;
 
@@ -122,18 +120,19 @@ public class HydroGraph extends View {
         long minDate = Long.MAX_VALUE;
         long maxDate = Long.MIN_VALUE;
         
-        for(Reading curReading: series.getReadings()) {
-        	if(curReading.getDate().getTime() < minDate) {
-        		minDate = curReading.getDate().getTime();
+        for(int a = 0; a < series.size(); a++) {
+        	long time = series.getTime(a);
+        	if(time < minDate) {
+        		minDate = time;
         	}
-        	if(curReading.getDate().getTime() > maxDate) {
-        		maxDate = curReading.getDate().getTime();
-        	}
-        	
-        	if(curReading instanceof Forecast) {
-        		this.hasLegend = true;
+        	if(time > maxDate) {
+        		maxDate = time;
         	}
         }
+        
+        if(series.getForecastStart() < series.size()) {
+        	this.hasLegend = true;
+        }
 		
 		double[] limits = getFriendlyYLimits();
 
@@ -278,39 +277,42 @@ public class HydroGraph extends View {
 			return;
 		}
 		
+		int size = series.size();
+
 		//find the first reading that falls within the range of the graph
-		Reading startingPoint = null;
+		int startingPoint = 0;
 		int index = 0;
-		for(;index < series.getReadings().size(); index++) {
-			startingPoint = series.getReadings().get(index);
-			if(startingPoint.getDate().getTime() > this.xMin) {
+		for(;index < size; index++) {
+			startingPoint = index;
+			if(series.getTime(index) > this.xMin) {
 				break;
 			}
 		}
 
 		//draw everything else
 
-		Reading lastObserved = null;
+		long lastObservedTime = Long.MIN_VALUE;
 
-        ArrayList<PointF> plotCoords = new ArrayList<PointF>(series.getReadings().size());
-        ArrayList<PointF> forecastCoords = new ArrayList<PointF>(series.getReadings().size());
+        ArrayList<PointF> plotCoords = new ArrayList<PointF>(size);
+        ArrayList<PointF> forecastCoords = new ArrayList<PointF>(size);
 
-		for(;index < series.getReadings().size(); index++) {
-			Reading r = series.getReadings().get(index);
-			if(r.getValue() == null) {
+		for(;index < size; index++) {
+			double value = series.getValue(index);
+			long time = series.getTime(index);
+			if(Double.isNaN(value)) {
                 //tell drawLineGraph to use noDataPaint until next non-null value
 				plotCoords.add(null);
                 continue;
 			}
-			if(r instanceof Forecast) {
-				if(lastObserved != null && r.getDate().before(lastObserved.getDate())) {
+			if(index >= series.getForecastStart()) {
+				if(time < lastObservedTime) {
 					//don't show forecasts that come before the observed data
 					continue;
 				}
-				forecastCoords.add(new PointF(convertXValue(r.getDate()), convertYValue(r.getValue())));
+				forecastCoords.add(new PointF(convertXValue(time), convertYValue(value)));
 			} else {
-				lastObserved = r;
-                plotCoords.add(new PointF(convertXValue(r.getDate()), convertYValue(r.getValue())));
+				lastObservedTime = time;
+                plotCoords.add(new PointF(convertXValue(time), convertYValue(value)));
 			}
 		}
 
@@ -320,7 +322,10 @@ public class HydroGraph extends View {
         drawLineGraph(startingPoint, forecastCoords, canvas, forecastPaint);
 	}
 
-    private void drawLineGraph(Reading startingPoint, ArrayList<PointF> coords, Canvas canvas, Paint paint) {
+    /**
+     * @param startingPoint index of the first reading within the range of the graph
+     */
+    private void drawLineGraph(int startingPoint, ArrayList<PointF> coords, Canvas canvas, Paint paint) {
         if(coords.size() <= 1) {
             Log.e(TAG, "can\'t plot a line- only 1 or fewer points!");
             return;
@@ -342,16 +347,17 @@ public class HydroGraph extends View {
                 if(lastValidCoord != null) {
                     prevCoord = lastValidCoord;
                 } else {
-                    prevCoord = new PointF(convertXValue(startingPoint.getDate()),
-                            (startingPoint.getValue() != null) ? convertYValue(startingPoint.getValue()) : 0.0f);
+                    double startingValue = series.getValue(startingPoint);
+                    prevCoord = new PointF(convertXValue(series.getTime(startingPoint)),
+                            !Double.isNaN(startingValue) ? convertYValue(startingValue) : 0.0f);
                 }
             }
             canvas.drawLine(prevCoord.x, prevCoord.y, currentCoord.x, currentCoord.y, paint);
         }
     }
 	
-	private float convertXValue(Date d) {
-		float result = (float)(yAxisOffset + ((double)(d.getTime() - this.xMin) * this.xPixelsPerMs));
+	private float convertXValue(long time) {
+		float result = (float)(yAxisOffset + ((double)(time - this.xMin) * this.xPixelsPerMs));
 		if(result < 0 || result > getWidth()) {
 			Log.e(getClass().getSimpleName(), "X coordinate out of bounds: " + result, new Exception());
 		}
@@ -376,18 +382,19 @@ public class HydroGraph extends View {
 		double maxValue = Double.MIN_VALUE;
 		double minValue = Double.MAX_VALUE;
 		
-		for(Reading point:series.getReadings()){
-			if(point.getValue() == null) {
+		for(int a = 0; a < series.size(); a++){
+			double value = series.getValue(a);
+			if(Double.isNaN(value)) {
 				continue;
 			}
 			
 			//find the max/min Y values
-			if(point.getValue() > maxValue) {
-				maxValue = point.getValue();
+			if(value > maxValue) {
+				maxValue = value;
 			} 
 	
-			if(point.getValue() < minValue) {
-				minValue = point.getValue();
+			if(value < minValue) {
+				minValue = value;
 			}
 		}
 
@@ -499,7 +506,7 @@ public class HydroGraph extends View {
 			labelCalc.set(Calendar.DAY_OF_YEAR, labelCalc.get(Calendar.DAY_OF_YEAR) + 1);
 			
 			prevXCoord = xCoord;
-			xCoord = convertXValue(labelCalc.getTime());
+			xCoord = convertXValue(labelCalc.getTimeInMillis());
 
 	        if(Log.isLoggable(TAG, Log.DEBUG)) {
 	        	Log.d(TAG, "drawing x axis label at " + xCoord + "," + zeroYCoord);
@@ -531,7 +538,7 @@ public class HydroGraph extends View {
 		
 		float zeroXCoord = yAxisOffset;
 		
-		float maxXCoord = convertXValue(new Date(this.xMax));
+		float maxXCoord = convertXValue(this.xMax);
 		
 		float yCoord = (float)(getHeight() - xAxisOffset);
 
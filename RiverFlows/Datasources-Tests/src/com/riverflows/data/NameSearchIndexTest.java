@@ -0,0 +1,59 @@
+package com.riverflows.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class NameSearchIndexTest extends TestCase {
+
+	private static final NameSearchIndex.Namer<String> NAMER = new NameSearchIndex.Namer<String>() {
+		@Override
+		public String getName(String item) {
+			return item;
+		}
+	};
+
+	private static NameSearchIndex<String> index(String... names) {
+		return new NameSearchIndex<String>(Arrays.asList(names), NAMER);
+	}
+
+	public void testWholeNameMatchesFirst() {
+		NameSearchIndex<String> index = index("Upper Animas", "Arkansas River", "Animas River", "Big Thompson");
+
+		assertEquals(Arrays.asList("Animas River", "Upper Animas"), index.search("ani"));
+		assertEquals(Arrays.asList("Arkansas River", "Animas River"), index.search("RIV"));
+		assertEquals(Arrays.asList("Arkansas River", "Animas River", "Upper Animas"), index.search("a"));
+		assertEquals(0, index.search("x").size());
+	}
+
+	public void testMultiWordQuery() {
+		NameSearchIndex<String> index = index("Upper Animas", "Animas River", "Animas Rapids");
+
+		assertEquals(Arrays.asList("Animas River"), index.search("animas ri"));
+
+		//a query containing a space only matches the start of the name
+		assertEquals(Arrays.asList("Animas River", "Animas Rapids"), index.search("animas r"));
+		assertEquals(0, index.search("per animas").size());
+	}
+
+	public void testNarrowingAndWidening() {
+		NameSearchIndex<String> index = index("Clear Creek", "Cache la Poudre", "Crystal", "Colorado");
+
+		assertEquals(4, index.search("c").size());
+		assertEquals(Arrays.asList("Clear Creek"), index.search("cl"));
+		assertEquals(0, index.search("clx").size());
+
+		//not an extension of the last query, so the whole index is searched again
+		assertEquals(Arrays.asList("Colorado"), index.search("co"));
+		assertEquals(Arrays.asList("Crystal", "Clear Creek"), index.search("cr"));
+	}
+
+	public void testEmptyQueryAndMissingNames() {
+		NameSearchIndex<String> index = index("Gunnison", null, "Green");
+
+		assertEquals(Arrays.asList("Gunnison", null, "Green"), index.search(""));
+		assertEquals(Arrays.asList("Gunnison", "Green"), index.search("g"));
+		assertEquals(3, index.size());
+	}
+}
@@ -0,0 +1,103 @@
+package com.riverflows.data;
+
+import com.riverflows.data.Variable.CommonVariable;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class QualifierDictionaryTest extends TestCase {
+
+	private static final QualifierDictionary DICTIONARY = QualifierDictionary.register("TEST", "A", "e", "r");
+
+	public void testKnownTokens() {
+		int code = DICTIONARY.encode("A r");
+
+		assertTrue(code < (1 << QualifierDictionary.MAX_TOKENS));
+		assertEquals("A r", DICTIONARY.decode(code));
+	}
+
+	public void testUnknownText() {
+		assertEquals("Ice", DICTIONARY.decode(DICTIONARY.encode("Ice")));
+		assertEquals("Ice e", DICTIONARY.decode(DICTIONARY.encode("Ice e")));
+		assertEquals(DICTIONARY.encode("Ice"), DICTIONARY.encode(new String("Ice")));
+
+		//tokens out of order, or with odd spacing, are still rebuilt exactly
+		assertEquals("r A", DICTIONARY.decode(DICTIONARY.encode("r A")));
+		assertEquals(" A", DICTIONARY.decode(DICTIONARY.encode(" A")));
+		assertEquals("A  e", DICTIONARY.decode(DICTIONARY.encode("A  e")));
+		assertEquals("", DICTIONARY.decode(DICTIONARY.encode("")));
+	}
+
+	public void testNone() {
+		assertEquals(QualifierDictionary.NONE, DICTIONARY.encode(null));
+		assertNull(DICTIONARY.decode(QualifierDictionary.NONE));
+	}
+
+	public void testAppend() {
+		int code = DICTIONARY.append(QualifierDictionary.NONE, QualifierDictionary.CONVERTED_F);
+		assertEquals(QualifierDictionary.CONVERTED_F, DICTIONARY.decode(code));
+
+		code = DICTIONARY.append(DICTIONARY.encode("Ice e"), QualifierDictionary.CONVERTED_F);
+		assertEquals("Ice e converted:°F", DICTIONARY.decode(code));
+
+		code = DICTIONARY.append(code, "A");
+		assertEquals("Ice e converted:°F A", DICTIONARY.decode(code));
+	}
+
+	public void testForAgency() {
+		assertSame(DICTIONARY, QualifierDictionary.forAgency("TEST"));
+		assertSame(QualifierDictionary.DEFAULT, QualifierDictionary.forAgency("NONE"));
+	}
+
+	public void testSeriesConversion() {
+		Series s = new Series();
+		s.setQualifierDictionary(DICTIONARY);
+		s.setVariable(new Variable(CommonVariable.WATERTEMP_C, "temp", null));
+		s.addObservation(1000L, 10.0d, null);
+		s.addObservation(2000L, Double.NaN, "Ice");
+
+		Map<CommonVariable, CommonVariable> conversions = new HashMap<CommonVariable, CommonVariable>();
+		conversions.put(CommonVariable.WATERTEMP_C, CommonVariable.WATERTEMP_F);
+
+		assertTrue(ValueConverter.convertIfNecessary(conversions, s));
+		assertEquals(50.0d, s.getValue(0), 0.0001d);
+		assertEquals("converted:°F", s.getQualifiers(0));
+		assertEquals("Ice converted:°F", s.getQualifiers(1));
+	}
+
+	public void testOverflow() {
+		QualifierDictionary small = QualifierDictionary.createSmall(1, "A");
+
+		int ice = small.encode("Ice");
+		assertEquals("Ice", small.decode(ice));
+		assertEquals("A", small.decode(small.encode("A")));
+		assertEquals(QualifierDictionary.OVERFLOW, small.encode("Eqp"));
+		assertEquals(QualifierDictionary.OVERFLOW, small.encode("Eqp A"));
+
+		//the series keeps whatever the dictionary can't
+		Series s = new Series();
+		s.setQualifierDictionary(small);
+		s.addObservation(1000L, Double.NaN, "Ice");
+		s.addObservation(2000L, Double.NaN, "Eqp");
+		s.addObservation(3000L, Double.NaN, "Eqp A");
+		s.addObservation(4000L, Double.NaN, "Eqp");
+		s.addObservation(5000L, 1.0d, null);
+
+		assertEquals("Ice", s.getQualifiers(0));
+		assertEquals("Eqp", s.getQualifiers(1));
+		assertEquals("Eqp A", s.getQualifiers(2));
+		assertEquals("Eqp", s.getQualifiers(3));
+		assertNull(s.getQualifiers(4));
+
+		s.addQualifier(1, QualifierDictionary.CONVERTED_F);
+		s.addQualifier(4, "Ssn");
+		assertEquals("Eqp converted:°F", s.getQualifiers(1));
+		assertEquals("Ssn", s.getQualifiers(4));
+
+		s.setQualifierDictionary(DICTIONARY);
+		assertEquals("Eqp A", s.getQualifiers(2));
+		assertEquals("Ssn", s.getQualifiers(4));
+	}
+}
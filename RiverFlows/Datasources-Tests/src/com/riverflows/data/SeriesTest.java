@@ -0,0 +1,139 @@
+package com.riverflows.data;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class SeriesTest extends TestCase {
+
+	private static Series series() {
+		Series s = new Series();
+		s.initReadings(2);
+		s.addObservation(3000L, 3.0d, null);
+		s.addForecast(5000L, 5.0d, "fcst");
+		s.addObservation(1000L, Double.NaN, "Ice");
+		s.addObservation(2000L, 2.0d, null);
+		return s;
+	}
+
+	public void testForecastsFollowObservations() {
+		Series s = series();
+
+		assertEquals(4, s.size());
+		assertEquals(3, s.getForecastStart());
+		assertEquals(3000L, s.getTime(0));
+		assertEquals(1000L, s.getTime(1));
+		assertEquals(2000L, s.getTime(2));
+		assertEquals(5000L, s.getTime(3));
+		assertTrue(s.isForecast(3));
+		assertEquals("fcst", s.getQualifiers(3));
+	}
+
+	public void testReadingView() {
+		Series s = series();
+		List<Reading> readings = s.getReadings();
+
+		Reading r = readings.get(1);
+		assertFalse(r instanceof Forecast);
+		assertEquals(new Date(1000L), r.getDate());
+		assertNull(r.getValue());
+		assertEquals("Ice", r.getQualifiers());
+
+		assertTrue(readings.get(3) instanceof Forecast);
+
+		r.setValue(1.5d);
+		assertEquals(1.5d, s.getValue(1));
+	}
+
+	public void testSetReadings() {
+		List<Reading> readings = new ArrayList<Reading>();
+		Reading r = new Reading();
+		r.setDate(new Date(1000L));
+		readings.add(r);
+		r = new Reading();
+		readings.add(r);
+
+		Series s = new Series();
+		assertNull(s.getReadings());
+		s.setReadings(readings);
+
+		assertEquals(2, s.getReadings().size());
+		assertEquals(Series.NO_DATE, s.getTime(1));
+		assertNull(s.getReadings().get(1).getDate());
+
+		//setting a series' own readings shouldn't lose them
+		s.setReadings(s.getReadings());
+		assertEquals(2, s.size());
+		assertEquals(1000L, s.getTime(0));
+	}
+
+	public void testSortObservations() {
+		Series s = new Series();
+		s.initReadings(3);
+		s.addObservation(3000L, 3.0d, null);
+		s.addObservation(1000L, 1.0d, null);
+		s.addObservation(2000L, 2.0d, null);
+
+		Collections.sort(s.getReadings(), Collections.reverseOrder());
+
+		assertEquals(1000L, s.getTime(0));
+		assertEquals(1.0d, s.getValue(0));
+		assertEquals(2000L, s.getTime(1));
+		assertEquals(3000L, s.getTime(2));
+	}
+
+	public void testListChanges() {
+		Series s = series();
+		List<Reading> readings = s.getReadings();
+
+		Reading removed = readings.remove(0);
+		assertEquals(new Date(3000L), removed.getDate());
+		assertEquals(2, s.getForecastStart());
+
+		Reading r = new Reading();
+		r.setDate(new Date(4000L));
+		readings.add(r);
+		assertEquals(4000L, s.getTime(2));
+		assertEquals(3, s.getForecastStart());
+		assertEquals(5000L, s.getTime(3));
+
+		try {
+			readings.set(0, new Forecast());
+			fail("forecast set before observations");
+		} catch(IllegalArgumentException iae) {
+		}
+	}
+
+	public void testReverseObservations() {
+		Series s = series();
+		s.reverseObservations();
+
+		assertEquals(2000L, s.getTime(0));
+		assertEquals(3000L, s.getTime(2));
+		assertEquals("Ice", s.getQualifiers(1));
+		assertEquals(5000L, s.getTime(3));
+	}
+
+	public void testLastObservation() {
+		Series s = series();
+		assertEquals(new Date(2000L), s.getLastObservation().getDate());
+
+		s.setValue(2, Double.NaN);
+		s.setValue(0, Double.NaN);
+		assertEquals(new Date(3000L), s.getLastObservation().getDate());
+	}
+
+	public void testLastObservationIsCopy() {
+		Series s = series();
+		Reading last = s.getLastObservation();
+
+		s.getReadings().remove(0);
+		s.reverseObservations();
+
+		assertEquals(new Date(2000L), last.getDate());
+		assertEquals(new Date(2000L), s.getLastObservation().getDate());
+	}
+}
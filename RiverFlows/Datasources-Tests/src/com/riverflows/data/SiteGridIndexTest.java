@@ -0,0 +1,161 @@
+package com.riverflows.data;
+
+import com.riverflows.data.Variable.CommonVariable;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class SiteGridIndexTest extends TestCase {
+
+	private static final Variable FLOW = new Variable(CommonVariable.STREAMFLOW_CFS, "00060", null);
+	private static final Variable STAGE = new Variable(CommonVariable.GAUGE_HEIGHT_FT, "00065", null);
+
+	private static Site site(String agency, String id, double latitude, double longitude, Variable... variables) {
+		return new Site(new SiteId(agency, id), id, longitude, latitude, USState.CO, variables);
+	}
+
+	public void testFindInBox() {
+		SiteGridIndex index = new SiteGridIndex();
+		index.add(site("USGS", "durango", 37.2794d, -107.8798d, FLOW));
+		index.add(site("USGS", "silverton", 37.79d, -107.67d, FLOW, STAGE));
+		index.add(site("CODWR", "denver", 39.75d, -105.0d, FLOW));
+		index.add(new Site(new SiteId("USGS", "nowhere"), "nowhere", USState.CO, new Variable[]{FLOW}));
+
+		assertEquals(3, index.size());
+		assertEquals(2, index.findInBox(37.0d, -108.0d, 38.0d, -107.0d, null).size());
+		assertEquals(1, index.findInBox(37.0d, -108.0d, 38.0d, -107.0d,
+				new SiteGridIndex.Filter(null, CommonVariable.GAUGE_HEIGHT_FT)).size());
+		assertEquals(1, index.findInBox(30.0d, -110.0d, 40.0d, -100.0d,
+				new SiteGridIndex.Filter("CODWR", null)).size());
+
+		//moving a site
+		index.add(site("USGS", "durango", 39.0d, -105.0d, FLOW));
+		assertEquals(3, index.size());
+		assertEquals(1, index.findInBox(37.0d, -108.0d, 38.0d, -107.0d, null).size());
+	}
+
+	public void testRemove() {
+		SiteGridIndex index = new SiteGridIndex();
+		index.add(site("USGS", "durango", 37.2794d, -107.8798d, FLOW));
+		index.add(site("USGS", "silverton", 37.79d, -107.67d, FLOW, STAGE));
+		index.add(site("CODWR", "denver", 39.75d, -105.0d, FLOW));
+
+		assertTrue(index.remove(new SiteId("USGS", "durango")));
+		assertFalse(index.remove(new SiteId("USGS", "durango")));
+		assertEquals(2, index.size());
+
+		List<Site> found = index.findInBox(37.0d, -108.0d, 38.0d, -107.0d, null);
+		assertEquals(1, found.size());
+		assertEquals("silverton", found.get(0).getId());
+
+		//the site that took the removed site's slot can still be moved and removed
+		index.add(site("CODWR", "denver", 37.5d, -107.5d, FLOW));
+		assertEquals(2, index.findInBox(37.0d, -108.0d, 38.0d, -107.0d, null).size());
+		assertTrue(index.remove(new SiteId("CODWR", "denver")));
+		assertEquals(1, index.size());
+		assertEquals("silverton", index.findNearest(39.75d, -105.0d, 5, null).get(0).getSite().getId());
+	}
+
+	public void testAntimeridian() {
+		SiteGridIndex index = new SiteGridIndex();
+		index.add(site("AHPS", "west", 52.0d, 179.9d, STAGE));
+		index.add(site("AHPS", "east", 52.0d, -179.9d, STAGE));
+
+		assertEquals(2, index.findInBox(51.0d, 179.0d, 53.0d, -179.0d, null).size());
+
+		List<SiteGridIndex.Result> nearest = index.findNearest(52.0d, 179.95d, 2, null);
+		assertEquals(2, nearest.size());
+		assertEquals("west", nearest.get(0).getSite().getId());
+		assertEquals("east", nearest.get(1).getSite().getId());
+	}
+
+	public void testFindNearestMatchesBruteForce() {
+		Random random = new Random(42);
+		SiteGridIndex index = new SiteGridIndex();
+		final List<Site> sites = new ArrayList<Site>();
+		for(int a = 0; a < 2000; a++) {
+			Site site = site(a % 3 == 0 ? "AHPS" : "USGS", "site" + a,
+					25.0d + (random.nextDouble() * 24.0d), -125.0d + (random.nextDouble() * 58.0d),
+					a % 2 == 0 ? FLOW : STAGE);
+			sites.add(site);
+			index.add(site);
+		}
+
+		for(int query = 0; query < 20; query++) {
+			final double latitude = 25.0d + (random.nextDouble() * 24.0d);
+			final double longitude = -125.0d + (random.nextDouble() * 58.0d);
+
+			List<Site> expected = new ArrayList<Site>();
+			for(Site site: sites) {
+				if(site.getAgency().equals("USGS") && site.getSupportedVariables()[0] == FLOW) {
+					expected.add(site);
+				}
+			}
+			Collections.sort(expected, new Comparator<Site>() {
+				@Override
+				public int compare(Site lhs, Site rhs) {
+					return Double.compare(
+							SiteGridIndex.distanceKm(latitude, longitude, lhs.getLatitude(), lhs.getLongitude()),
+							SiteGridIndex.distanceKm(latitude, longitude, rhs.getLatitude(), rhs.getLongitude()));
+				}
+			});
+
+			List<SiteGridIndex.Result> nearest = index.findNearest(latitude, longitude, 5,
+					new SiteGridIndex.Filter("USGS", CommonVariable.STREAMFLOW_CFS));
+			assertEquals(5, nearest.size());
+			for(int a = 0; a < 5; a++) {
+				assertSame(expected.get(a), nearest.get(a).getSite());
+			}
+		}
+	}
+
+	public void testRecordsOnlyReadForResults() {
+		final List<Site> sites = new ArrayList<Site>();
+		for(int a = 0; a < 100; a++) {
+			sites.add(site("USGS", "site" + a, 37.0d + (a * 0.01d), -107.0d, FLOW));
+		}
+		final int[] sitesRead = new int[1];
+
+		SiteGridIndex index = new SiteGridIndex(new SiteGridIndex.Records() {
+			@Override
+			public Site getSite(int record) {
+				sitesRead[0]++;
+				return sites.get(record);
+			}
+
+			@Override
+			public String getAgency(int record) {
+				return sites.get(record).getAgency();
+			}
+
+			@Override
+			public boolean hasVariable(int record, CommonVariable variable) {
+				return variable == CommonVariable.STREAMFLOW_CFS;
+			}
+		});
+		for(int a = 0; a < sites.size(); a++) {
+			index.add(a, sites.get(a).getLatitude(), sites.get(a).getLongitude());
+		}
+
+		List<SiteGridIndex.Result> nearest = index.findNearest(37.0d, -107.0d, 3,
+				new SiteGridIndex.Filter("USGS", CommonVariable.STREAMFLOW_CFS));
+		assertEquals(3, nearest.size());
+		assertSame(sites.get(0), nearest.get(0).getSite());
+		assertSame(sites.get(2), nearest.get(2).getSite());
+		assertEquals(3, sitesRead[0]);
+
+		assertTrue(index.remove(0));
+		assertSame(sites.get(1), index.findNearest(37.0d, -107.0d, 1, null).get(0).getSite());
+
+		try {
+			index.add(sites.get(0));
+			fail("added a site to an index of records");
+		} catch(IllegalStateException ise) {
+		}
+	}
+}
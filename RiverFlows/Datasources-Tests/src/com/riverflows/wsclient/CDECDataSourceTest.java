@@ -1,10 +1,17 @@
 package com.riverflows.wsclient;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
+import com.riverflows.data.Favorite;
+import com.riverflows.data.FavoriteData;
 import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
@@ -13,6 +20,7 @@ import com.riverflows.data.SiteId;
 import com.riverflows.data.USTimeZone;
 import com.riverflows.data.Variable;
 import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
 
 public class CDECDataSourceTest extends TestCase {
 	private static final CDECDataSource ds = new CDECDataSource();
@@ -50,4 +58,105 @@ public class CDECDataSourceTest extends TestCase {
 		
 		System.out.println("dataInfo:\n" + data.getDataInfo());
 	}
+	
+	private static final String FLOW_PAGE_HEADER = "<html><body><table>\n"
+			+ "<tr><td align=left bgcolor=e0e0e0><font color=black> Date &nbsp; / &nbsp; Time &nbsp; </font></td><td align=right bgcolor=e0e0e0><font color=black><i><a href=/plot?sensor_no=1>FLOW</a> &nbsp</i></font></td><td bgcolor=e0e0e0> &nbsp; </td></tr>\n"
+			+ "<tr><td align=center bgcolor=e0e0e0><font color=black>(PST)</font></td><td align=right bgcolor=e0e0e0><font color=black><b>CFS </b></font></td><td bgcolor=e0e0e0> &nbsp; </td></tr>\n";
+	
+	/**
+	 * @param rows reading rows of a page with a single flow column
+	 */
+	private static Series parseFlow(String rows) throws Throwable {
+		final String page = FLOW_PAGE_HEADER + rows + "</table></body></html>\n";
+		
+		CDECDataSource flagSource = new CDECDataSource();
+		flagSource.setHttpClientWrapper(new HttpClientWrapper() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) {
+				return new WrappedHttpResponse(new ByteArrayInputStream(page.getBytes()), null, 200, null);
+			}
+		});
+		
+		Site site = new Site(new SiteId("CDEC","XYZ"), "Flags", null, null);
+		SiteData data = flagSource.getSiteData(site, new Variable[] { CDECDataSource.VTYPE_FLOW }, true);
+		
+		return data.getDatasets().get(CommonVariable.STREAMFLOW_CFS);
+	}
+	
+	public void testFlags() throws Throwable {
+		Series flow = parseFlow(
+				"<tr><td nowrap align=right>12/10/2016 17:00</td><td align=right>     10274</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none> </a></td></tr>\n"
+				+ "<tr><td nowrap align=right>12/10/2016 18:00</td><td align=right>     10249</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none>e</a></td></tr>\n"
+				+ "<tr><td nowrap align=right>12/10/2016 19:00</td><td align=right>        --</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none>N</a></td></tr>\n"
+				+ "<tr><td nowrap align=right>12/10/2016 20:00</td><td align=right>      9877</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none></a></td></tr>\n");
+		assertEquals(4, flow.size());
+		
+		assertEquals(10274d, flow.getValue(0));
+		assertNull(flow.getQualifiers(0));
+		
+		assertEquals(10249d, flow.getValue(1));
+		assertEquals("e", flow.getQualifiers(1));
+		
+		assertTrue(Double.isNaN(flow.getValue(2)));
+		assertEquals("-- N", flow.getQualifiers(2));
+		
+		assertEquals(9877d, flow.getValue(3));
+		assertNull(flow.getQualifiers(3));
+	}
+	
+	public void testTrailingPlaceholderRemoved() throws Throwable {
+		String rows = "<tr><td nowrap align=right>12/10/2016 17:00</td><td align=right>     10274</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none> </a></td></tr>\n"
+				+ "<tr><td nowrap align=right>12/10/2016 18:00</td><td align=right>        --</td><td align=right><a href=/misc/flaglist.html style=text-decoration:none>%s</a></td></tr>\n";
+		
+		Series flow = parseFlow(String.format(rows, ""));
+		assertEquals(1, flow.size());
+		
+		//the same placeholder with a flag
+		flow = parseFlow(String.format(rows, "N"));
+		assertEquals(1, flow.size());
+		assertEquals(10274d, flow.getValue(0));
+	}
+	
+	public void testFavoritesShareStation() throws Throwable {
+		final AtomicInteger requests = new AtomicInteger();
+		
+		CDECDataSource countingSource = new CDECDataSource();
+		countingSource.setHttpClientWrapper(new MockCDECHttpClient() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				requests.incrementAndGet();
+				return super.doGet(requestUrl, hardRefresh);
+			}
+		});
+		
+		Site cbr = new Site(new SiteId("CDEC","CBR"), "CBR", null, null);
+		Site ads = new Site(new SiteId("CDEC","ADS"), "ADS", null, null);
+		Site missing = new Site(new SiteId("CDEC","XXX"), "Missing", null, null);
+		
+		List<Favorite> favorites = new ArrayList<Favorite>();
+		favorites.add(new Favorite(cbr, CDECDataSource.VTYPE_FLOW.getId()));
+		favorites.add(new Favorite(ads, CDECDataSource.VTYPE_WIND_DR.getId()));
+		favorites.add(new Favorite(missing, CDECDataSource.VTYPE_FLOW.getId()));
+		favorites.add(new Favorite(cbr, CDECDataSource.VTYPE_RIV_STG.getId()));
+		
+		List<FavoriteData> result = countingSource.getSiteData(favorites, true);
+		
+		assertEquals(3, requests.get());
+		assertEquals(4, result.size());
+		
+		for(int a = 0; a < favorites.size(); a++) {
+			assertSame(favorites.get(a), result.get(a).getFavorite());
+		}
+		
+		assertSame(result.get(0).getSiteData(), result.get(3).getSiteData());
+		assertNull(result.get(0).getException());
+		assertEquals(3346.0d, result.get(0).getSiteData().getDatasets().get(CommonVariable.STREAMFLOW_CFS).getLastObservation().getValue());
+		assertNotNull(result.get(3).getSiteData().getDatasets().get(CommonVariable.GAUGE_HEIGHT_FT));
+		
+		assertNull(result.get(1).getException());
+		
+		//a station that can't be loaded doesn't take the others down with it
+		assertNotNull(result.get(2).getException());
+		assertSame(missing, result.get(2).getSiteData().getSite());
+	}
 }
@@ -0,0 +1,134 @@
+package com.riverflows.wsclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.riverflows.data.Favorite;
+import com.riverflows.data.FavoriteData;
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Batched favorite requests, against local copies of CODWR exports.
+ */
+public class CODWRBatchTest extends TestCase {
+	
+	private final AtomicInteger requests = new AtomicInteger();
+	
+	private final CODWRDataSource src = new CODWRDataSource();
+	
+	private final Site lakeCreek = new Site(new SiteId(CODWRDataSource.AGENCY, "LAKATLCO"), "LAKE CREEK ABOVE TWIN LAKES", USState.CO,
+			new Variable[]{CODWRDataSource.VTYPE_STREAMFLOW_CFS, CODWRDataSource.VTYPE_AIRTEMP});
+	
+	private final Site clearCreek = new Site(new SiteId(CODWRDataSource.AGENCY, "CCACCRCO"), "CLEAR CREEK ABOVE CLEAR CREEK RESERVOIR", USState.CO,
+			new Variable[]{CODWRDataSource.VTYPE_STREAMFLOW_CFS});
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		src.setHttpClientWrapper(new MockCODWRHttpClient() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				requests.incrementAndGet();
+				return super.doGet(requestUrl, hardRefresh);
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		CODWRDataSource.setMaxUrlLength(UrlChunkPlanner.DEFAULT_MAX_URL_LENGTH);
+		super.tearDown();
+	}
+	
+	private List<Favorite> getFavorites() {
+		List<Favorite> favorites = new ArrayList<Favorite>();
+		favorites.add(new Favorite(lakeCreek, CODWRDataSource.VTYPE_STREAMFLOW_CFS.getId()));
+		favorites.add(new Favorite(clearCreek, CODWRDataSource.VTYPE_STREAMFLOW_CFS.getId()));
+		favorites.add(new Favorite(lakeCreek, "NOT_A_VARIABLE"));
+		return favorites;
+	}
+	
+	public void testOneRequestPerBatch() throws Throwable {
+		List<Favorite> favorites = getFavorites();
+		
+		List<FavoriteData> result = src.getSiteData(favorites, true, new GregorianCalendar(2015, 2, 30).getTime());
+		
+		assertEquals(1, requests.get());
+		assertResult(favorites, result);
+	}
+	
+	public void testUrlLengthLimit() throws Throwable {
+		//room for only one station per request
+		CODWRDataSource.setMaxUrlLength(CODWRDataSource.SITE_DATA_URL.length() + 70);
+		
+		List<Favorite> favorites = getFavorites();
+		
+		List<FavoriteData> result = src.getSiteData(favorites, true, new GregorianCalendar(2015, 2, 30).getTime());
+		
+		assertEquals(2, requests.get());
+		assertResult(favorites, result);
+	}
+	
+	public void testFailedRequest() throws Throwable {
+		CODWRDataSource.setMaxUrlLength(CODWRDataSource.SITE_DATA_URL.length() + 70);
+		
+		final IOException down = new IOException("connection refused");
+		src.setHttpClientWrapper(new MockCODWRHttpClient() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				if(requestUrl.contains(clearCreek.getId())) {
+					throw down;
+				}
+				return super.doGet(requestUrl, hardRefresh);
+			}
+		});
+		
+		List<Favorite> favorites = getFavorites();
+		
+		List<FavoriteData> result = src.getSiteData(favorites, true, new GregorianCalendar(2015, 2, 30).getTime());
+		
+		assertEquals(2, result.size());
+		assertNull(result.get(0).getException());
+		assertEquals(96, result.get(0).getSiteData().getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().size());
+		
+		//the failed station's placeholder data carries the cause of the failure
+		assertSame(down, result.get(1).getException());
+		SiteData clearData = result.get(1).getSiteData();
+		assertSame(clearCreek, clearData.getSite());
+		assertEquals("Datasource Down", clearData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().get(0).getQualifiers());
+	}
+	
+	private void assertResult(List<Favorite> favorites, List<FavoriteData> result) {
+		//the favorite with an unknown variable is left out
+		assertEquals(2, result.size());
+		assertSame(favorites.get(0), result.get(0).getFavorite());
+		assertSame(favorites.get(1), result.get(1).getFavorite());
+		
+		SiteData lakeData = result.get(0).getSiteData();
+		assertNull(result.get(0).getException());
+		assertSame(lakeCreek, lakeData.getSite());
+		assertFalse(lakeData.isComplete());
+		assertTrue(lakeData.getDataInfo().contains(lakeCreek.getName()));
+		assertEquals(96, lakeData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().size());
+		assertEquals(31.8d, lakeData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().get(48).getValue());
+		
+		SiteData clearData = result.get(1).getSiteData();
+		assertNull(result.get(1).getException());
+		assertSame(clearCreek, clearData.getSite());
+		assertTrue(clearData.isComplete());
+		assertTrue(clearData.getDataInfo().contains(clearCreek.getName()));
+		assertEquals(96, clearData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().size());
+		assertEquals(17.1d, clearData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().get(48).getValue());
+	}
+}
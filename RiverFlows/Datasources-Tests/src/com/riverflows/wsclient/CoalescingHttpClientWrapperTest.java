@@ -0,0 +1,167 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CoalescingHttpClientWrapperTest extends TestCase {
+
+	private static final byte[] BODY = new byte[50000];
+
+	static {
+		for(int a = 0; a < BODY.length; a++) {
+			BODY[a] = (byte)a;
+		}
+	}
+
+	private static class CountingHttpClientWrapper implements HttpClientWrapper {
+		final AtomicInteger requests = new AtomicInteger();
+		final byte[] body;
+
+		CountingHttpClientWrapper() {
+			this(BODY);
+		}
+
+		CountingHttpClientWrapper(byte[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+			requests.incrementAndGet();
+			return new WrappedHttpResponse(new ByteArrayInputStream(body), new File("cached"), 200, "OK");
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[1000];
+		int count;
+		while((count = in.read(b)) != -1) {
+			out.write(b, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testSharedDownload() throws Throwable {
+		CountingHttpClientWrapper source = new CountingHttpClientWrapper();
+		CoalescingHttpClientWrapper wrapper = new CoalescingHttpClientWrapper(source);
+
+		WrappedHttpResponse leader = wrapper.doGet("http://example.com/a", false);
+		WrappedHttpResponse follower = wrapper.doGet("http://example.com/a", false);
+
+		assertEquals(1, source.requests.get());
+		assertNotNull(leader.cacheFile);
+		assertNull(follower.cacheFile);
+		assertEquals(200, follower.statusCode);
+
+		//read a little from the leader before the follower catches up
+		assertEquals(BODY[0], (byte)leader.responseStream.read());
+
+		byte[] followerBody = readFully(follower.responseStream);
+		byte[] leaderBody = readFully(leader.responseStream);
+
+		assertEquals(BODY.length, followerBody.length);
+		assertEquals(BODY.length - 1, leaderBody.length);
+		assertEquals(BODY[BODY.length - 1], followerBody[BODY.length - 1]);
+
+		//completed downloads aren't shared
+		readFully(wrapper.doGet("http://example.com/a", false).responseStream);
+		assertEquals(2, source.requests.get());
+	}
+
+	public void testHardRefreshDoesNotJoinSoftRefresh() throws Throwable {
+		CountingHttpClientWrapper source = new CountingHttpClientWrapper();
+		CoalescingHttpClientWrapper wrapper = new CoalescingHttpClientWrapper(source);
+
+		WrappedHttpResponse soft = wrapper.doGet("http://example.com/a", false);
+		WrappedHttpResponse hard = wrapper.doGet("http://example.com/a", true);
+		WrappedHttpResponse soft2 = wrapper.doGet("http://example.com/a", false);
+
+		assertEquals(2, source.requests.get());
+		assertNotNull(hard.cacheFile);
+		assertNull(soft2.cacheFile);
+
+		assertEquals(BODY.length, readFully(soft.responseStream).length);
+		assertEquals(BODY.length, readFully(hard.responseStream).length);
+		assertEquals(BODY.length, readFully(soft2.responseStream).length);
+	}
+
+	public void testConcurrentReaders() throws Throwable {
+		CountingHttpClientWrapper source = new CountingHttpClientWrapper();
+		final CoalescingHttpClientWrapper wrapper = new CoalescingHttpClientWrapper(source);
+
+		final WrappedHttpResponse[] responses = new WrappedHttpResponse[4];
+		for(int a = 0; a < responses.length; a++) {
+			responses[a] = wrapper.doGet("http://example.com/a", true);
+		}
+
+		final CountDownLatch done = new CountDownLatch(responses.length);
+		final AtomicInteger correct = new AtomicInteger();
+
+		for(final WrappedHttpResponse response: responses) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						byte[] body = readFully(response.responseStream);
+						if(Arrays.equals(BODY, body)) {
+							correct.incrementAndGet();
+						}
+					} catch(IOException ioe) {
+						ioe.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		done.await();
+
+		assertEquals(1, source.requests.get());
+		assertEquals(responses.length, correct.get());
+	}
+
+	public void testLargeResponseStopsSharing() throws Throwable {
+		byte[] largeBody = new byte[CoalescingHttpClientWrapper.MAX_JOIN_BYTES * 3];
+		for(int a = 0; a < largeBody.length; a++) {
+			largeBody[a] = (byte)(a * 31);
+		}
+		CountingHttpClientWrapper source = new CountingHttpClientWrapper(largeBody);
+		CoalescingHttpClientWrapper wrapper = new CoalescingHttpClientWrapper(source);
+
+		WrappedHttpResponse leader = wrapper.doGet("http://example.com/a", false);
+		WrappedHttpResponse early = wrapper.doGet("http://example.com/a", false);
+		assertEquals(1, source.requests.get());
+
+		//read past the part that is kept for new requests
+		byte[] start = new byte[CoalescingHttpClientWrapper.MAX_JOIN_BYTES + 1000];
+		int read = 0;
+		while(read < start.length) {
+			read += leader.responseStream.read(start, read, start.length - read);
+		}
+
+		WrappedHttpResponse late = wrapper.doGet("http://example.com/a", false);
+		assertEquals(2, source.requests.get());
+		assertNotNull(late.cacheFile);
+
+		//the early follower still gets every byte from the beginning
+		assertTrue(Arrays.equals(largeBody, readFully(early.responseStream)));
+		assertTrue(Arrays.equals(largeBody, readFully(late.responseStream)));
+
+		byte[] rest = readFully(leader.responseStream);
+		assertEquals(largeBody.length - start.length, rest.length);
+		assertEquals(largeBody[largeBody.length - 1], rest[rest.length - 1]);
+	}
+}
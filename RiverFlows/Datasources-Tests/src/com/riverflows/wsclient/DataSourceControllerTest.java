@@ -10,16 +10,32 @@ import com.riverflows.data.Variable;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DataSourceControllerTest extends TestCase {
 
-    static {
+    private HttpClientWrapper usgsWrapper;
+    private HttpClientWrapper ahpsWrapper;
 
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        //other tests may have installed their own wrappers on the shared data sources
+        usgsWrapper = DataSourceController.getDataSource("USGS").getHttpClientWrapper();
+        ahpsWrapper = DataSourceController.getDataSource("AHPS").getHttpClientWrapper();
         DataSourceController.getDataSource("USGS").setHttpClientWrapper(new FileHttpClientWrapper("testdata/usgs/csv/", UsgsCsvDataSource.SITE_DATA_URL));
         DataSourceController.getDataSource("AHPS").setHttpClientWrapper(new FileHttpClientWrapper("testdata/ahps/", AHPSXmlDataSource.SITE_DATA_URL));
     }
 
+    @Override
+    protected void tearDown() throws Exception {
+        DataSourceController.getDataSource("USGS").setHttpClientWrapper(usgsWrapper);
+        DataSourceController.getDataSource("AHPS").setHttpClientWrapper(ahpsWrapper);
+        super.tearDown();
+    }
+
 	public void testGetFavorites() throws Throwable {
         Variable[] blackVars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00010"});
         Site blackRiver = new Site(new SiteId("USGS", "04200500"), "Black River at Elyria OH", USState.OH,
@@ -78,6 +94,35 @@ public class DataSourceControllerTest extends TestCase {
     }
 
 
+    public void testAgencyDataListener() throws Throwable {
+        Variable[] blackVars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00010"});
+        Site blackRiver = new Site(new SiteId("USGS", "04200500"), "Black River at Elyria OH", USState.OH,
+                blackVars);
+
+        Site lagoDosBocas = new Site(new SiteId(AHPSXmlDataSource.AGENCY,"argp4"),
+                "Lago Dos Bocas at Utuado", -11.1111d, 11.1111d, USState.PR,
+                AHPSXmlDataSource.ACCEPTED_VARIABLES);
+
+        List<Favorite> favs = new ArrayList<Favorite>();
+        favs.add(new Favorite(blackRiver, "00010"));
+        favs.add(new Favorite(lagoDosBocas, AHPSXmlDataSource.VTYPE_STAGE.getId()));
+
+        final Map<String, List<FavoriteData>> agencyData = new HashMap<String, List<FavoriteData>>();
+
+        List<FavoriteData> data = new DataSourceController().getFavoriteData(favs, true, new DataSourceController.AgencyDataListener() {
+            @Override
+            public void onAgencyData(String agency, List<FavoriteData> favoriteData) {
+                assertNull(agencyData.put(agency, favoriteData));
+            }
+        });
+
+        assertEquals(2, agencyData.size());
+        assertEquals(1, agencyData.get("USGS").size());
+        assertSame(data.get(0), agencyData.get("USGS").get(0));
+        assertEquals(1, agencyData.get(AHPSXmlDataSource.AGENCY).size());
+        assertSame(data.get(1), agencyData.get(AHPSXmlDataSource.AGENCY).get(0));
+    }
+
     public void testHandlePartialResponse() throws Throwable {
         Site fsso3 = new Site(new SiteId(AHPSXmlDataSource.AGENCY,"fsso3"),
                 "Nehalem River  AT Foss", -11.1111d, 11.1111d, USState.WA,
@@ -119,7 +164,7 @@ public class DataSourceControllerTest extends TestCase {
 
         assertNotNull(sori2Data.getSiteData().getSite());
         assertNotNull(sori2Data.getException());
-        assertEquals("Error", sori2Data.getSiteData().getDatasets().values().iterator().next().getLastObservation().getQualifiers());
+        assertEquals("Parse Error", sori2Data.getSiteData().getDatasets().values().iterator().next().getLastObservation().getQualifiers());
 
         FavoriteData molg1Data = favoriteData.get(2);
 
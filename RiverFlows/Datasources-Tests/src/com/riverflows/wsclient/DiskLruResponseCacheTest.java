@@ -0,0 +1,158 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.CacheEditor;
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DiskLruResponseCacheTest extends TestCase {
+
+	private static final String URL = "http://waterservices.usgs.gov/nwis/iv/?format=rdb&sites=09380000";
+
+	private File cacheDir;
+	private DiskLruResponseCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cacheDir = File.createTempFile("responsecache", "");
+		cacheDir.delete();
+		cache = DiskLruResponseCache.open(cacheDir, 1024 * 1024);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.close();
+		for(File f: cacheDir.listFiles()) {
+			f.delete();
+		}
+		cacheDir.delete();
+		super.tearDown();
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		StringBuilder result = new StringBuilder();
+		int ch;
+		while((ch = in.read()) != -1) {
+			result.append((char)ch);
+		}
+		in.close();
+		return result.toString();
+	}
+
+	private static WrappedHttpResponse response(String body, CacheEditor editor) {
+		return new WrappedHttpResponse(new ByteArrayInputStream(body.getBytes()), null, editor, 200, null);
+	}
+
+	public void testCompleteResponseIsCached() throws Throwable {
+		assertNull(cache.get(URL));
+
+		CacheEditor editor = cache.edit(URL, "\"abc\"", null);
+		assertEquals("agency data", readFully(CachingBufferedInputStream.wrap(response("agency data", editor), 8192)));
+
+		DiskLruResponseCache.CachedResponse cached = cache.get(URL);
+		assertNotNull(cached);
+		assertEquals(URL, cached.metadata.url);
+		assertEquals("\"abc\"", cached.metadata.etag);
+		assertNull(cached.metadata.lastModified);
+		assertEquals(11, cached.metadata.contentLength);
+		assertTrue(cached.metadata.fetchTime <= System.currentTimeMillis());
+		assertEquals("agency data", readFully(cached.body));
+	}
+
+	public void testPartialResponseIsDiscarded() throws Throwable {
+		CacheEditor editor = cache.edit(URL, null, null);
+		InputStream in = CachingBufferedInputStream.wrap(response("agency data", editor), 8192);
+		in.read();
+		in.close();
+
+		assertNull(cache.get(URL));
+	}
+
+	public void testPartialResponseKeepsPreviousEntry() throws Throwable {
+		readFully(CachingBufferedInputStream.wrap(response("old data", cache.edit(URL, null, null)), 8192));
+
+		InputStream in = CachingBufferedInputStream.wrap(response("new data", cache.edit(URL, null, null)), 8192);
+		in.read();
+		in.close();
+
+		assertEquals("old data", readFully(cache.get(URL).body));
+	}
+
+	public void testDrainedResponseIsCached() throws Throwable {
+		InputStream in = CachingBufferedInputStream.wrap(response("agency data", cache.edit(URL, null, null)), 8192, true);
+		in.read();
+		in.close();
+
+		//the rest of the response is read on another thread
+		DiskLruResponseCache.CachedResponse cached = null;
+		for(int a = 0; a < 100 && cached == null; a++) {
+			Thread.sleep(20);
+			cached = cache.get(URL);
+		}
+
+		assertNotNull(cached);
+		assertEquals("agency data", readFully(cached.body));
+	}
+
+	public void testCorruptEntryIsRemoved() throws Throwable {
+		readFully(CachingBufferedInputStream.wrap(response("agency data", cache.edit(URL, null, null)), 8192));
+
+		File body = new File(cacheDir, DiskLruResponseCache.key(URL) + ".1");
+		FileOutputStream out = new FileOutputStream(body);
+		out.write("agency dat4".getBytes());
+		out.close();
+
+		try {
+			readFully(cache.get(URL).body);
+			fail("expected IOException");
+		} catch(IOException expected) {
+		}
+
+		assertNull(cache.get(URL));
+	}
+
+	public void testTruncatedEntryIsRemoved() throws Throwable {
+		readFully(CachingBufferedInputStream.wrap(response("agency data", cache.edit(URL, null, null)), 8192));
+
+		File body = new File(cacheDir, DiskLruResponseCache.key(URL) + ".1");
+		FileOutputStream out = new FileOutputStream(body);
+		out.write("agency".getBytes());
+		out.close();
+
+		assertNull(cache.get(URL));
+	}
+
+	public void testEntryReplacedWhileReading() throws Throwable {
+		readFully(CachingBufferedInputStream.wrap(response("old data", cache.edit(URL, null, null)), 8192));
+
+		DiskLruResponseCache.CachedResponse old = cache.get(URL);
+
+		//a longer replacement is committed while the old entry is open
+		readFully(CachingBufferedInputStream.wrap(response("newer agency data", cache.edit(URL, null, null)), 8192));
+
+		assertEquals("old data", readFully(old.body));
+		assertEquals("newer agency data", readFully(cache.get(URL).body));
+	}
+
+	public void testMarkValidated() throws Throwable {
+		readFully(CachingBufferedInputStream.wrap(response("agency data", cache.edit(URL, "\"abc\"", null)), 8192));
+		DiskLruResponseCache.Metadata original = cache.get(URL).metadata;
+		assertEquals(original.fetchTime, original.validatedTime);
+
+		Thread.sleep(5);
+		cache.markValidated(URL);
+
+		DiskLruResponseCache.CachedResponse validated = cache.get(URL);
+		assertEquals(original.fetchTime, validated.metadata.fetchTime);
+		assertTrue(validated.metadata.validatedTime > original.validatedTime);
+		assertEquals("\"abc\"", validated.metadata.etag);
+		assertEquals("agency data", readFully(validated.body));
+	}
+}
@@ -0,0 +1,104 @@
+package com.riverflows.wsclient;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class FetchExecutorTest extends TestCase {
+
+	private final FetchExecutor executor = new FetchExecutor("test-fetch", 2, 2);
+
+	private static class RecordingCallback extends FetchExecutor.Callback<String, String> {
+		final List<String> results = new ArrayList<String>();
+		final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+
+		@Override
+		public void onResult(String key, String result) {
+			results.add(result);
+		}
+
+		@Override
+		public void onFailure(String key, Exception failure) {
+			failures.put(key, failure);
+		}
+	}
+
+	private Future<String> submit(final String result, final Exception failure) {
+		return executor.submit("host", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				if(failure != null) {
+					throw failure;
+				}
+				return result;
+			}
+		});
+	}
+
+	public void testSomeFailures() throws Throwable {
+		Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+		futures.put("a", submit("A", null));
+		futures.put("b", submit(null, new IOException("offline")));
+		futures.put("c", submit(null, new DataParseException("bad page")));
+
+		RecordingCallback callback = new RecordingCallback();
+		FetchExecutor.awaitAll(futures, "3 pages", callback);
+
+		assertEquals(1, callback.results.size());
+		assertEquals("A", callback.results.get(0));
+		assertTrue(callback.failures.get("b") instanceof IOException);
+		assertTrue(callback.failures.get("c") instanceof DataParseException);
+	}
+
+	public void testAllIOExceptions() throws Throwable {
+		Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+		futures.put("a", submit(null, new IOException("first")));
+		futures.put("b", submit(null, new IOException("last")));
+
+		RecordingCallback callback = new RecordingCallback();
+		try {
+			FetchExecutor.awaitAll(futures, "2 pages", callback);
+			fail("every request failed");
+		} catch(IOException ioe) {
+			assertEquals("last", ioe.getMessage());
+		}
+		assertEquals(2, callback.failures.size());
+	}
+
+	public void testTimeout() throws Throwable {
+		final CountDownLatch never = new CountDownLatch(1);
+		Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+		futures.put("slow", executor.submit("host", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				never.await();
+				return "late";
+			}
+		}));
+		futures.put("fast", submit("fast", null));
+
+		RecordingCallback callback = new RecordingCallback() {
+			@Override
+			protected String await(String key, Future<String> future)
+					throws InterruptedException, ExecutionException, TimeoutException {
+				return future.get(50, TimeUnit.MILLISECONDS);
+			}
+		};
+		FetchExecutor.awaitAll(futures, "2 pages", callback);
+
+		assertTrue(callback.failures.get("slow") instanceof SocketTimeoutException);
+		assertTrue(futures.get("slow").isCancelled());
+		assertEquals("fast", callback.results.get(0));
+	}
+}
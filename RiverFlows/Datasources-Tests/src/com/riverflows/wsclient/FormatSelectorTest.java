@@ -0,0 +1,55 @@
+package com.riverflows.wsclient;
+
+import junit.framework.TestCase;
+
+public class FormatSelectorTest extends TestCase {
+
+	public void testTriesEachFormatFirst() {
+		FormatSelector selector = new FormatSelector(2, 2, 10);
+
+		assertEquals(0, selector.choose("a"));
+		selector.record("a", 0, 1, 100);
+		assertEquals(0, selector.choose("a"));
+		selector.record("a", 0, 1, 100);
+		assertEquals(1, selector.choose("a"));
+		selector.record("a", 1, 1, 50);
+		assertEquals(1, selector.choose("a"));
+		selector.record("a", 1, 1, 50);
+
+		assertEquals(1, selector.getFastest("a"));
+
+		//shapes are measured separately
+		assertEquals(0, selector.choose("b"));
+		assertEquals(0, selector.getFastest("b"));
+	}
+
+	public void testPrefersFastestButStillExplores() {
+		FormatSelector selector = new FormatSelector(2, 1, 5);
+
+		selector.choose("a");
+		selector.record("a", 0, 10, 1000);
+		selector.choose("a");
+		selector.record("a", 1, 10, 200);
+
+		int slowerCount = 0;
+		for(int a = 0; a < 20; a++) {
+			if(selector.choose("a") == 0) {
+				slowerCount++;
+			}
+		}
+		assertEquals(4, slowerCount);
+	}
+
+	public void testAdaptsToChangingSpeeds() {
+		FormatSelector selector = new FormatSelector(2, 1, 5);
+
+		selector.record("a", 0, 1, 100);
+		selector.record("a", 1, 1, 50);
+		assertEquals(1, selector.getFastest("a"));
+
+		for(int a = 0; a < 10; a++) {
+			selector.record("a", 1, 1, 400);
+		}
+		assertEquals(0, selector.getFastest("a"));
+	}
+}
@@ -0,0 +1,55 @@
+package com.riverflows.wsclient;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class HtmlRowScannerTest extends TestCase {
+
+	private static HtmlRowScanner scanner(String html) {
+		//a small buffer exercises refilling
+		return new HtmlRowScanner(new ByteArrayInputStream(html.getBytes()), 16);
+	}
+
+	public void testCells() throws Exception {
+		HtmlRowScanner scanner = scanner("<table>\n"
+				+ "  <tr><td nowrap align=right>12/10/2016 17:00</td><td align=right>      9.69</td><td><a href=/x style=y> e</a></td><td></td></tr>  \r\n");
+
+		assertTrue(scanner.readLine());
+		assertEquals("<table>", scanner.getLine());
+		assertFalse(scanner.nextCell());
+
+		assertTrue(scanner.readLine());
+		assertTrue(scanner.lineStartsWith("<tr><td"));
+		assertTrue(scanner.lineEndsWith("</tr>"));
+
+		assertTrue(scanner.nextCell());
+		assertEquals("12/10/2016 17:00", scanner.getCellText());
+		assertEquals("12/10/2016 17:00", scanner.getCellChars().toString());
+		assertTrue(Double.isNaN(scanner.parseCellDouble()));
+
+		assertTrue(scanner.nextCell());
+		assertEquals(9.69d, scanner.parseCellDouble());
+		assertTrue(scanner.cellEquals("9.69"));
+
+		assertTrue(scanner.nextCell());
+		assertEquals("e", scanner.getCellText());
+		assertEquals('e', scanner.cellCharAt(0));
+
+		assertTrue(scanner.nextCell());
+		assertEquals(0, scanner.getCellLength());
+
+		assertFalse(scanner.nextCell());
+		assertFalse(scanner.readLine());
+	}
+
+	public void testLastLineWithoutTerminator() throws Exception {
+		HtmlRowScanner scanner = scanner("<tr><td>--</td>");
+
+		assertTrue(scanner.readLine());
+		assertTrue(scanner.nextCell());
+		assertEquals("--", scanner.getCellText());
+		assertFalse(scanner.lineEndsWith("</tr>"));
+		assertFalse(scanner.readLine());
+	}
+}
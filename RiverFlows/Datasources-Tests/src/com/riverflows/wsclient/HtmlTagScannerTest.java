@@ -0,0 +1,88 @@
+package com.riverflows.wsclient;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class HtmlTagScannerTest extends TestCase {
+
+	private static HtmlTagScanner scanner(String html) {
+		//a small buffer exercises refilling and growing
+		return new HtmlTagScanner(new ByteArrayInputStream(html.getBytes()), 8);
+	}
+
+	public void testTokens() throws Exception {
+		HtmlTagScanner scanner = scanner("<!DOCTYPE html><!-- <tr> -->"
+				+ "<TR class=\"style11 other\" title='a > b'><td nowrap>  11.53\n </td><td>1 &lt; 2</td></tr>");
+
+		assertEquals(HtmlTagScanner.START_TAG, scanner.next());
+		assertTrue(scanner.isStartTag("tr"));
+		assertFalse(scanner.isEndTag("tr"));
+		assertTrue(scanner.hasClass("style11"));
+		assertTrue(scanner.hasClass("other"));
+		assertFalse(scanner.hasClass("style1"));
+		assertEquals("a > b", scanner.getAttribute("title"));
+		assertNull(scanner.getAttribute("name"));
+
+		assertEquals(HtmlTagScanner.START_TAG, scanner.next());
+		assertTrue(scanner.isTag("td"));
+		assertEquals("", scanner.getAttribute("nowrap"));
+		assertEquals(0, scanner.getTextLength());
+
+		assertEquals(HtmlTagScanner.TEXT, scanner.next());
+		assertEquals("11.53", scanner.getText());
+		assertEquals(11.53d, scanner.parseTextDouble());
+
+		assertEquals(HtmlTagScanner.END_TAG, scanner.next());
+		assertTrue(scanner.isEndTag("td"));
+
+		assertEquals(HtmlTagScanner.START_TAG, scanner.next());
+
+		assertEquals(HtmlTagScanner.TEXT, scanner.next());
+		assertEquals("1 &lt; 2", scanner.getText());
+		assertTrue(Double.isNaN(scanner.parseTextDouble()));
+
+		assertEquals(HtmlTagScanner.END_TAG, scanner.next());
+		assertEquals(HtmlTagScanner.END_TAG, scanner.next());
+		assertTrue(scanner.isEndTag("tr"));
+
+		assertEquals(HtmlTagScanner.EOF, scanner.next());
+		assertEquals(HtmlTagScanner.EOF, scanner.next());
+	}
+
+	public void testScript() throws Exception {
+		HtmlTagScanner scanner = scanner("<script>if(a<b) document.write('<td>');</SCRIPT><td>x");
+
+		assertEquals(HtmlTagScanner.START_TAG, scanner.next());
+		assertEquals(HtmlTagScanner.TEXT, scanner.next());
+		assertEquals("if(a<b) document.write('<td>');", scanner.getText());
+		assertEquals(HtmlTagScanner.END_TAG, scanner.next());
+		assertTrue(scanner.isTag("script"));
+		assertEquals(HtmlTagScanner.START_TAG, scanner.next());
+		assertTrue(scanner.isTag("td"));
+		assertEquals(HtmlTagScanner.TEXT, scanner.next());
+		assertEquals("x", scanner.getText());
+		assertEquals(HtmlTagScanner.EOF, scanner.next());
+	}
+
+	public void testRawAndText() throws Exception {
+		String html = "<div align=\"center\"> <strong>Genesee   River</strong>\n<br> a < b </div>";
+		HtmlTagScanner scanner = scanner(html);
+
+		StringBuilder raw = new StringBuilder();
+		StringBuilder text = new StringBuilder();
+
+		while(scanner.next() != HtmlTagScanner.EOF) {
+			scanner.appendRaw(raw);
+			if(scanner.getTokenType() == HtmlTagScanner.TEXT && scanner.getTextLength() > 0) {
+				if(text.length() > 0) {
+					text.append('|');
+				}
+				scanner.appendText(text);
+			}
+		}
+
+		assertEquals(html, raw.toString());
+		assertEquals("Genesee River|a|< b", text.toString());
+	}
+}
@@ -0,0 +1,29 @@
+package com.riverflows.wsclient;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves CODWR exports from files named after the ID parameter, so a batched request for
+ * "A,B" is answered by the file "A,B".
+ */
+public class MockCODWRHttpClient extends FileHttpClientWrapper {
+	
+	private Pattern codwrDataUrlPat = Pattern.compile(Pattern.quote(CODWRDataSource.SITE_DATA_URL) + "ID=([\\w,]+)&MTYPE=.+");
+
+	public MockCODWRHttpClient() {
+		super("testdata/codwr/", null);
+	}
+
+	@Override
+	public String getFileName(String requestUrl) {
+		
+		Matcher m = codwrDataUrlPat.matcher(requestUrl);
+		
+		if(!m.matches()) {
+			throw new IllegalArgumentException("url not supported by this mock http client: " + requestUrl);
+		}
+		
+		return m.group(1);
+	}
+}
@@ -0,0 +1,140 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Forecast;
+import com.riverflows.data.Reading;
+import com.riverflows.data.Series;
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ParsedDataCacheTest extends TestCase {
+
+	private static final String URL = "http://water.weather.gov/ahps2/hydrograph_to_xml.php?gage=argp4";
+
+	private static final Site SITE = new Site(new SiteId("AHPS", "argp4"), "Allegheny River at Parker", -79.7, 41.1,
+			USState.PA, new Variable[]{AHPSXmlDataSource.VTYPE_STAGE});
+
+	private File cacheDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cacheDir = File.createTempFile("parsedcache", "");
+		cacheDir.delete();
+		ParsedDataCache.install(cacheDir, 1024 * 1024);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ParsedDataCache.uninstall();
+		for(File f: cacheDir.listFiles()) {
+			f.delete();
+		}
+		cacheDir.delete();
+		super.tearDown();
+	}
+
+	private static WrappedHttpResponse response(long cacheTimestamp) {
+		return new WrappedHttpResponse(new ByteArrayInputStream(new byte[0]), null, null, cacheTimestamp, 200, null);
+	}
+
+	private static SiteData siteData() {
+		SiteData data = new SiteData();
+		data.setSite(SITE);
+		data.setDataInfo("<h2>Parker</h2>");
+		data.setComplete(false);
+
+		List<Reading> readings = new ArrayList<Reading>();
+
+		Reading r = new Reading();
+		r.setDate(new Date(1000000L));
+		r.setValue(4.5d);
+		readings.add(r);
+
+		r = new Reading();
+		r.setDate(new Date(2000000L));
+		r.setQualifiers("Ice");
+		readings.add(r);
+
+		r = new Forecast();
+		r.setDate(new Date(3000000L));
+		r.setValue(5.0d);
+		readings.add(r);
+
+		Series s = new Series();
+		s.setVariable(AHPSXmlDataSource.VTYPE_STAGE);
+		s.setSourceUrl(URL);
+		s.setReadings(readings);
+		data.getDatasets().put(CommonVariable.GAUGE_HEIGHT_FT, s);
+
+		return data;
+	}
+
+	public void testRoundTrip() throws Throwable {
+		ParsedDataCache.put(URL, 1, response(1234L), siteData());
+
+		SiteData cached = ParsedDataCache.get(URL, 1, response(1234L), SITE);
+
+		assertNotNull(cached);
+		assertSame(SITE, cached.getSite());
+		assertEquals("<h2>Parker</h2>", cached.getDataInfo());
+		assertFalse(cached.isComplete());
+
+		Series s = cached.getDatasets().get(CommonVariable.GAUGE_HEIGHT_FT);
+		assertSame(AHPSXmlDataSource.VTYPE_STAGE, s.getVariable());
+		assertTrue(VariableRegistry.getId(s.getVariable()) != -1);
+		assertEquals(-999000.0d, s.getVariable().getMagicNullValue());
+		assertEquals(URL, s.getSourceUrl());
+		assertEquals(3, s.getReadings().size());
+
+		assertEquals(new Date(1000000L), s.getReadings().get(0).getDate());
+		assertEquals(4.5d, s.getReadings().get(0).getValue());
+		assertNull(s.getReadings().get(0).getQualifiers());
+
+		assertNull(s.getReadings().get(1).getValue());
+		assertEquals("Ice", s.getReadings().get(1).getQualifiers());
+
+		assertTrue(s.getReadings().get(2) instanceof Forecast);
+		assertEquals(5.0d, s.getReadings().get(2).getValue());
+	}
+
+	public void testOtherSite() throws Throwable {
+		ParsedDataCache.put(URL, 1, response(1234L), siteData());
+
+		SiteData cached = ParsedDataCache.get(URL, 1, response(1234L), new Site[0]).get(SITE.getSiteId());
+
+		assertEquals("Allegheny River at Parker", cached.getSite().getName());
+		assertEquals(USState.PA, cached.getSite().getState());
+		assertEquals(41.1d, cached.getSite().getLatitude());
+	}
+
+	public void testNewResponseIsParsed() throws Throwable {
+		ParsedDataCache.put(URL, 1, response(1234L), siteData());
+
+		assertNull(ParsedDataCache.get(URL, 1, response(5678L), SITE));
+	}
+
+	public void testNewParserVersionIsParsed() throws Throwable {
+		ParsedDataCache.put(URL, 1, response(1234L), siteData());
+
+		assertNull(ParsedDataCache.get(URL, 2, response(1234L), SITE));
+	}
+
+	public void testUncachedResponse() throws Throwable {
+		ParsedDataCache.put(URL, 1, response(0), siteData());
+
+		assertNull(ParsedDataCache.get(URL, 1, response(0), SITE));
+	}
+}
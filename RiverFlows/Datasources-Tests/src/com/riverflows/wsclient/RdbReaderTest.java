@@ -0,0 +1,149 @@
+package com.riverflows.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class RdbReaderTest extends TestCase {
+
+	private static RdbReader reader(String text, int bufferSize) throws IOException {
+		return new RdbReader(new ByteArrayInputStream(text.getBytes("ISO-8859-1")), '\t', bufferSize);
+	}
+
+	private static double parse(String value) throws IOException {
+		RdbReader reader = reader(value, 8);
+		assertTrue(reader.readLine());
+		return reader.parseDouble(0);
+	}
+
+	public void testEmptyAndTrailingFields() throws Throwable {
+		RdbReader reader = reader("a\t\tc\t\n\n\t\n", 8192);
+
+		assertTrue(reader.readLine());
+		assertEquals(4, reader.getFieldCount());
+		assertEquals("a", reader.getField(0));
+		assertEquals(0, reader.getFieldLength(1));
+		assertEquals("", reader.getField(1));
+		assertEquals("c", reader.getField(2));
+		assertEquals("", reader.getField(3));
+
+		//an empty line has one empty field
+		assertTrue(reader.readLine());
+		assertEquals(1, reader.getFieldCount());
+		assertEquals(-1, reader.firstChar());
+		assertEquals("", reader.getField(0));
+
+		assertTrue(reader.readLine());
+		assertEquals(2, reader.getFieldCount());
+
+		assertFalse(reader.readLine());
+		assertEquals(0, reader.getFieldCount());
+	}
+
+	public void testFieldOutOfRange() throws Throwable {
+		RdbReader reader = reader("a\tb\n", 8192);
+		assertTrue(reader.readLine());
+		try {
+			reader.getField(2);
+			fail();
+		} catch(ArrayIndexOutOfBoundsException expected) {
+		}
+	}
+
+	public void testCommentLines() throws Throwable {
+		RdbReader reader = reader("# comment\twith a tab\n#sync_token\t42\nUSGS\t01\n", 8192);
+
+		assertTrue(reader.readLine());
+		assertEquals('#', reader.firstChar());
+		assertTrue(reader.lineStartsWith("# comment"));
+		assertEquals("# comment\twith a tab", reader.getLine());
+
+		assertTrue(reader.readLine());
+		assertTrue(reader.fieldEquals(0, "#sync_token"));
+		assertFalse(reader.fieldEquals(0, "#sync"));
+		assertEquals("42", reader.getField(1));
+
+		assertTrue(reader.readLine());
+		assertFalse(reader.lineStartsWith("#"));
+		assertFalse(reader.lineStartsWith("USGS\t01 and more"));
+		assertEquals("USGS", reader.getFieldChars(0).toString());
+	}
+
+	public void testLineEndings() throws Throwable {
+		RdbReader reader = reader("a\tb\r\nc\td", 8192);
+
+		assertTrue(reader.readLine());
+		assertEquals("b", reader.getField(1));
+
+		//the last line has no terminator
+		assertTrue(reader.readLine());
+		assertEquals("d", reader.getField(1));
+
+		assertFalse(reader.readLine());
+	}
+
+	public void testLinesLongerThanBuffer() throws Throwable {
+		StringBuilder text = new StringBuilder();
+		for(int a = 0; a < 40; a++) {
+			text.append(a).append('\t');
+		}
+		text.append("end\nnext\n");
+
+		RdbReader reader = reader(text.toString(), 4);
+
+		assertTrue(reader.readLine());
+		assertEquals(41, reader.getFieldCount());
+		assertEquals(39.0d, reader.parseDouble(39));
+		assertEquals("end", reader.getField(40));
+
+		assertTrue(reader.readLine());
+		assertEquals("next", reader.getLine());
+		assertFalse(reader.readLine());
+	}
+
+	public void testParseDouble() throws Throwable {
+		assertEquals(635.0d, parse("635"));
+		assertEquals(1.9d, parse("1.90"));
+		assertEquals(0.05d, parse("0.05"));
+		assertEquals(-12.34d, parse("-12.34"));
+		assertEquals(12.34d, parse("+12.34"));
+		assertEquals(-0.5d, parse("-.5"));
+		assertEquals(7.0d, parse("7."));
+		assertEquals(Double.parseDouble("0.1"), parse("0.1"));
+		assertEquals(Double.parseDouble("1234567.891"), parse("1234567.891"));
+	}
+
+	public void testParseDoubleExponent() throws Throwable {
+		assertEquals(1.5e3d, parse("1.5e3"));
+		assertEquals(-2.5e-4d, parse("-2.5E-4"));
+	}
+
+	public void testParseDoubleManyDigits() throws Throwable {
+		//more digits than can be converted exactly
+		assertEquals(Double.parseDouble("12345678901234567.5"), parse("12345678901234567.5"));
+		assertEquals(Double.parseDouble("0.0000000000000000000000001"), parse("0.0000000000000000000000001"));
+	}
+
+	public void testParseDoubleNotANumber() throws Throwable {
+		assertTrue(Double.isNaN(parse("Eqp")));
+		assertTrue(Double.isNaN(parse("Ice")));
+		assertTrue(Double.isNaN(parse("P")));
+		assertTrue(Double.isNaN(parse("-")));
+		assertTrue(Double.isNaN(parse(".")));
+		assertTrue(Double.isNaN(parse("1.2.3")));
+		assertTrue(Double.isNaN(parse("12a")));
+		assertTrue(Double.isNaN(parse("1e")));
+	}
+
+	public void testParseQualifiedRow() throws Throwable {
+		RdbReader reader = reader("USGS\t12358500\t2011-03-06 00:00\tMST\t\tEqp\t1.91\tP\n", 8192);
+
+		assertTrue(reader.readLine());
+		assertTrue(Double.isNaN(reader.parseDouble(4)));
+		assertTrue(Double.isNaN(reader.parseDouble(5)));
+		assertEquals("Eqp", reader.getField(5));
+		assertEquals(1.91d, reader.parseDouble(6));
+		assertTrue(Double.isNaN(reader.parseDouble(7)));
+	}
+}
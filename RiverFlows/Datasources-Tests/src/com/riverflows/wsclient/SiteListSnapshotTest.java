@@ -0,0 +1,182 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteGridIndex;
+import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SiteListSnapshotTest extends TestCase {
+
+	private static final String URL = "https://riverflows.net/sites/?version=0.2&state=CO";
+
+	private File snapshotDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		snapshotDir = File.createTempFile("sitelists", "");
+		snapshotDir.delete();
+		SiteListSnapshot.install(snapshotDir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		SiteListSnapshot.uninstall();
+		for(File f: snapshotDir.listFiles()) {
+			f.delete();
+		}
+		snapshotDir.delete();
+		super.tearDown();
+	}
+
+	private static WrappedHttpResponse response(long cacheTimestamp) {
+		return new WrappedHttpResponse(new ByteArrayInputStream(new byte[0]), null, null, cacheTimestamp, 200, null);
+	}
+
+	private static List<SiteData> writeSnapshot(long cacheTimestamp) throws Exception {
+		final List<SiteData> parsed = new ArrayList<SiteData>();
+		SiteListSnapshot.Writer writer = SiteListSnapshot.newWriter(URL, response(cacheTimestamp), new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				parsed.add(site.toSiteData());
+				return true;
+			}
+		});
+		assertTrue(DataSourceController.visitSiteList(SiteListTest.stream(SiteListTest.SITE_LIST), writer));
+		writer.commit();
+		return parsed;
+	}
+
+	public void testRoundTrip() throws Throwable {
+		List<SiteData> parsed = writeSnapshot(1000L);
+
+		SiteListSnapshot snapshot = SiteListSnapshot.get(URL, response(1000L));
+		assertNotNull(snapshot);
+		assertEquals(parsed.size(), snapshot.size());
+
+		for(int a = 0; a < parsed.size(); a++) {
+			Site expected = parsed.get(a).getSite();
+			SiteData actualData = snapshot.getSiteData(a);
+			Site actual = actualData.getSite();
+
+			assertEquals(expected.getSiteId(), actual.getSiteId());
+			assertEquals(expected.getSiteId().getPrimaryKey(), actual.getSiteId().getPrimaryKey());
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getState(), actual.getState());
+			assertEquals(expected.getLatitude(), actual.getLatitude());
+			assertEquals(expected.getLongitude(), actual.getLongitude());
+			assertEquals(expected.getSupportedVariables().length, actual.getSupportedVariables().length);
+			for(int b = 0; b < expected.getSupportedVariables().length; b++) {
+				assertSame(expected.getSupportedVariables()[b], actual.getSupportedVariables()[b]);
+			}
+			assertEquals(parsed.get(a).getDatasets().keySet(), actualData.getDatasets().keySet());
+		}
+
+		assertNotNull(snapshot.getSiteData(0).getDatasets().get(CommonVariable.STREAMFLOW_CFS));
+	}
+
+	public void testVariableBitmap() throws Throwable {
+		writeSnapshot(1000L);
+
+		SiteListSnapshot snapshot = SiteListSnapshot.get(URL, response(1000L));
+		final int gaugeHeight = VariableRegistry.getId(UsgsCsvDataSource.VTYPE_GAUGE_HEIGHT_FT);
+		final List<String> ids = new ArrayList<String>();
+
+		snapshot.visit(new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				if(site.hasVariable(gaugeHeight)) {
+					ids.add(site.getId());
+				}
+				return true;
+			}
+		});
+
+		assertEquals(1, ids.size());
+		assertEquals("09359020", ids.get(0));
+	}
+
+	public void testDifferentResponse() throws Throwable {
+		writeSnapshot(1000L);
+
+		assertNull(SiteListSnapshot.get(URL, response(2000L)));
+		assertNull(SiteListSnapshot.get(URL, response(0L)));
+		assertNull(SiteListSnapshot.get(URL + "&foo", response(1000L)));
+
+		//a newer copy of the response replaces the snapshot
+		writeSnapshot(2000L);
+		assertNotNull(SiteListSnapshot.get(URL, response(2000L)));
+		assertNull(SiteListSnapshot.get(URL, response(1000L)));
+	}
+
+	public void testIncompleteListNotSaved() throws Throwable {
+		SiteListSnapshot.Writer writer = SiteListSnapshot.newWriter(URL, response(1000L), new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				return false;
+			}
+		});
+		assertFalse(DataSourceController.visitSiteList(SiteListTest.stream(SiteListTest.SITE_LIST), writer));
+		writer.commit();
+
+		assertNull(SiteListSnapshot.get(URL, response(1000L)));
+		assertEquals(0, snapshotDir.listFiles().length);
+	}
+
+	public void testConcurrentWriters() throws Throwable {
+		List<SiteData> parsed = writeSnapshot(500L);
+
+		//the first writer passes each site on to the second, so both are written at the same time
+		SiteListSnapshot.Writer second = SiteListSnapshot.newWriter(URL, response(2000L), null);
+		SiteListSnapshot.Writer first = SiteListSnapshot.newWriter(URL, response(1000L), second);
+		assertTrue(DataSourceController.visitSiteList(SiteListTest.stream(SiteListTest.SITE_LIST), first));
+
+		assertTrue(first.commit());
+		assertNotNull(SiteListSnapshot.get(URL, response(1000L)));
+		assertTrue(second.commit());
+
+		SiteListSnapshot snapshot = SiteListSnapshot.get(URL, response(2000L));
+		assertNotNull(snapshot);
+		assertEquals(parsed.size(), snapshot.size());
+		int last = parsed.size() - 1;
+		assertEquals(parsed.get(last).getSite().getName(), snapshot.getSiteData(last).getSite().getName());
+
+		//only the snapshot itself is left
+		assertEquals(1, snapshotDir.listFiles().length);
+	}
+
+	public void testIndex() throws Throwable {
+		writeSnapshot(1000L);
+
+		//the same sites in another list are only indexed once
+		String otherUrl = URL + "&foo";
+		SiteListSnapshot.Writer writer = SiteListSnapshot.newWriter(otherUrl, response(1000L), null);
+		assertTrue(DataSourceController.visitSiteList(SiteListTest.stream(SiteListTest.SITE_LIST), writer));
+		assertTrue(writer.commit());
+
+		List<SiteListSnapshot> snapshots = new ArrayList<SiteListSnapshot>();
+		snapshots.add(SiteListSnapshot.getLatest(URL));
+		snapshots.add(SiteListSnapshot.getLatest(otherUrl));
+		SiteGridIndex index = SiteListSnapshot.index(snapshots);
+
+		//the site without coordinates isn't indexed
+		assertEquals(2, index.size());
+
+		List<Site> found = index.findInBox(30.0d, -125.0d, 40.0d, -100.0d, new SiteGridIndex.Filter("CDEC", null));
+		assertEquals(1, found.size());
+		assertEquals("AFO", found.get(0).getId());
+
+		List<SiteGridIndex.Result> nearest = index.findNearest(38.0d, -121.0d, 5, new SiteGridIndex.Filter(null, CommonVariable.GAUGE_HEIGHT_FT));
+		assertEquals(1, nearest.size());
+		assertEquals("09359020", nearest.get(0).getSite().getId());
+		assertEquals(2, nearest.get(0).getSite().getSupportedVariables().length);
+	}
+}
@@ -0,0 +1,181 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteGridIndex;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.WrappedHttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class SiteListSyncTest extends TestCase {
+
+	private static final String BASE_URL = "https://riverflows.net/sites/?version=0.2&state=";
+
+	private static final String URL = BASE_URL + "CO";
+
+	/**
+	 * Serves recorded site lists as if each one was a newly cached response.
+	 */
+	private static class RecordingHttpClientWrapper implements HttpClientWrapper {
+		private final FileHttpClientWrapper files = new FileHttpClientWrapper("testdata/sitelist/", BASE_URL);
+		final List<String> requests = new ArrayList<String>();
+
+		@Override
+		public WrappedHttpResponse doGet(String url, boolean hardRefresh) throws IOException {
+			requests.add(files.getFileName(url));
+			WrappedHttpResponse response = files.doGet(url, hardRefresh);
+			return new WrappedHttpResponse(response.responseStream, null, null, requests.size(), response.statusCode, response.message);
+		}
+	}
+
+	private File snapshotDir;
+	private RecordingHttpClientWrapper siteListServer;
+	private RecordingHttpClientWrapper syncServer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		snapshotDir = File.createTempFile("sitelists", "");
+		snapshotDir.delete();
+		SiteListSnapshot.install(snapshotDir);
+
+		siteListServer = new RecordingHttpClientWrapper();
+		syncServer = new RecordingHttpClientWrapper();
+		DataSourceController.setSiteListHttpClientWrapper(siteListServer);
+		DataSourceController.enableSiteListSync(syncServer, 0L);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DataSourceController.disableSiteListSync();
+		DataSourceController.setSiteListHttpClientWrapper(null);
+		SiteListSnapshot.uninstall();
+		for(File f: snapshotDir.listFiles()) {
+			f.delete();
+		}
+		snapshotDir.delete();
+		super.tearDown();
+	}
+
+	private static boolean indexed(String usgsId) {
+		for(Site site: DataSourceController.getSiteIndex().findInBox(-90.0d, -180.0d, 90.0d, 180.0d, null)) {
+			if(site.getSiteId().equals(new SiteId("USGS", usgsId))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void testDelta() throws Throwable {
+		DataSourceController controller = new DataSourceController();
+
+		Map<SiteId, SiteData> sites = controller.getSites(URL, false);
+		assertEquals(3, sites.size());
+		assertEquals(1, siteListServer.requests.size());
+		assertEquals(0, syncServer.requests.size());
+
+		assertTrue(indexed("09358000"));
+
+		sites = controller.getSites(URL, false);
+		assertEquals(1, siteListServer.requests.size());
+		assertEquals("CO&since=1", syncServer.requests.get(0));
+
+		//removed sites are also removed from the site index
+		assertFalse(indexed("09358000"));
+		assertTrue(indexed("09359020"));
+
+		assertEquals(3, sites.size());
+		assertNull(sites.get(new SiteId("USGS", "09358000")));
+		assertNotNull(sites.get(new SiteId("USGS", "09359020")));
+
+		SiteData durango = sites.get(new SiteId("USGS", "09361500"));
+		assertEquals("ANIMAS RIVER AT DURANGO", durango.getSite().getName());
+		assertEquals(2, durango.getSite().getSupportedVariables().length);
+
+		SiteData cedarHill = sites.get(new SiteId("USGS", "09363500"));
+		assertEquals(Integer.valueOf(4), cedarHill.getSite().getSiteId().getPrimaryKey());
+		assertEquals(37.0383d, cedarHill.getSite().getLatitude(), 0.0d);
+	}
+
+	public void testVisitedSitesAreIndexed() throws Throwable {
+		DataSourceController controller = new DataSourceController();
+		controller.visitSites(URL, false, new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				return true;
+			}
+		});
+		assertTrue(indexed("09358000"));
+
+		//the index is only rebuilt once the snapshot changes
+		SiteGridIndex index = DataSourceController.getSiteIndex();
+		assertSame(index, DataSourceController.getSiteIndex());
+		controller.getSites(URL, false);
+		assertNotSame(index, DataSourceController.getSiteIndex());
+	}
+
+	public void testExpiredToken() throws Throwable {
+		DataSourceController controller = new DataSourceController();
+
+		controller.getSites(URL, false);
+		controller.getSites(URL, false);
+
+		//there is no recorded delta for token 2, so the whole list is downloaded again
+		Map<SiteId, SiteData> sites = controller.getSites(URL, false);
+		assertEquals("CO&since=2", syncServer.requests.get(1));
+		assertEquals(2, siteListServer.requests.size());
+		assertEquals(3, sites.size());
+		assertNotNull(sites.get(new SiteId("USGS", "09358000")));
+
+		//and syncing resumes from its token
+		controller.getSites(URL, false);
+		assertEquals("CO&since=1", syncServer.requests.get(2));
+	}
+
+	public void testDeltaWithoutToken() throws Throwable {
+		DataSourceController.enableSiteListSync(new HttpClientWrapper() {
+			@Override
+			public WrappedHttpResponse doGet(String url, boolean hardRefresh) throws IOException {
+				syncServer.requests.add(url);
+				String delta = "remote_id\tagency\tid\tname\tlat\tlon\tstate\tvariables\n"
+						+ "#delta\n"
+						+ "-\tUSGS\t09358000\n";
+				return new WrappedHttpResponse(new ByteArrayInputStream(delta.getBytes("UTF-8")), null, 200, null);
+			}
+		}, 0L);
+		DataSourceController controller = new DataSourceController();
+
+		controller.getSites(URL, false);
+
+		//the delta isn't applied, and the whole list is downloaded again instead
+		Map<SiteId, SiteData> sites = controller.getSites(URL, false);
+		assertEquals(1, syncServer.requests.size());
+		assertEquals(2, siteListServer.requests.size());
+		assertEquals(3, sites.size());
+		assertNotNull(sites.get(new SiteId("USGS", "09358000")));
+
+		//so syncing can resume from the list's token
+		assertEquals("1", SiteListSnapshot.getLatest(URL).getSyncToken());
+	}
+
+	public void testMinSyncInterval() throws Throwable {
+		DataSourceController.enableSiteListSync(syncServer, 60 * 60 * 1000L);
+		DataSourceController controller = new DataSourceController();
+
+		controller.getSites(URL, false);
+		assertEquals(3, controller.getSites(URL, false).size());
+		assertEquals(0, syncServer.requests.size());
+		assertEquals(1, siteListServer.requests.size());
+
+		controller.getSites(URL, true);
+		assertEquals(1, syncServer.requests.size());
+	}
+}
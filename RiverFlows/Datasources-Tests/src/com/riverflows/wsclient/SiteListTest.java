@@ -0,0 +1,95 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable.CommonVariable;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SiteListTest extends TestCase {
+
+	static final String SITE_LIST =
+			"remote_id\tagency\tid\tname\tlat\tlon\tstate\tvariables\n"
+			+ "# comment\n"
+			+ "\n"
+			+ "1\tUSGS\t09359020\tANIMAS RIVER BELOW SILVERTON, CO\t37.79\t-107.67\tCO\t00060 00065\t245.0\t2016-12-01 10:00:00\t00060\n"
+			+ "2\tNOBODY\t123\tUNKNOWN AGENCY\t37.0\t-107.0\tCO\t00060\n"
+			+ "3\tUSGS\t456\tNO SUPPORTED VARIABLES\t37.0\t-107.0\tCO\tbogus\n"
+			+ "4\tCDEC\t AFO \tAMERICAN RIVER AT FAIR OAKS\t38.635\t-121.227\tCA\tFLOW bogus\r\n"
+			+ "5\tUSGS\t789\tNO COORDINATES\t\t\tNM\t00060\n";
+
+	static InputStream stream(String text) throws Exception {
+		return new ByteArrayInputStream(text.getBytes("ISO-8859-1"));
+	}
+
+	public void testVisitSiteList() throws Throwable {
+		final List<SiteData> sites = new ArrayList<SiteData>();
+
+		assertTrue(DataSourceController.visitSiteList(stream(SITE_LIST), new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				sites.add(site.toSiteData());
+				return true;
+			}
+		}));
+
+		assertEquals(3, sites.size());
+
+		Site animas = sites.get(0).getSite();
+		assertEquals("09359020", animas.getId());
+		assertEquals("ANIMAS RIVER BELOW SILVERTON, CO", animas.getName());
+		assertEquals(1, animas.getSiteId().getPrimaryKey().intValue());
+		assertEquals(USState.CO, animas.getState());
+		assertEquals(37.79d, animas.getLatitude(), 0.0d);
+		assertEquals(-107.67d, animas.getLongitude(), 0.0d);
+		assertEquals(2, animas.getSupportedVariables().length);
+		assertSame(UsgsCsvDataSource.VTYPE_STREAMFLOW_CFS, animas.getSupportedVariables()[0]);
+		assertNotNull(sites.get(0).getDatasets().get(CommonVariable.STREAMFLOW_CFS));
+
+		Site fairOaks = sites.get(1).getSite();
+		assertEquals("AFO", fairOaks.getId());
+		assertEquals(1, fairOaks.getSupportedVariables().length);
+		assertSame(CDECDataSource.VTYPE_FLOW, fairOaks.getSupportedVariables()[0]);
+
+		Site noCoords = sites.get(2).getSite();
+		assertNull(noCoords.getLatitude());
+		assertNull(noCoords.getLongitude());
+	}
+
+	public void testFilterWithoutMaterializing() throws Throwable {
+		final List<String> ids = new ArrayList<String>();
+
+		DataSourceController.visitSiteList(stream(SITE_LIST), new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				if(site.isWithin(37.0d, -108.0d, 38.0d, -107.0d)) {
+					ids.add(site.getId());
+				}
+				return true;
+			}
+		});
+
+		assertEquals(1, ids.size());
+		assertEquals("09359020", ids.get(0));
+	}
+
+	public void testStopEarly() throws Throwable {
+		final int[] visited = new int[1];
+
+		assertFalse(DataSourceController.visitSiteList(stream(SITE_LIST), new SiteListVisitor() {
+			@Override
+			public boolean visit(SiteRecord site) {
+				visited[0]++;
+				return !"CDEC".equals(site.getAgency());
+			}
+		}));
+
+		assertEquals(2, visited[0]);
+	}
+}
@@ -0,0 +1,59 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.USTimeZone;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+public class TimestampCodecTest extends TestCase {
+
+	private static void assertSameAsSimpleDateFormat(String pattern, TimeZone zone, String text) throws ParseException {
+		SimpleDateFormat expected = new SimpleDateFormat(pattern);
+		expected.setTimeZone(zone);
+
+		assertEquals(text, expected.parse(text).getTime(), new TimestampCodec(pattern).parseMillis(text, zone));
+	}
+
+	public void testFixedOffsetZone() throws Throwable {
+		TimeZone mst = USTimeZone.MST.getTimeZone();
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", mst, "2011-12-26 19:30");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", mst, "2012-02-29 00:00");
+		assertSameAsSimpleDateFormat("MM/dd/yyyy HH:mm", mst, "1/2/2011 9:05");
+	}
+
+	public void testDaylightSavingsZone() throws Throwable {
+		TimeZone denver = TimeZone.getTimeZone("America/Denver");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-07-04 12:00");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-12-04 12:00");
+
+		//transition days, including skipped and repeated times
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-03-08 01:30");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-03-08 02:30");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-03-08 03:30");
+		assertSameAsSimpleDateFormat("yyyy-MM-dd HH:mm", denver, "2015-11-01 01:30");
+	}
+
+	public void testLenientFields() throws Throwable {
+		TimeZone pst = USTimeZone.PST.getTimeZone();
+		assertSameAsSimpleDateFormat("MM/dd/yyyy HH:mm", pst, "01/02/2011 24:00");
+		assertSameAsSimpleDateFormat("MM/dd/yyyy HH:mm", pst, "12/31/2011 23:59 trailing text");
+	}
+
+	public void testUtcOffset() throws Throwable {
+		TimestampCodec codec = new TimestampCodec("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZ");
+		assertEquals(1297598400000l, codec.parseMillis("2011-02-13T04:00:00.000-08:00"));
+		assertEquals(1297598400000l, codec.parseMillis("2011-02-13T04:00:00.000-0800"));
+		assertEquals(1297598400123l, codec.parseMillis("2011-02-13T12:00:00.123Z"));
+	}
+
+	public void testInvalidDate() {
+		try {
+			new TimestampCodec("yyyy-MM-dd HH:mm").parseMillis("Date", USTimeZone.UTC.getTimeZone());
+			fail("expected ParseException");
+		} catch(ParseException pe) {
+		}
+	}
+}
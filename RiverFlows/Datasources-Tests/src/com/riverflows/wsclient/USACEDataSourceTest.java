@@ -1,9 +1,14 @@
 package com.riverflows.wsclient;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.riverflows.data.Favorite;
+import com.riverflows.data.FavoriteData;
 import com.riverflows.data.Reading;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -11,6 +16,7 @@ import com.riverflows.data.SiteId;
 import com.riverflows.data.USState;
 import com.riverflows.data.Variable;
 import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
 import com.riverflows.wsclient.USACEDataSource;
 
 import junit.framework.TestCase;
@@ -183,4 +189,100 @@ public class USACEDataSourceTest extends TestCase {
 
 		SiteData result = src.getSiteData(sori2, new Variable[]{USACEDataSource.FLOW}, true);
 	}
+
+	public void testOneRequestPerPage() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		
+		USACEDataSource countingSrc = new USACEDataSource();
+		countingSrc.setHttpClientWrapper(new MockUSACEHttpClient() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				requests.incrementAndGet();
+				return super.doGet(requestUrl, hardRefresh);
+			}
+			
+			@Override
+			public String getFileName(String requestUrl) {
+				//favorites only ask for the last day, but the test data covers 7
+				return super.getFileName(requestUrl.replace("&d=1&", "&d=7&"));
+			}
+		});
+		
+		Site blbn6 = new Site(new SiteId("USACE", "BLBN6"), "Genesee River at Ballantyne Bridge near Mortimer, NY", USState.NY,
+				USACEDataSource.ACCEPTED_VARIABLES);
+		Site rygo = new Site(new SiteId("USACE", "RYGO"), "Rogue River at Raygold", USState.OR,
+				USACEDataSource.ACCEPTED_VARIABLES);
+		
+		SiteData result = countingSrc.getSiteData(blbn6, new Variable[]{ USACEDataSource.STAGE,
+				USACEDataSource.CUMULATIVE_PRECIP, USACEDataSource.BATTERY_VOLTAGE }, true);
+		
+		assertEquals(1, requests.get());
+		assertEquals(168, result.getDatasets().get(CommonVariable.GAUGE_HEIGHT_FT).size());
+		assertEquals(168, result.getDatasets().get(CommonVariable.DCP_BATTERY_VOLTAGE).size());
+		
+		requests.set(0);
+		
+		List<Favorite> favorites = new ArrayList<Favorite>();
+		favorites.add(new Favorite(blbn6, USACEDataSource.STAGE.getId()));
+		favorites.add(new Favorite(rygo, USACEDataSource.ELEVATION.getId()));
+		favorites.add(new Favorite(blbn6, USACEDataSource.CUMULATIVE_PRECIP.getId()));
+		favorites.add(new Favorite(blbn6, USACEDataSource.ELEVATION.getId()));
+		favorites.add(new Favorite(blbn6, USACEDataSource.BATTERY_VOLTAGE.getId()));
+		
+		List<FavoriteData> favoriteData = countingSrc.getSiteData(favorites, true);
+		
+		//BLBN6 stage, BLBN6 elevation and RYGO elevation
+		assertEquals(3, requests.get());
+		assertEquals(favorites.size(), favoriteData.size());
+		
+		for(int a = 0; a < favorites.size(); a++) {
+			assertSame(favorites.get(a), favoriteData.get(a).getFavorite());
+		}
+		
+		SiteData blbn6Data = favoriteData.get(0).getSiteData();
+		assertSame(blbn6Data, favoriteData.get(2).getSiteData());
+		assertSame(blbn6Data, favoriteData.get(3).getSiteData());
+		assertSame(blbn6Data, favoriteData.get(4).getSiteData());
+		assertEquals(168, blbn6Data.getDatasets().get(CommonVariable.PRECIPITATION_TOTAL_IN).size());
+		
+		assertSame(rygo, favoriteData.get(1).getSiteData().getSite());
+		assertNotNull(favoriteData.get(1).getSiteData().getDatasets().get(CommonVariable.RES_ELEVATION_FT));
+	}
+
+	public void testFailedPages() throws Exception {
+		USACEDataSource failingSrc = new USACEDataSource();
+		failingSrc.setHttpClientWrapper(new MockUSACEHttpClient() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				if(requestUrl.contains("sid=RYGO")) {
+					throw new IOException("offline");
+				}
+				return super.doGet(requestUrl.replace("&d=1&", "&d=7&"), hardRefresh);
+			}
+		});
+		
+		Site blbn6 = new Site(new SiteId("USACE", "BLBN6"), "Genesee River at Ballantyne Bridge near Mortimer, NY", USState.NY,
+				USACEDataSource.ACCEPTED_VARIABLES);
+		Site rygo = new Site(new SiteId("USACE", "RYGO"), "Rogue River at Raygold", USState.OR,
+				USACEDataSource.ACCEPTED_VARIABLES);
+		
+		List<Favorite> favorites = new ArrayList<Favorite>();
+		favorites.add(new Favorite(blbn6, USACEDataSource.STAGE.getId()));
+		favorites.add(new Favorite(rygo, USACEDataSource.ELEVATION.getId()));
+		
+		List<FavoriteData> favoriteData = failingSrc.getSiteData(favorites, true);
+		
+		assertNull(favoriteData.get(0).getException());
+		assertTrue(favoriteData.get(1).getException() instanceof IOException);
+		assertEquals("Datasource Down", favoriteData.get(1).getSeries().getLastObservation().getQualifiers());
+		
+		//when every page fails, it's probably a connectivity problem
+		favorites.set(0, new Favorite(rygo, USACEDataSource.STAGE.getId()));
+		try {
+			failingSrc.getSiteData(favorites, true);
+			fail("every page failed");
+		} catch(IOException ioe) {
+			assertEquals("offline", ioe.getMessage());
+		}
+	}
 }
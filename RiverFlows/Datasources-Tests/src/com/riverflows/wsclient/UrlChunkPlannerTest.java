@@ -0,0 +1,52 @@
+package com.riverflows.wsclient;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class UrlChunkPlannerTest extends TestCase {
+
+	public void testSingleChunk() {
+		UrlChunkPlanner planner = new UrlChunkPlanner("http://x/?sites=", ",", "&p=1", 100);
+
+		List<String[]> chunks = planner.plan(new String[]{"01", "02", "", "03"});
+
+		assertEquals(1, chunks.size());
+		assertEquals("http://x/?sites=01,02,03&p=1", planner.getUrl(chunks.get(0)));
+	}
+
+	public void testChunksStayUnderLimit() {
+		String prefix = "http://x/?sites=";
+		String suffix = "&p=1";
+		int maxLength = prefix.length() + suffix.length() + "0001,0002,0003".length();
+
+		UrlChunkPlanner planner = new UrlChunkPlanner(prefix, ",", suffix, maxLength);
+
+		String[] values = new String[10];
+		for(int a = 0; a < values.length; a++) {
+			values[a] = "000" + a;
+		}
+
+		List<String[]> chunks = planner.plan(values);
+
+		assertEquals(4, chunks.size());
+		assertEquals("http://x/?sites=0000,0001,0002&p=1", planner.getUrl(chunks.get(0)));
+		assertEquals("http://x/?sites=0009&p=1", planner.getUrl(chunks.get(3)));
+
+		int valueCount = 0;
+		for(String[] chunk: chunks) {
+			assertTrue(planner.getUrl(chunk).length() <= maxLength);
+			valueCount += chunk.length;
+		}
+		assertEquals(values.length, valueCount);
+	}
+
+	public void testOversizedValueGetsItsOwnChunk() {
+		UrlChunkPlanner planner = new UrlChunkPlanner("?s=", ",", null, 10);
+
+		List<String[]> chunks = planner.plan(new String[]{"1", "0123456789", "2"});
+
+		assertEquals(3, chunks.size());
+		assertEquals("?s=0123456789", planner.getUrl(chunks.get(1)));
+	}
+}
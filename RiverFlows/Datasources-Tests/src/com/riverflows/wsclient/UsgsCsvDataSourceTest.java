@@ -1,5 +1,7 @@
 package com.riverflows.wsclient;
 
+import com.riverflows.data.Favorite;
+import com.riverflows.data.FavoriteData;
 import com.riverflows.data.Reading;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -8,12 +10,17 @@ import com.riverflows.data.USState;
 import com.riverflows.data.USTimeZone;
 import com.riverflows.data.Variable;
 import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
 
 import junit.framework.TestCase;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 public class UsgsCsvDataSourceTest extends TestCase {
@@ -101,6 +108,131 @@ public class UsgsCsvDataSourceTest extends TestCase {
 		assertNull(r.getQualifiers());
 	}
 
+	public void testChunkedSiteData() throws Throwable {
+		Variable[] vars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00060","00065"});
+		Site mfFlathead = new Site(new SiteId("USGS", "12358500"), "M F Flathead River near West Glacier MT", USState.MT, vars);
+		Site beaverDam = new Site(new SiteId("USGS", "09414900"), "BEAVER DAM WASH AT BEAVER DAM, AZ", USState.AZ, vars);
+		//no recorded response for this one
+		Site missing = new Site(new SiteId("USGS", "99999999"), "MISSING", USState.AZ, vars);
+		
+		//one site per request
+		UsgsCsvDataSource.setMaxUrlLength((UsgsCsvDataSource.SITE_DATA_URL + "sites=12358500&parameterCd=00060,00065&period=P7D").length());
+		try {
+			Map<SiteId,SiteData> result = src.getSiteData(new Site[]{mfFlathead, beaverDam, missing}, vars, false, true);
+			
+			assertEquals(2, result.size());
+			
+			SiteData mfFlatheadData = result.get(mfFlathead.getSiteId());
+			assertSame(mfFlathead, mfFlatheadData.getSite());
+			assertEquals(635.0d, mfFlatheadData.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().get(0).getValue());
+			
+			assertSame(beaverDam, result.get(beaverDam.getSiteId()).getSite());
+			assertNull(result.get(missing.getSiteId()));
+		} finally {
+			UsgsCsvDataSource.setMaxUrlLength(UrlChunkPlanner.DEFAULT_MAX_URL_LENGTH);
+		}
+	}
+	
+	public void testChunkFailureReported() throws Throwable {
+		Variable[] vars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00010"});
+		Site blackRiver = new Site(new SiteId("USGS", "04200500"), "Black River at Elyria OH", USState.OH, vars);
+		//no recorded response for this one
+		Site missing = new Site(new SiteId("USGS", "99999999"), "MISSING", USState.AZ, vars);
+		
+		List<Favorite> favorites = new ArrayList<Favorite>();
+		favorites.add(new Favorite(blackRiver, "00010"));
+		favorites.add(new Favorite(missing, "00010"));
+		
+		//one site per request
+		UsgsCsvDataSource.setMaxUrlLength((UsgsCsvDataSource.SITE_DATA_URL + "sites=04200500&parameterCd=00010").length());
+		try {
+			List<FavoriteData> result = src.getSiteData(favorites, true);
+			
+			assertEquals(2, result.size());
+			assertNull(result.get(0).getException());
+			assertSame(blackRiver, result.get(0).getSiteData().getSite());
+			
+			//the failed chunk's placeholder data carries the cause of the failure
+			Exception error = result.get(1).getException();
+			assertTrue(error instanceof DataParseException);
+			SiteData missingData = result.get(1).getSiteData();
+			assertSame(missing, missingData.getSite());
+			assertEquals("Parse Error", missingData.getDatasets().get(vars[0].getCommonVariable()).getReadings().get(0).getQualifiers());
+		} finally {
+			UsgsCsvDataSource.setMaxUrlLength(UrlChunkPlanner.DEFAULT_MAX_URL_LENGTH);
+		}
+	}
+	
+	public void testWaterMLFormat() throws Throwable {
+		Variable[] vars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00060"});
+		Site yellowstone = new Site(new SiteId("USGS", "06186500"), "Yellowstone River at Yellowstone Lake Outlet, YNP", USState.WY, vars);
+		
+		UsgsCsvDataSource xmlSrc = new UsgsCsvDataSource();
+		//the recorded WaterML response for all of Wyoming stands in for the response for this site
+		xmlSrc.setHttpClientWrapper(new HttpClientWrapper() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				assertTrue(requestUrl, requestUrl.startsWith(UsgsXmlDataSource.SITE_DATA_URL + "sites=06186500&"));
+				return new WrappedHttpResponse(new FileInputStream("testdata/usgs/xml/WY"), null, 200, null);
+			}
+		});
+		
+		DataSourceController.enableUsgsFormatSelection();
+		try {
+			String shape = UsgsCsvDataSource.getRequestShape(1, true);
+			FormatSelector selector = DataSourceController.getUsgsFormatSelector();
+			//measure RDB as slow so that WaterML is chosen
+			for(int a = 0; a < 3; a++) {
+				selector.choose(shape);
+				selector.record(shape, UsgsCsvDataSource.FORMAT_RDB, 1, 100000);
+			}
+			
+			Map<SiteId,SiteData> result = xmlSrc.getSiteData(new Site[]{yellowstone}, vars, true, false);
+			
+			SiteData data = result.get(yellowstone.getSiteId());
+			assertSame(yellowstone, data.getSite());
+			
+			Reading r = data.getDatasets().get(CommonVariable.STREAMFLOW_CFS).getReadings().get(0);
+			assertNull(r.getValue());
+			assertEquals("Ice", r.getQualifiers());
+		} finally {
+			DataSourceController.disableUsgsFormatSelection();
+		}
+	}
+	
+	public void testCachedResponsesNotTimed() throws Throwable {
+		Variable[] vars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00060", "00065"});
+		Site mfFlathead = new Site(new SiteId("USGS", "12358500"), "M F Flathead River near West Glacier MT", USState.MT, vars);
+		
+		final FileHttpClientWrapper files = new FileHttpClientWrapper("testdata/usgs/csv/", UsgsCsvDataSource.SITE_DATA_URL);
+		final long[] cacheTimestamp = new long[]{1000L};
+		
+		UsgsCsvDataSource cachingSrc = new UsgsCsvDataSource();
+		cachingSrc.setHttpClientWrapper(new HttpClientWrapper() {
+			@Override
+			public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+				WrappedHttpResponse response = files.doGet(requestUrl, hardRefresh);
+				return new WrappedHttpResponse(response.responseStream, null, null, cacheTimestamp[0], response.statusCode, response.message);
+			}
+		});
+		
+		DataSourceController.enableUsgsFormatSelection();
+		try {
+			String shape = UsgsCsvDataSource.getRequestShape(1, false);
+			FormatSelector selector = DataSourceController.getUsgsFormatSelector();
+			
+			assertNotNull(cachingSrc.getSiteData(mfFlathead, vars, false));
+			assertEquals(0, selector.getSamples(shape, UsgsCsvDataSource.FORMAT_RDB));
+			
+			//downloaded
+			cacheTimestamp[0] = 0L;
+			assertNotNull(cachingSrc.getSiteData(mfFlathead, vars, false));
+			assertEquals(1, selector.getSamples(shape, UsgsCsvDataSource.FORMAT_RDB));
+		} finally {
+			DataSourceController.disableUsgsFormatSelection();
+		}
+	}
+	
     public void testGetBeaverDam() throws Throwable {
         Variable[] beaverDamVars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00060","00065"});
         Site beaverDam = new Site(new SiteId("USGS", "09414900"), "BEAVER DAM WASH AT BEAVER DAM, AZ", USState.AZ,
@@ -1,5 +1,8 @@
 package com.riverflows.wsclient;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -10,6 +13,7 @@ import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
+import com.riverflows.data.CacheEditor;
 import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
@@ -17,6 +21,7 @@ import com.riverflows.data.SiteData;
 import com.riverflows.data.USState;
 import com.riverflows.data.Variable;
 import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
 
 import org.apache.http.client.HttpClient;
 import org.junit.Rule;
@@ -32,7 +37,7 @@ public class UsgsXmlDataSourceTest extends TestCase {
 	protected void setUp() throws Exception {
 		super.setUp();
 
-		UsgsXmlDataSource.setHttpClientWrapper(new FileHttpClientWrapper("testdata/usgs/xml/", "http://waterservices.usgs.gov/nwis/iv/?format=waterml,1.1&stateCd="));
+		UsgsXmlDataSource.setHttpClientWrapper(new FileHttpClientWrapper("testdata/usgs/xml/", "https://waterservices.usgs.gov/nwis/iv/?format=waterml,1.1&stateCd="));
 	}
 
 	/*
@@ -129,4 +134,44 @@ public class UsgsXmlDataSourceTest extends TestCase {
 		assertEquals("2011-12-26T19:30:00.000-0700", valueDateFormat.format(recent.getDate()));
 		
 	}
+
+	public void testNoDataValueNotShared() throws Throwable {
+		UsgsXmlDataSource.getSiteData(USState.WY, null);
+
+		//WaterML's noDataValue is -999999, but the RDB parser shares these variables
+		assertEquals(-99999d, UsgsCsvDataSource.VTYPE_STREAMFLOW_CFS.getMagicNullValue());
+		assertEquals(-99999d, UsgsCsvDataSource.VTYPE_GAUGE_HEIGHT_FT.getMagicNullValue());
+	}
+
+	public void testResponseCached() throws Throwable {
+		final String url = UsgsXmlDataSource.SITE_DATA_URL + "stateCd=WY";
+		File cacheDir = File.createTempFile("responsecache", "");
+		cacheDir.delete();
+		final DiskLruResponseCache cache = DiskLruResponseCache.open(cacheDir, 4 * 1024 * 1024);
+		try {
+			HttpClientWrapper wrapper = new HttpClientWrapper() {
+				@Override
+				public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+					CacheEditor editor = cache.edit(requestUrl, null, null);
+					//the previous response must have been committed or aborted
+					assertNotNull(editor);
+					return new WrappedHttpResponse(new FileInputStream("testdata/usgs/xml/WY"), null, editor, 200, null);
+				}
+			};
+
+			assertNotNull(UsgsXmlDataSource.getSiteData(wrapper, url, true, false).get("06186500"));
+
+			DiskLruResponseCache.CachedResponse cached = cache.get(url);
+			assertNotNull(cached);
+			cached.body.close();
+
+			assertNotNull(UsgsXmlDataSource.getSiteData(wrapper, url, true, false).get("06186500"));
+		} finally {
+			cache.close();
+			for(File f: cacheDir.listFiles()) {
+				f.delete();
+			}
+			cacheDir.delete();
+		}
+	}
 }
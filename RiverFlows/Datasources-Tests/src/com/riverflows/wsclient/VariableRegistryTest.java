@@ -0,0 +1,36 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Variable;
+
+import junit.framework.TestCase;
+
+public class VariableRegistryTest extends TestCase {
+
+	public void testLookup() {
+		assertSame(UsgsCsvDataSource.VTYPE_STREAMFLOW_CFS, VariableRegistry.getVariable("USGS", "00060"));
+		assertSame(CDECDataSource.VTYPE_FLOW, VariableRegistry.getVariable("CDEC", "FLOW"));
+		assertNull(VariableRegistry.getVariable("CDEC", "00060"));
+		assertNull(VariableRegistry.getVariable("NONE", "00060"));
+	}
+
+	public void testDenseIds() {
+		int id = VariableRegistry.getId("AHPS", "Stage");
+
+		assertTrue(id >= 0 && id < VariableRegistry.size());
+		assertSame(AHPSXmlDataSource.VTYPE_STAGE, VariableRegistry.getVariable(id));
+		assertEquals("AHPS", VariableRegistry.getAgency(id));
+		assertEquals(id, VariableRegistry.getId(AHPSXmlDataSource.VTYPE_STAGE));
+	}
+
+	public void testUnknownVariablesAreSkipped() {
+		Variable[] vars = DataSourceController.getVariablesFromStrings("USGS", new String[]{"00060", "bogus", "00065"});
+
+		assertEquals(2, vars.length);
+		assertSame(UsgsCsvDataSource.VTYPE_STREAMFLOW_CFS, vars[0]);
+		assertSame(UsgsCsvDataSource.VTYPE_GAUGE_HEIGHT_FT, vars[1]);
+
+		int[] ids = VariableRegistry.getIds("USGS", new String[]{"bogus", "00065"});
+		assertEquals(1, ids.length);
+		assertSame(UsgsCsvDataSource.VTYPE_GAUGE_HEIGHT_FT, VariableRegistry.getVariable(ids[0]));
+	}
+}
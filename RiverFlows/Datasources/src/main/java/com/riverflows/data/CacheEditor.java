@@ -0,0 +1,30 @@
+package com.riverflows.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination for a response that is being written to a cache as it is read.  The entry only
+ * becomes visible once it has been committed.
+ */
+public interface CacheEditor {
+
+	OutputStream newOutputStream() throws IOException;
+
+	/**
+	 * @return the fetch time that will be recorded for this entry
+	 */
+	long getFetchTime();
+
+	/**
+	 * Publish the entry.  Must be called after the output stream has been closed.
+	 * @param contentLength number of bytes written
+	 * @param crc32 CRC-32 of the bytes written, checked when the entry is read back
+	 */
+	void commit(long contentLength, long crc32) throws IOException;
+
+	/**
+	 * Discard the entry.  Safe to call after the entry has been committed or aborted.
+	 */
+	void abort();
+}
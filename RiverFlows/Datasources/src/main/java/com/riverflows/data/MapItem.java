@@ -89,6 +89,13 @@ public class MapItem {
         return getSite().getName();
     }
 
+    public static final NameSearchIndex.Namer<MapItem> NAMER = new NameSearchIndex.Namer<MapItem>() {
+        @Override
+        public String getName(MapItem item) {
+            return item.getName();
+        }
+    };
+
     public static final Comparator<MapItem> SORT_BY_NAME = new Comparator<MapItem>() {
         @Override
         public int compare(MapItem object1, MapItem object2) {
@@ -98,7 +105,7 @@ public class MapItem {
             if(object2 == null || object2.getName() == null) {
                 return 1;
             }
-            return object1.getName().toUpperCase().compareTo(object2.getName().toUpperCase());
+            return object1.getName().compareToIgnoreCase(object2.getName());
         }
     };
 
@@ -0,0 +1,227 @@
+package com.riverflows.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the items whose name, or a word in whose name, starts with a query, ignoring case.
+ * <p>
+ * Every position in a name where a word starts is stored in a table sorted by the lower-cased
+ * text from that position on, so the matches for a query are a contiguous range of the table,
+ * found by binary search.  When a query extends the previous one, only the previous range is
+ * searched.
+ * <p>
+ * Items whose whole name matches come first, followed by items where only a later word matches;
+ * otherwise results are in the order of the list the index was built from.
+ * <p>
+ * Thread-safe.  The index doesn't see changes to the list it was built from.
+ */
+public class NameSearchIndex<T> {
+
+	public interface Namer<T> {
+		/**
+		 * @return the name to search, or null if the item can't be found
+		 */
+		String getName(T item);
+	}
+
+	private final List<T> items;
+
+	/** lower-cased name of each item */
+	private final String[] names;
+
+	/** item and name offset of each entry, sorted by the name from that offset on */
+	private final int[] entryItems;
+	private final int[] entryOffsets;
+
+	private String lastQuery;
+	private int lastStart;
+	private int lastEnd;
+
+	public NameSearchIndex(List<T> items, Namer<T> namer) {
+		this.items = new ArrayList<T>(items);
+		this.names = new String[items.size()];
+
+		int entryCount = 0;
+		for(int a = 0; a < names.length; a++) {
+			String name = namer.getName(this.items.get(a));
+			if(name == null) {
+				continue;
+			}
+			name = name.toLowerCase();
+			names[a] = name;
+			entryCount++;
+			for(int b = 0; b < name.length() - 1; b++) {
+				if(name.charAt(b) == ' ') {
+					entryCount++;
+				}
+			}
+		}
+
+		//each entry packs its item and offset into a long
+		long[] entries = new long[entryCount];
+		int entryNum = 0;
+		for(int a = 0; a < names.length; a++) {
+			String name = names[a];
+			if(name == null) {
+				continue;
+			}
+			entries[entryNum++] = pack(a, 0);
+			for(int b = 0; b < name.length() - 1; b++) {
+				if(name.charAt(b) == ' ') {
+					entries[entryNum++] = pack(a, b + 1);
+				}
+			}
+		}
+
+		Long[] boxed = new Long[entryCount];
+		for(int a = 0; a < entryCount; a++) {
+			boxed[a] = entries[a];
+		}
+		Arrays.sort(boxed, new Comparator<Long>() {
+			@Override
+			public int compare(Long lhs, Long rhs) {
+				return compareEntries(lhs, rhs);
+			}
+		});
+
+		entryItems = new int[entryCount];
+		entryOffsets = new int[entryCount];
+		for(int a = 0; a < entryCount; a++) {
+			entryItems[a] = item(boxed[a]);
+			entryOffsets[a] = offset(boxed[a]);
+		}
+
+		lastStart = 0;
+		lastEnd = entryCount;
+	}
+
+	private static long pack(int item, int offset) {
+		return ((long)item << 32) | offset;
+	}
+
+	private static int item(long entry) {
+		return (int)(entry >>> 32);
+	}
+
+	private static int offset(long entry) {
+		return (int)entry;
+	}
+
+	private int compareEntries(long lhs, long rhs) {
+		String lhsName = names[item(lhs)];
+		String rhsName = names[item(rhs)];
+		int lhsOffset = offset(lhs);
+		int rhsOffset = offset(rhs);
+		int length = Math.min(lhsName.length() - lhsOffset, rhsName.length() - rhsOffset);
+		for(int a = 0; a < length; a++) {
+			char lhsChar = lhsName.charAt(lhsOffset + a);
+			char rhsChar = rhsName.charAt(rhsOffset + a);
+			if(lhsChar != rhsChar) {
+				return lhsChar - rhsChar;
+			}
+		}
+		return (lhsName.length() - lhsOffset) - (rhsName.length() - rhsOffset);
+	}
+
+	/**
+	 * @return how an entry compares to the query, considering only the first query.length() characters
+	 */
+	private int comparePrefix(int entry, String query) {
+		String name = names[entryItems[entry]];
+		int offset = entryOffsets[entry];
+		int length = Math.min(name.length() - offset, query.length());
+		for(int a = 0; a < length; a++) {
+			char nameChar = name.charAt(offset + a);
+			char queryChar = query.charAt(a);
+			if(nameChar != queryChar) {
+				return nameChar - queryChar;
+			}
+		}
+		//a name shorter than the query sorts before it
+		return (length < query.length()) ? -1 : 0;
+	}
+
+	/**
+	 * @param after false to find the first entry in [start, end) which doesn't sort before the
+	 * query, or true to find the first entry which sorts after every entry starting with the query
+	 */
+	private int search(String query, int start, int end, boolean after) {
+		int low = start;
+		int high = end;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = comparePrefix(mid, query);
+			if(cmp < 0 || (after && cmp == 0)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * @return matching items, best matches first
+	 */
+	public List<T> search(CharSequence query) {
+		String normalized = query.toString().toLowerCase();
+		if(normalized.length() == 0) {
+			return new ArrayList<T>(items);
+		}
+
+		int start;
+		int end;
+		synchronized(this) {
+			if(lastQuery != null && normalized.startsWith(lastQuery)) {
+				//narrow the previous query's matches
+				start = lastStart;
+				end = lastEnd;
+			} else {
+				start = 0;
+				end = entryItems.length;
+			}
+
+			start = search(normalized, start, end, false);
+			end = search(normalized, start, end, true);
+
+			lastQuery = normalized;
+			lastStart = start;
+			lastEnd = end;
+		}
+
+		boolean multiWord = normalized.indexOf(' ') != -1;
+
+		//items whose whole name matches get negative keys, so they sort first
+		int itemCount = items.size();
+		int[] matches = new int[end - start];
+		int matchCount = 0;
+		for(int entry = start; entry < end; entry++) {
+			int item = entryItems[entry];
+			if(entryOffsets[entry] == 0) {
+				matches[matchCount++] = item - itemCount;
+			} else if(!multiWord) {
+				//words can't contain the spaces in a multi-word query
+				matches[matchCount++] = item;
+			}
+		}
+		Arrays.sort(matches, 0, matchCount);
+
+		List<T> result = new ArrayList<T>(matchCount);
+		boolean[] added = new boolean[itemCount];
+		for(int a = 0; a < matchCount; a++) {
+			int item = (matches[a] < 0) ? matches[a] + itemCount : matches[a];
+			if(!added[item]) {
+				added[item] = true;
+				result.add(items.get(item));
+			}
+		}
+		return result;
+	}
+}
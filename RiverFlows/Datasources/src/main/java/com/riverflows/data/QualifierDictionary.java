@@ -0,0 +1,239 @@
+package com.riverflows.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes qualifier strings as ints.  Each agency's dictionary stores its known data flags as bits;
+ * any other text is interned by the dictionary and stored as an index in the upper bits.
+ * <p>
+ * A code is rendered as its interned text, if any, followed by its known tokens in the order they
+ * were registered, separated by spaces.  Strings that can't be rebuilt exactly that way are interned
+ * whole, so {@link #decode(int)} always returns the text that was encoded.
+ * <p>
+ * Codes are never negative.  Once a dictionary has interned as many strings as it can,
+ * {@link #encode(String)} returns {@link #OVERFLOW} for text that needs a new one, and the caller
+ * has to keep that text itself; {@link Series} keeps it in a table of its own.
+ */
+public class QualifierDictionary {
+
+	public static final String CONVERTED_F = "converted:°F";
+	public static final String CONVERTED_C = "converted:°C";
+
+	/** code for no qualifiers */
+	public static final int NONE = 0;
+
+	/** returned by {@link #encode(String)} for text that this dictionary has no room for */
+	public static final int OVERFLOW = -1;
+
+	/** the most tokens an agency can register */
+	public static final int MAX_TOKENS = 18;
+
+	private static final int KNOWN_BITS = MAX_TOKENS + 2;
+	private static final int KNOWN_MASK = (1 << KNOWN_BITS) - 1;
+
+	/**
+	 * the most strings a dictionary will intern, leaving the sign bit clear
+	 */
+	private static final int MAX_INTERNED = (1 << (31 - KNOWN_BITS)) - 1;
+
+	/** the most encoded and decoded strings to remember */
+	private static final int MAX_CACHED = 1024;
+
+	private static final Map<String, QualifierDictionary> agencyDictionaries = new ConcurrentHashMap<String, QualifierDictionary>();
+
+	/**
+	 * for series whose agency has no dictionary
+	 */
+	public static final QualifierDictionary DEFAULT = new QualifierDictionary();
+
+	/** token for each bit */
+	private final String[] tokens = new String[KNOWN_BITS];
+	private final Map<String, Integer> bits = new HashMap<String, Integer>();
+
+	private final Map<String, Integer> internedIndexes = new HashMap<String, Integer>();
+	private volatile String[] interned = new String[0];
+	private final int maxInterned;
+
+	private final ConcurrentHashMap<String, Integer> codeCache = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<Integer, String> textCache = new ConcurrentHashMap<Integer, String>();
+
+	private QualifierDictionary(String... agencyTokens) {
+		this(MAX_INTERNED, agencyTokens);
+	}
+
+	private QualifierDictionary(int maxInterned, String... agencyTokens) {
+		this.maxInterned = maxInterned;
+		if(agencyTokens.length > MAX_TOKENS) {
+			throw new IllegalArgumentException("too many tokens: " + agencyTokens.length);
+		}
+		for(int a = 0; a < agencyTokens.length; a++) {
+			addToken(a, agencyTokens[a]);
+		}
+		//conversions are appended after everything else, so they always use the highest bits
+		addToken(MAX_TOKENS, CONVERTED_F);
+		addToken(MAX_TOKENS + 1, CONVERTED_C);
+	}
+
+	private void addToken(int bit, String token) {
+		if(token.length() == 0 || token.indexOf(' ') != -1) {
+			throw new IllegalArgumentException("invalid token: '" + token + "'");
+		}
+		tokens[bit] = token;
+		bits.put(token, 1 << bit);
+	}
+
+	/**
+	 * Create the dictionary for an agency.
+	 * @param tokens the agency's known qualifier tokens, in the order they usually appear
+	 */
+	public static QualifierDictionary register(String agency, String... tokens) {
+		QualifierDictionary dictionary = new QualifierDictionary(tokens);
+		agencyDictionaries.put(agency, dictionary);
+		return dictionary;
+	}
+
+	/**
+	 * Create a dictionary that isn't registered for any agency and can only intern a few strings.
+	 */
+	static QualifierDictionary createSmall(int maxInterned, String... tokens) {
+		return new QualifierDictionary(Math.min(maxInterned, MAX_INTERNED), tokens);
+	}
+
+	/**
+	 * @return the dictionary registered for this agency, or {@link #DEFAULT} if there isn't one
+	 */
+	public static QualifierDictionary forAgency(String agency) {
+		QualifierDictionary result = (agency == null) ? null : agencyDictionaries.get(agency);
+		return (result == null) ? DEFAULT : result;
+	}
+
+	/**
+	 * @param qualifiers may be null
+	 * @return {@link #OVERFLOW} if the dictionary is full and doesn't know this text
+	 */
+	public int encode(String qualifiers) {
+		if(qualifiers == null) {
+			return NONE;
+		}
+
+		Integer cached = codeCache.get(qualifiers);
+		if(cached != null) {
+			return cached;
+		}
+
+		int code = parse(qualifiers);
+		if(codeCache.size() < MAX_CACHED) {
+			codeCache.put(qualifiers, code);
+		}
+		return code;
+	}
+
+	private int parse(String qualifiers) {
+		int knownBits = 0;
+
+		//take known tokens off the end while they are in registration order
+		int prefixEnd = qualifiers.length();
+		int nextBit = 1 << KNOWN_BITS;
+		while(prefixEnd > 0) {
+			int space = qualifiers.lastIndexOf(' ', prefixEnd - 1);
+			Integer bit = bits.get(qualifiers.substring(space + 1, prefixEnd));
+			if(bit == null || bit >= nextBit) {
+				break;
+			}
+			knownBits |= bit;
+			nextBit = bit;
+			prefixEnd = space;
+		}
+
+		if(prefixEnd < 0) {
+			return knownBits;
+		}
+
+		int index;
+		if(prefixEnd == 0) {
+			//leading space: can't be rebuilt from tokens
+			index = intern(qualifiers);
+			knownBits = 0;
+		} else {
+			index = intern(qualifiers.substring(0, prefixEnd));
+		}
+		if(index == 0) {
+			return OVERFLOW;
+		}
+		return (index << KNOWN_BITS) | knownBits;
+	}
+
+	/**
+	 * @return 1 + the index of the interned string, or 0 if the dictionary is full
+	 */
+	private synchronized int intern(String text) {
+		Integer index = internedIndexes.get(text);
+		if(index != null) {
+			return index;
+		}
+		if(interned.length == maxInterned) {
+			return 0;
+		}
+
+		String[] newInterned = new String[interned.length + 1];
+		System.arraycopy(interned, 0, newInterned, 0, interned.length);
+		newInterned[interned.length] = text;
+		interned = newInterned;
+
+		internedIndexes.put(text, newInterned.length);
+		return newInterned.length;
+	}
+
+	/**
+	 * @return the text for this code, or null for {@link #NONE}
+	 * @throws IllegalArgumentException for negative codes, which this dictionary didn't create
+	 */
+	public String decode(int code) {
+		if(code == NONE) {
+			return null;
+		}
+		if(code < 0) {
+			throw new IllegalArgumentException("not a code from this dictionary: " + code);
+		}
+
+		String cached = textCache.get(code);
+		if(cached != null) {
+			return cached;
+		}
+
+		StringBuilder text = new StringBuilder();
+		int index = code >>> KNOWN_BITS;
+		if(index != 0) {
+			text.append(interned[index - 1]);
+		}
+		for(int bit = 0; bit < KNOWN_BITS; bit++) {
+			if((code & (1 << bit)) != 0) {
+				if(index != 0 || text.length() > 0) {
+					text.append(' ');
+				}
+				text.append(tokens[bit]);
+			}
+		}
+
+		String result = text.toString();
+		if(textCache.size() < MAX_CACHED) {
+			textCache.put(code, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the code for this code's text followed by a space and the token, or
+	 * {@link #OVERFLOW} if the dictionary has no room for it
+	 */
+	public int append(int code, String token) {
+		Integer bit = bits.get(token);
+		if(bit != null && (code & KNOWN_MASK) < bit) {
+			return code | bit;
+		}
+		String text = decode(code);
+		return encode(text == null ? token : text + " " + token);
+	}
+}
@@ -2,20 +2,50 @@ package com.riverflows.data;
 
 import java.util.Date;
 
+/**
+ * A single data point.  Readings obtained from {@link Series#getReadings()} are views of the
+ * series' columns, and read and write them directly.
+ */
 public class Reading implements Comparable<Reading> {
 	private Date date;
 	private Double value;
 	private String qualifiers;
+
+	/** the series this reading is a view of, if any */
+	private Series series;
+	private int index;
+
+	void bind(Series series, int index) {
+		this.series = series;
+		this.index = index;
+	}
+
 	public Date getDate() {
+		if(series != null) {
+			long time = series.getTime(index);
+			return (time == Series.NO_DATE) ? null : new Date(time);
+		}
 		return date;
 	}
 	public void setDate(Date date) {
+		if(series != null) {
+			series.setTime(index, (date == null) ? Series.NO_DATE : date.getTime());
+			return;
+		}
 		this.date = date;
 	}
 	public Double getValue() {
+		if(series != null) {
+			double v = series.getValue(index);
+			return Double.isNaN(v) ? null : v;
+		}
 		return value;
 	}
 	public void setValue(Double value) {
+		if(series != null) {
+			series.setValue(index, (value == null) ? Double.NaN : value);
+			return;
+		}
 		this.value = value;
 	}
 	
@@ -24,17 +54,35 @@ public class Reading implements Comparable<Reading> {
 	 *  (possibly explaining why value is null), or null if there are no qualifiers.
 	 */
 	public String getQualifiers() {
+		if(series != null) {
+			return series.getQualifiers(index);
+		}
 		return qualifiers;
 	}
 	public void setQualifiers(String qualifiers) {
+		if(series != null) {
+			series.setQualifiers(index, qualifiers);
+			return;
+		}
 		this.qualifiers = qualifiers;
 	}
+
+	/**
+	 * @return a reading of the same type with the same fields which doesn't belong to any series
+	 */
+	public Reading copy() {
+		Reading copy = (this instanceof Forecast) ? new Forecast() : new Reading();
+		copy.date = getDate();
+		copy.value = getValue();
+		copy.qualifiers = getQualifiers();
+		return copy;
+	}
 	
 	@Override
 	public int compareTo(Reading another) {
 		if(another == null) {
 			return 1;
 		}
-		return another.getDate().compareTo(date);
+		return another.getDate().compareTo(getDate());
 	}
 }
@@ -1,21 +1,331 @@
 package com.riverflows.data;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * Readings are stored in parallel arrays of timestamps, values and qualifier codes, with
+ * observations first and forecasts after them.  Parsers should append to the columns with
+ * {@link #addObservation(long, double, String)} and {@link #addForecast(long, double, String)};
+ * {@link #getReadings()} provides a List&lt;Reading&gt; view of the same data.
+ */
 public class Series {
+
+	/**
+	 * timestamp of a reading without a date
+	 */
+	public static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
 	private Variable variable;
-	private List<Reading> readings;
 	private String sourceUrl;
 
+	/** null until readings have been set or added */
+	private long[] times;
+	private double[] values;
+	/** encoded by qualifierDictionary */
+	private int[] qualifierCodes;
+	private QualifierDictionary qualifierDictionary = QualifierDictionary.DEFAULT;
+
+	/**
+	 * qualifiers that didn't fit in a full dictionary, stored with the code -1 - index.  Null
+	 * until one is needed.
+	 */
+	private ArrayList<String> overflowQualifiers;
+	private HashMap<String, Integer> overflowIndexes;
+
+	private int size = 0;
+
+	/** index of the first forecast; equal to size if there are no forecasts */
+	private int forecastStart = 0;
+
+	private ReadingList readingList;
+
     /**
-     * Forecasts and Readings, sorted ascending by date
+     * Forecasts and Readings, sorted ascending by date.  Readings returned by this list read
+     * and write this series' columns at their position, so they should not be kept across
+     * changes to the number or order of readings; use {@link Reading#copy()} to keep one.
+     * <p>
+     * Forecasts must always come after all other readings, so {@link List#set(int, Object) set()}
+     * and {@link List#add(int, Object) add()} throw IllegalArgumentException if they would put a
+     * forecast among the observations or the other way around.  That includes sorting the list
+     * into an order other than ascending by date when it contains forecasts.
+     * @return null if no readings have been set or added
      */
 	public List<Reading> getReadings() {
-		return readings;
+		if(times == null) {
+			return null;
+		}
+		if(readingList == null) {
+			readingList = new ReadingList();
+		}
+		return readingList;
 	}
 
+	/**
+	 * Replace the readings in this series with copies of the given readings.
+	 * @param readings forecasts must come after all other readings. If null, this series will have no readings.
+	 */
 	public void setReadings(List<Reading> readings) {
-		this.readings = readings;
+		if(readings == null) {
+			times = null;
+			values = null;
+			qualifierCodes = null;
+			overflowQualifiers = null;
+			overflowIndexes = null;
+			size = 0;
+			forecastStart = 0;
+			return;
+		}
+
+		//copy first, in case these readings belong to this series
+		Reading[] copies = new Reading[readings.size()];
+		int a = 0;
+		for(Reading r: readings) {
+			copies[a++] = r.copy();
+		}
+
+		initReadings(copies.length);
+		for(Reading r: copies) {
+			add(r);
+		}
+	}
+
+	/**
+	 * Discard any readings in this series and make room for new ones.
+	 */
+	public void initReadings(int capacity) {
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		values = new double[capacity];
+		qualifierCodes = new int[capacity];
+		overflowQualifiers = null;
+		overflowIndexes = null;
+		size = 0;
+		forecastStart = 0;
+	}
+
+	/**
+	 * @param time {@link #NO_DATE} if unknown
+	 * @param value NaN if there is no value
+	 * @param qualifiers null if none
+	 */
+	public void addObservation(long time, double value, String qualifiers) {
+		insert(forecastStart, time, value, qualifiers);
+		forecastStart++;
+	}
+
+	/**
+	 * @param time {@link #NO_DATE} if unknown
+	 * @param value NaN if there is no value
+	 * @param qualifiers null if none
+	 */
+	public void addForecast(long time, double value, String qualifiers) {
+		insert(size, time, value, qualifiers);
+	}
+
+	private void add(Reading r) {
+		long time = (r.getDate() == null) ? NO_DATE : r.getDate().getTime();
+		double value = (r.getValue() == null) ? Double.NaN : r.getValue();
+		if(r instanceof Forecast) {
+			addForecast(time, value, r.getQualifiers());
+		} else {
+			addObservation(time, value, r.getQualifiers());
+		}
+	}
+
+	private void insert(int index, long time, double value, String qualifiers) {
+		if(times == null) {
+			initReadings(DEFAULT_CAPACITY);
+		} else if(size == times.length) {
+			int capacity = size * 2;
+			long[] newTimes = new long[capacity];
+			double[] newValues = new double[capacity];
+			int[] newQualifierCodes = new int[capacity];
+			System.arraycopy(times, 0, newTimes, 0, size);
+			System.arraycopy(values, 0, newValues, 0, size);
+			System.arraycopy(qualifierCodes, 0, newQualifierCodes, 0, size);
+			times = newTimes;
+			values = newValues;
+			qualifierCodes = newQualifierCodes;
+		}
+
+		if(index < size) {
+			System.arraycopy(times, index, times, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+			System.arraycopy(qualifierCodes, index, qualifierCodes, index + 1, size - index);
+		}
+
+		times[index] = time;
+		values[index] = value;
+		qualifierCodes[index] = encodeQualifiers(qualifiers);
+		size++;
+	}
+
+	private int encodeQualifiers(String qualifiers) {
+		int code = qualifierDictionary.encode(qualifiers);
+		if(code != QualifierDictionary.OVERFLOW) {
+			return code;
+		}
+
+		//the dictionary is full, so keep the text here
+		if(overflowQualifiers == null) {
+			overflowQualifiers = new ArrayList<String>();
+			overflowIndexes = new HashMap<String, Integer>();
+		}
+		Integer index = overflowIndexes.get(qualifiers);
+		if(index == null) {
+			index = overflowQualifiers.size();
+			overflowQualifiers.add(qualifiers);
+			overflowIndexes.put(qualifiers, index);
+		}
+		return -1 - index;
+	}
+
+	private String decodeQualifiers(QualifierDictionary dictionary, int code) {
+		if(code < 0) {
+			return overflowQualifiers.get(-1 - code);
+		}
+		return dictionary.decode(code);
+	}
+
+	/**
+	 * Remove the reading at this index.
+	 */
+	public void remove(int index) {
+		checkIndex(index);
+		int moved = size - index - 1;
+		System.arraycopy(times, index + 1, times, index, moved);
+		System.arraycopy(values, index + 1, values, index, moved);
+		System.arraycopy(qualifierCodes, index + 1, qualifierCodes, index, moved);
+		size--;
+		if(index < forecastStart) {
+			forecastStart--;
+		}
+	}
+
+	/**
+	 * Reverse the order of the observations, leaving any forecasts where they are.
+	 */
+	public void reverseObservations() {
+		for(int a = 0, b = forecastStart - 1; a < b; a++, b--) {
+			long time = times[a];
+			times[a] = times[b];
+			times[b] = time;
+
+			double value = values[a];
+			values[a] = values[b];
+			values[b] = value;
+
+			int code = qualifierCodes[a];
+			qualifierCodes[a] = qualifierCodes[b];
+			qualifierCodes[b] = code;
+		}
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " of " + size);
+		}
+	}
+
+	/**
+	 * @return the number of readings, including forecasts
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the index of the first forecast, or {@link #size()} if there are none
+	 */
+	public int getForecastStart() {
+		return forecastStart;
+	}
+
+	public boolean isForecast(int index) {
+		checkIndex(index);
+		return index >= forecastStart;
+	}
+
+	/**
+	 * @return {@link #NO_DATE} if unknown
+	 */
+	public long getTime(int index) {
+		checkIndex(index);
+		return times[index];
+	}
+
+	public void setTime(int index, long time) {
+		checkIndex(index);
+		times[index] = time;
+	}
+
+	/**
+	 * @return NaN if there is no value
+	 */
+	public double getValue(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	/**
+	 * @param value NaN for no value
+	 */
+	public void setValue(int index, double value) {
+		checkIndex(index);
+		values[index] = value;
+	}
+
+	/**
+	 * @return null if there are no qualifiers
+	 */
+	public String getQualifiers(int index) {
+		checkIndex(index);
+		return decodeQualifiers(qualifierDictionary, qualifierCodes[index]);
+	}
+
+	public void setQualifiers(int index, String qualifiers) {
+		checkIndex(index);
+		qualifierCodes[index] = encodeQualifiers(qualifiers);
+	}
+
+	/**
+	 * Append a token to the qualifiers of the reading at this index.
+	 */
+	public void addQualifier(int index, String token) {
+		checkIndex(index);
+		int code = qualifierCodes[index];
+		if(code >= 0) {
+			code = qualifierDictionary.append(code, token);
+		} else {
+			code = QualifierDictionary.OVERFLOW;
+		}
+		if(code == QualifierDictionary.OVERFLOW) {
+			String text = decodeQualifiers(qualifierDictionary, qualifierCodes[index]);
+			code = encodeQualifiers((text == null) ? token : text + " " + token);
+		}
+		qualifierCodes[index] = code;
+	}
+
+	public QualifierDictionary getQualifierDictionary() {
+		return qualifierDictionary;
+	}
+
+	/**
+	 * Use the given dictionary to store qualifiers, re-encoding any existing ones.
+	 */
+	public void setQualifierDictionary(QualifierDictionary qualifierDictionary) {
+		QualifierDictionary previous = this.qualifierDictionary;
+		this.qualifierDictionary = qualifierDictionary;
+		for(int a = 0; a < size; a++) {
+			qualifierCodes[a] = encodeQualifiers(decodeQualifiers(previous, qualifierCodes[a]));
+		}
 	}
 
 	public Variable getVariable() {
@@ -34,22 +344,140 @@ public class Series {
 		this.sourceUrl = sourceUrl;
 	}
 
+	/**
+	 * @return the index of the last non-forecasted reading with a value, or -1 if there isn't one
+	 */
+	public int getLastObservationIndex() {
+		for(int a = forecastStart - 1; a >= 0; a--) {
+			if(!Double.isNaN(values[a])) {
+				return a;
+			}
+		}
+		return -1;
+	}
+
     /**
-     * @return the last non-forecasted reading in a series, or null if the series has no
+     * @return a copy of the last non-forecasted reading in a series, or null if the series has no
      *  non-forecasted readings
      */
 	public Reading getLastObservation() {
+		if(times == null) {
+			return null;
+		}
+
+		int index = getLastObservationIndex();
+		if(index == -1) {
+			//no observations have a value, so fall back to the earliest reading
+			return (size == 0) ? null : getReadings().get(0).copy();
+		}
+		return getReadings().get(index).copy();
+	}
+
+	/**
+	 * Reading views of this series' columns.
+	 */
+	private class ReadingList extends AbstractList<Reading> implements RandomAccess {
+
+		@Override
+		public Reading get(int index) {
+			checkIndex(index);
+			Reading r = (index >= forecastStart) ? new Forecast() : new Reading();
+			r.bind(Series.this, index);
+			return r;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return a copy of the reading previously at this index
+		 */
+		@Override
+		public Reading set(int index, Reading r) {
+			checkIndex(index);
+			if((r instanceof Forecast) != (index >= forecastStart)) {
+				throw new IllegalArgumentException("forecasts must come after all other readings");
+			}
+
+			//r may be a view of another reading in this series
+			Date date = r.getDate();
+			Double value = r.getValue();
+			String qualifiers = r.getQualifiers();
+
+			Reading previous = get(index).copy();
+
+			times[index] = (date == null) ? NO_DATE : date.getTime();
+			values[index] = (value == null) ? Double.NaN : value;
+			qualifierCodes[index] = encodeQualifiers(qualifiers);
+			return previous;
+		}
+
+		/**
+		 * Readings added at the end of the list are added to the end of the observations or
+		 * forecasts, depending on their type.
+		 */
+		@Override
+		public void add(int index, Reading r) {
+			boolean forecast = (r instanceof Forecast);
+			if(index == size) {
+				Series.this.add(r);
+			} else if(forecast ? index < forecastStart : index > forecastStart) {
+				throw new IllegalArgumentException("forecasts must come after all other readings");
+			} else {
+				insert(index, (r.getDate() == null) ? NO_DATE : r.getDate().getTime(),
+						(r.getValue() == null) ? Double.NaN : r.getValue(), r.getQualifiers());
+				if(!forecast) {
+					forecastStart++;
+				}
+			}
+			modCount++;
+		}
+
+		/**
+		 * @return a copy of the removed reading
+		 */
+		@Override
+		public Reading remove(int index) {
+			Reading removed = get(index).copy();
+			Series.this.remove(index);
+			modCount++;
+			return removed;
+		}
+
+		@Override
+		public void clear() {
+			size = 0;
+			forecastStart = 0;
+			modCount++;
+		}
+
+		/**
+		 * @return copies that don't change with this series
+		 */
+		@Override
+		public Object[] toArray() {
+			Object[] result = new Object[size];
+			for(int a = 0; a < size; a++) {
+				result[a] = get(a).copy();
+			}
+			return result;
+		}
 
-        int readingIndex = readings.size() - 1;
-        Reading mostRecentReading = null;
-        
-        do {
-        	if(readingIndex < 0) {
-        		break;
-        	}
-        	mostRecentReading = readings.get(readingIndex--);
-        } while(mostRecentReading.getValue() == null || mostRecentReading instanceof Forecast);
-        
-        return mostRecentReading;
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> T[] toArray(T[] a) {
+			if(a.length < size) {
+				a = (T[])java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
+			}
+			for(int b = 0; b < size; b++) {
+				a[b] = (T)get(b).copy();
+			}
+			if(a.length > size) {
+				a[size] = null;
+			}
+			return a;
+		}
 	}
 }
@@ -1,7 +1,7 @@
 package com.riverflows.data;
 
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 
 import com.riverflows.data.Variable.CommonVariable;
@@ -17,18 +17,18 @@ public class SiteData {
 			if(object2 == null || object2.getSite() == null || object2.getSite().getName() == null) {
 				return 1;
 			}
-			return object1.getSite().getName().toUpperCase().compareTo(object2.getSite().getName().toUpperCase());
+			return object1.getSite().getName().compareToIgnoreCase(object2.getSite().getName());
 		}
 	};
 	
 	private Site site;
-	private Map<CommonVariable,Series> datasets = new HashMap<CommonVariable, Series>();
+	private Map<CommonVariable,Series> datasets = new EnumMap<CommonVariable, Series>(CommonVariable.class);
 	private String dataInfo;
 
     private boolean complete = true;
 
 	/**
-	 * return datasets variable type -> series mappings
+	 * return datasets variable type -> series mappings, in CommonVariable order
 	 */
 	public Map<CommonVariable, Series> getDatasets() {
 		return datasets;
@@ -0,0 +1,562 @@
+package com.riverflows.data;
+
+import com.riverflows.data.Variable.CommonVariable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index of sites, for finding the sites in a bounding box or nearest to a point.
+ * <p>
+ * Sites are bucketed into a grid of {@link #CELL_DEGREES} cells of latitude and longitude, so a
+ * query only looks at the sites in the cells it overlaps.  The index only holds the coordinates
+ * of each site and its record number in a {@link Records}, which is asked for the details of a
+ * site when a query filters or returns it.  Sites can be added and removed at any time, and adding
+ * a site again replaces it.  Sites without coordinates are ignored.
+ * <p>
+ * Thread-safe.
+ */
+public class SiteGridIndex {
+
+	/** size of each grid cell, in degrees */
+	public static final double CELL_DEGREES = 0.5d;
+
+	private static final int ROWS = (int)(180 / CELL_DEGREES);
+	private static final int COLUMNS = (int)(360 / CELL_DEGREES);
+
+	private static final double EARTH_RADIUS_KM = 6371.0d;
+	private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0d;
+
+	private final Records records;
+
+	private int[] slotRecords = new int[256];
+	private double[] latitudes = new double[256];
+	private double[] longitudes = new double[256];
+	private int[] cellKeys = new int[256];
+	private int count = 0;
+
+	/** slot of each record, or -1 */
+	private int[] recordSlots = new int[0];
+
+	/** only used by an index of Site objects */
+	private final SiteArray siteArray;
+
+	/** slots of the sites in each cell */
+	private final Map<Integer, Cell> cells = new HashMap<Integer, Cell>();
+
+	private static class Cell {
+		int[] slots = new int[4];
+		int size = 0;
+
+		void add(int slot) {
+			if(size == slots.length) {
+				int[] newSlots = new int[size * 2];
+				System.arraycopy(slots, 0, newSlots, 0, size);
+				slots = newSlots;
+			}
+			slots[size++] = slot;
+		}
+
+		void remove(int slot) {
+			for(int a = 0; a < size; a++) {
+				if(slots[a] == slot) {
+					slots[a] = slots[--size];
+					return;
+				}
+			}
+		}
+
+		void replace(int oldSlot, int newSlot) {
+			for(int a = 0; a < size; a++) {
+				if(slots[a] == oldSlot) {
+					slots[a] = newSlot;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The sites that an index refers to by record number.  Only called while the index is locked.
+	 */
+	public interface Records {
+		Site getSite(int record);
+
+		String getAgency(int record);
+
+		/**
+		 * @return true if the site has a variable of this type
+		 */
+		boolean hasVariable(int record, CommonVariable variable);
+	}
+
+	/**
+	 * Records of the Site objects added to an index with {@link SiteGridIndex#add(Site)}.
+	 */
+	private static class SiteArray implements Records {
+		final ArrayList<Site> sites = new ArrayList<Site>();
+		final Map<SiteId, Integer> siteRecords = new HashMap<SiteId, Integer>();
+		final ArrayList<Integer> freeRecords = new ArrayList<Integer>();
+
+		@Override
+		public Site getSite(int record) {
+			return sites.get(record);
+		}
+
+		@Override
+		public String getAgency(int record) {
+			return sites.get(record).getAgency();
+		}
+
+		@Override
+		public boolean hasVariable(int record, CommonVariable variable) {
+			return Filter.hasVariable(sites.get(record), variable);
+		}
+	}
+
+	/**
+	 * Restricts query results to an agency and/or a variable.
+	 */
+	public static class Filter {
+		private final String agency;
+		private final CommonVariable variable;
+
+		/**
+		 * @param agency null to accept any agency
+		 * @param variable null to accept sites with any variables
+		 */
+		public Filter(String agency, CommonVariable variable) {
+			this.agency = agency;
+			this.variable = variable;
+		}
+
+		public boolean accept(Site site) {
+			if(agency != null && !agency.equals(site.getAgency())) {
+				return false;
+			}
+			return variable == null || hasVariable(site, variable);
+		}
+
+		boolean accept(Records records, int record) {
+			if(agency != null && !agency.equals(records.getAgency(record))) {
+				return false;
+			}
+			return variable == null || records.hasVariable(record, variable);
+		}
+
+		static boolean hasVariable(Site site, CommonVariable variable) {
+			Variable[] supportedVariables = site.getSupportedVariables();
+			if(supportedVariables == null) {
+				return false;
+			}
+			for(Variable v: supportedVariables) {
+				if(v.getCommonVariable() == variable) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A site found by {@link SiteGridIndex#findNearest(double, double, int, Filter)}.
+	 */
+	public static class Result {
+		private final int record;
+		private final double distanceKm;
+
+		/** looked up once the search is done */
+		private Site site;
+
+		Result(int record, double distanceKm) {
+			this.record = record;
+			this.distanceKm = distanceKm;
+		}
+
+		public Site getSite() {
+			return site;
+		}
+
+		public double getDistanceKm() {
+			return distanceKm;
+		}
+	}
+
+	private static final Comparator<Result> FARTHEST_FIRST = new Comparator<Result>() {
+		@Override
+		public int compare(Result lhs, Result rhs) {
+			return Double.compare(rhs.distanceKm, lhs.distanceKm);
+		}
+	};
+
+	private static int row(double latitude) {
+		int row = (int)Math.floor((latitude + 90.0d) / CELL_DEGREES);
+		return Math.max(0, Math.min(ROWS - 1, row));
+	}
+
+	private static int column(double longitude) {
+		int column = (int)Math.floor((longitude + 180.0d) / CELL_DEGREES);
+		return Math.max(0, Math.min(COLUMNS - 1, column));
+	}
+
+	private static int cellKey(int row, int column) {
+		return (row * COLUMNS) + column;
+	}
+
+	/**
+	 * An index of Site objects, which are added with {@link #add(Site)}.
+	 */
+	public SiteGridIndex() {
+		this.siteArray = new SiteArray();
+		this.records = siteArray;
+	}
+
+	/**
+	 * An index of records kept elsewhere, which are added with {@link #add(int, double, double)}.
+	 */
+	public SiteGridIndex(Records records) {
+		this.siteArray = null;
+		this.records = records;
+	}
+
+	/**
+	 * Add a site, or move a site that was added before.
+	 * @throws IllegalStateException if this is an index of {@link Records}
+	 */
+	public synchronized void add(Site site) {
+		if(siteArray == null) {
+			throw new IllegalStateException("not an index of sites");
+		}
+		if(site.getLatitude() == null || site.getLongitude() == null) {
+			return;
+		}
+
+		Integer record = siteArray.siteRecords.get(site.getSiteId());
+		if(record != null) {
+			siteArray.sites.set(record, site);
+		} else if(!siteArray.freeRecords.isEmpty()) {
+			record = siteArray.freeRecords.remove(siteArray.freeRecords.size() - 1);
+			siteArray.sites.set(record, site);
+		} else {
+			record = siteArray.sites.size();
+			siteArray.sites.add(site);
+		}
+		siteArray.siteRecords.put(site.getSiteId(), record);
+
+		add(record, site.getLatitude(), site.getLongitude());
+	}
+
+	/**
+	 * @return false if the site wasn't in the index
+	 * @throws IllegalStateException if this is an index of {@link Records}
+	 */
+	public synchronized boolean remove(SiteId siteId) {
+		if(siteArray == null) {
+			throw new IllegalStateException("not an index of sites");
+		}
+		Integer record = siteArray.siteRecords.remove(siteId);
+		if(record == null) {
+			return false;
+		}
+		siteArray.sites.set(record, null);
+		siteArray.freeRecords.add(record);
+		return remove(record.intValue());
+	}
+
+	public void addAll(Collection<SiteData> siteData) {
+		for(SiteData data: siteData) {
+			add(data.getSite());
+		}
+	}
+
+	/**
+	 * Add a record, or move a record that was added before.
+	 * @param record a non-negative record number of this index's {@link Records}
+	 */
+	public synchronized void add(int record, double latitude, double longitude) {
+		if(Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return;
+		}
+		int cellKey = cellKey(row(latitude), column(longitude));
+
+		if(record >= recordSlots.length) {
+			int[] newRecordSlots = new int[Math.max(record + 1, recordSlots.length * 2)];
+			System.arraycopy(recordSlots, 0, newRecordSlots, 0, recordSlots.length);
+			for(int a = recordSlots.length; a < newRecordSlots.length; a++) {
+				newRecordSlots[a] = -1;
+			}
+			recordSlots = newRecordSlots;
+		}
+
+		int slot = recordSlots[record];
+		if(slot != -1) {
+			if(cellKeys[slot] != cellKey) {
+				cells.get(cellKeys[slot]).remove(slot);
+				addToCell(cellKey, slot);
+			}
+		} else {
+			if(count == slotRecords.length) {
+				grow();
+			}
+			slot = count++;
+			recordSlots[record] = slot;
+			addToCell(cellKey, slot);
+		}
+
+		slotRecords[slot] = record;
+		latitudes[slot] = latitude;
+		longitudes[slot] = longitude;
+		cellKeys[slot] = cellKey;
+	}
+
+	/**
+	 * Remove a record, moving the last record into its slot.
+	 * @return false if the record wasn't in the index
+	 */
+	public synchronized boolean remove(int record) {
+		if(record < 0 || record >= recordSlots.length || recordSlots[record] == -1) {
+			return false;
+		}
+		int slot = recordSlots[record];
+		recordSlots[record] = -1;
+
+		Cell cell = cells.get(cellKeys[slot]);
+		cell.remove(slot);
+		if(cell.size == 0) {
+			cells.remove(cellKeys[slot]);
+		}
+
+		int last = --count;
+		if(slot != last) {
+			cells.get(cellKeys[last]).replace(last, slot);
+			slotRecords[slot] = slotRecords[last];
+			latitudes[slot] = latitudes[last];
+			longitudes[slot] = longitudes[last];
+			cellKeys[slot] = cellKeys[last];
+			recordSlots[slotRecords[slot]] = slot;
+		}
+		return true;
+	}
+
+	private void addToCell(int cellKey, int slot) {
+		Cell cell = cells.get(cellKey);
+		if(cell == null) {
+			cell = new Cell();
+			cells.put(cellKey, cell);
+		}
+		cell.add(slot);
+	}
+
+	private void grow() {
+		int newLength = slotRecords.length * 2;
+
+		int[] newSlotRecords = new int[newLength];
+		System.arraycopy(slotRecords, 0, newSlotRecords, 0, count);
+		slotRecords = newSlotRecords;
+
+		double[] newLatitudes = new double[newLength];
+		System.arraycopy(latitudes, 0, newLatitudes, 0, count);
+		latitudes = newLatitudes;
+
+		double[] newLongitudes = new double[newLength];
+		System.arraycopy(longitudes, 0, newLongitudes, 0, count);
+		longitudes = newLongitudes;
+
+		int[] newCellKeys = new int[newLength];
+		System.arraycopy(cellKeys, 0, newCellKeys, 0, count);
+		cellKeys = newCellKeys;
+	}
+
+	/**
+	 * @return the number of sites in the index
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @param west may be greater than east, for a box which crosses the antimeridian
+	 * @param filter may be null
+	 */
+	public synchronized List<Site> findInBox(double south, double west, double north, double east, Filter filter) {
+		List<Site> result = new ArrayList<Site>();
+		if(west > east) {
+			findInBox(south, west, north, 180.0d, filter, result);
+			findInBox(south, -180.0d, north, east, filter, result);
+		} else {
+			findInBox(south, west, north, east, filter, result);
+		}
+		return result;
+	}
+
+	private void findInBox(double south, double west, double north, double east, Filter filter, List<Site> result) {
+		int minRow = row(south);
+		int maxRow = row(north);
+		int minColumn = column(west);
+		int maxColumn = column(east);
+
+		for(int row = minRow; row <= maxRow; row++) {
+			for(int column = minColumn; column <= maxColumn; column++) {
+				Cell cell = cells.get(cellKey(row, column));
+				if(cell == null) {
+					continue;
+				}
+				for(int a = 0; a < cell.size; a++) {
+					int slot = cell.slots[a];
+					double latitude = latitudes[slot];
+					double longitude = longitudes[slot];
+					if(latitude < south || latitude > north || longitude < west || longitude > east) {
+						continue;
+					}
+					int record = slotRecords[slot];
+					if(filter == null || filter.accept(records, record)) {
+						result.add(records.getSite(record));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param filter may be null
+	 * @return up to k sites, nearest first
+	 */
+	public synchronized List<Result> findNearest(double latitude, double longitude, int k, Filter filter) {
+		List<Result> result = new ArrayList<Result>(k);
+		if(k <= 0 || count == 0) {
+			return result;
+		}
+
+		Search search = new Search(latitude, longitude, k, filter);
+
+		int centerRow = row(latitude);
+		int centerColumn = column(longitude);
+
+		//search rings of cells around the center until no unsearched cell can be closer
+		for(int ring = 0; ring <= ROWS + COLUMNS; ring++) {
+			for(int row = Math.max(0, centerRow - ring); row <= Math.min(ROWS - 1, centerRow + ring); row++) {
+				if(Math.abs(row - centerRow) == ring) {
+					if((2 * ring) + 1 >= COLUMNS) {
+						for(int column = 0; column < COLUMNS; column++) {
+							search.searchCell(row, column);
+						}
+					} else {
+						for(int column = centerColumn - ring; column <= centerColumn + ring; column++) {
+							search.searchCell(row, column);
+						}
+					}
+				} else if((2 * ring) - 1 < COLUMNS) {
+					//the rest of this row was searched by earlier rings
+					search.searchCell(row, centerColumn - ring);
+					if(2 * ring != COLUMNS) {
+						search.searchCell(row, centerColumn + ring);
+					}
+				}
+			}
+
+			if(search.sitesSeen >= count) {
+				break;
+			}
+			if(search.nearest.size() == k && search.nearest.peek().distanceKm <= minDistanceOutside(latitude, longitude, ring)) {
+				break;
+			}
+		}
+
+		result.addAll(search.nearest);
+		Collections.sort(result, Collections.reverseOrder(FARTHEST_FIRST));
+		for(Result r: result) {
+			r.site = records.getSite(r.record);
+		}
+		return result;
+	}
+
+	private class Search {
+		final double latitude;
+		final double longitude;
+		final int k;
+		final Filter filter;
+
+		final PriorityQueue<Result> nearest;
+		int sitesSeen = 0;
+
+		Search(double latitude, double longitude, int k, Filter filter) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.k = k;
+			this.filter = filter;
+			this.nearest = new PriorityQueue<Result>(k, FARTHEST_FIRST);
+		}
+
+		void searchCell(int row, int column) {
+			//columns wrap around the antimeridian
+			Cell cell = cells.get(cellKey(row, ((column % COLUMNS) + COLUMNS) % COLUMNS));
+			if(cell == null) {
+				return;
+			}
+			for(int a = 0; a < cell.size; a++) {
+				int slot = cell.slots[a];
+				sitesSeen++;
+				double distance = distanceKm(latitude, longitude, latitudes[slot], longitudes[slot]);
+				if(nearest.size() == k && distance >= nearest.peek().distanceKm) {
+					continue;
+				}
+				//filtering may decode the record, so only sites that would make the list are filtered
+				int record = slotRecords[slot];
+				if(filter != null && !filter.accept(records, record)) {
+					continue;
+				}
+				if(nearest.size() == k) {
+					nearest.poll();
+				}
+				nearest.add(new Result(record, distance));
+			}
+		}
+	}
+
+	/**
+	 * @return a lower bound on the distance from a point to any site outside the cells within
+	 * ring cells of the point's cell
+	 */
+	private static double minDistanceOutside(double latitude, double longitude, int ring) {
+		int row = row(latitude);
+		int column = column(longitude);
+
+		double bound = Double.POSITIVE_INFINITY;
+
+		//any path out of the block crosses one of its parallels...
+		if(row - ring > 0) {
+			bound = Math.min(bound, (latitude - (((row - ring) * CELL_DEGREES) - 90.0d)) * KM_PER_DEGREE);
+		}
+		if(row + ring < ROWS - 1) {
+			bound = Math.min(bound, ((((row + ring + 1) * CELL_DEGREES) - 90.0d) - latitude) * KM_PER_DEGREE);
+		}
+
+		//...or one of its meridians, which is no closer than the great circle the meridian is on
+		if((2 * ring) + 1 < COLUMNS) {
+			double west = longitude - (((column - ring) * CELL_DEGREES) - 180.0d);
+			double east = (((column + ring + 1) * CELL_DEGREES) - 180.0d) - longitude;
+			double degrees = Math.min(90.0d, Math.min(west, east));
+			double toMeridian = Math.asin(Math.cos(Math.toRadians(latitude)) * Math.sin(Math.toRadians(degrees)));
+			bound = Math.min(bound, toMeridian * EARTH_RADIUS_KM);
+		}
+
+		return Math.max(0.0d, bound);
+	}
+
+	/**
+	 * @return the great-circle distance between two points
+	 */
+	public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0d, Math.sqrt(a)));
+	}
+}
@@ -26,13 +26,14 @@ public abstract class ValueConverter {
 			return false;
 		}
 		
-		for(Reading r:s.getReadings()) {
-			r.setValue(converter.convert(variable.getUnit(), toVar.getUnit(), r.getValue()));
-			if(r.getQualifiers() == null) {
-				r.setQualifiers("converted:" + toVar.getUnit());
-			} else {
-				r.setQualifiers(r.getQualifiers() + " converted:" + toVar.getUnit());
+		String convertedToken = "converted:" + toVar.getUnit();
+		
+		for(int a = 0; a < s.size(); a++) {
+			double value = s.getValue(a);
+			if(!Double.isNaN(value)) {
+				s.setValue(a, converter.convert(variable.getUnit(), toVar.getUnit(), value));
 			}
+			s.addQualifier(a, convertedToken);
 		}
 		
 		s.setVariable(new Variable(toVar, variable.getId(), variable.getMagicNullValue()));
@@ -9,12 +9,40 @@ import java.io.InputStream;
 public class WrappedHttpResponse {
     public final InputStream responseStream;
     public final File cacheFile;
+    /**
+     * if not null, the response should be written to this cache entry as it is read
+     */
+    public final CacheEditor cacheEditor;
+    /**
+     * when the cached copy of this response was fetched, or 0 if it isn't backed by a cache entry.
+     * Identifies the cached copy for caches of data derived from it.
+     */
+    public final long cacheTimestamp;
+    /**
+     * true if this is an expired cached response, returned while a fresh copy is fetched
+     */
+    public final boolean stale;
     public final int statusCode;
     public final String message;
 
     public WrappedHttpResponse(InputStream responseStream, File cacheFile, int statusCode, String message) {
+        this(responseStream, cacheFile, null, statusCode, message);
+    }
+
+    public WrappedHttpResponse(InputStream responseStream, File cacheFile, CacheEditor cacheEditor, int statusCode, String message) {
+        this(responseStream, cacheFile, cacheEditor, 0, statusCode, message);
+    }
+
+    public WrappedHttpResponse(InputStream responseStream, File cacheFile, CacheEditor cacheEditor, long cacheTimestamp, int statusCode, String message) {
+        this(responseStream, cacheFile, cacheEditor, cacheTimestamp, false, statusCode, message);
+    }
+
+    public WrappedHttpResponse(InputStream responseStream, File cacheFile, CacheEditor cacheEditor, long cacheTimestamp, boolean stale, int statusCode, String message) {
         this.responseStream = responseStream;
         this.cacheFile = cacheFile;
+        this.cacheEditor = cacheEditor;
+        this.cacheTimestamp = cacheTimestamp;
+        this.stale = stale;
         this.statusCode = statusCode;
         this.message = message;
     }
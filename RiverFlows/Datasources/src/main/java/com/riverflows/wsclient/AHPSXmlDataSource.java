@@ -5,6 +5,7 @@ import com.riverflows.data.FavoriteData;
 import com.riverflows.data.Forecast;
 import com.riverflows.data.WrappedHttpResponse;
 import com.riverflows.data.Reading;
+import com.riverflows.data.QualifierDictionary;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -28,17 +29,21 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -48,12 +53,29 @@ public class AHPSXmlDataSource implements RESTDataSource {
 	
 	public static final String AGENCY = "AHPS";
 	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 1;
+
+	/** pedts codes of the series in the hydrograph XML */
+	static final QualifierDictionary QUALIFIERS = QualifierDictionary.register(AGENCY, "HGIRG", "HPIRG", "HGIFZ", "HGIFF", "HPIFZ", "HPIFF", "QRIRG", "QRIFZ", "QRIFF");
+	
 	public static final Variable VTYPE_FLOW = new Variable(CommonVariable.STREAMFLOW_CFS, "Flow", -999000.0d);
 	public static final Variable VTYPE_STAGE = new Variable(CommonVariable.GAUGE_HEIGHT_FT, "Stage", -999000.0d);
 	
 	public static final String SITE_DATA_URL = "http://water.weather.gov/ahps2/hydrograph_to_xml.php?";
+
+	private static final TimestampCodec READING_DATE_CODEC = new TimestampCodec("yyyy-MM-dd'T'HH:mm:ss");
 	
-	public static Variable[] ACCEPTED_VARIABLES = new Variable[] {VTYPE_FLOW, VTYPE_STAGE};
+	public static final Variable[] ACCEPTED_VARIABLES = new Variable[] {VTYPE_FLOW, VTYPE_STAGE};
+
+	private static final String SITE_DATA_HOST = "water.weather.gov";
+	
+	/**
+	 * shared by all AHPS requests, which are made one gage at a time
+	 */
+	private static final FetchExecutor gageExecutor = new FetchExecutor("ahps-fetch", 6, 4);
+	
+	private static volatile long gageTimeout = 30000;
 
 	private HttpClientWrapper httpClientWrapper = new DefaultHttpClientWrapper();
 		
@@ -68,12 +90,7 @@ public class AHPSXmlDataSource implements RESTDataSource {
 	}
 	
 	public Variable getVariable(String id) {
-		for(Variable v: ACCEPTED_VARIABLES) {
-			if(v.getId().equals(id)){
-				return v;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariable(AGENCY, id);
 	}
 	
 	@Override
@@ -86,110 +103,132 @@ public class AHPSXmlDataSource implements RESTDataSource {
 		this.httpClientWrapper = source;
 	}
 	
-	private class GetFavoriteDataThread extends Thread {
-		public ArrayList<Favorite> favorites = new ArrayList<>();
-		volatile IOException ioe;
-		volatile SiteData favData;
-		volatile boolean complete = false;
+	private class GetGageDataTask implements Callable<SiteData> {
+		public final ArrayList<Favorite> favorites = new ArrayList<Favorite>();
+		
+		/** when this task started running, or 0 if it is still waiting */
+		volatile long startTime = 0;
 		
-		public GetFavoriteDataThread(Favorite f) {
+		public GetGageDataTask(Favorite f) {
 			this.favorites.add(f);
-
-			setName("loadfav-" + f.getSite().getId() + "-" + f.getVariable());
 		}
 		
 		@Override
-		public void run() {
-			try {
-				this.favData = getSiteData(favorites.get(0).getSite(), null, true);
+		public SiteData call() throws IOException {
+			this.startTime = System.currentTimeMillis();
+			
+			SiteData favData = getSiteData(favorites.get(0).getSite(), null, true);
+			
+			//limit data returned to the variables associated with the favorites
+			//TODO don't throw this data away- filter in the UI instead
+			Iterator<Entry<CommonVariable,Series>> datasets = favData.getDatasets().entrySet().iterator();
+			while(datasets.hasNext()) {
+				Entry<CommonVariable,Series> curDataset = datasets.next();
 				
-				//limit data returned to the variables associated with the favorites
-				//TODO don't throw this data away- filter in the UI instead
-				Iterator<Entry<CommonVariable,Series>> datasets = this.favData.getDatasets().entrySet().iterator();
-				while(datasets.hasNext()) {
-					Entry<CommonVariable,Series> curDataset = datasets.next();
-					
-					boolean found = false;
-					for(Favorite favorite: favorites) {
-						if(favorite.getVariable().equals(curDataset.getValue().getVariable().getId())) {
-							found = true;
-							break;
-						}
-					}
-					
-					if(!found) {
-						datasets.remove();
+				boolean found = false;
+				for(Favorite favorite: favorites) {
+					if(favorite.getVariable().equals(curDataset.getValue().getVariable().getId())) {
+						found = true;
+						break;
 					}
 				}
-			} catch(DataParseException dpe) {
-				LOG.warn("could not parse data for site " + dpe.getSiteId(), dpe);
-			} catch(IOException ioe) {
-				this.ioe = ioe;
+				
+				if(!found) {
+					datasets.remove();
+				}
 			}
-			this.complete = true;
+			return favData;
 		}
 	}
 	
+	/**
+	 * Fetches each gage separately, a few at a time.  A gage that fails or doesn't respond within
+	 * {@link #setGageTimeout(long) the timeout} gets placeholder data without affecting the others.
+	 * @see FetchExecutor#awaitAll(Map, String, FetchExecutor.Callback)
+	 */
 	@Override
 	public List<FavoriteData> getSiteData(List<Favorite> sites, boolean hardRefresh)
 			throws ClientProtocolException, IOException {
 		
-		List<FavoriteData> result = new ArrayList<FavoriteData>(sites.size());
-		
-		Map<SiteId, GetFavoriteDataThread> threads = new HashMap<SiteId, GetFavoriteDataThread>(sites.size());
+		final Map<SiteId, GetGageDataTask> tasks = new LinkedHashMap<SiteId, GetGageDataTask>(sites.size());
 		
 		//make a different request for each SiteId
 		for(Favorite currentFav: sites) {
-			GetFavoriteDataThread t = threads.get(currentFav.getSite().getSiteId());
+			GetGageDataTask task = tasks.get(currentFav.getSite().getSiteId());
 			
-			if(t == null) {
-				t = new GetFavoriteDataThread(currentFav);
-				threads.put(currentFav.getSite().getSiteId(), t);
+			if(task == null) {
+				task = new GetGageDataTask(currentFav);
+				tasks.put(currentFav.getSite().getSiteId(), task);
 			} else {
-				t.favorites.add(currentFav);
+				task.favorites.add(currentFav);
 			}
 		}
 		
-		//start all the threads
-		Iterator<GetFavoriteDataThread> threadsI = threads.values().iterator();
-		while(threadsI.hasNext()) {
-			GetFavoriteDataThread currentThread = threadsI.next();
-			currentThread.start();
+		Map<SiteId, Future<SiteData>> futures = new LinkedHashMap<SiteId, Future<SiteData>>(tasks.size());
+		
+		for(Map.Entry<SiteId, GetGageDataTask> entry: tasks.entrySet()) {
+			futures.put(entry.getKey(), gageExecutor.submit(SITE_DATA_HOST, entry.getValue()));
 		}
 		
-		while(threads.size() > 0) {
-			//poll the threads until they're all complete
-			threadsI = threads.values().iterator();
-			while(threadsI.hasNext()) {
-				GetFavoriteDataThread currentThread = threadsI.next();
-				try {
-					Thread.sleep(100);
-				} catch(InterruptedException ie) {
-					//wake up
+		final List<FavoriteData> result = new ArrayList<FavoriteData>(sites.size());
+		
+		final long timeout = gageTimeout;
+		
+		FetchExecutor.awaitAll(futures, tasks.size() + " sites", new FetchExecutor.Callback<SiteId, SiteData>() {
+			@Override
+			protected SiteData await(SiteId siteId, Future<SiteData> future)
+					throws InterruptedException, ExecutionException, TimeoutException {
+				return awaitGageData(tasks.get(siteId), future, timeout);
+			}
+			
+			@Override
+			public void onResult(SiteId siteId, SiteData favData) {
+				for(Favorite favorite : tasks.get(siteId).favorites) {
+					result.add(new FavoriteData(favorite, favData, getVariable(favorite.getVariable())));
 				}
-				
-				if(currentThread.complete) {
-					//if any of the threads experiences an IOException, abort the whole request
-					// since it is probably a connectivity problem that affects all the threads
-					if(currentThread.ioe != null) {
-						throw currentThread.ioe;
-					}
-
-					for(Favorite favorite : currentThread.favorites) {
-						Variable var = getVariable(favorite.getVariable());
-
-						if(currentThread.favData == null) {
-							result.add(new FavoriteData(favorite, DataSourceController.dataSourceDownData(favorite.getSite(), var), var));
-						} else {
-							result.add(new FavoriteData(favorite, currentThread.favData, var));
-						}
-					}
-					threadsI.remove();
+			}
+			
+			@Override
+			public void onFailure(SiteId siteId, Exception failure) {
+				String qualifier = DataSourceController.failureQualifier(failure);
+				for(Favorite favorite : tasks.get(siteId).favorites) {
+					Variable var = getVariable(favorite.getVariable());
+					result.add(new FavoriteData(favorite, DataSourceController.dataSourceDownData(favorite.getSite(), var, qualifier), var, failure));
 				}
 			}
-		}
+		});
+		
 		return result;
 	}
+	
+	/**
+	 * Wait for a gage's data, allowing the timeout to start when the task starts running
+	 * rather than when it was submitted.
+	 */
+	private SiteData awaitGageData(GetGageDataTask task, Future<SiteData> future, long timeout)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		while(true) {
+			long startTime = task.startTime;
+			long wait = (startTime == 0) ? timeout : startTime + timeout - System.currentTimeMillis();
+			
+			if(wait <= 0) {
+				throw new TimeoutException("no response within " + timeout + "ms");
+			}
+			
+			try {
+				return future.get(wait, TimeUnit.MILLISECONDS);
+			} catch(TimeoutException te) {
+				//the task may have been waiting for a thread; check again
+			}
+		}
+	}
+	
+	/**
+	 * @param millis how long to wait for each gage once its request has started
+	 */
+	public static void setGageTimeout(long millis) {
+		gageTimeout = millis;
+	}
 
 	@Override
 	public SiteData getSiteData(Site site, Variable[] variableTypes, boolean hardRefresh)
@@ -205,6 +244,7 @@ public class AHPSXmlDataSource implements RESTDataSource {
 		
 		InputStream contentInputStream = null;
 		BufferedInputStream bufferedStream = null;
+		WrappedHttpResponse response;
 		
 		try {
 			long startTime = System.currentTimeMillis();
@@ -214,18 +254,19 @@ public class AHPSXmlDataSource implements RESTDataSource {
 			
 			reader = factory.newSAXParser().getXMLReader();
 
-			WrappedHttpResponse response = httpClientWrapper.doGet(urlStr, hardRefresh);
+			response = httpClientWrapper.doGet(urlStr, hardRefresh);
+			
+			SiteData cached = ParsedDataCache.get(urlStr, PARSER_VERSION, response, site);
+			if(cached != null) {
+				return cached;
+			}
 			
 			dataSource = new AHPSXmlParser(site,urlStr);
 			reader.setContentHandler(dataSource);
 			
 			contentInputStream = response.responseStream;
 			
-			if(response.cacheFile == null) {
-				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			} else {
-				bufferedStream = new CachingBufferedInputStream(contentInputStream, 8192, response.cacheFile);
-			}
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192);
 			
 			reader.parse(new InputSource(bufferedStream));
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
@@ -253,6 +294,8 @@ public class AHPSXmlDataSource implements RESTDataSource {
 			dataSource.resultData.setDataInfo(info);
 		}
 		
+		ParsedDataCache.put(urlStr, PARSER_VERSION, response, dataSource.resultData);
+		
 		return dataSource.resultData;
 	}
 	
@@ -280,7 +323,7 @@ public class AHPSXmlDataSource implements RESTDataSource {
 		 */
 		private String curElement;
 		private String curStr;
-		private SimpleDateFormat readingDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		private TimeZone readingTimeZone = null;
 		private String currentUnits;
 		private String curPrimaryVariable;
 		private String curSecondaryVariable;
@@ -333,8 +376,7 @@ public class AHPSXmlDataSource implements RESTDataSource {
 				//initialize the timezone
 				USTimeZone usZone = USTimeZone.valueOf(tzStr);
 				if(usZone != null) {
-					TimeZone tz = usZone.getTimeZone();
-					readingDateFormat.setTimeZone(tz);
+					readingTimeZone = usZone.getTimeZone();
 				} else {
 					LOG.warn("could not find timezone: " + tzStr);
 				}
@@ -367,20 +409,27 @@ public class AHPSXmlDataSource implements RESTDataSource {
 			}
 			
 			//null out flag values
-			if(primaryVar.getMagicNullValue().equals(currentReading.getValue())) {
-				currentReading.setValue(null);
+			Double value = currentReading.getValue();
+			if(value == null || primaryVar.getMagicNullValue().equals(value)) {
+				value = Double.NaN;
 			}
+			long time = (currentReading.getDate() == null) ? Series.NO_DATE : currentReading.getDate().getTime();
 			
 			Series result = resultData.getDatasets().get(primaryVar.getCommonVariable());
 			if(result == null) {
 				result = new Series();
+				result.setQualifierDictionary(QUALIFIERS);
 				result.setVariable(primaryVar);
 				result.setSourceUrl(srcUrl);
 				
-				result.setReadings(new ArrayList<Reading>(500));
+				result.initReadings(500);
 				resultData.getDatasets().put(primaryVar.getCommonVariable(), result);
 			}
-			result.getReadings().add(currentReading);
+			if(currentReading instanceof Forecast) {
+				result.addForecast(time, value, currentReading.getQualifiers());
+			} else {
+				result.addObservation(time, value, currentReading.getQualifiers());
+			}
 			return result;
 		}
 
@@ -437,13 +486,8 @@ public class AHPSXmlDataSource implements RESTDataSource {
 				if(completeStr.length() >= 0) {
 					
 					if(localName.equals(EN_DATE)) {
-						if(readingDateFormat == null) {
-							LOG.error(EN_DATE + " element has no timezone");
-							return;
-						}
-						
 						try {
-							Date readingDate = readingDateFormat.parse(completeStr);
+							Date readingDate = READING_DATE_CODEC.parse(completeStr, readingTimeZone);
 							curPrimaryReading.setDate(readingDate);
 							curSecondaryReading.setDate(readingDate);
 						} catch(ParseException pe) {
@@ -493,7 +537,7 @@ public class AHPSXmlDataSource implements RESTDataSource {
 				
 				Set<Entry<CommonVariable,Series>> datasetEntries = resultData.getDatasets().entrySet();
 				for(Entry<CommonVariable,Series> entry : datasetEntries) {
-					Collections.reverse(entry.getValue().getReadings());
+					entry.getValue().reverseObservations();
 				}
 				
 				inObservedSeries = false;
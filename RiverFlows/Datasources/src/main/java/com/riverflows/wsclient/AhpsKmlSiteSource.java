@@ -5,7 +5,6 @@ import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -24,7 +23,6 @@ import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -194,12 +192,10 @@ public class AhpsKmlSiteSource {
 				peakForecastSeries.setSourceUrl("http://water.weather.gov/ahps/worldfiles/ahps_national_fcst.kmz");
 				peakForecastSeries.setVariable(AHPSXmlDataSource.VTYPE_STAGE);
 				
-				Reading peakForecastReading = new Reading();
 				Date peakForecastTime = readingDateFormat.parse(descMap.get(KN_PEAK_FORECAST_TIME));
-				peakForecastReading.setDate(peakForecastTime);
-				peakForecastReading.setValue(Double.parseDouble(peakForecastValue));
 				
-				peakForecastSeries.setReadings(Collections.singletonList(peakForecastReading));
+				peakForecastSeries.initReadings(1);
+				peakForecastSeries.addObservation(peakForecastTime.getTime(), Double.parseDouble(peakForecastValue), null);
 				newSiteData.getDatasets().put(AHPSXmlDataSource.VTYPE_STAGE.getCommonVariable(), peakForecastSeries);
 			} catch(NumberFormatException nfe) {
 				LOG.error("invalid forecast value for site " + placemark.name, nfe);
@@ -3,7 +3,7 @@ package com.riverflows.wsclient;
 import com.riverflows.data.Favorite;
 import com.riverflows.data.FavoriteData;
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
+import com.riverflows.data.QualifierDictionary;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -18,20 +18,21 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.ClientProtocolException;
 
 import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,6 +41,15 @@ public class CDECDataSource implements RESTDataSource {
 	private static final Log LOG = LogFactory.getLog(CDECDataSource.class);
 	
 	public static final String AGENCY = "CDEC";
+	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 1;
+
+	/** data flags; see parse() */
+	static final QualifierDictionary QUALIFIERS = QualifierDictionary.register(AGENCY, "A", "L", "N", "e", "q", "r", "s", "t", "v", "--");
+
+	/** one week of hourly readings */
+	private static final int INITIAL_READING_CAPACITY = 168;
 
 	public static final String AGENCY_URL = "http://cdec.water.ca.gov";
 	public static final String SITE_DATA_URL = AGENCY_URL + "/cgi-progs/queryF";
@@ -106,7 +116,7 @@ public class CDECDataSource implements RESTDataSource {
 //	public static final Variable VTYPE_PPT_INC = new Variable(CommonVariable.,"PPT%20INC", -99999d); //PRECIPITATION, INCREMENTAL, inches
 //	public static final Variable VTYPE_SOIL_MOI = new Variable(CommonVariable.,"SOIL%20MOI", -99999d); //SOIL MOISTURE, %
 	
-	public Variable[] ACCEPTED_VARIABLES = new Variable[]{
+	public static final Variable[] ACCEPTED_VARIABLES = new Variable[]{
 		VTYPE_FLOW,
 		VTYPE_RIV_STG,
 		VTYPE_STAGE_F,
@@ -142,6 +152,11 @@ public class CDECDataSource implements RESTDataSource {
 
 	private HttpClientWrapper httpClientWrapper = new DefaultHttpClientWrapper();
 	
+	private static final String SITE_DATA_HOST = "cdec.water.ca.gov";
+	
+	/** loads the stations of favorites; every request goes to the same host, so only a few at once */
+	private static final FetchExecutor stationExecutor = new FetchExecutor("cdec-fetch", 3, 3);
+	
 	@Override
 	public Variable[] getAcceptedVariables() {
 		return ACCEPTED_VARIABLES;
@@ -157,36 +172,77 @@ public class CDECDataSource implements RESTDataSource {
 		return httpClientWrapper;
 	}
 	
+	/**
+	 * Downloads each station once, however many of its sensors are favorites, and a few stations
+	 * at a time.  A station that fails gets placeholder data without affecting the others.
+	 * @see FetchExecutor#awaitAll(Map, String, FetchExecutor.Callback)
+	 */
 	@Override
 	public List<FavoriteData> getSiteData(List<Favorite> favorites,
-			boolean hardRefresh) throws ClientProtocolException, IOException {
-		//TODO if this is slow, we may have to fork each request off into its own thread, like AHPSXmlDataSource
-        List<FavoriteData> result = new ArrayList<FavoriteData>();
-        HashMap<SiteId, SiteData> siteData = new HashMap<SiteId, SiteData>(favorites.size());
-        Variable[] variables = new Variable[1];
-        for(Favorite favorite: favorites) {
-            variables[0] = getVariable(favorite.getVariable());
-            if(variables[0] == null) {
-                LOG.error("unknown variable: " + favorite.getVariable());
-                continue;
-            }
-
-            SiteData newdata = getSiteData(favorite.getSite(), true, hardRefresh);
-
-            SiteData existingData = siteData.get(favorite.getSite().getSiteId());
-
-            //each FavoriteData object returned should contain data for other favorite
-            // variables at the same site, if there are any
-            if(existingData != null) {
-                Map<CommonVariable, Series> newDataSets = newdata.getDatasets();
-                existingData.getDatasets().putAll(newDataSets);
-            } else {
-                existingData = newdata;
-                siteData.put(favorite.getSite().getSiteId(), newdata);
-            }
-
-            result.add(new FavoriteData(favorite, existingData, variables[0]));
-        }
+			final boolean hardRefresh) throws ClientProtocolException, IOException {
+		
+		//every sensor of a station comes back in the same page
+		Map<SiteId, Site> stations = new LinkedHashMap<SiteId, Site>(favorites.size());
+		for(Favorite favorite: favorites) {
+			if(getVariable(favorite.getVariable()) == null) {
+				continue;
+			}
+			if(!stations.containsKey(favorite.getSite().getSiteId())) {
+				stations.put(favorite.getSite().getSiteId(), favorite.getSite());
+			}
+		}
+		
+		Map<SiteId, Future<SiteData>> futures = new LinkedHashMap<SiteId, Future<SiteData>>(stations.size());
+		
+		for(final Site station: stations.values()) {
+			futures.put(station.getSiteId(), stationExecutor.submit(SITE_DATA_HOST, new Callable<SiteData>() {
+				@Override
+				public SiteData call() throws IOException {
+					return getSiteData(station, true, hardRefresh);
+				}
+			}));
+		}
+		
+		final Map<SiteId, SiteData> stationData = new HashMap<SiteId, SiteData>(stations.size());
+		final Map<SiteId, Exception> stationErrors = new HashMap<SiteId, Exception>();
+		
+		FetchExecutor.awaitAll(futures, stations.size() + " stations", new FetchExecutor.Callback<SiteId, SiteData>() {
+			@Override
+			public void onResult(SiteId stationId, SiteData data) {
+				stationData.put(stationId, data);
+			}
+			
+			@Override
+			public void onFailure(SiteId stationId, Exception failure) {
+				stationErrors.put(stationId, failure);
+			}
+		});
+		
+		List<FavoriteData> result = new ArrayList<FavoriteData>(favorites.size());
+		
+		for(Favorite favorite: favorites) {
+			Variable variable = getVariable(favorite.getVariable());
+			if(variable == null) {
+				LOG.error("unknown variable: " + favorite.getVariable());
+				continue;
+			}
+			
+			SiteId stationId = favorite.getSite().getSiteId();
+			SiteData data = stationData.get(stationId);
+			
+			if(data == null) {
+				Exception error = stationErrors.get(stationId);
+				if(error == null) {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable);
+				} else {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable,
+							DataSourceController.failureQualifier(error));
+				}
+				result.add(new FavoriteData(favorite, data, variable, error));
+			} else {
+				result.add(new FavoriteData(favorite, data, variable));
+			}
+		}
 		return result;
 	}
 	
@@ -198,12 +254,7 @@ public class CDECDataSource implements RESTDataSource {
 	
 	@Override
 	public Variable getVariable(String variableId) {
-		for(Variable v: ACCEPTED_VARIABLES) {
-			if(v.getId().equals(variableId)){
-				return v;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariable(AGENCY, variableId);
 	}
 	
 	@Override
@@ -217,11 +268,9 @@ public class CDECDataSource implements RESTDataSource {
 	 */
 	private static TimeZone cdecTimeZone = TimeZone.getTimeZone("America/Los_Angeles");
 	
-	private static SimpleDateFormat startDateFormat = new SimpleDateFormat("MM/dd/yyyy+HH:mm");
+	private static final TimestampCodec startDateFormat = new TimestampCodec("MM/dd/yyyy+HH:mm", cdecTimeZone);
 	
-	static {		
-		startDateFormat.setTimeZone(cdecTimeZone);
-	}
+	private static final TimestampCodec READING_DATE_CODEC = new TimestampCodec("MM/dd/yyyy HH:mm");
 	
 	private SiteData getSiteData(Site site, boolean singleReading, boolean hardRefresh) throws ClientProtocolException, IOException {
 		GregorianCalendar endDate = new GregorianCalendar();
@@ -253,22 +302,32 @@ public class CDECDataSource implements RESTDataSource {
 			long startTime = System.currentTimeMillis();
 
 			WrappedHttpResponse response = httpClientWrapper.doGet(urlStr, hardRefresh);
+			
+			data = ParsedDataCache.get(urlStr, PARSER_VERSION, response, site);
+			if(data != null) {
+				return data;
+			}
+			
 			contentInputStream = response.responseStream;
 
-			if(response.cacheFile == null) {
-				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			} else {
-				bufferedStream = new CachingBufferedInputStream(contentInputStream, 8192, response.cacheFile);
-			}
+			//parse() stops at the end of the readings table, so finish reading the rest of the
+			// page in the background in order to cache it
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192, true);
 			
 			data = parse(site, bufferedStream, urlStr);
 			
+			ParsedDataCache.put(urlStr, PARSER_VERSION, response, data);
+			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
 			
 		} finally {
 			try {
-				contentInputStream.close();
-				bufferedStream.close();
+				if(bufferedStream != null) {
+					//also closes contentInputStream, once the rest of the page has been cached
+					bufferedStream.close();
+				} else {
+					contentInputStream.close();
+				}
 			} catch(NullPointerException npe) {
 				//this is the result of an error which will have already been logged
 			} catch(IOException ioe) {
@@ -280,11 +339,13 @@ public class CDECDataSource implements RESTDataSource {
 	}
 	
 
-	private static final Pattern readingLinePattern = Pattern.compile("<tr><td.*?>(\\d{2}/\\d{2}/\\d{4} \\d{2}:\\d{2})</td>(.*)</tr>");
-	private static final Pattern readingValuePattern = Pattern.compile("<td.*?>\\s*(\\S+)</td><td.*?><a.*?>\\s*</a></td>");
+	/** a reading's date cell, like 12/10/2016 17:00 */
+	private static final String READING_DATE_SHAPE = "00/00/0000 00:00";
 	
 	/**
-	 * CDEC's data is in HTML, but it is so badly-formed that I parse it as plaintext
+	 * CDEC's data is in HTML, but it is so badly-formed that I parse it as plaintext.  Each
+	 * reading is a row on its own line, with a date cell followed by a value cell and a data flag
+	 * cell for each sensor.
 	 * 
 	 *	Data Flags
 	 *	A	Precipitation accumulation
@@ -297,6 +358,8 @@ public class CDECDataSource implements RESTDataSource {
 	 *	t	Trace of precipitation
 	 *	v	Out of Valid Range
 	 * 
+	 * A value that isn't a number, like "--", is stored as a qualifier, followed by the flags.
+	 * 
 	 * @param s
 	 * @param url
 	 * @return
@@ -304,9 +367,8 @@ public class CDECDataSource implements RESTDataSource {
 	 */
 	private SiteData parse(Site site, InputStream s, String url) throws IOException {
 		
-		DataInputStream ds = new DataInputStream(s);
+		HtmlRowScanner scanner = new HtmlRowScanner(s);
 		
-		String line;
 		int lineNum = -1;
 
 		SiteData data = new SiteData();
@@ -316,87 +378,89 @@ public class CDECDataSource implements RESTDataSource {
 		
 		//find the table header
 		 while(true) {
-			line = ds.readLine();
 			lineNum++;
-			if(line == null) {
+			if(!scanner.readLine()) {
 				throw new RuntimeException("unexpected EOF");
 			}
 			
-			line = line.trim();
-			
-			if(line.trim().startsWith("<tr><td")) {
+			if(scanner.lineStartsWith("<tr><td")) {
 				break;
 			}
 		}
 		
 		data.setDataInfo(dataInfo.toString());
 
-		SimpleDateFormat readingDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
-		CommonVariable[] columns = parseHeader(line, ds.readLine(), data, readingDateFormat);
+		CommonVariable[] columns = parseHeader(scanner.getLine(), data);
+		
+		scanner.readLine();
+		TimeZone readingTimeZone = parseTimeZone(scanner.getLine());
 		
 		lineNum++;
 		
-		while((line = ds.readLine()) != null) {
+		Series[] columnSeries = new Series[columns.length];
+		for(int colIndex = 0; colIndex < columns.length; colIndex++) {
+			columnSeries[colIndex] = data.getDatasets().get(columns[colIndex]);
+		}
+		
+		//last qualifier string built for each column, so repeated qualifiers share one String
+		String[] columnValueTexts = new String[columns.length];
+		String[] columnFlags = new String[columns.length];
+		String[] columnQualifiers = new String[columns.length];
+		
+		while(scanner.readLine()) {
 			lineNum++;
 			
-			line = line.trim();
-			
-			Matcher readingMatcher = readingLinePattern.matcher(line);
-			
-			if(!readingMatcher.matches()) {
-				LOG.info("stopped collecting readings at " + line + " " + lineNum);
+			if(!scanner.lineStartsWith("<tr><td") || !scanner.lineEndsWith("</tr>")
+					|| !scanner.nextCell() || !isReadingDate(scanner)) {
+				LOG.info("stopped collecting readings at " + scanner.getLine() + " " + lineNum);
 				break;
 			}
-			
-			String dateStr = readingMatcher.group(1);
 
-			Date readingDate = null;
+			long readingTime;
 			
-			if(dateStr != null) {
-				try {
-					readingDate = readingDateFormat.parse(dateStr);
-				} catch(ParseException pe) {
-					LOG.error("invalid date: " + dateStr + " " + lineNum);
-					continue;
-				}
-			} else {
-				LOG.error("missing date " + lineNum);
-				continue;
-			}
-
-			String valuesStr = readingMatcher.group(2);
-
-			if(valuesStr == null) {
-				LOG.error("missing values " + lineNum);
+			try {
+				readingTime = READING_DATE_CODEC.parseMillis(scanner.getCellChars(), readingTimeZone);
+			} catch(ParseException pe) {
+				LOG.error("invalid date: " + scanner.getCellText() + " " + lineNum);
 				continue;
 			}
-			
-			Matcher readingValueMatcher = readingValuePattern.matcher(valuesStr);
 
 			for(int colIndex = 0; colIndex < columns.length; colIndex++) {
 
-				Reading r = new Reading();
-				r.setDate(readingDate);
+				if(!scanner.nextCell()) {
+					LOG.error("missing column " + colIndex + " on line " + lineNum + " in " + scanner.getLine());
+					break;
+				}
+				
+				double value = scanner.parseCellDouble();
+				
+				//only needed if the value isn't a number
+				String valueText = null;
+				if(Double.isNaN(value) && scanner.getCellLength() > 0) {
+					valueText = scanner.cellEquals(columnValueTexts[colIndex]) ? columnValueTexts[colIndex] : scanner.getCellText();
+				}
 				
-				if(!readingValueMatcher.find()) {
-					LOG.error("missing column " + colIndex + " on line " + lineNum + " in " + valuesStr);
+				if(!scanner.nextCell()) {
+					LOG.error("missing flag column " + colIndex + " on line " + lineNum + " in " + scanner.getLine());
 					break;
 				}
 				
-				String valueStr = readingValueMatcher.group(1);
+				String flag = null;
+				if(scanner.getCellLength() > 0) {
+					flag = scanner.cellEquals(columnFlags[colIndex]) ? columnFlags[colIndex] : scanner.getCellText();
+				}
 				
-				try {
-					r.setValue(Double.valueOf(valueStr));
-				} catch(NumberFormatException nfe) {
-					if(valueStr.trim().length() != 0) {
-						r.setQualifiers(valueStr);
+				String qualifiers = null;
+				if(valueText != null || flag != null) {
+					if(valueText != columnValueTexts[colIndex] || flag != columnFlags[colIndex] || columnQualifiers[colIndex] == null) {
+						columnValueTexts[colIndex] = valueText;
+						columnFlags[colIndex] = flag;
+						columnQualifiers[colIndex] = (valueText == null) ? flag : ((flag == null) ? valueText : valueText + " " + flag);
 					}
-				} catch(NullPointerException npe) {
-					LOG.error("missing value for col " + colIndex + " on line " + lineNum);
-					continue;
+					qualifiers = columnQualifiers[colIndex];
 				}
 				
-				data.getDatasets().get(columns[colIndex]).getReadings().add(r);
+				columnSeries[colIndex].addObservation(readingTime, value, qualifiers);
 			}
 		}
 		
@@ -404,23 +468,41 @@ public class CDECDataSource implements RESTDataSource {
 		Iterator<Series> datasetsI = data.getDatasets().values().iterator();
 		
 		while(datasetsI.hasNext()) {
-			List<Reading> readings = datasetsI.next().getReadings();
-			if(readings.isEmpty()) {
+			Series dataset = datasetsI.next();
+			if(dataset.size() == 0) {
 				continue;
 			}
 			
-			String q = readings.get(readings.size() - 1).getQualifiers();
+			String q = dataset.getQualifiers(dataset.size() - 1);
 			if(q == null) {
 				continue;
 			}
-			if(q.equals("--")) {
-				readings.remove(readings.size() - 1);
+			//the placeholder may be followed by flags
+			if(q.equals("--") || q.startsWith("-- ")) {
+				dataset.remove(dataset.size() - 1);
 			}
 		}
 		
 		return data;
 	}
 	
+	/**
+	 * @return true if the current cell has the shape of a reading's date
+	 */
+	private static boolean isReadingDate(HtmlRowScanner scanner) {
+		if(scanner.getCellLength() != READING_DATE_SHAPE.length()) {
+			return false;
+		}
+		for(int a = 0; a < READING_DATE_SHAPE.length(); a++) {
+			char expected = READING_DATE_SHAPE.charAt(a);
+			char c = scanner.cellCharAt(a);
+			if(expected == '0' ? (c < '0' || c > '9') : c != expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	private Pattern headerLine1Pat = Pattern.compile("<tr><td.*?><font.*?> ?Date &nbsp; / &nbsp; Time &nbsp; </font></td>(.*)");
 	private Pattern headerLine1VarPat = Pattern.compile("<td.*?><font.*?><i><a href=(.*?)>(.*?)</a> &nbsp</i></font></td><td.*?> &nbsp; </td>(.*)");
 	private Pattern headerLine2Pat = Pattern.compile("<tr><td.*?><font.*?>\\((\\w+)\\)</font></td>.*");
@@ -429,7 +511,7 @@ public class CDECDataSource implements RESTDataSource {
 	 * @param line1
 	 * @return
 	 */
-	private CommonVariable[] parseHeader(String line1, String line2, SiteData data, SimpleDateFormat readingDateFormat) {
+	private CommonVariable[] parseHeader(String line1, SiteData data) {
 		
 		ArrayList<CommonVariable> result = new ArrayList<CommonVariable>();
 		
@@ -459,9 +541,10 @@ public class CDECDataSource implements RESTDataSource {
 			}
 			
 			Series s = new Series();
+			s.setQualifierDictionary(QUALIFIERS);
 			s.setVariable(var);
 			s.setSourceUrl(AGENCY_URL + plotUrl);
-			s.setReadings(new ArrayList<Reading>());
+			s.initReadings(INITIAL_READING_CAPACITY);
 			
 			StringBuilder dataInfo = new StringBuilder(data.getDataInfo());
 			
@@ -481,26 +564,33 @@ public class CDECDataSource implements RESTDataSource {
 		
 		data.setDataInfo(data.getDataInfo() + "</div>");
 		
+		CommonVariable[] columns = new CommonVariable[result.size()];
+		
+		result.toArray(columns);
+		
+		return columns;
+	}
+	
+	/**
+	 * @param line2 second line of the table headers
+	 * @return the timezone of the readings, or null if it couldn't be determined
+	 */
+	private TimeZone parseTimeZone(String line2) {
 		Matcher l2Matcher = headerLine2Pat.matcher(line2);
 		
 		if(l2Matcher.matches()) {
 			String tzStr = l2Matcher.group(1);
 			try {
 				USTimeZone tz = USTimeZone.valueOf(tzStr);
-				readingDateFormat.setTimeZone(tz.getTimeZone());
+				return tz.getTimeZone();
 			} catch(NullPointerException npe) {
 				LOG.error("error determining timezone", npe);
+				return null;
 			}
-		} else {
-			readingDateFormat.setTimeZone(USTimeZone.PDT.getTimeZone());
-			LOG.error("could not find timezone");
 		}
 		
-		CommonVariable[] columns = new CommonVariable[result.size()];
-		
-		result.toArray(columns);
-		
-		return columns;
+		LOG.error("could not find timezone");
+		return USTimeZone.PDT.getTimeZone();
 	}
 	
 	@Override
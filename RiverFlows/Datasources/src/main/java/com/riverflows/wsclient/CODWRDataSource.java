@@ -3,7 +3,7 @@ package com.riverflows.wsclient;
 import com.riverflows.data.Favorite;
 import com.riverflows.data.FavoriteData;
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
+import com.riverflows.data.QualifierDictionary;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -16,25 +16,36 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.ClientProtocolException;
 
 import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class CODWRDataSource implements RESTDataSource {
 	private static final Log LOG = LogFactory.getLog(CODWRDataSource.class);
 	
 	public static final String AGENCY = "CODWR";
 	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 1;
+
+	static final QualifierDictionary QUALIFIERS = QualifierDictionary.register(AGENCY);
+	
+	/** one day of 15-minute readings; series grow as needed */
+	private static final int INITIAL_READING_CAPACITY = 96;
+
 	public static final Variable VTYPE_STREAMFLOW_CFS = new Variable(CommonVariable.STREAMFLOW_CFS,"DISCHRG", -99999d);
 	public static final Variable VTYPE_STREAMFLOW_CFS_1 = new Variable(CommonVariable.STREAMFLOW_CFS,"DISCHRG1", -99999d);
 	public static final Variable VTYPE_STREAMFLOW_CFS_2 = new Variable(CommonVariable.STREAMFLOW_CFS,"DISCHRG2", -99999d);
@@ -68,11 +79,18 @@ public class CODWRDataSource implements RESTDataSource {
 		VTYPE_ATM_PRESSURE_MB,
 		VTYPE_HUMIDITY_PCT};
 	
-	static final SimpleDateFormat valueDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-	static final SimpleDateFormat rangeDateFormat = new SimpleDateFormat("MM/dd/yy");
+	static final TimestampCodec valueDateFormat = new TimestampCodec("yyyy-MM-dd HH:mm");
+	static final TimestampCodec rangeDateFormat = new TimestampCodec("MM/dd/yy");
 	
 	private HttpClientWrapper httpClientWrapper = new DefaultHttpClientWrapper();
 	
+	private static final String SITE_DATA_HOST = "www.dwr.state.co.us";
+	
+	/** fetches the requests of a batched refresh; they all go to the same host */
+	private static final FetchExecutor batchExecutor = new FetchExecutor("codwr-fetch", 2, 2);
+	
+	private static volatile int maxUrlLength = UrlChunkPlanner.DEFAULT_MAX_URL_LENGTH;
+	
 	/**
 	 * Always assume times are in Colorado time
 	 */
@@ -83,12 +101,7 @@ public class CODWRDataSource implements RESTDataSource {
 	}
 	
 	public Variable getVariable(String id) {
-		for(Variable v: ACCEPTED_VARIABLES) {
-			if(v.getId().equals(id)){
-				return v;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariable(AGENCY, id);
 	}
 	
 	@Override
@@ -111,36 +124,168 @@ public class CODWRDataSource implements RESTDataSource {
 		return getSiteData(favorites, hardRefresh, new Date());
 	}
 
+	/**
+	 * Requests the favorites' stations in batches, one batch for each combination of variables,
+	 * so that refreshing many favorites usually takes one or two requests.  Each FavoriteData
+	 * contains the data for all of the favorite variables at its site.
+	 */
 	List<FavoriteData> getSiteData(List<Favorite> favorites, boolean hardRefresh, Date endDate)
 			throws ClientProtocolException, IOException {
-		List<FavoriteData> result = new ArrayList<FavoriteData>();
-        HashMap<SiteId, SiteData> siteData = new HashMap<SiteId, SiteData>(favorites.size());
-		Variable[] variables = new Variable[1];
+		
+		Map<SiteId, Site> sites = new LinkedHashMap<SiteId, Site>();
+		Map<SiteId, List<Variable>> siteVariables = new HashMap<SiteId, List<Variable>>();
+		
 		for(Favorite favorite: favorites) {
-			variables[0] = getVariable(favorite.getVariable());
-			if(variables[0] == null) {
-				LOG.error("unknown variable: " + favorite.getVariable());
+			Variable variable = getVariable(favorite.getVariable());
+			if(variable == null) {
 				continue;
 			}
+			SiteId siteId = favorite.getSite().getSiteId();
+			List<Variable> variables = siteVariables.get(siteId);
+			if(variables == null) {
+				variables = new ArrayList<Variable>(1);
+				siteVariables.put(siteId, variables);
+				sites.put(siteId, favorite.getSite());
+			}
+			if(!variables.contains(variable)) {
+				variables.add(variable);
+			}
+		}
+		
+		//CODWR only accepts 2 variables per request, so the stations in a batch are the ones
+		// requesting the same 1 or 2 variables
+		Map<String, List<Site>> batches = new LinkedHashMap<String, List<Site>>();
+		
+		for(Site site: sites.values()) {
+			List<Variable> variables = siteVariables.get(site.getSiteId());
+			Collections.sort(variables, VARIABLE_ID_ORDER);
 			
-			SiteData newdata = getSiteData(favorite.getSite(), variables, hardRefresh, endDate);
+			for(int a = 0; a < variables.size(); a += 2) {
+				String mtype = variables.get(a).getId();
+				if(a + 1 < variables.size()) {
+					mtype += "," + variables.get(a + 1).getId();
+				}
+				List<Site> batch = batches.get(mtype);
+				if(batch == null) {
+					batch = new ArrayList<Site>();
+					batches.put(mtype, batch);
+				}
+				batch.add(site);
+			}
+		}
+		
+		Map<SiteId, Exception> siteErrors = new HashMap<SiteId, Exception>();
+		Map<SiteId, SiteData> siteData = getBatchedSiteData(batches, getStartDate(endDate), endDate, hardRefresh, siteErrors);
+		
+		List<FavoriteData> result = new ArrayList<FavoriteData>(favorites.size());
+		for(Favorite favorite: favorites) {
+			Variable variable = getVariable(favorite.getVariable());
+			if(variable == null) {
+				LOG.error("unknown variable: " + favorite.getVariable());
+				continue;
+			}
 			
-			SiteData existingData = siteData.get(favorite.getSite().getSiteId());
-
-            //each FavoriteData object returned should contain data for other favorite
-            // variables at the same site, if there are any
-			if(existingData != null) {
-				Map<CommonVariable, Series> newDataSets = newdata.getDatasets();
-				existingData.getDatasets().putAll(newDataSets);
+			SiteData data = siteData.get(favorite.getSite().getSiteId());
+			if(data == null) {
+				Exception error = siteErrors.get(favorite.getSite().getSiteId());
+				if(error == null) {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable);
+				} else {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable,
+							DataSourceController.failureQualifier(error));
+				}
+				result.add(new FavoriteData(favorite, data, variable, error));
 			} else {
-                existingData = newdata;
-				siteData.put(favorite.getSite().getSiteId(), newdata);
+				Variable[] supportedVariables = favorite.getSite().getSupportedVariables();
+				data.setComplete(supportedVariables != null
+						&& supportedVariables.length == siteVariables.get(favorite.getSite().getSiteId()).size());
+				result.add(new FavoriteData(favorite, data, variable));
 			}
-
-            result.add(new FavoriteData(favorite, existingData, variables[0]));
-        }
+		}
 		return result;
 	}
+	
+	private static final Comparator<Variable> VARIABLE_ID_ORDER = new Comparator<Variable>() {
+		@Override
+		public int compare(Variable lhs, Variable rhs) {
+			return lhs.getId().compareTo(rhs.getId());
+		}
+	};
+	
+	/**
+	 * Fetches each batch of stations in as few requests as the URL length allows, all at once.
+	 * The stations in a request that fails are left out of the result, and the datasets of a
+	 * station in more than one batch are merged.
+	 * @param batches the stations to request for each MTYPE
+	 * @param siteErrors receives the failure of the request for each station in a request that failed
+	 * @see FetchExecutor#awaitAll(Map, String, FetchExecutor.Callback)
+	 */
+	private Map<SiteId, SiteData> getBatchedSiteData(Map<String, List<Site>> batches, Date startDate, Date endDate,
+			final boolean hardRefresh, final Map<SiteId, Exception> siteErrors) throws IOException {
+		
+		Map<String, Future<Map<SiteId, SiteData>>> futures = new LinkedHashMap<String, Future<Map<SiteId, SiteData>>>();
+		final Map<String, Site[]> urlSites = new HashMap<String, Site[]>();
+		
+		for(Map.Entry<String, List<Site>> batch: batches.entrySet()) {
+			final Map<String, Site> sitesById = new LinkedHashMap<String, Site>();
+			for(Site site: batch.getValue()) {
+				sitesById.put(site.getId(), site);
+			}
+			
+			UrlChunkPlanner planner = new UrlChunkPlanner(SITE_DATA_URL + "ID=", ",",
+					getUrlSuffix(batch.getKey(), 1, startDate, endDate), maxUrlLength);
+			
+			for(String[] chunk: planner.plan(sitesById.keySet().toArray(new String[sitesById.size()]))) {
+				final Site[] chunkSites = new Site[chunk.length];
+				for(int a = 0; a < chunk.length; a++) {
+					chunkSites[a] = sitesById.get(chunk[a]);
+				}
+				final String url = planner.getUrl(chunk);
+				urlSites.put(url, chunkSites);
+				
+				futures.put(url, batchExecutor.submit(SITE_DATA_HOST, new Callable<Map<SiteId, SiteData>>() {
+					@Override
+					public Map<SiteId, SiteData> call() throws IOException {
+						return getSiteData(chunkSites, url, 1, hardRefresh);
+					}
+				}));
+			}
+		}
+		
+		if(LOG.isInfoEnabled()) LOG.info("requesting " + batches.size() + " batches in " + futures.size() + " requests");
+		
+		final Map<SiteId, SiteData> result = new HashMap<SiteId, SiteData>();
+		
+		FetchExecutor.awaitAll(futures, futures.size() + " batches", new FetchExecutor.Callback<String, Map<SiteId, SiteData>>() {
+			@Override
+			public void onResult(String url, Map<SiteId, SiteData> batchData) {
+				for(SiteData data: batchData.values()) {
+					SiteData existingData = result.get(data.getSite().getSiteId());
+					if(existingData == null) {
+						result.put(data.getSite().getSiteId(), data);
+					} else {
+						existingData.getDatasets().putAll(data.getDatasets());
+					}
+				}
+			}
+			
+			@Override
+			public void onFailure(String url, Exception failure) {
+				for(Site site: urlSites.get(url)) {
+					siteErrors.put(site.getSiteId(), failure);
+				}
+			}
+		});
+		
+		return result;
+	}
+	
+	/**
+	 * @param length the longest URL to request; longer station lists are split across several requests
+	 */
+	static void setMaxUrlLength(int length) {
+		maxUrlLength = length;
+	}
 
 	Date getStartDate(Date endDate) {
 		GregorianCalendar startDate = new GregorianCalendar();
@@ -185,25 +330,34 @@ public class CODWRDataSource implements RESTDataSource {
 			variableIds[a] = variableTypes[a].getId();
 		}
 		
+		String sourceUrl = SITE_DATA_URL + "ID=" + site.getId() + getUrlSuffix(Utils.join(",", variableIds), interval, startDate, endDate);
 		
-		String sourceUrl = SITE_DATA_URL + "ID=" + site.getId();
-		sourceUrl += "&MTYPE=" + Utils.join(",", variableIds);
-		sourceUrl += "&INTERVAL=" + interval;
+		Map<SiteId, SiteData> data = getSiteData(new Site[]{site}, sourceUrl, interval, hardRefresh);
+		
+		return (data == null) ? null : data.get(site.getSiteId());
+	}
+	
+	/**
+	 * @return the parameters that follow the ID parameter
+	 */
+	private static String getUrlSuffix(String mtype, int interval, Date startDate, Date endDate) {
+		StringBuilder suffix = new StringBuilder();
+		suffix.append("&MTYPE=").append(mtype);
+		suffix.append("&INTERVAL=").append(interval);
 		if(startDate != null) {
-			sourceUrl += "&START=" + rangeDateFormat.format(startDate);
+			suffix.append("&START=").append(rangeDateFormat.format(startDate));
 		}
 		if(endDate != null) {
-			sourceUrl += "&END=" + rangeDateFormat.format(endDate);
+			suffix.append("&END=").append(rangeDateFormat.format(endDate));
 		}
-		
-		return getSiteData(site, variableTypes, sourceUrl, interval, hardRefresh);
+		return suffix.toString();
 	}
 	
-	private SiteData getSiteData(Site site, Variable[] variables, String urlStr, int interval, boolean hardRefresh) throws ClientProtocolException, IOException {
+	private Map<SiteId, SiteData> getSiteData(Site[] sites, String urlStr, int interval, boolean hardRefresh) throws ClientProtocolException, IOException {
 		
 		if(LOG.isInfoEnabled()) LOG.info("site data URL: " + urlStr);
 		
-		SiteData data = null;
+		Map<SiteId, SiteData> data = null;
 		
 		InputStream contentInputStream = null;
 		BufferedInputStream bufferedStream = null;
@@ -212,15 +366,19 @@ public class CODWRDataSource implements RESTDataSource {
 			long startTime = System.currentTimeMillis();
 
 			WrappedHttpResponse response = httpClientWrapper.doGet(urlStr, hardRefresh);
-			contentInputStream = response.responseStream;
 			
-			if(response.cacheFile == null) {
-				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			} else {
-				bufferedStream = new CachingBufferedInputStream(contentInputStream, 8192, response.cacheFile);
+			data = ParsedDataCache.get(urlStr, PARSER_VERSION, response, sites);
+			if(data != null) {
+				return data;
 			}
 			
-			data = parse(site, variables, bufferedStream, urlStr, interval);
+			contentInputStream = response.responseStream;
+			
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192);
+			
+			data = parse(sites, bufferedStream, urlStr, interval);
+			
+			ParsedDataCache.put(urlStr, PARSER_VERSION, response, data.values());
 			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
 			
@@ -244,167 +402,234 @@ public class CODWRDataSource implements RESTDataSource {
 	};
 	
 	/**
-	 * @param site
-	 * @param variables
-	 * @param s
-	 * @param sourceUrl
-	 * @return
+	 * Reads a response in one pass, splitting the rows between the requested stations by the Station
+	 * column.  A response for several stations may repeat the comment block and header for each of them.
+	 * @return data for each of the sites, even if it has no rows
 	 * @throws IOException
 	 */
-	private SiteData parse(Site site, Variable[] variables, InputStream s, String sourceUrl, int interval) throws IOException {
+	private Map<SiteId, SiteData> parse(Site[] sites, InputStream s, String sourceUrl, int interval) throws IOException {
 		
-		DataInputStream ds = new DataInputStream(s);
+		Map<String, Site> sitesById = new HashMap<String, Site>(sites.length * 2);
+		for(Site site: sites) {
+			sitesById.put(site.getId(), site);
+		}
 		
-		String line;
-		String trimmedLine;
+		Map<SiteId, SiteData> result = new LinkedHashMap<SiteId, SiteData>(sites.length * 2);
 		
-		StringBuilder dataInfo = new StringBuilder();
-		dataInfo.append("<h2>" + site.getName() + " (" + site.getId() + ")</h2>");
-		dataInfo.append("<div><strong>Provisional Data</strong>");
+		RdbReader reader = new RdbReader(s, '\t', 8192);
 		
-		//find the header line, save boilerplate comment
-		 while(true) {
-			line = ds.readLine();
-			if(line == null) {
-				throw new RuntimeException("unexpected EOF");
-			}
-			trimmedLine = line.trim();
-			if(!trimmedLine.startsWith("#")) {
-				break;
-			}
-
-			if(line.startsWith("#------")) {
-				dataInfo.append("<hr/>");
-				continue;
-			}
-			
-			if(trimmedLine.length() == 1) {
-				dataInfo.append("<br/>");
-				continue;
-			}
-			
-			//put label: value info on its own line
-			int colonLoc = line.indexOf(":");
-			if(colonLoc >= 0) {
-				//avoid mistaking URLs for label: value pairs
-				int urlLoc = line.indexOf("http:");
-				if(urlLoc == -1 || colonLoc < urlLoc) {
-					dataInfo.append("<p>" + line.substring(1) + "</p>");
-					continue;
-				}
-			}
-
-			dataInfo.append(" ");
-			dataInfo.append(line.substring(1));
-		}
-
-		dataInfo.append("</div>");
-		dataInfo.append("<p>url: " + sourceUrl + "</p>");
+		StringBuilder dataInfo = null;
+		boolean inComments = false;
+		
+		//the columns of the most recent header
+		Variable[] columns = null;
 		
+		//the station whose rows are being read, and its series for each column
+		String currentSiteId = null;
 		SiteData currentSiteData = null;
-		List<String> titleOrder = null;
+		Series[] columnSeries = null;
 		
-		do {
-			if(line.charAt(0) == '#') {
+		boolean foundLine = false;
+		
+		while(reader.readLine()) {
+			if(reader.getLineLength() == 0) {
 				continue;
 			}
-			if(line.startsWith(EXPECTED_COLUMNS[0])) {
-				titleOrder = new ArrayList<String>();
-				currentSiteData = parseHeaders(variables, line, titleOrder, sourceUrl);
-				currentSiteData.setSite(site);
-				currentSiteData.setDataInfo(dataInfo.toString());
+			
+			if(reader.firstChar() == '#') {
+				if(!inComments) {
+					//save boilerplate comment
+					dataInfo = new StringBuilder();
+					dataInfo.append("<div><strong>Provisional Data</strong>");
+					inComments = true;
+				}
+				appendComment(dataInfo, reader.getLine());
 				continue;
 			}
 			
-			if(currentSiteData == null) {
-				throw new DataParseException(site.getSiteId(),"missing headers");
+			if(inComments) {
+				dataInfo.append("</div>");
+				dataInfo.append("<p>url: " + sourceUrl + "</p>");
+				inComments = false;
 			}
+			foundLine = true;
 			
-			String[] values = line.split("\t");
-			
-			String siteId = values[0];
+			if(reader.lineStartsWith(EXPECTED_COLUMNS[0])) {
+				columns = parseHeaders(reader);
+				currentSiteId = null;
+				continue;
+			}
 			
-			if(!siteId.equals(site.getSiteId().getId())) {
-				throw new DataParseException(site.getSiteId(), "expected site: " + site.getSiteId().getId() + " found: " + siteId);
+			if(columns == null) {
+				throw new DataParseException((sites.length == 1) ? sites[0].getSiteId() : null, "missing headers");
 			}
 			
-			String readingTimeStr = values[1];
+			if(currentSiteId == null || !reader.fieldEquals(0, currentSiteId)) {
+				currentSiteId = reader.getField(0);
+				
+				Site site = sitesById.get(currentSiteId);
+				if(site == null) {
+					if(sites.length == 1) {
+						throw new DataParseException(sites[0].getSiteId(), "expected site: " + sites[0].getId() + " found: " + currentSiteId);
+					}
+					throw new DataParseException("unexpected site: " + currentSiteId);
+				}
+				
+				currentSiteData = result.get(site.getSiteId());
+				if(currentSiteData == null) {
+					currentSiteData = new SiteData();
+					currentSiteData.setSite(site);
+					currentSiteData.setDataInfo("<h2>" + site.getName() + " (" + site.getId() + ")</h2>"
+							+ ((dataInfo == null) ? "" : dataInfo.toString()));
+					result.put(site.getSiteId(), currentSiteData);
+				}
+				columnSeries = getColumnSeries(currentSiteData, columns, sourceUrl);
+			}
 			
-			Date currentDate = null;
+			if(reader.getFieldCount() < 2) {
+				throw new DataParseException("missing date: " + reader.getLine());
+			}
 			
+			long time;
 			try {
-				currentDate = valueDateFormat.parse(readingTimeStr);
+				time = valueDateFormat.parseMillis(reader.getFieldChars(1));
 			} catch(ParseException pe) {
-				throw new DataParseException("invalid date: " + readingTimeStr, pe);
+				throw new DataParseException("invalid date: " + reader.getField(1), pe);
+			}
+			
+			if(interval == 3 && time > (System.currentTimeMillis() - 24 * 60 * 60 * 1000)) {
+				//for some reason, the recent reading interval always has a 12:00 am time
+				time = System.currentTimeMillis();
 			}
 			
 			//get values for each series
-			for(int a = EXPECTED_COLUMNS.length; a < titleOrder.size(); a++) {
-				Variable var = getVariable(titleOrder.get(a));
-				if(var == null) {
+			for(int a = EXPECTED_COLUMNS.length; a < columnSeries.length; a++) {
+				if(columnSeries[a] == null) {
 					//not a series value column
 					continue;
 				}
-				Series currentSeries = currentSiteData.getDatasets().get(var.getCommonVariable());
 				
-				Reading newReading = new Reading();
-				try {
-					newReading.setValue(Double.valueOf(values[a]));
-				} catch(NumberFormatException nfe) {
-					if(LOG.isDebugEnabled()) LOG.debug("couldn't parse value: " + values[a], nfe);
-					newReading.setValue(null);
-					newReading.setQualifiers(values[a]);
-				}
-				if(interval == 3 && currentDate.getTime() > (System.currentTimeMillis() - 24 * 60 * 60 * 1000)) {
-					//for some reason, the recent reading interval always has a 12:00 am time
-					newReading.setDate(new Date());
-				} else {
-					newReading.setDate(currentDate);
+				double value = Double.NaN;
+				String qualifiers = null;
+				if(a < reader.getFieldCount()) {
+					value = reader.parseDouble(a);
+					if(Double.isNaN(value)) {
+						qualifiers = reader.getField(a);
+						if(LOG.isDebugEnabled()) LOG.debug("couldn't parse value: " + qualifiers);
+					}
 				}
 				
-				currentSeries.getReadings().add(newReading);
+				columnSeries[a].addObservation(time, value, qualifiers);
 			}
-		}while((line = ds.readLine()) != null);
+		}
+		
+		if(!foundLine) {
+			throw new RuntimeException("unexpected EOF");
+		}
+		
+		//stations without any readings still get their (empty) series
+		if(columns != null) {
+			for(Site site: sites) {
+				if(result.containsKey(site.getSiteId())) {
+					continue;
+				}
+				SiteData emptyData = new SiteData();
+				emptyData.setSite(site);
+				emptyData.setDataInfo("<h2>" + site.getName() + " (" + site.getId() + ")</h2>"
+						+ ((dataInfo == null) ? "" : dataInfo.toString()));
+				getColumnSeries(emptyData, columns, sourceUrl);
+				result.put(site.getSiteId(), emptyData);
+			}
+		}
 		
-		return currentSiteData;
+		return result;
 	}
 	
-	private SiteData parseHeaders(Variable[] variables, String headerLine, List<String> titleOrder, String sourceUrl) {
-		String[] headers = headerLine.split("\t");
-		if(headers.length <= EXPECTED_COLUMNS.length) {
+	/**
+	 * Add a comment line to the data info, putting label: value info on its own line
+	 */
+	private static void appendComment(StringBuilder dataInfo, String line) {
+		if(line.startsWith("#------")) {
+			dataInfo.append("<hr/>");
+			return;
+		}
+		
+		if(line.trim().length() == 1) {
+			dataInfo.append("<br/>");
+			return;
+		}
+		
+		int colonLoc = line.indexOf(":");
+		if(colonLoc >= 0) {
+			//avoid mistaking URLs for label: value pairs
+			int urlLoc = line.indexOf("http:");
+			if(urlLoc == -1 || colonLoc < urlLoc) {
+				dataInfo.append("<p>" + line.substring(1) + "</p>");
+				return;
+			}
+		}
+		
+		dataInfo.append(" ");
+		dataInfo.append(line.substring(1));
+	}
+	
+	/**
+	 * @return the variable in each column of the header line, or null for the Station and Date/Time
+	 * columns and for unknown variables
+	 */
+	private Variable[] parseHeaders(RdbReader reader) {
+		if(reader.getFieldCount() <= EXPECTED_COLUMNS.length) {
 			throw new DataParseException("missing reading column(s)");
 		}
 		int a = 0;
 		for(; a < EXPECTED_COLUMNS.length; a++) {
-			if(!headers[a].equals(EXPECTED_COLUMNS[a])) {
-				throw new DataParseException("header in unexpected location: " + headers[a]);
+			if(!reader.fieldEquals(a, EXPECTED_COLUMNS[a])) {
+				throw new DataParseException("header in unexpected location: " + reader.getField(a));
 			}
-			titleOrder.add(headers[a]);
 		}
 		
-		SiteData currentSiteData = new SiteData();
+		Variable[] columns = new Variable[reader.getFieldCount()];
 		
 		//get variable types
-		for(; a < headers.length; a++) {
-			String[] pieces = headers[a].split(" ");
-			
-			titleOrder.add(pieces[0]);
+		for(; a < columns.length; a++) {
+			String header = reader.getField(a);
+			int spaceLoc = header.indexOf(' ');
+			String variableId = (spaceLoc == -1) ? header : header.substring(0, spaceLoc);
 			
 			//find the full Variable object for the variable ID
-			Variable v = getVariable(pieces[0]);
-			if(v == null) {
-				if(LOG.isWarnEnabled()) LOG.warn("unexpected variable: " + pieces[0]);
+			columns[a] = getVariable(variableId);
+			if(columns[a] == null) {
+				if(LOG.isWarnEnabled()) LOG.warn("unexpected variable: " + variableId);
+			}
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Create a series in a station's data for each column that doesn't already have one.
+	 * @return the series for each column
+	 */
+	private Series[] getColumnSeries(SiteData data, Variable[] columns, String sourceUrl) {
+		for(Variable v: columns) {
+			if(v == null || data.getDatasets().containsKey(v.getCommonVariable())) {
+				continue;
 			}
-			
-			//create a series for each variable
 			Series s = new Series();
+			s.setQualifierDictionary(QUALIFIERS);
 			s.setVariable(v);
-			s.setReadings(new ArrayList<Reading>());
+			s.initReadings(INITIAL_READING_CAPACITY);
 			s.setSourceUrl(sourceUrl);
-			currentSiteData.getDatasets().put(v.getCommonVariable(), s);
+			data.getDatasets().put(v.getCommonVariable(), s);
 		}
 		
-		return currentSiteData;
+		Series[] columnSeries = new Series[columns.length];
+		for(int a = 0; a < columns.length; a++) {
+			if(columns[a] != null) {
+				columnSeries[a] = data.getDatasets().get(columns[a].getCommonVariable());
+			}
+		}
+		return columnSeries;
 	}
 
 	@Override
@@ -0,0 +1,64 @@
+package com.riverflows.wsclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how requests for one agency's data were served by a caching HttpClientWrapper.
+ */
+public class CacheStats {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * a fresh cached response was returned
+	 */
+	public void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * an expired cached response was returned while it is revalidated
+	 */
+	public void recordStaleHit() {
+		staleHits.incrementAndGet();
+	}
+
+	/**
+	 * the server confirmed the cached response was still current, so it was returned
+	 * without downloading it again
+	 */
+	public void recordNotModified() {
+		notModified.incrementAndGet();
+	}
+
+	/**
+	 * the response was downloaded
+	 */
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits + " stale=" + staleHits + " notModified=" + notModified + " misses=" + misses;
+	}
+}
@@ -1,71 +1,252 @@
 /**
- * 
+ *
  */
 package com.riverflows.wsclient;
 
+import com.riverflows.data.CacheEditor;
+import com.riverflows.data.WrappedHttpResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
 
+/**
+ * Copies everything that is read to a cache file or cache entry.  The copy only replaces the
+ * previously cached response once the stream has been read to the end; if the stream is
+ * closed before that, the copy is either discarded or, optionally, completed in the background.
+ */
 class CachingBufferedInputStream extends BufferedInputStream {
 
-	private FileOutputStream cacheFile = null;
-	
+	private static final Log LOG = LogFactory.getLog(CachingBufferedInputStream.class);
+
+	private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * responses with more than this left unread when they are closed are not drained
+	 */
+	private static final long MAX_DRAIN_BYTES = 512 * 1024;
+
+	private static final FetchExecutor drainExecutor = new FetchExecutor("cache-drain", 1, 1);
+
+	private final OutputStream cacheOut;
+
+	/** file to rename the temp file to, if not using a CacheEditor */
+	private final File cacheFile;
+	private final File tempFile;
+
+	private final CacheEditor cacheEditor;
+
+	private final CRC32 checksum = new CRC32();
+
+	private long length = 0;
+
+	/** set once the copy has been committed or discarded */
+	private boolean finished = false;
+
+	private boolean drainOnClose = false;
+
 	public CachingBufferedInputStream(InputStream in, int size, File cacheFile) throws FileNotFoundException {
 		super(in, size);
-		
-		this.cacheFile = new FileOutputStream(cacheFile);
+
+		this.cacheFile = cacheFile;
+		this.tempFile = new File(cacheFile.getPath() + ".tmp");
+		this.cacheEditor = null;
+		this.cacheOut = new BufferedOutputStream(new FileOutputStream(tempFile), WRITE_BUFFER_SIZE);
+	}
+
+	public CachingBufferedInputStream(InputStream in, int size, CacheEditor cacheEditor) throws IOException {
+		super(in, size);
+
+		this.cacheFile = null;
+		this.tempFile = null;
+		this.cacheEditor = cacheEditor;
+		try {
+			this.cacheOut = new BufferedOutputStream(cacheEditor.newOutputStream(), WRITE_BUFFER_SIZE);
+		} catch(IOException ioe) {
+			cacheEditor.abort();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @return a buffered stream over the response which writes it to the response's cache
+	 * file or cache entry, if it has one
+	 */
+	public static BufferedInputStream wrap(WrappedHttpResponse response, int size) throws IOException {
+		if(response.cacheEditor != null) {
+			return new CachingBufferedInputStream(response.responseStream, size, response.cacheEditor);
+		}
+		if(response.cacheFile != null) {
+			return new CachingBufferedInputStream(response.responseStream, size, response.cacheFile);
+		}
+		return new BufferedInputStream(response.responseStream, size);
 	}
-	
+
+	/**
+	 * @param drainOnClose if true, a stream closed before it has been read to the end finishes reading
+	 * the response in the background so it can still be cached. The underlying stream is closed once
+	 * that is done, so callers must close this stream rather than the underlying one.
+	 */
+	public static BufferedInputStream wrap(WrappedHttpResponse response, int size, boolean drainOnClose) throws IOException {
+		BufferedInputStream result = wrap(response, size);
+		if(result instanceof CachingBufferedInputStream) {
+			((CachingBufferedInputStream)result).drainOnClose = drainOnClose;
+		}
+		return result;
+	}
+
 	@Override
 	public synchronized int read() throws IOException {
 		//WARNING: super.read() better not call one of the other read() methods!
 		int ch = super.read();
 		if(ch != -1) {
-			cacheFile.write(ch);
+			cacheOut.write(ch);
+			checksum.update(ch);
+			length++;
 		} else {
-			cacheFile.close();
+			commit();
 		}
 		return ch;
 	}
-	
+
 	@Override
 	public int read(byte[] buffer) throws IOException {
 		return this.read(buffer, 0, buffer.length);
 	}
-	
+
 	@Override
 	public synchronized int read(byte[] buffer, int offset, int length)
 			throws IOException {
 		int count =  super.read(buffer, offset, length);
 		if(count != -1) {
-			cacheFile.write(buffer, offset, count);
+			cacheOut.write(buffer, offset, count);
+			checksum.update(buffer, offset, count);
+			this.length += count;
 		} else {
-			cacheFile.close();
+			commit();
 		}
 		return count;
 	}
-	
+
+	private void commit() throws IOException {
+		if(finished) {
+			return;
+		}
+		finished = true;
+
+		try {
+			cacheOut.close();
+
+			if(cacheEditor != null) {
+				cacheEditor.commit(length, checksum.getValue());
+			} else if(!tempFile.renameTo(cacheFile)) {
+				//some platforms won't rename over an existing file
+				cacheFile.delete();
+				if(!tempFile.renameTo(cacheFile)) {
+					throw new IOException("could not rename " + tempFile + " to " + cacheFile);
+				}
+			}
+		} catch(IOException ioe) {
+			discard();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Throw away the copy, leaving any previously cached response in place.
+	 */
+	private void discard() {
+		finished = true;
+		try {
+			cacheOut.close();
+		} catch(IOException ioe) {
+			//the copy is being thrown away anyway
+		}
+		if(cacheEditor != null) {
+			cacheEditor.abort();
+		} else {
+			tempFile.delete();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			if(!finished && drainOnClose) {
+				drainOnClose = false;
+				drainExecutor.submit(drainExecutor.getName(), new Callable<Void>() {
+					@Override
+					public Void call() {
+						drain();
+						return null;
+					}
+				});
+				return;
+			}
+		}
+
+		try {
+			super.close();
+		} finally {
+			synchronized(this) {
+				if(!finished) {
+					//incomplete responses must not be cached
+					discard();
+				}
+			}
+		}
+	}
+
+	private void drain() {
+		byte[] buffer = new byte[8192];
+		long drained = 0;
+		try {
+			int count;
+			while((count = read(buffer, 0, buffer.length)) != -1) {
+				drained += count;
+				if(drained > MAX_DRAIN_BYTES) {
+					LOG.info("not caching response: too much left unread");
+					break;
+				}
+			}
+		} catch(IOException ioe) {
+			LOG.info("could not finish reading response for the cache", ioe);
+		}
+
+		try {
+			close();
+		} catch(IOException ioe) {
+			LOG.warn("failed to close InputStream: ", ioe);
+		}
+	}
+
 	@Override
 	public synchronized void mark(int readlimit) {
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
 	public boolean markSupported() {
 		return false;
 	}
-	
+
 	@Override
 	public synchronized void reset() throws IOException {
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
 	public synchronized long skip(long amount) throws IOException {
 		throw new UnsupportedOperationException();
 	}
-}
\ No newline at end of file
+}
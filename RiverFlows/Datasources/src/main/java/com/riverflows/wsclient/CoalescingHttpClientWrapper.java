@@ -0,0 +1,365 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.WrappedHttpResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets concurrent requests for the same URL share a single download.
+ * <p>
+ * The first request for a URL is passed on to the wrapped HttpClientWrapper.  Requests for the
+ * same URL made before the first {@link #MAX_JOIN_BYTES} of that response have been read get
+ * their own stream over the same bytes, starting from the beginning.  Later requests get a
+ * download of their own, so large responses such as site lists are still streamed.  Only the
+ * first response carries the cache file or cache entry, so the response is only written to the
+ * cache once.  A hard refresh never joins a download that may have been served from the cache.
+ */
+public class CoalescingHttpClientWrapper implements HttpClientWrapper {
+
+	private static final Log LOG = LogFactory.getLog(CoalescingHttpClientWrapper.class);
+
+	private final HttpClientWrapper delegate;
+
+	private static final int CHUNK_SIZE = 8192;
+
+	/** how much of a response is kept so that new requests can join it */
+	static final int MAX_JOIN_BYTES = 32 * CHUNK_SIZE;
+
+	private final ConcurrentHashMap<String, SharedDownload> inFlight = new ConcurrentHashMap<String, SharedDownload>();
+
+	public CoalescingHttpClientWrapper(HttpClientWrapper delegate) {
+		this.delegate = delegate;
+	}
+
+	public HttpClientWrapper getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public WrappedHttpResponse doGet(String requestUrl, boolean hardRefresh) throws IOException {
+		SharedDownload download;
+		SharedStream stream = null;
+		boolean leader = false;
+
+		synchronized(inFlight) {
+			download = inFlight.get(requestUrl);
+
+			if(download != null && !(hardRefresh && !download.hardRefresh)) {
+				stream = download.join();
+			}
+
+			if(stream == null) {
+				download = new SharedDownload(requestUrl, hardRefresh);
+				stream = download.join();
+				inFlight.put(requestUrl, download);
+				leader = true;
+			}
+		}
+
+		if(leader) {
+			return startDownload(download, stream, requestUrl, hardRefresh);
+		}
+
+		if(LOG.isDebugEnabled()) LOG.debug("joining in-flight request for " + requestUrl);
+
+		WrappedHttpResponse response = download.awaitResponse(stream);
+		return new WrappedHttpResponse(stream, null, null, response.cacheTimestamp, response.stale,
+				response.statusCode, response.message);
+	}
+
+	private WrappedHttpResponse startDownload(SharedDownload download, SharedStream stream, String requestUrl, boolean hardRefresh) throws IOException {
+		WrappedHttpResponse response;
+		try {
+			response = delegate.doGet(requestUrl, hardRefresh);
+		} catch(IOException ioe) {
+			download.fail(ioe);
+			throw ioe;
+		} catch(RuntimeException re) {
+			download.fail(new IOException("request failed: " + re.getMessage(), re));
+			throw re;
+		}
+
+		download.start(response);
+
+		return new WrappedHttpResponse(stream, response.cacheFile, response.cacheEditor, response.cacheTimestamp,
+				response.stale, response.statusCode, response.message);
+	}
+
+	/**
+	 * The bytes of a single response, read from the network as fast as the fastest reader
+	 * wants them.
+	 * <p>
+	 * Until the first {@link #MAX_JOIN_BYTES} have been read, every byte is kept so that new readers
+	 * can start from the beginning.  After that the download can't be joined any more, and each
+	 * chunk is released as soon as every reader has read past it, so a large response is never
+	 * held in memory as a whole.
+	 */
+	private class SharedDownload {
+		final String url;
+		final boolean hardRefresh;
+
+		private WrappedHttpResponse response;
+		private IOException failure;
+
+		/** downloaded bytes that some reader still needs, starting at firstChunkPosition */
+		private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		private long firstChunkPosition = 0;
+
+		/** the number of bytes downloaded so far */
+		private long length = 0;
+		private boolean eof = false;
+
+		/** set once the response has been read completely, failed, or been abandoned */
+		private boolean done = false;
+
+		/** false once new readers would need bytes that may already have been released */
+		private boolean joinable = true;
+
+		/** streams that have not been closed yet */
+		private final ArrayList<SharedStream> readers = new ArrayList<SharedStream>();
+
+		/** held while reading from the network, so readers with bytes left to copy don't wait */
+		private final Object pumpLock = new Object();
+		private final byte[] readBuffer = new byte[CHUNK_SIZE];
+
+		SharedDownload(String url, boolean hardRefresh) {
+			this.url = url;
+			this.hardRefresh = hardRefresh;
+		}
+
+		/**
+		 * Add a reader.
+		 * @return a stream starting at the beginning of the response, or null if the download can
+		 * no longer be joined
+		 */
+		synchronized SharedStream join() {
+			if(done || !joinable) {
+				return null;
+			}
+			SharedStream stream = new SharedStream(this);
+			readers.add(stream);
+			return stream;
+		}
+
+		synchronized void start(WrappedHttpResponse response) {
+			this.response = response;
+			notifyAll();
+		}
+
+		void fail(IOException ioe) {
+			synchronized(this) {
+				this.failure = ioe;
+				this.done = true;
+				notifyAll();
+			}
+			inFlight.remove(url, this);
+		}
+
+		synchronized WrappedHttpResponse awaitResponse(SharedStream stream) throws IOException {
+			boolean interrupted = false;
+			try {
+				while(response == null && failure == null) {
+					try {
+						wait();
+					} catch(InterruptedException ie) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if(failure != null) {
+				readers.remove(stream);
+				throw new IOException("shared request for " + url + " failed: " + failure.getMessage(), failure);
+			}
+			return response;
+		}
+
+		/**
+		 * Copy bytes starting at a reader's position, reading more from the network if that
+		 * reader has caught up with everything downloaded so far.
+		 * @return the number of bytes copied, or -1 at the end of the response
+		 */
+		int read(SharedStream stream, byte[] b, int off, int len) throws IOException {
+			while(true) {
+				synchronized(this) {
+					if(stream.position < length) {
+						int copied = 0;
+						while(copied < len && stream.position < length) {
+							long offset = stream.position - firstChunkPosition;
+							byte[] chunk = chunks.get((int)(offset / CHUNK_SIZE));
+							int chunkOffset = (int)(offset % CHUNK_SIZE);
+							int count = (int)Math.min(Math.min(len - copied, CHUNK_SIZE - chunkOffset), length - stream.position);
+							System.arraycopy(chunk, chunkOffset, b, off + copied, count);
+							stream.position += count;
+							copied += count;
+						}
+						releaseChunks();
+						return copied;
+					}
+					if(failure != null) {
+						throw new IOException("shared request for " + url + " failed: " + failure.getMessage(), failure);
+					}
+					if(eof) {
+						return -1;
+					}
+				}
+
+				synchronized(pumpLock) {
+					synchronized(this) {
+						if(stream.position < length || eof || failure != null) {
+							//another reader already got more
+							continue;
+						}
+					}
+
+					int count;
+					try {
+						count = response.responseStream.read(readBuffer, 0, readBuffer.length);
+					} catch(IOException ioe) {
+						synchronized(this) {
+							failure = ioe;
+							done = true;
+						}
+						closeSource();
+						throw ioe;
+					}
+
+					boolean stopSharing = false;
+					synchronized(this) {
+						if(count == -1) {
+							eof = true;
+							done = true;
+						} else {
+							append(count);
+							if(joinable && length > MAX_JOIN_BYTES) {
+								joinable = false;
+								stopSharing = true;
+							}
+						}
+					}
+
+					if(count == -1) {
+						closeSource();
+					} else if(stopSharing) {
+						inFlight.remove(url, this);
+					}
+				}
+			}
+		}
+
+		private void append(int count) {
+			int copied = 0;
+			while(copied < count) {
+				int tailOffset = (int)((length - firstChunkPosition) % CHUNK_SIZE);
+				if(tailOffset == 0 && length - firstChunkPosition == (long)chunks.size() * CHUNK_SIZE) {
+					chunks.add(new byte[CHUNK_SIZE]);
+				}
+				byte[] tail = chunks.get(chunks.size() - 1);
+				int n = Math.min(count - copied, CHUNK_SIZE - tailOffset);
+				System.arraycopy(readBuffer, copied, tail, tailOffset, n);
+				copied += n;
+				length += n;
+			}
+		}
+
+		/**
+		 * Drop the chunks that every reader has read past, once no new reader can join.
+		 */
+		private void releaseChunks() {
+			if(joinable) {
+				return;
+			}
+			long minPosition = length;
+			for(SharedStream reader: readers) {
+				minPosition = Math.min(minPosition, reader.position);
+			}
+			int released = (int)((minPosition - firstChunkPosition) / CHUNK_SIZE);
+			if(released > 0) {
+				chunks.subList(0, released).clear();
+				firstChunkPosition += (long)released * CHUNK_SIZE;
+			}
+		}
+
+		void close(SharedStream stream) {
+			synchronized(this) {
+				readers.remove(stream);
+				if(readers.isEmpty()) {
+					//nothing can read these any more
+					joinable = false;
+					chunks.clear();
+					firstChunkPosition = length;
+				} else {
+					releaseChunks();
+				}
+				if(!readers.isEmpty() || done) {
+					return;
+				}
+				//nobody wants the rest of the response
+				done = true;
+			}
+			closeSource();
+		}
+
+		private void closeSource() {
+			inFlight.remove(url, this);
+			try {
+				response.responseStream.close();
+			} catch(IOException ioe) {
+				LOG.warn("failed to close response for " + url, ioe);
+			}
+		}
+	}
+
+	/**
+	 * One reader's view of a SharedDownload.
+	 */
+	private static class SharedStream extends InputStream {
+		private final SharedDownload download;
+
+		/** guarded by download */
+		private long position = 0;
+
+		private boolean closed = false;
+
+		private final byte[] singleByte = new byte[1];
+
+		SharedStream(SharedDownload download) {
+			this.download = download;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int count = read(singleByte, 0, 1);
+			return (count == -1) ? -1 : (singleByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(closed) {
+				throw new IOException("stream closed");
+			}
+			if(len == 0) {
+				return 0;
+			}
+			return download.read(this, b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				download.close(this);
+			}
+		}
+	}
+}
@@ -3,13 +3,14 @@ package com.riverflows.wsclient;
 import com.google.inject.Singleton;
 import com.riverflows.data.Favorite;
 import com.riverflows.data.FavoriteData;
-import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteGridIndex;
 import com.riverflows.data.SiteId;
 import com.riverflows.data.USState;
 import com.riverflows.data.Variable;
+import com.riverflows.data.WrappedHttpResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,31 +22,35 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
 
 import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.PasswordAuthentication;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -67,10 +72,45 @@ public class DataSourceController {
 
 	public static final float RIVERFLOWS_WS_API_VERSION = 0.2f;
 	
+	/**
+	 * @deprecated not thread-safe; use {@link #RECENT_READING_TIME_CODEC} instead
+	 */
+	@Deprecated
 	public static final DateFormat RECENT_READING_TIME_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	
+	/** format of the recent reading times in site lists, in UTC */
+	public static final TimestampCodec RECENT_READING_TIME_CODEC = new TimestampCodec("yyyy-MM-dd HH:mm:ss", TimeZone.getTimeZone("GMT-00:00"));
+	
 	private static final Map<String,RESTDataSource> dataSources = new HashMap<String,RESTDataSource>();
 
+	/**
+	 * Runs requests to different agencies in parallel; each agency only ever has one task
+	 */
+	private static final FetchExecutor agencyExecutor = new FetchExecutor("agency-fetch", 4, 1);
+
+	private static volatile long siteDataTimeout = 45000;
+
+	/**
+	 * key for {@link #getCacheStats(String)} counting site list requests
+	 */
+	public static final String SITE_LIST_STATS = "sites";
+
+	private static final Map<String, CacheStats> cacheStats = new HashMap<String, CacheStats>();
+
+	private static volatile HttpClientWrapper siteListHttpClientWrapper;
+
+	private static volatile SiteListSync siteListSync;
+
+	/** site lists whose snapshots are indexed by {@link #getSiteIndex()} */
+	private static final Set<String> siteListUrls = new LinkedHashSet<String>();
+
+	/** guarded by siteListUrls */
+	private static SiteGridIndex siteIndex;
+	private static int siteIndexGeneration;
+	private static int siteIndexUrlCount;
+
+	private static volatile FormatSelector usgsFormatSelector;
+
     private static volatile boolean sslInitialized = false;
 
 	public static class SSLHttpClient extends DefaultHttpClient {
@@ -182,6 +222,83 @@ public class DataSourceController {
 		Authenticator.setDefault(new java2(m(b)));
 	}
 	
+	/**
+	 * @return the counters for requests made on behalf of this agency, or of the RiverFlows site list
+	 * for {@link #SITE_LIST_STATS}
+	 */
+	public static CacheStats getCacheStats(String agency) {
+		synchronized(cacheStats) {
+			CacheStats stats = cacheStats.get(agency);
+			if(stats == null) {
+				stats = new CacheStats();
+				cacheStats.put(agency, stats);
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * Use this to download the RiverFlows site list, instead of relying on the platform's HTTP cache.
+	 */
+	public static void setSiteListHttpClientWrapper(HttpClientWrapper wrapper) {
+		siteListHttpClientWrapper = wrapper;
+	}
+
+	/**
+	 * Once a site list has been loaded from an endpoint that provides a sync token, only ask for
+	 * the sites that have changed since then.  Requires {@link SiteListSnapshot#install(java.io.File)}.
+	 * @param minSyncIntervalMs how long to use the stored site list before asking for changes,
+	 * unless it's a hard refresh
+	 */
+	public static void enableSiteListSync(long minSyncIntervalMs) {
+		siteListSync = new SiteListSync(null, minSyncIntervalMs);
+	}
+
+	/**
+	 * @param wrapper used for requests for changes, which shouldn't be cached
+	 * @see #enableSiteListSync(long)
+	 */
+	public static void enableSiteListSync(HttpClientWrapper wrapper, long minSyncIntervalMs) {
+		siteListSync = new SiteListSync(wrapper, minSyncIntervalMs);
+	}
+
+	public static void disableSiteListSync() {
+		siteListSync = null;
+	}
+
+	/**
+	 * Load USGS data in whichever of the RDB and WaterML formats has been faster for requests
+	 * for a similar number of sites and readings, rather than always using RDB.
+	 */
+	public static void enableUsgsFormatSelection() {
+		usgsFormatSelector = new FormatSelector(2, 3, 20);
+	}
+
+	public static void disableUsgsFormatSelection() {
+		usgsFormatSelector = null;
+	}
+
+	/**
+	 * @return null if USGS data should always be loaded as RDB
+	 */
+	static FormatSelector getUsgsFormatSelector() {
+		return usgsFormatSelector;
+	}
+
+	/**
+	 * Apply the SSL configuration set up by {@link #useKeyStore(InputStream)} to a connection,
+	 * if it is an HTTPS connection.
+	 */
+	public static void prepareConnection(HttpURLConnection conn) {
+		if(conn instanceof HttpsURLConnection) {
+			if(sslContext != null) {
+				((HttpsURLConnection) conn).setSSLSocketFactory(sslContext.getSocketFactory());
+			} else if(!sslInitialized) {
+				throw new IllegalStateException(DataSourceController.class.getSimpleName() + " not initialized!");
+			}
+		}
+	}
+
 	public static void setHttpClientWrapper(HttpClientWrapper wrapper) {
 		for(RESTDataSource src: dataSources.values()) {
 			src.setHttpClientWrapper(wrapper);
@@ -217,11 +334,47 @@ public class DataSourceController {
 		}
 	}
 	
+	/**
+	 * Pass every site to a visitor as the site list is downloaded, without keeping the list in memory.
+	 */
+	public void visitAllSites(boolean hardRefresh, SiteListVisitor visitor) throws ClientProtocolException, IOException {
+		
+		String urlStr = RIVERFLOWS_WS_BASEURL + SITES_WS_PATH + "?version=" + RIVERFLOWS_WS_API_VERSION; 
+		
+		try {
+			visitSites(urlStr, hardRefresh, visitor);
+		} catch(URISyntaxException use) {
+			throw new RuntimeException("invalid URL: " + urlStr, use);
+		}
+	}
+	
 	public Map<SiteId,SiteData> getSites(String urlStr, boolean hardRefresh) throws ClientProtocolException, IOException, URISyntaxException {
+		SiteCollector collector = new SiteCollector();
+		visitSites(urlStr, hardRefresh, collector);
+		return collector.sites;
+	}
+	
+	public void visitSites(String urlStr, boolean hardRefresh, SiteListVisitor visitor) throws ClientProtocolException, IOException, URISyntaxException {
 		
-		if(LOG.isInfoEnabled()) LOG.info("site data URL: " + urlStr);
+		synchronized(siteListUrls) {
+			siteListUrls.add(urlStr);
+		}
 		
-		Map<SiteId,SiteData> sites = null;
+		SiteListSync sync = siteListSync;
+		if(sync != null) {
+			switch(sync.visit(urlStr, hardRefresh, visitor)) {
+			case VISITED:
+				return;
+			case EXPIRED:
+				if(LOG.isInfoEnabled()) LOG.info("site list sync token expired; reloading " + urlStr);
+				hardRefresh = true;
+				break;
+			default:
+				break;
+			}
+		}
+		
+		if(LOG.isInfoEnabled()) LOG.info("site data URL: " + urlStr);
 		
 		InputStream contentInputStream = null;
 		BufferedInputStream bufferedStream = null;
@@ -229,218 +382,160 @@ public class DataSourceController {
 		try {
 			long startTime = System.currentTimeMillis();
 
-			HttpURLConnection conn = (HttpURLConnection)new URL(urlStr).openConnection();
+			HttpClientWrapper wrapper = siteListHttpClientWrapper;
 
-			conn.setRequestProperty("Accept", "text/csv");
+			if(wrapper != null) {
+				WrappedHttpResponse response = wrapper.doGet(urlStr, hardRefresh);
 
-			conn.setUseCaches(!hardRefresh);
+				SiteListSnapshot snapshot = SiteListSnapshot.get(urlStr, response);
+				if(snapshot != null) {
+					snapshot.visit(visitor);
+					if(LOG.isInfoEnabled()) LOG.info("loaded site list snapshot in " + (System.currentTimeMillis() - startTime) + "ms");
+					return;
+				}
 
-            if(conn instanceof HttpsURLConnection) {
-                if(sslContext != null) {
-                    ((HttpsURLConnection) conn).setSSLSocketFactory(sslContext.getSocketFactory());
-                } else if(!sslInitialized) {
-                    throw new IllegalStateException(DataSourceController.class.getSimpleName() + " not initialized!");
-                }
-            }
+				contentInputStream = response.responseStream;
 
-			contentInputStream = conn.getInputStream();
-			
-			bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			sites = parseSiteList(bufferedStream, conn.getContentLength());
+				//a visitor may stop early, so finish reading the list in the background in order to cache it
+				bufferedStream = CachingBufferedInputStream.wrap(response, 8192, true);
+
+				SiteListSnapshot.Writer snapshotWriter = SiteListSnapshot.newWriter(urlStr, response, visitor);
+				if(snapshotWriter == null) {
+					visitSiteList(bufferedStream, visitor);
+				} else {
+					SiteListSync.Directives directives = new SiteListSync.Directives();
+					try {
+						if(visitSiteList(bufferedStream, snapshotWriter, directives)) {
+							snapshotWriter.setSyncToken(directives.syncToken);
+							snapshotWriter.commit();
+						}
+					} finally {
+						snapshotWriter.discard();
+					}
+				}
+			} else {
+				HttpURLConnection conn = (HttpURLConnection)new URL(urlStr).openConnection();
+
+				conn.setRequestProperty("Accept", "text/csv");
+
+				conn.setUseCaches(!hardRefresh);
+
+				prepareConnection(conn);
+
+				contentInputStream = conn.getInputStream();
+
+				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
+				visitSiteList(bufferedStream, visitor);
+			}
 			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
 		} finally {
 			try {
-				contentInputStream.close();
-				bufferedStream.close();
-			} catch(NullPointerException npe) {
-				//this is the result of an error which will have already been logged
+				if(bufferedStream != null) {
+					//also closes contentInputStream, once the rest of the list has been cached
+					bufferedStream.close();
+				} else if(contentInputStream != null) {
+					contentInputStream.close();
+				}
 			} catch(IOException ioe) {
 				LOG.error( "failed to close InputStream: ", ioe);
 			}
 		}
-		
-		return sites;
 	}
 	
-	private static Map<SiteId,SiteData> parseSiteList(InputStream s, long contentLength) throws IOException {
-
-		Map<SiteId,SiteData> sites = new HashMap<SiteId,SiteData>();
+	/**
+	 * Pass each usable site in a site list to a visitor, in the order they appear.
+	 * @return false if the visitor stopped the list early
+	 */
+	static boolean visitSiteList(InputStream s, SiteListVisitor visitor) throws IOException {
+		return visitSiteList(s, visitor, null);
+	}
+	
+	/**
+	 * @param directives receives the list's comments and deletions; may be null
+	 * @return false if the visitor stopped the list early
+	 */
+	static boolean visitSiteList(InputStream s, SiteListVisitor visitor, SiteListSync.Directives directives) throws IOException {
 		
-		DataInputStream ds = new DataInputStream(s);
+		RdbReader reader = new RdbReader(s);
+		RdbSiteRecord record = new RdbSiteRecord(reader);
 		
 		//skip first line
-		String line = ds.readLine();
-
-		String currentRemoteId = null;
-		String currentAgency = null;
-		String currentId = null;
-		String currentSiteName = null;
-		String currentLatitude = null;
-		String currentLongitude = null;
-		String currentState = null;
-		String[] supportedVarIds = null;
-		String currentRecentReading = null;
-		String currentRecentReadingTime = null;
-		String currentRecentReadingVariable = null;
+		reader.readLine();
 		
-		while((line = ds.readLine()) != null){
-			if(line.length() < 1 || line.charAt(0) == '#') {
+		while(reader.readLine()) {
+			int firstChar = reader.firstChar();
+			if(firstChar == -1) {
 				continue;
 			}
-			String[] tokens = Utils.split(line, '\t');
-			int colIndex = 0;;
-			for(String currentValue:tokens) {
-				currentValue = currentValue.trim();
-				switch(colIndex++) {
-				//parse out the different columns
-				case 0:
-					currentRemoteId = currentValue;
-					break;
-				case 1:
-					currentAgency = currentValue;
-					break;
-				case 2:
-					currentId = currentValue;
-					break;
-				case 3:
-					currentSiteName = currentValue;
-					break;
-				case 4:
-					currentLatitude = currentValue;
-					break;
-				case 5:
-					currentLongitude = currentValue;
-					break;
-				case 6:
-					currentState = currentValue;
-					break;
-				case 7:
-					supportedVarIds = currentValue.split(" ");
-					break;
-				case 8:
-					currentRecentReading = currentValue;
-					break;
-				case 9:
-					currentRecentReadingTime = currentValue;
-					break;
-				case 10:
-					currentRecentReadingVariable = currentValue;
-					break;
-				default:
-					LOG.error( "extra column for " + currentAgency + "/" + currentId + ": " + currentValue);
+			if(firstChar == '#') {
+				if(directives != null) {
+					directives.readComment(reader);
 				}
-			}
-			if(currentSiteName == null) {
-				LOG.error( "missing name for " + currentAgency + "/" + currentId);
-				continue;
-			}
-			if(currentId == null) {
-				LOG.error( "missing id for " + currentAgency +"/" + currentSiteName);
 				continue;
 			}
-			if(currentAgency == null) {
-				LOG.error( "missing agency for " + currentSiteName + "/" + currentId);
+			if(firstChar == '-' && directives != null) {
+				directives.readDeletion(reader);
 				continue;
 			}
-			if(currentState == null) {
-				LOG.error( "missing state for " + currentSiteName + "/" + currentId);
+			if(!record.load()) {
 				continue;
 			}
-			SiteId id = new SiteId(currentAgency, currentId);
-			id.setPrimaryKey(Integer.parseInt(currentRemoteId));
-			
-			Variable[] supportedVariables = new Variable[supportedVarIds.length];
-			
-			DataSource currentSiteDataSource = dataSources.get(currentAgency);
-			
-			if(currentSiteDataSource == null) {
-				LOG.info(currentId + " " + currentSiteName + " has an unknown agency: " + currentAgency);
-				continue;
-			}
-			
-			for(int i = 0; i < supportedVariables.length; i++) {
-				supportedVariables[i] = currentSiteDataSource.getVariable(supportedVarIds[i]);
-				if(supportedVariables[i] == null) {
-					LOG.warn( currentAgency + " does not recognize variable: " + supportedVarIds[i] + " for site: " + currentId);
-					
-					//shorten array so it doesn't contain any nulls
-					Variable[] newSupportedVars = new Variable[supportedVariables.length - 1];
-					System.arraycopy(supportedVariables, 0, newSupportedVars, 0, newSupportedVars.length);
-					i--;
-					supportedVariables = newSupportedVars;
-				}
-			}
-			
-			if(supportedVariables.length == 0) {
-				LOG.warn("ignoring site: " + id + " since it has no supported variables");
-				continue;
+			if(!visitor.visit(record)) {
+				return false;
 			}
-			
-			Site site = new Site(id, currentSiteName, USState.valueOf(currentState), supportedVariables);
-			
-			if(currentLatitude != null) {
-				try {
-					double longitude = Double.valueOf(currentLongitude);
-					double latitude = Double.valueOf(currentLatitude);
-					
-					//these won't get set if there is an error parsing one of the coordinates
-					site.setLongitude(longitude);
-					site.setLatitude(latitude);
-				} catch(NullPointerException npe) {
-					LOG.error( "missing longitude coordinate");
-				} catch(NumberFormatException nfe) {
-					LOG.error( "invalid lat/lon coordinate",nfe);
-				}
-			}
-			
-			SiteData data = new SiteData();
-			data.setSite(site);
-			
-			if(currentRecentReading != null
-					&& currentRecentReading.trim().length() > 0
-					&& currentRecentReadingVariable != null
-					&& currentRecentReadingTime != null) {
-				Variable var = getVariable(currentAgency, currentRecentReadingVariable);
-				if(var != null) {
-					Series recentReadings = new Series();
-					recentReadings.setVariable(var);
-					Reading recentReading = new Reading();
+		}
+		
+		return true;
+	}
 	
-					try {
-						recentReading.setValue(new Double(currentRecentReading));
-						recentReading.setDate(RECENT_READING_TIME_FMT.parse(currentRecentReadingTime));
-						
-						//decided not to support this for the time being while I figure out a
-						// way to update the readings more efficiently
-						//recentReadings.setReadings(Collections.singletonList(recentReading));
-						recentReadings.setReadings(new ArrayList<Reading>(0));
-						
-						data.getDatasets().put(var.getCommonVariable(), recentReadings);
-					} catch(NumberFormatException nfe) {
-						LOG.error("invalid reading value: " + currentRecentReading);
-					} catch(ParseException pe) {
-						LOG.error("invalid reading time: " + currentRecentReadingTime);
+	private static class SiteCollector implements SiteListVisitor {
+		final Map<SiteId,SiteData> sites = new HashMap<SiteId,SiteData>();
+		
+		@Override
+		public boolean visit(SiteRecord site) {
+			SiteData data = site.toSiteData();
+			sites.put(data.getSite().getSiteId(), data);
+			return true;
+		}
+	}
+	
+	/**
+	 * @return the locations of the sites in every site list loaded or visited so far, as of their
+	 * latest snapshots.  The index is built when it is first asked for after a snapshot changes, and
+	 * reads the details of the sites it returns from the snapshots.  Empty unless
+	 * {@link SiteListSnapshot#install(File)} has been called.
+	 */
+	public static SiteGridIndex getSiteIndex() {
+		synchronized(siteListUrls) {
+			int generation = SiteListSnapshot.getGeneration();
+			if(siteIndex == null || generation != siteIndexGeneration || siteListUrls.size() != siteIndexUrlCount) {
+				long startTime = System.currentTimeMillis();
+				
+				List<SiteListSnapshot> snapshots = new ArrayList<SiteListSnapshot>(siteListUrls.size());
+				for(String url: siteListUrls) {
+					SiteListSnapshot snapshot = SiteListSnapshot.getLatest(url);
+					if(snapshot != null) {
+						snapshots.add(snapshot);
 					}
-				} else {
-					LOG.warn( currentAgency + " does not recognize variable: " + currentRecentReadingVariable + " for site: " + currentId);
 				}
+				siteIndex = SiteListSnapshot.index(snapshots);
+				siteIndexGeneration = generation;
+				siteIndexUrlCount = siteListUrls.size();
+				
+				if(LOG.isInfoEnabled()) LOG.info("indexed " + siteIndex.size() + " sites in " + (System.currentTimeMillis() - startTime) + "ms");
 			}
-			
-			sites.put(id, data);
+			return siteIndex;
 		}
-		
-		return sites;
 	}
 	
 	public static Variable getVariable(String agency, String varId) {
-		RESTDataSource ds = dataSources.get(agency);
-		if(ds == null) {
+		if(!VariableRegistry.isRegistered(agency)) {
 			LOG.warn("unknown agency: " + agency);
 			return null;
 		}
 		
-		return ds.getVariable(varId);
+		return VariableRegistry.getVariable(agency, varId);
 	}
 	
 	public static final RESTDataSource getDataSource(String agency) {
@@ -456,27 +551,22 @@ public class DataSourceController {
 	}
 	
 	public static final Variable[] getVariablesFromStrings(String agency, String[] varIds) {
-		Variable[] variables = new Variable[varIds.length];
+		if(!VariableRegistry.isRegistered(agency)) {
+			LOG.warn("unknown agency: " + agency);
+			return new Variable[]{};
+		}
 		
-		int fillSize = varIds.length;
+		//unrecognized variables are left out
+		int[] ids = VariableRegistry.getIds(agency, varIds);
 		
-		for(int a = 0; a < fillSize;  a++) {
-			variables[a] = getVariable(agency, varIds[a]);
-			if(variables[a] == null) {
-				if(LOG.isDebugEnabled()) {
-					LOG.debug(agency + " has no such variable: " + varIds[a]);
-				}
-				a--;
-				fillSize--;
-			}
-		}
-		if(fillSize < varIds.length) {
-			//some variables were unrecognized- return a shorter array
-			Variable[] shortened = new Variable[fillSize];
-			System.arraycopy(variables, 0, shortened, 0, shortened.length);
-			return shortened;
+		if(ids.length < varIds.length && LOG.isDebugEnabled()) {
+			LOG.debug(agency + " does not recognize all of: " + Arrays.toString(varIds));
 		}
 		
+		Variable[] variables = new Variable[ids.length];
+		for(int a = 0; a < ids.length; a++) {
+			variables[a] = VariableRegistry.getVariable(ids[a]);
+		}
 		return variables;
 	}
 
@@ -512,14 +602,14 @@ public class DataSourceController {
 			if(result == null) {
 				continue;
 			}
-			if(result.getReadings().size() == 0) {
+			if(result.size() == 0) {
 				continue;
 			}
-			Double firstValue = result.getReadings().get(0).getValue();
-			if(firstValue == null) {
+			double firstValue = result.getValue(0);
+			if(Double.isNaN(firstValue)) {
 				continue;
 			}
-			if(firstValue.equals(result.getVariable().getMagicNullValue())) {
+			if(result.getVariable().getMagicNullValue() != null && firstValue == result.getVariable().getMagicNullValue()) {
 				continue;
 			}
 			return result;
@@ -564,6 +654,20 @@ public class DataSourceController {
 		}
 	}
 
+	/**
+	 * Pass each site in a given state to a visitor as the state's site list is downloaded.
+	 */
+	public void visitSites(USState state, boolean hardRefresh, SiteListVisitor visitor) throws ClientProtocolException, IOException {
+		
+		String urlStr = RIVERFLOWS_WS_BASEURL + SITES_WS_PATH + "?version=" + RIVERFLOWS_WS_API_VERSION + "&state=" + state.getAbbrev();
+
+		try {
+			visitSites(urlStr, hardRefresh, visitor);
+		} catch(URISyntaxException use) {
+			throw new RuntimeException("invalid URL: " + urlStr, use);
+		}
+	}
+
 
     /**
      * @param hardRefresh
@@ -577,6 +681,26 @@ public class DataSourceController {
     public List<FavoriteData> getFavoriteData(List<Favorite> favorites, boolean hardRefresh) throws ClientProtocolException, IOException {
         return DataSourceController.getSiteData(favorites, hardRefresh);
     }
+
+    /**
+     * @param listener notified of each agency's data as soon as it has been retrieved
+     * @see #getFavoriteData(List, boolean)
+     */
+    public List<FavoriteData> getFavoriteData(List<Favorite> favorites, boolean hardRefresh, AgencyDataListener listener) throws ClientProtocolException, IOException {
+        return getFavoriteDataByAgency(favorites, hardRefresh, listener);
+    }
+
+	/**
+	 * Receives favorite data from {@link DataSourceController#getFavoriteData(List, boolean, AgencyDataListener)}
+	 * one agency at a time, on the thread that requested the data.
+	 */
+	public interface AgencyDataListener {
+		/**
+		 * @param agencyData data for all of the requested favorites from this agency, in the
+		 * order they were requested, including placeholders for any that failed
+		 */
+		void onAgencyData(String agency, List<FavoriteData> agencyData);
+	}
 	
 	/**
 	 * TODO move the implementation into #getFavoriteData()
@@ -590,11 +714,21 @@ public class DataSourceController {
      * @deprecated use getFavoriteData instead
 	 */
 	public static List<FavoriteData> getSiteData(List<Favorite> favorites, boolean hardRefresh) throws ClientProtocolException, IOException {
+		return getFavoriteDataByAgency(favorites, hardRefresh, null);
+	}
+
+	/**
+	 * Agencies are queried concurrently, so this takes about as long as the slowest agency.  Agencies
+	 * that haven't responded within {@link #setSiteDataTimeout(long) the timeout} get placeholder data.
+	 * @param listener notified of each agency's data as soon as it has been retrieved. May be null.
+	 * @throws java.io.InterruptedIOException if the calling thread was interrupted while waiting
+	 */
+	private static List<FavoriteData> getFavoriteDataByAgency(List<Favorite> favorites, boolean hardRefresh, AgencyDataListener listener) throws ClientProtocolException, IOException {
 		
 		//get single readings from a number of different agencies
 		
 		// agency name -> list of favorites
-		Map<String, List<Favorite>> agencySitesMap = new HashMap<String, List<Favorite>>();
+		final Map<String, List<Favorite>> agencySitesMap = new HashMap<String, List<Favorite>>();
 		
 		//break up list of favorites by agency
 		for(Favorite favorite: favorites) {
@@ -611,40 +745,150 @@ public class DataSourceController {
 
         // favorite -> FavoriteData
         HashMap<Favorite, FavoriteData> returnedData = new HashMap<Favorite, FavoriteData>(favorites.size());
-		
-		for(String agency: agencies) {
-			DataSource ds = dataSources.get(agency);
-			
-			if(ds == null) {
-				LOG.error( "no datasource for agency: " + agency);
-				continue;
+
+		if(agencies.size() == 1) {
+			//nothing to run in parallel
+			String agency = agencies.iterator().next();
+			returnedData.putAll(getAgencySiteData(agency, agencySitesMap.get(agency), hardRefresh));
+
+			if(listener != null) {
+				listener.onAgencyData(agency, orderedFavoriteData(agencySitesMap.get(agency), returnedData));
 			}
-			
-			try {
-				List<FavoriteData> agencyData = ds.getSiteData(agencySitesMap.get(agency), hardRefresh);
+		} else if(agencies.size() > 1) {
+			getSiteDataConcurrently(agencySitesMap, hardRefresh, returnedData, listener);
+		}
 
-				//copy results into consolidated map
-				for (FavoriteData returnedFav : agencyData) {
-					returnedData.put(returnedFav.getFavorite(), returnedFav);
+        return orderedFavoriteData(favorites, returnedData);
+	}
+
+	private static class AgencyResult {
+		final String agency;
+		final Map<Favorite, FavoriteData> data;
+
+		AgencyResult(String agency, Map<Favorite, FavoriteData> data) {
+			this.agency = agency;
+			this.data = data;
+		}
+	}
+
+	private static void getSiteDataConcurrently(final Map<String, List<Favorite>> agencySitesMap, final boolean hardRefresh,
+			Map<Favorite, FavoriteData> returnedData, AgencyDataListener listener) throws InterruptedIOException {
+
+		final LinkedBlockingQueue<AgencyResult> completed = new LinkedBlockingQueue<AgencyResult>();
+
+		Map<String, Future<Void>> pending = new HashMap<String, Future<Void>>();
+
+		for(final String agency: agencySitesMap.keySet()) {
+			pending.put(agency, agencyExecutor.submit(agency, new Callable<Void>() {
+				@Override
+				public Void call() {
+					Map<Favorite, FavoriteData> agencyData = null;
+					try {
+						agencyData = getAgencySiteData(agency, agencySitesMap.get(agency), hardRefresh);
+					} finally {
+						//always report back, so the caller doesn't wait for the timeout
+						completed.add(new AgencyResult(agency, agencyData));
+					}
+					return null;
+				}
+			}));
+		}
+
+		long timeout = siteDataTimeout;
+		long deadline = System.currentTimeMillis() + timeout;
+
+		try {
+			while(!pending.isEmpty()) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) {
+					break;
 				}
-			} catch(UnknownHostException uhe) {
-				LOG.error("dns lookup failed for " + agency, uhe);
-			} catch(SocketException se) {
-				LOG.error("could not access agency: " + agency, se);
-			} catch(DataParseException dpe) {
-				LOG.error("failed to parse data from agency: " + agency + " for site " + dpe.getSiteId(), dpe);
-				addDatasourceDownFavoriteData(returnedData, ds, agencySitesMap.get(agency), "Parse Error", dpe);
-			} catch(Exception e) {
-				List<Favorite> agencyFavs = agencySitesMap.get(agency);
 
-				String msg = agencyFavs == null ? "null favorites" : "" + agencyFavs.size();
+				AgencyResult result = completed.poll(wait, TimeUnit.MILLISECONDS);
+				if(result == null) {
+					break;
+				}
+				pending.remove(result.agency);
 
-				LOG.error(agency + " datasource exception for favorites " + msg, e);
+				if(result.data != null) {
+					returnedData.putAll(result.data);
+				}
 
-				addDatasourceDownFavoriteData(returnedData,ds, agencyFavs, "Error", e);
+				if(listener != null) {
+					listener.onAgencyData(result.agency, orderedFavoriteData(agencySitesMap.get(result.agency), returnedData));
+				}
+			}
+		} catch(InterruptedException ie) {
+			for(Future<Void> future: pending.values()) {
+				future.cancel(true);
 			}
+			InterruptedIOException iioe = new InterruptedIOException("interrupted while waiting for " + pending.keySet());
+			iioe.initCause(ie);
+			throw iioe;
 		}
 
+		for(Map.Entry<String, Future<Void>> timedOut: pending.entrySet()) {
+			String agency = timedOut.getKey();
+			timedOut.getValue().cancel(true);
+
+			LOG.error("no response from agency: " + agency + " within " + timeout + "ms");
+
+			DataSource ds = dataSources.get(agency);
+			if(ds != null) {
+				addDatasourceDownFavoriteData(returnedData, ds, agencySitesMap.get(agency), "Datasource Down",
+						new SocketTimeoutException("no response from " + agency + " within " + timeout + "ms"));
+			}
+
+			if(listener != null) {
+				listener.onAgencyData(agency, orderedFavoriteData(agencySitesMap.get(agency), returnedData));
+			}
+		}
+	}
+
+	/**
+	 * @return data for the favorites that the agency returned, or placeholder data if the agency's response
+	 * couldn't be used.  May be missing some or all of the favorites.
+	 */
+	private static Map<Favorite, FavoriteData> getAgencySiteData(String agency, List<Favorite> agencyFavs, boolean hardRefresh) {
+		HashMap<Favorite, FavoriteData> returnedData = new HashMap<Favorite, FavoriteData>(agencyFavs.size());
+
+		DataSource ds = dataSources.get(agency);
+		
+		if(ds == null) {
+			LOG.error( "no datasource for agency: " + agency);
+			return returnedData;
+		}
+		
+		try {
+			List<FavoriteData> agencyData = ds.getSiteData(agencyFavs, hardRefresh);
+
+			//copy results into consolidated map
+			for (FavoriteData returnedFav : agencyData) {
+				returnedData.put(returnedFav.getFavorite(), returnedFav);
+			}
+		} catch(UnknownHostException uhe) {
+			LOG.error("dns lookup failed for " + agency, uhe);
+		} catch(SocketException se) {
+			LOG.error("could not access agency: " + agency, se);
+		} catch(DataParseException dpe) {
+			LOG.error("failed to parse data from agency: " + agency + " for site " + dpe.getSiteId(), dpe);
+			addDatasourceDownFavoriteData(returnedData, ds, agencyFavs, "Parse Error", dpe);
+		} catch(Exception e) {
+			String msg = agencyFavs == null ? "null favorites" : "" + agencyFavs.size();
+
+			LOG.error(agency + " datasource exception for favorites " + msg, e);
+
+			addDatasourceDownFavoriteData(returnedData,ds, agencyFavs, "Error", e);
+		}
+
+		return returnedData;
+	}
+
+	/**
+	 * @return returned data for each of the requested favorites, in order, with placeholder data
+	 * for those that failed to return
+	 */
+	private static List<FavoriteData> orderedFavoriteData(List<Favorite> favorites, Map<Favorite, FavoriteData> returnedData) {
         ArrayList<FavoriteData> result = new ArrayList<FavoriteData>(favorites.size());
 
         for(int a = 0; a < favorites.size(); a++) {
@@ -662,6 +906,14 @@ public class DataSourceController {
 
 		return result;
 	}
+
+	/**
+	 * @param millis how long {@link #getFavoriteData(List, boolean, AgencyDataListener)} waits for agencies
+	 * to respond when more than one agency is queried
+	 */
+	public static void setSiteDataTimeout(long millis) {
+		siteDataTimeout = millis;
+	}
 	
 	private static String m(byte[] e) {
 		byte[] k = new byte[]{24,37,27,-125,-54,-4,107,56,48,-63,76,45,72,70,92,74,-49,-66,-74,110,-118,-128,99,-41,-30,11,16,-58,-74,74,1,98,109,24,69,-36,73,5,43,-45,3,90,-12,-6,-109,90,-55,-8,78,-54,-17,-113,54,-77,56,-1,-115,102,-68,-84,-85,-63,-55,-2,17,-81,23,-120,-67,-12,64,108,-65,42,110,-4,11,6,85,-91,-111,-33,100,8,-118,113,54,105,21,-35,78,76,2,-12,3,93};
@@ -702,6 +954,19 @@ public class DataSourceController {
         return dataSourceDownData(site, variable, "Datasource Down");
     }
 
+	/**
+	 * @return the qualifier of the placeholder data for a site that failed to load
+	 */
+	static String failureQualifier(Exception e) {
+		if(e instanceof DataParseException) {
+			return "Parse Error";
+		}
+		if(e instanceof IOException) {
+			return "Datasource Down";
+		}
+		return "Error";
+	}
+
 	/**
 	 * generate a response that should be returned when the datasource failed to retreive data
 	 * for a site and variable
@@ -717,11 +982,8 @@ public class DataSourceController {
         Series nullSeries = new Series();
         nullSeries.setVariable(variable);
 
-        Reading placeHolderReading = new Reading();
-        placeHolderReading.setDate(new Date());
-        placeHolderReading.setQualifiers(qualifier);
-
-        nullSeries.setReadings(Collections.singletonList(placeHolderReading));
+        nullSeries.initReadings(1);
+        nullSeries.addObservation(System.currentTimeMillis(), Double.NaN, qualifier);
         nullSeries.setSourceUrl("");
 
         current.getDatasets().put(variable.getCommonVariable(), nullSeries);
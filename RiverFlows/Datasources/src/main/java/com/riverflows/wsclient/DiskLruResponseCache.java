@@ -0,0 +1,304 @@
+package com.riverflows.wsclient;
+
+import com.jakewharton.DiskLruCache;
+import com.riverflows.data.CacheEditor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Size-bounded cache of web service responses, evicting the least recently used entries.
+ * <p>
+ * Each entry holds the response body along with the URL it was fetched from, when it was
+ * fetched and last revalidated, its length and checksum and its ETag and Last-Modified
+ * validators. The index of entries is kept in memory, and entries are written atomically: a
+ * response only becomes visible once it has been read completely and committed.  Bodies that
+ * don't match their recorded length or checksum are removed instead of being returned.
+ */
+public class DiskLruResponseCache implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(DiskLruResponseCache.class);
+
+	/**
+	 * increment to discard all existing entries when the entry format changes
+	 */
+	private static final int CACHE_VERSION = 3;
+
+	private static final int INDEX_METADATA = 0;
+	private static final int INDEX_BODY = 1;
+
+	private final DiskLruCache cache;
+
+	private DiskLruResponseCache(DiskLruCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param directory a directory used exclusively by this cache
+	 * @param maxSize maximum number of bytes used by the cache
+	 */
+	public static DiskLruResponseCache open(File directory, long maxSize) throws IOException {
+		return new DiskLruResponseCache(DiskLruCache.open(directory, CACHE_VERSION, 2, maxSize));
+	}
+
+	/**
+	 * Description of a cached response.
+	 */
+	public static class Metadata {
+		public final String url;
+		public final long fetchTime;
+		public final String etag;
+		public final String lastModified;
+		public final long contentLength;
+		public final long crc32;
+		/**
+		 * when the server last confirmed this response was current; the same as fetchTime until then
+		 */
+		public final long validatedTime;
+
+		public Metadata(String url, long fetchTime, String etag, String lastModified, long contentLength, long crc32,
+				long validatedTime) {
+			this.url = url;
+			this.fetchTime = fetchTime;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.contentLength = contentLength;
+			this.crc32 = crc32;
+			this.validatedTime = validatedTime;
+		}
+
+		String encode() {
+			return url + "\n" + fetchTime + "\n" + nullToEmpty(etag) + "\n"
+					+ nullToEmpty(lastModified) + "\n" + contentLength + "\n" + crc32 + "\n" + validatedTime;
+		}
+
+		static Metadata decode(String encoded) {
+			String[] lines = encoded.split("\n", -1);
+			if(lines.length != 7) {
+				return null;
+			}
+			try {
+				return new Metadata(lines[0], Long.parseLong(lines[1]), emptyToNull(lines[2]),
+						emptyToNull(lines[3]), Long.parseLong(lines[4]), Long.parseLong(lines[5]),
+						Long.parseLong(lines[6]));
+			} catch(NumberFormatException nfe) {
+				return null;
+			}
+		}
+
+		private static String nullToEmpty(String s) {
+			return s == null ? "" : s;
+		}
+
+		private static String emptyToNull(String s) {
+			return s.length() == 0 ? null : s;
+		}
+	}
+
+	/**
+	 * A cached response. The body must be closed.
+	 */
+	public static class CachedResponse {
+		public final Metadata metadata;
+		public final InputStream body;
+
+		CachedResponse(Metadata metadata, InputStream body) {
+			this.metadata = metadata;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * @return the cached response for this URL, or null if there isn't one
+	 */
+	public CachedResponse get(String url) throws IOException {
+		DiskLruCache.Snapshot snapshot = cache.get(key(url));
+		if(snapshot == null) {
+			return null;
+		}
+
+		Metadata metadata = Metadata.decode(snapshot.getString(INDEX_METADATA));
+
+		if(metadata == null || !metadata.url.equals(url)) {
+			//corrupt entry or hash collision
+			snapshot.close();
+			return null;
+		}
+
+		//measure the file this snapshot opened, which stays the same even if a newer entry is committed
+		InputStream body = snapshot.getInputStream(INDEX_BODY);
+		if(body instanceof FileInputStream && ((FileInputStream)body).getChannel().size() != metadata.contentLength) {
+			LOG.warn("removing truncated cache entry for " + url);
+			snapshot.close();
+			remove(url);
+			return null;
+		}
+
+		return new CachedResponse(metadata, new VerifyingInputStream(body, url, metadata.contentLength, metadata.crc32));
+	}
+
+	/**
+	 * Checks the body against its recorded length and checksum once it has been read to the end.
+	 */
+	private class VerifyingInputStream extends CheckedInputStream {
+		private final String url;
+		private final long expectedLength;
+		private final long expectedCrc32;
+		private long length = 0;
+
+		VerifyingInputStream(InputStream in, String url, long expectedLength, long expectedCrc32) {
+			super(in, new CRC32());
+			this.url = url;
+			this.expectedLength = expectedLength;
+			this.expectedCrc32 = expectedCrc32;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int ch = super.read();
+			if(ch == -1) {
+				verify();
+			} else {
+				length++;
+			}
+			return ch;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int count = super.read(buf, off, len);
+			if(count == -1) {
+				verify();
+			} else {
+				length += count;
+			}
+			return count;
+		}
+
+		private void verify() throws IOException {
+			if(length != expectedLength || getChecksum().getValue() != expectedCrc32) {
+				remove(url);
+				throw new IOException("corrupt cache entry for " + url);
+			}
+		}
+	}
+
+	/**
+	 * Start writing a new response for this URL, replacing any cached response once committed.
+	 * @return null if this response is already being written
+	 */
+	public CacheEditor edit(final String url, final String etag, final String lastModified) throws IOException {
+		final DiskLruCache.Editor editor = cache.edit(key(url));
+		if(editor == null) {
+			return null;
+		}
+		final long fetchTime = System.currentTimeMillis();
+
+		return new CacheEditor() {
+			@Override
+			public OutputStream newOutputStream() throws IOException {
+				return editor.newOutputStream(INDEX_BODY);
+			}
+
+			@Override
+			public long getFetchTime() {
+				return fetchTime;
+			}
+
+			@Override
+			public void commit(long contentLength, long crc32) throws IOException {
+				editor.set(INDEX_METADATA, new Metadata(url, fetchTime, etag, lastModified, contentLength, crc32, fetchTime).encode());
+				editor.commit();
+				cache.flush();
+			}
+
+			@Override
+			public void abort() {
+				editor.abortUnlessCommitted();
+			}
+		};
+	}
+
+	/**
+	 * Record that the server has confirmed that the cached response for this URL is still current,
+	 * typically with a 304 Not Modified response.  The body and its fetch time are unchanged.
+	 */
+	public void markValidated(String url) throws IOException {
+		Metadata metadata;
+
+		DiskLruCache.Snapshot snapshot = cache.get(key(url));
+		if(snapshot == null) {
+			return;
+		}
+		try {
+			metadata = Metadata.decode(snapshot.getString(INDEX_METADATA));
+		} finally {
+			snapshot.close();
+		}
+
+		if(metadata == null || !metadata.url.equals(url)) {
+			return;
+		}
+
+		DiskLruCache.Editor editor = cache.edit(key(url));
+		if(editor == null) {
+			//a new copy is being written
+			return;
+		}
+		try {
+			//the body is left as it is
+			editor.set(INDEX_METADATA, new Metadata(url, metadata.fetchTime, metadata.etag, metadata.lastModified,
+					metadata.contentLength, metadata.crc32, System.currentTimeMillis()).encode());
+			editor.commit();
+			cache.flush();
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	public void remove(String url) throws IOException {
+		cache.remove(key(url));
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		cache.close();
+	}
+
+	/**
+	 * DiskLruCache keys are limited to 64 characters of [a-z0-9_-]
+	 */
+	static String key(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for(byte b: hash) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16));
+				key.append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		} catch(NoSuchAlgorithmException nsae) {
+			throw new RuntimeException(nsae);
+		} catch(UnsupportedEncodingException uee) {
+			throw new RuntimeException(uee);
+		}
+	}
+}
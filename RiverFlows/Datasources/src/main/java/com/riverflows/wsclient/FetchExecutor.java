@@ -0,0 +1,214 @@
+package com.riverflows.wsclient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads for running web service requests, which also limits how many
+ * tasks with the same key (typically an agency or a host) may run at once.  Tasks over
+ * the limit wait in a per-key queue without tying up a thread.
+ * <p>
+ * Tasks running in one FetchExecutor must not block on tasks submitted to the same
+ * FetchExecutor, or the pool can deadlock once every thread is waiting.
+ */
+public class FetchExecutor {
+
+	private static final Log LOG = LogFactory.getLog(FetchExecutor.class);
+
+	private final String name;
+
+	private final ThreadPoolExecutor executor;
+
+	private final int permitsPerKey;
+
+	private final Map<String, KeyQueue> keyQueues = new HashMap<String, KeyQueue>();
+
+	private static class KeyQueue {
+		int running = 0;
+		final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+	}
+
+	/**
+	 * Receives the outcome of each task passed to {@link FetchExecutor#awaitAll(Map, String, Callback)}.
+	 * @param <K> identifies a task in log messages
+	 */
+	public static abstract class Callback<K, T> {
+
+		/**
+		 * Wait for a single task.  Override to give up on a task after a while.
+		 */
+		protected T await(K key, Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+			return future.get();
+		}
+
+		public abstract void onResult(K key, T result);
+
+		/**
+		 * @param failure has already been logged
+		 */
+		public void onFailure(K key, Exception failure) {
+		}
+	}
+
+	/**
+	 * @param name prefix for the names of this executor's threads
+	 * @param threads maximum number of tasks running at once
+	 * @param permitsPerKey maximum number of tasks with the same key running at once
+	 */
+	public FetchExecutor(String name, int threads, int permitsPerKey) {
+		this.name = name;
+		this.permitsPerKey = permitsPerKey;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, FetchExecutor.this.name + "-" + threadCount.incrementAndGet());
+				//don't keep the JVM alive for an idle pool
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param key tasks with the same key are subject to the per-key limit
+	 */
+	public <T> Future<T> submit(final String key, Callable<T> task) {
+		final FutureTask<T> future = new FutureTask<T>(task);
+
+		Runnable permitted = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					//does nothing if the future was cancelled while waiting
+					future.run();
+				} finally {
+					release(key);
+				}
+			}
+		};
+
+		synchronized(keyQueues) {
+			KeyQueue queue = keyQueues.get(key);
+			if(queue == null) {
+				queue = new KeyQueue();
+				keyQueues.put(key, queue);
+			}
+
+			if(queue.running < permitsPerKey) {
+				queue.running++;
+				executor.execute(permitted);
+			} else {
+				queue.waiting.add(permitted);
+			}
+		}
+
+		return future;
+	}
+
+	private void release(String key) {
+		synchronized(keyQueues) {
+			KeyQueue queue = keyQueues.get(key);
+
+			Runnable next = queue.waiting.poll();
+			if(next != null) {
+				//hand this task's permit to the next one in line
+				executor.execute(next);
+				return;
+			}
+
+			queue.running--;
+			if(queue.running == 0) {
+				keyQueues.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Wait for each task in turn, passing its result or failure to a callback.  A task that
+	 * times out is cancelled and fails with a SocketTimeoutException.
+	 * @param futures the tasks, in the order they should be passed to the callback
+	 * @param what describes the tasks as a whole, for the message of an InterruptedIOException
+	 * @throws IOException the last IOException, if every task failed with one, since that is
+	 * probably a connectivity problem rather than a problem with what was requested
+	 * @throws InterruptedIOException after cancelling every task, if interrupted while waiting
+	 */
+	public static <K, T> void awaitAll(Map<K, ? extends Future<T>> futures, String what, Callback<K, T> callback)
+			throws IOException {
+		IOException lastIoe = null;
+		int ioeCount = 0;
+
+		try {
+			for(Map.Entry<K, ? extends Future<T>> entry: futures.entrySet()) {
+				K key = entry.getKey();
+				Future<T> future = entry.getValue();
+
+				Exception failure;
+				try {
+					callback.onResult(key, callback.await(key, future));
+					continue;
+				} catch(TimeoutException te) {
+					future.cancel(true);
+					LOG.warn("no response for " + key + (te.getMessage() == null ? "" : ": " + te.getMessage()));
+					failure = new SocketTimeoutException("no response for " + key);
+					failure.initCause(te);
+				} catch(ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if(cause instanceof Error) {
+						throw (Error)cause;
+					}
+					failure = (Exception)cause;
+					if(failure instanceof DataParseException) {
+						LOG.warn("could not parse " + key, failure);
+					} else if(failure instanceof IOException) {
+						LOG.warn("failed to load " + key, failure);
+					} else {
+						LOG.error("failed to load " + key, failure);
+					}
+				}
+
+				if(failure instanceof IOException) {
+					lastIoe = (IOException)failure;
+					ioeCount++;
+				}
+				callback.onFailure(key, failure);
+			}
+		} catch(InterruptedException ie) {
+			for(Future<T> future: futures.values()) {
+				future.cancel(true);
+			}
+			InterruptedIOException iioe = new InterruptedIOException("interrupted while loading " + what);
+			iioe.initCause(ie);
+			throw iioe;
+		}
+
+		if(ioeCount > 0 && ioeCount == futures.size()) {
+			throw lastIoe;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,128 @@
+package com.riverflows.wsclient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses between interchangeable formats for the same request, like USGS's RDB and WaterML, by
+ * how quickly each has delivered data for requests of the same shape.
+ * <p>
+ * Each format is tried a few times per shape before the fastest one is preferred.  After that the
+ * other formats are still tried every so often, so a format that has become faster is noticed.
+ * <p>
+ * Thread-safe.
+ */
+class FormatSelector {
+
+	/** how much each new measurement moves a format's average */
+	private static final double WEIGHT = 0.25d;
+
+	private final int formatCount;
+
+	private final int minSamples;
+
+	private final int exploreInterval;
+
+	private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+
+	private class Shape {
+		/** moving average of milliseconds per item for each format */
+		final double[] millisPerItem = new double[formatCount];
+		final int[] samples = new int[formatCount];
+		int requests = 0;
+	}
+
+	/**
+	 * @param formatCount formats are numbered from 0, which is used until there are measurements
+	 * @param minSamples how many times to try each format before choosing between them
+	 * @param exploreInterval try a format other than the fastest once every this many requests
+	 */
+	FormatSelector(int formatCount, int minSamples, int exploreInterval) {
+		this.formatCount = formatCount;
+		this.minSamples = minSamples;
+		this.exploreInterval = exploreInterval;
+	}
+
+	/**
+	 * @param shape describes the request, for instance how many items it asks for
+	 * @return the format to use
+	 */
+	synchronized int choose(String shape) {
+		Shape s = getShape(shape);
+		s.requests++;
+
+		for(int format = 0; format < formatCount; format++) {
+			if(s.samples[format] < minSamples) {
+				return format;
+			}
+		}
+
+		int fastest = getFastest(s);
+
+		if(formatCount > 1 && s.requests % exploreInterval == 0) {
+			//cycle through the others
+			int other = (s.requests / exploreInterval) % (formatCount - 1);
+			return (other >= fastest) ? other + 1 : other;
+		}
+		return fastest;
+	}
+
+	/**
+	 * @param items how many items the request was for
+	 * @param elapsedMillis how long the request took, including parsing
+	 */
+	synchronized void record(String shape, int format, int items, long elapsedMillis) {
+		Shape s = getShape(shape);
+		double millisPerItem = (double)elapsedMillis / Math.max(1, items);
+
+		if(s.samples[format] == 0) {
+			s.millisPerItem[format] = millisPerItem;
+		} else {
+			s.millisPerItem[format] += WEIGHT * (millisPerItem - s.millisPerItem[format]);
+		}
+		s.samples[format]++;
+	}
+
+	/**
+	 * @return how many requests of a shape have been measured in a format
+	 */
+	synchronized int getSamples(String shape, int format) {
+		Shape s = shapes.get(shape);
+		return (s == null) ? 0 : s.samples[format];
+	}
+
+	/**
+	 * @return the fastest format for a shape, or 0 if they haven't all been measured
+	 */
+	synchronized int getFastest(String shape) {
+		Shape s = shapes.get(shape);
+		if(s == null) {
+			return 0;
+		}
+		for(int format = 0; format < formatCount; format++) {
+			if(s.samples[format] == 0) {
+				return 0;
+			}
+		}
+		return getFastest(s);
+	}
+
+	private int getFastest(Shape s) {
+		int fastest = 0;
+		for(int format = 1; format < formatCount; format++) {
+			if(s.millisPerItem[format] < s.millisPerItem[fastest]) {
+				fastest = format;
+			}
+		}
+		return fastest;
+	}
+
+	private Shape getShape(String shape) {
+		Shape s = shapes.get(shape);
+		if(s == null) {
+			s = new Shape();
+			shapes.put(shape, s);
+		}
+		return s;
+	}
+}
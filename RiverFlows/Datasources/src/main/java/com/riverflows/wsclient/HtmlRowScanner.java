@@ -0,0 +1,299 @@
+package com.riverflows.wsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader for HTML tables that put each row on its own line, as CDEC's do.
+ * <p>
+ * Lines are read into a reusable byte buffer, and the cells of a row are found by scanning
+ * for <code>&lt;td</code> and <code>&lt;/td&gt;</code> without regular expressions or a DOM.
+ * The text of a cell is the first run of non-blank text in it that isn't inside a tag, so
+ * <code>&lt;td&gt;&lt;a href=x&gt; e&lt;/a&gt;&lt;/td&gt;</code> has the text "e".  Entities
+ * are not decoded.  Bytes are interpreted as ISO-8859-1.
+ * <p>
+ * Not thread-safe.
+ */
+class HtmlRowScanner {
+
+	private final InputStream in;
+
+	private byte[] buf;
+
+	/** start of the unconsumed data in buf */
+	private int bufStart = 0;
+
+	/** end of the valid data in buf */
+	private int bufEnd = 0;
+
+	private boolean eof = false;
+
+	/** the current line, without leading or trailing whitespace */
+	private int lineStart = 0;
+	private int lineEnd = 0;
+
+	/** where to look for the next cell */
+	private int cellSearchStart = 0;
+
+	private int textStart = 0;
+	private int textEnd = 0;
+
+	private final TextChars textChars = new TextChars();
+
+	public HtmlRowScanner(InputStream in) {
+		this(in, 8192);
+	}
+
+	public HtmlRowScanner(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Advance to the next line.
+	 * @return false if the end of the stream has been reached
+	 */
+	public boolean readLine() throws IOException {
+		int scanFrom = bufStart;
+
+		while(true) {
+			for(int a = scanFrom; a < bufEnd; a++) {
+				if(buf[a] == '\n') {
+					setLine(bufStart, a);
+					bufStart = a + 1;
+					return true;
+				}
+			}
+
+			if(eof) {
+				if(bufStart == bufEnd) {
+					setLine(bufStart, bufStart);
+					return false;
+				}
+				//last line has no terminator
+				setLine(bufStart, bufEnd);
+				bufStart = bufEnd;
+				return true;
+			}
+
+			scanFrom = bufEnd - bufStart;
+			fill();
+			//positions shift when the buffer is compacted
+			scanFrom += bufStart;
+		}
+	}
+
+	/**
+	 * Make room at the end of the buffer and read more data into it, compacting or growing
+	 * the buffer as needed so that the current partial line is kept.
+	 */
+	private void fill() throws IOException {
+		if(bufStart > 0) {
+			System.arraycopy(buf, bufStart, buf, 0, bufEnd - bufStart);
+			bufEnd -= bufStart;
+			bufStart = 0;
+		}
+		if(bufEnd == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+			buf = newBuf;
+		}
+		int count = in.read(buf, bufEnd, buf.length - bufEnd);
+		if(count == -1) {
+			eof = true;
+		} else {
+			bufEnd += count;
+		}
+	}
+
+	private void setLine(int start, int end) {
+		while(start < end && isWhitespace(buf[start])) {
+			start++;
+		}
+		while(end > start && isWhitespace(buf[end - 1])) {
+			end--;
+		}
+		lineStart = start;
+		lineEnd = end;
+		cellSearchStart = start;
+		textStart = textEnd = start;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * @return the current line, trimmed. Allocates.
+	 */
+	public String getLine() {
+		return RdbReader.decode(buf, lineStart, lineEnd);
+	}
+
+	public boolean lineStartsWith(String prefix) {
+		return regionEquals(lineStart, lineEnd, prefix);
+	}
+
+	public boolean lineEndsWith(String suffix) {
+		return regionEquals(lineEnd - suffix.length(), lineEnd, suffix);
+	}
+
+	/**
+	 * Advance to the next cell of the current line.
+	 * @return false if there are no more cells
+	 */
+	public boolean nextCell() {
+		int tagStart = indexOf("<td", cellSearchStart, lineEnd);
+		if(tagStart == -1) {
+			cellSearchStart = lineEnd;
+			return false;
+		}
+		int contentStart = indexOf(">", tagStart, lineEnd);
+		if(contentStart == -1) {
+			cellSearchStart = lineEnd;
+			return false;
+		}
+		contentStart++;
+
+		int contentEnd = indexOf("</td", contentStart, lineEnd);
+		if(contentEnd == -1) {
+			//unclosed cell; take the rest of the line
+			contentEnd = lineEnd;
+			cellSearchStart = lineEnd;
+		} else {
+			cellSearchStart = contentEnd + 4;
+		}
+
+		findText(contentStart, contentEnd);
+		return true;
+	}
+
+	/**
+	 * Find the first run of non-blank text that isn't part of a tag.
+	 */
+	private void findText(int start, int end) {
+		int pos = start;
+		while(pos < end) {
+			if(buf[pos] == '<') {
+				int tagEnd = indexOf(">", pos, end);
+				if(tagEnd == -1) {
+					break;
+				}
+				pos = tagEnd + 1;
+				continue;
+			}
+			if(isWhitespace(buf[pos])) {
+				pos++;
+				continue;
+			}
+			int runEnd = pos;
+			while(runEnd < end && buf[runEnd] != '<') {
+				runEnd++;
+			}
+			while(isWhitespace(buf[runEnd - 1])) {
+				runEnd--;
+			}
+			textStart = pos;
+			textEnd = runEnd;
+			return;
+		}
+		textStart = textEnd = end;
+	}
+
+	private int indexOf(String str, int from, int to) {
+		int last = to - str.length();
+		char first = str.charAt(0);
+		for(int a = from; a <= last; a++) {
+			if(buf[a] == first && regionEquals(a, a + str.length(), str)) {
+				return a;
+			}
+		}
+		return -1;
+	}
+
+	private boolean regionEquals(int start, int end, String str) {
+		if(start < lineStart || str.length() > end - start) {
+			return false;
+		}
+		for(int a = 0; a < str.length(); a++) {
+			if((buf[start + a] & 0xff) != str.charAt(a)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getCellLength() {
+		return textEnd - textStart;
+	}
+
+	/**
+	 * @return the text of the current cell. Allocates.
+	 */
+	public String getCellText() {
+		return RdbReader.decode(buf, textStart, textEnd);
+	}
+
+	/**
+	 * @return a view of the text of the current cell that is only valid until the next call to
+	 * this method, {@link #nextCell()} or {@link #readLine()}. Doesn't allocate.
+	 */
+	public CharSequence getCellChars() {
+		textChars.start = textStart;
+		textChars.end = textEnd;
+		return textChars;
+	}
+
+	public char cellCharAt(int index) {
+		if(index < 0 || index >= textEnd - textStart) {
+			throw new StringIndexOutOfBoundsException(index);
+		}
+		return (char)(buf[textStart + index] & 0xff);
+	}
+
+	/**
+	 * Compare the text of the current cell to a String without allocating.
+	 */
+	public boolean cellEquals(String value) {
+		if(value == null || value.length() != textEnd - textStart) {
+			return false;
+		}
+		return regionEquals(textStart, textEnd, value);
+	}
+
+	/**
+	 * @return the text of the current cell as a number, or NaN if it is not a number
+	 * @see RdbReader#parseDouble(int)
+	 */
+	public double parseCellDouble() {
+		return RdbReader.parseDouble(buf, textStart, textEnd);
+	}
+
+	private class TextChars implements CharSequence {
+		int start;
+		int end;
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if(index < 0 || index >= end - start) {
+				throw new StringIndexOutOfBoundsException(index);
+			}
+			return (char)(buf[start + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int subStart, int subEnd) {
+			return toString().subSequence(subStart, subEnd);
+		}
+
+		@Override
+		public String toString() {
+			return RdbReader.decode(buf, start, end);
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package com.riverflows.wsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming HTML tokenizer for pages that don't put table rows on lines of their own, unlike
+ * {@link HtmlRowScanner}.
+ * <p>
+ * The stream is read into a reusable byte buffer and split into start tags, end tags and runs
+ * of text, without building a tree, so the caller has to keep track of nesting itself.  The
+ * buffer only grows if a single token doesn't fit in it.  Comments and doctypes are skipped,
+ * and the contents of <code>&lt;script&gt;</code> and <code>&lt;style&gt;</code> elements are
+ * returned as a single text token.  Entities are not decoded.  Bytes are interpreted as
+ * ISO-8859-1.
+ * <p>
+ * Not thread-safe.
+ */
+class HtmlTagScanner {
+
+	static final int EOF = 0;
+	static final int START_TAG = 1;
+	static final int END_TAG = 2;
+	static final int TEXT = 3;
+
+	private final InputStream in;
+
+	private byte[] buf;
+
+	/** end of the valid data in buf */
+	private int bufEnd = 0;
+
+	private boolean eof = false;
+
+	private int tokenType = EOF;
+
+	/** the raw bytes of the current token */
+	private int tokenStart = 0;
+	private int tokenEnd = 0;
+
+	/** the name of the current tag */
+	private int nameStart = 0;
+	private int nameEnd = 0;
+
+	/** the current text, without leading or trailing whitespace */
+	private int textStart = 0;
+	private int textEnd = 0;
+
+	private int valueStart = 0;
+	private int valueEnd = 0;
+
+	/** the name of the element whose contents are raw text, or null */
+	private String rawTextElement = null;
+
+	public HtmlTagScanner(InputStream in) {
+		this(in, 8192);
+	}
+
+	public HtmlTagScanner(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Advance to the next token.
+	 * @return {@link #START_TAG}, {@link #END_TAG}, {@link #TEXT} or {@link #EOF}
+	 */
+	public int next() throws IOException {
+		while(true) {
+			tokenStart = tokenEnd;
+
+			if(!ensureAvailable(1)) {
+				tokenType = EOF;
+				return tokenType;
+			}
+
+			if(rawTextElement != null) {
+				String element = rawTextElement;
+				rawTextElement = null;
+				int end = find("</" + element, tokenStart, true);
+				if(end > tokenStart) {
+					setText(end);
+					return tokenType;
+				}
+				continue;
+			}
+
+			if(buf[tokenStart] != '<') {
+				setText(find("<", tokenStart, false));
+				return tokenType;
+			}
+
+			if(!ensureAvailable(2)) {
+				setText(bufEnd);
+				return tokenType;
+			}
+
+			byte second = buf[tokenStart + 1];
+
+			if(second == '!') {
+				if(ensureAvailable(4) && buf[tokenStart + 2] == '-' && buf[tokenStart + 3] == '-') {
+					tokenEnd = find("-->", tokenStart + 4, true);
+					tokenEnd = Math.min(bufEnd, tokenEnd + 3);
+				} else {
+					tokenEnd = findTagEnd(tokenStart + 2);
+				}
+				continue;
+			}
+
+			boolean endTag = (second == '/');
+			//filling the buffer moves the token, so positions are kept relative to it
+			int nameOffset = endTag ? 2 : 1;
+
+			if(!ensureAvailable(nameOffset + 1) || !isLetter(buf[tokenStart + nameOffset])) {
+				//not a tag, so it's part of the text
+				setText(find("<", tokenStart + 1, false));
+				return tokenType;
+			}
+
+			tokenEnd = findTagEnd(tokenStart + nameOffset);
+			nameStart = tokenStart + nameOffset;
+			nameEnd = nameStart;
+			while(nameEnd < tokenEnd && isNameChar(buf[nameEnd])) {
+				nameEnd++;
+			}
+			textStart = textEnd = tokenEnd;
+
+			if(endTag) {
+				tokenType = END_TAG;
+			} else {
+				tokenType = START_TAG;
+				if(isTag("script")) {
+					rawTextElement = "script";
+				} else if(isTag("style")) {
+					rawTextElement = "style";
+				}
+			}
+			return tokenType;
+		}
+	}
+
+	private void setText(int end) {
+		tokenType = TEXT;
+		tokenEnd = end;
+		nameStart = nameEnd = tokenStart;
+
+		int start = tokenStart;
+		while(start < end && isWhitespace(buf[start])) {
+			start++;
+		}
+		while(end > start && isWhitespace(buf[end - 1])) {
+			end--;
+		}
+		textStart = start;
+		textEnd = end;
+	}
+
+	/**
+	 * Make sure that the count bytes starting at tokenStart are in the buffer.
+	 * @return false if the stream ends first
+	 */
+	private boolean ensureAvailable(int count) throws IOException {
+		while(bufEnd - tokenStart < count) {
+			if(eof) {
+				return false;
+			}
+			fill();
+		}
+		return true;
+	}
+
+	/**
+	 * Read more data into the buffer, discarding everything before the current token and growing
+	 * the buffer if the current token already fills it.
+	 */
+	private void fill() throws IOException {
+		if(tokenStart > 0) {
+			System.arraycopy(buf, tokenStart, buf, 0, bufEnd - tokenStart);
+			bufEnd -= tokenStart;
+			tokenEnd -= tokenStart;
+			nameStart -= tokenStart;
+			nameEnd -= tokenStart;
+			textStart -= tokenStart;
+			textEnd -= tokenStart;
+			tokenStart = 0;
+		}
+		if(bufEnd == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+			buf = newBuf;
+		}
+		int count = in.read(buf, bufEnd, buf.length - bufEnd);
+		if(count == -1) {
+			eof = true;
+		} else {
+			bufEnd += count;
+		}
+	}
+
+	/**
+	 * @return the position of str, or the end of the stream if it doesn't occur. Positions are
+	 * relative to the current token, which doesn't move.
+	 */
+	private int find(String str, int from, boolean ignoreCase) throws IOException {
+		int offset = from - tokenStart;
+		while(true) {
+			int last = bufEnd - str.length();
+			for(int a = tokenStart + offset; a <= last; a++) {
+				if(regionMatches(a, str, ignoreCase)) {
+					return a;
+				}
+			}
+			if(eof) {
+				return bufEnd;
+			}
+			offset = Math.max(offset, bufEnd - tokenStart - str.length() + 1);
+			fill();
+		}
+	}
+
+	/**
+	 * @return the position after the '&gt;' ending the tag, skipping quoted attribute values
+	 */
+	private int findTagEnd(int from) throws IOException {
+		int offset = from - tokenStart;
+		byte quote = 0;
+		while(true) {
+			for(; tokenStart + offset < bufEnd; offset++) {
+				byte b = buf[tokenStart + offset];
+				if(quote != 0) {
+					if(b == quote) {
+						quote = 0;
+					}
+				} else if(b == '"' || b == '\'') {
+					quote = b;
+				} else if(b == '>') {
+					return tokenStart + offset + 1;
+				}
+			}
+			if(eof) {
+				return bufEnd;
+			}
+			fill();
+		}
+	}
+
+	private boolean regionMatches(int start, String str, boolean ignoreCase) {
+		for(int a = 0; a < str.length(); a++) {
+			int b = buf[start + a] & 0xff;
+			int c = str.charAt(a);
+			if(b != c && !(ignoreCase && toLowerCase(b) == toLowerCase(c))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	private static boolean isLetter(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+
+	private static boolean isNameChar(byte b) {
+		return isLetter(b) || (b >= '0' && b <= '9') || b == '-' || b == ':';
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+	}
+
+	public int getTokenType() {
+		return tokenType;
+	}
+
+	/**
+	 * @param name lower-case
+	 * @return true if the current token is a start or end tag with this name
+	 */
+	public boolean isTag(String name) {
+		if(tokenType != START_TAG && tokenType != END_TAG) {
+			return false;
+		}
+		return (nameEnd - nameStart) == name.length() && regionMatches(nameStart, name, true);
+	}
+
+	public boolean isStartTag(String name) {
+		return tokenType == START_TAG && isTag(name);
+	}
+
+	public boolean isEndTag(String name) {
+		return tokenType == END_TAG && isTag(name);
+	}
+
+	/**
+	 * Find the value of an attribute of the current start tag.
+	 * @param name lower-case
+	 */
+	private boolean findAttribute(String name) {
+		if(tokenType != START_TAG) {
+			return false;
+		}
+		int end = tokenEnd - 1;
+		int pos = nameEnd;
+		while(pos < end) {
+			while(pos < end && (isWhitespace(buf[pos]) || buf[pos] == '/')) {
+				pos++;
+			}
+			int attrStart = pos;
+			while(pos < end && !isWhitespace(buf[pos]) && buf[pos] != '=' && buf[pos] != '>') {
+				pos++;
+			}
+			int attrEnd = pos;
+			if(attrEnd == attrStart) {
+				return false;
+			}
+			while(pos < end && isWhitespace(buf[pos])) {
+				pos++;
+			}
+
+			valueStart = valueEnd = pos;
+			if(pos < end && buf[pos] == '=') {
+				pos++;
+				while(pos < end && isWhitespace(buf[pos])) {
+					pos++;
+				}
+				if(pos < end && (buf[pos] == '"' || buf[pos] == '\'')) {
+					byte quote = buf[pos++];
+					valueStart = pos;
+					while(pos < end && buf[pos] != quote) {
+						pos++;
+					}
+					valueEnd = pos;
+					pos++;
+				} else {
+					valueStart = pos;
+					while(pos < end && !isWhitespace(buf[pos])) {
+						pos++;
+					}
+					valueEnd = pos;
+				}
+			}
+
+			if(attrEnd - attrStart == name.length() && regionMatches(attrStart, name, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param name lower-case
+	 * @return the value of an attribute of the current start tag, or null if it doesn't have it. Allocates.
+	 */
+	public String getAttribute(String name) {
+		if(!findAttribute(name)) {
+			return null;
+		}
+		return RdbReader.decode(buf, valueStart, valueEnd);
+	}
+
+	/**
+	 * @return true if the class attribute of the current start tag includes this class. Doesn't allocate.
+	 */
+	public boolean hasClass(String className) {
+		if(!findAttribute("class")) {
+			return false;
+		}
+		int pos = valueStart;
+		while(pos < valueEnd) {
+			while(pos < valueEnd && isWhitespace(buf[pos])) {
+				pos++;
+			}
+			int start = pos;
+			while(pos < valueEnd && !isWhitespace(buf[pos])) {
+				pos++;
+			}
+			if(pos - start == className.length() && regionMatches(start, className, false)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the length of the current text, which is 0 for tags and blank text
+	 */
+	public int getTextLength() {
+		return textEnd - textStart;
+	}
+
+	/**
+	 * @return the current text, trimmed. Allocates.
+	 */
+	public String getText() {
+		return RdbReader.decode(buf, textStart, textEnd);
+	}
+
+	/**
+	 * Append the current text to a StringBuilder, collapsing runs of whitespace to single spaces.
+	 */
+	public void appendText(StringBuilder sb) {
+		boolean space = false;
+		for(int a = textStart; a < textEnd; a++) {
+			if(isWhitespace(buf[a])) {
+				space = true;
+				continue;
+			}
+			if(space) {
+				sb.append(' ');
+				space = false;
+			}
+			sb.append((char)(buf[a] & 0xff));
+		}
+	}
+
+	/**
+	 * @return the current text as a number, or NaN if it is not a number
+	 * @see RdbReader#parseDouble(int)
+	 */
+	public double parseTextDouble() {
+		return RdbReader.parseDouble(buf, textStart, textEnd);
+	}
+
+	/**
+	 * Append the current token to a StringBuilder exactly as it appeared in the stream.
+	 */
+	public void appendRaw(StringBuilder sb) {
+		sb.ensureCapacity(sb.length() + (tokenEnd - tokenStart));
+		for(int a = tokenStart; a < tokenEnd; a++) {
+			sb.append((char)(buf[a] & 0xff));
+		}
+	}
+}
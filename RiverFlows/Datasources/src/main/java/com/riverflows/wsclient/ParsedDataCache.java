@@ -0,0 +1,409 @@
+package com.riverflows.wsclient;
+
+import com.jakewharton.DiskLruCache;
+import com.riverflows.data.QualifierDictionary;
+import com.riverflows.data.Series;
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of parsed SiteData, so that responses served from the response cache don't have to be
+ * parsed again.
+ * <p>
+ * Entries are keyed by request URL and parser version, and are only returned for the same cached
+ * response they were parsed from, identified by {@link WrappedHttpResponse#cacheTimestamp}.  Once
+ * the response cache fetches a new copy, or a data source changes its parser version, the entry is
+ * ignored and the response is parsed as usual.  Data sources must increment their PARSER_VERSION
+ * whenever a change to their parser changes what it returns.
+ * <p>
+ * Readings are stored as arrays of primitives, and every string is written once in a table at the
+ * start of the entry, so an entry is read with a single sequential read.
+ */
+public class ParsedDataCache {
+
+	private static final Log LOG = LogFactory.getLog(ParsedDataCache.class);
+
+	/**
+	 * increment to discard all existing entries when the entry format changes
+	 */
+	private static final int FORMAT_VERSION = 3;
+
+	private static volatile ParsedDataCache installed;
+
+	private final DiskLruCache cache;
+
+	private ParsedDataCache(DiskLruCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Start caching parsed data for all data sources.
+	 * @param directory a directory used exclusively by this cache
+	 * @param maxSize maximum number of bytes used by the cache
+	 */
+	public static void install(File directory, long maxSize) throws IOException {
+		installed = new ParsedDataCache(DiskLruCache.open(directory, FORMAT_VERSION, 1, maxSize));
+	}
+
+	public static void uninstall() throws IOException {
+		ParsedDataCache cache = installed;
+		installed = null;
+		if(cache != null) {
+			cache.cache.close();
+		}
+	}
+
+	/**
+	 * @return previously parsed data for this cached response, or null if it needs to be parsed.
+	 * The response is closed if data is returned.
+	 */
+	static SiteData get(String url, int parserVersion, WrappedHttpResponse response, Site site) {
+		Map<SiteId, SiteData> result = get(url, parserVersion, response, new Site[]{site});
+		if(result == null) {
+			return null;
+		}
+		return result.get(site.getSiteId());
+	}
+
+	/**
+	 * @param sites the requested sites, which are used in place of the stored site details
+	 * @return previously parsed data for this cached response, or null if it needs to be parsed.
+	 * The response is closed if data is returned.
+	 */
+	static Map<SiteId, SiteData> get(String url, int parserVersion, WrappedHttpResponse response, Site[] sites) {
+		ParsedDataCache cache = installed;
+		if(cache == null || response.cacheTimestamp == 0) {
+			return null;
+		}
+
+		long startTime = System.currentTimeMillis();
+
+		Map<SiteId, SiteData> result;
+		try {
+			result = cache.read(url, parserVersion, response.cacheTimestamp, sites);
+		} catch(IOException ioe) {
+			LOG.warn("failed to read parsed data for " + url, ioe);
+			return null;
+		}
+
+		if(result == null) {
+			return null;
+		}
+
+		if(LOG.isInfoEnabled()) LOG.info("loaded parsed data in " + (System.currentTimeMillis() - startTime) + "ms");
+
+		try {
+			response.responseStream.close();
+		} catch(IOException ioe) {
+			LOG.warn("failed to close InputStream: ", ioe);
+		}
+		return result;
+	}
+
+	static void put(String url, int parserVersion, WrappedHttpResponse response, SiteData data) {
+		if(data == null) {
+			return;
+		}
+		List<SiteData> list = new ArrayList<SiteData>(1);
+		list.add(data);
+		put(url, parserVersion, response, list);
+	}
+
+	/**
+	 * Store data parsed from a response, if the response is backed by the response cache.
+	 */
+	static void put(String url, int parserVersion, WrappedHttpResponse response, Collection<SiteData> data) {
+		ParsedDataCache cache = installed;
+		if(cache == null || response.cacheTimestamp == 0 || data == null) {
+			return;
+		}
+
+		try {
+			cache.write(url, parserVersion, response.cacheTimestamp, data);
+		} catch(IOException ioe) {
+			LOG.warn("failed to store parsed data for " + url, ioe);
+		}
+	}
+
+	private static String key(String url, int parserVersion) {
+		return DiskLruResponseCache.key(parserVersion + " " + url);
+	}
+
+	private Map<SiteId, SiteData> read(String url, int parserVersion, long cacheTimestamp, Site[] sites) throws IOException {
+		DiskLruCache.Snapshot snapshot = cache.get(key(url, parserVersion));
+		if(snapshot == null) {
+			return null;
+		}
+
+		byte[] entry;
+		try {
+			InputStream in = snapshot.getInputStream(0);
+			DataInputStream lengthIn = new DataInputStream(in);
+			entry = new byte[lengthIn.readInt()];
+			lengthIn.readFully(entry);
+		} finally {
+			snapshot.close();
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+
+		if(!in.readUTF().equals(url) || in.readInt() != parserVersion || in.readLong() != cacheTimestamp) {
+			//hash collision or parsed from a different copy of the response
+			return null;
+		}
+
+		String[] strings = new String[in.readInt()];
+		for(int a = 0; a < strings.length; a++) {
+			strings[a] = readString(in);
+		}
+
+		Map<SiteId, Site> requestedSites = new HashMap<SiteId, Site>();
+		if(sites != null) {
+			for(Site site: sites) {
+				requestedSites.put(site.getSiteId(), site);
+			}
+		}
+
+		int siteCount = in.readInt();
+		Map<SiteId, SiteData> result = new LinkedHashMap<SiteId, SiteData>(siteCount * 2);
+
+		for(int siteNum = 0; siteNum < siteCount; siteNum++) {
+			SiteData data = new SiteData();
+
+			SiteId siteId = new SiteId(strings[in.readInt()]);
+			String name = stringAt(strings, in.readInt());
+			double latitude = in.readDouble();
+			double longitude = in.readDouble();
+			String state = stringAt(strings, in.readInt());
+
+			Site site = requestedSites.get(siteId);
+			if(site == null) {
+				site = new Site(siteId, name, Double.isNaN(longitude) ? null : longitude,
+						Double.isNaN(latitude) ? null : latitude,
+						state == null ? null : USState.valueOf(state), null);
+			}
+			data.setSite(site);
+			data.setDataInfo(stringAt(strings, in.readInt()));
+			data.setComplete(in.readBoolean());
+
+			int seriesCount = in.readInt();
+			for(int seriesNum = 0; seriesNum < seriesCount; seriesNum++) {
+				CommonVariable datasetKey = CommonVariable.valueOf(strings[in.readInt()]);
+
+				Series series = new Series();
+				series.setSourceUrl(stringAt(strings, in.readInt()));
+
+				if(in.readBoolean()) {
+					String agency = stringAt(strings, in.readInt());
+					String commonVar = stringAt(strings, in.readInt());
+					String id = stringAt(strings, in.readInt());
+					double magicNullValue = in.readDouble();
+					String exactName = stringAt(strings, in.readInt());
+
+					//use the registered instance, so registry lookups by identity still work
+					Variable variable = (agency == null) ? null : VariableRegistry.getVariable(agency, id);
+					if(variable == null) {
+						variable = new Variable(commonVar == null ? null : CommonVariable.valueOf(commonVar), id,
+								Double.isNaN(magicNullValue) ? null : magicNullValue, exactName);
+					}
+					series.setVariable(variable);
+				}
+
+				int readingCount = in.readInt();
+				if(readingCount >= 0) {
+					series.setQualifierDictionary(QualifierDictionary.forAgency(siteId.getAgency()));
+					readReadings(in, strings, series, readingCount);
+				}
+
+				data.getDatasets().put(datasetKey, series);
+			}
+
+			result.put(siteId, data);
+		}
+
+		return result;
+	}
+
+	private static void readReadings(DataInputStream in, String[] strings, Series series, int count) throws IOException {
+		int forecastStart = in.readInt();
+
+		long[] times = new long[count];
+		for(int a = 0; a < count; a++) {
+			times[a] = in.readLong();
+		}
+
+		double[] values = new double[count];
+		for(int a = 0; a < count; a++) {
+			values[a] = in.readDouble();
+		}
+
+		series.initReadings(count);
+		for(int a = 0; a < count; a++) {
+			String qualifiers = stringAt(strings, in.readInt());
+			if(a < forecastStart) {
+				series.addObservation(times[a], values[a], qualifiers);
+			} else {
+				series.addForecast(times[a], values[a], qualifiers);
+			}
+		}
+	}
+
+	private void write(String url, int parserVersion, long cacheTimestamp, Collection<SiteData> data) throws IOException {
+		StringTable strings = new StringTable();
+
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(8192);
+		DataOutputStream body = new DataOutputStream(bodyBytes);
+
+		body.writeInt(data.size());
+		for(SiteData siteData: data) {
+			Site site = siteData.getSite();
+			body.writeInt(strings.indexOf(site.getSiteId().toString()));
+			body.writeInt(strings.indexOf(site.getName()));
+			body.writeDouble(site.getLatitude() == null ? Double.NaN : site.getLatitude());
+			body.writeDouble(site.getLongitude() == null ? Double.NaN : site.getLongitude());
+			body.writeInt(strings.indexOf(site.getState() == null ? null : site.getState().name()));
+			body.writeInt(strings.indexOf(siteData.getDataInfo()));
+			body.writeBoolean(siteData.isComplete());
+
+			body.writeInt(siteData.getDatasets().size());
+			for(Map.Entry<CommonVariable, Series> dataset: siteData.getDatasets().entrySet()) {
+				Series series = dataset.getValue();
+				body.writeInt(strings.indexOf(dataset.getKey().name()));
+				body.writeInt(strings.indexOf(series.getSourceUrl()));
+
+				Variable var = series.getVariable();
+				body.writeBoolean(var != null);
+				if(var != null) {
+					int registryId = VariableRegistry.getId(var);
+					body.writeInt(strings.indexOf(registryId == -1 ? null : VariableRegistry.getAgency(registryId)));
+					body.writeInt(strings.indexOf(var.getCommonVariable() == null ? null : var.getCommonVariable().name()));
+					body.writeInt(strings.indexOf(var.getId()));
+					body.writeDouble(var.getMagicNullValue() == null ? Double.NaN : var.getMagicNullValue());
+					body.writeInt(strings.indexOf(var.getExactName()));
+				}
+
+				if(series.getReadings() == null) {
+					body.writeInt(-1);
+					continue;
+				}
+				body.writeInt(series.size());
+				writeReadings(body, strings, series);
+			}
+		}
+		body.flush();
+
+		ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(bodyBytes.size() + 1024);
+		DataOutputStream entry = new DataOutputStream(entryBytes);
+		entry.writeUTF(url);
+		entry.writeInt(parserVersion);
+		entry.writeLong(cacheTimestamp);
+		entry.writeInt(strings.size());
+		for(String s: strings.strings) {
+			writeString(entry, s);
+		}
+		bodyBytes.writeTo(entry);
+		entry.flush();
+
+		DiskLruCache.Editor editor = cache.edit(key(url, parserVersion));
+		if(editor == null) {
+			//another thread is storing the same data
+			return;
+		}
+
+		try {
+			DataOutputStream out = new DataOutputStream(editor.newOutputStream(0));
+			try {
+				out.writeInt(entryBytes.size());
+				entryBytes.writeTo(out);
+			} finally {
+				out.close();
+			}
+			editor.commit();
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	private static void writeReadings(DataOutputStream out, StringTable strings, Series series) throws IOException {
+		int count = series.size();
+		out.writeInt(series.getForecastStart());
+		for(int a = 0; a < count; a++) {
+			out.writeLong(series.getTime(a));
+		}
+		for(int a = 0; a < count; a++) {
+			out.writeDouble(series.getValue(a));
+		}
+		for(int a = 0; a < count; a++) {
+			out.writeInt(strings.indexOf(series.getQualifiers(a)));
+		}
+	}
+
+	/**
+	 * Assigns each distinct string an index, so it is only stored once.
+	 */
+	private static class StringTable {
+		final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> indices = new HashMap<String, Integer>();
+
+		/**
+		 * @return -1 for null
+		 */
+		int indexOf(String s) {
+			if(s == null) {
+				return -1;
+			}
+			Integer index = indices.get(s);
+			if(index == null) {
+				index = strings.size();
+				strings.add(s);
+				indices.put(s, index);
+			}
+			return index;
+		}
+
+		int size() {
+			return strings.size();
+		}
+	}
+
+	private static String stringAt(String[] strings, int index) {
+		return (index == -1) ? null : strings[index];
+	}
+
+	/**
+	 * unlike writeUTF(), not limited to 64K
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,360 @@
+package com.riverflows.wsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader for tab-delimited text such as the USGS RDB format.
+ * <p>
+ * Lines are read into a reusable byte buffer and split into fields in place, so scanning
+ * a response does not create a String per line or per cell. Fields are addressed by
+ * index and are only turned into Strings when the caller explicitly asks for one.
+ * Bytes are interpreted as ISO-8859-1, which matches {@link java.io.DataInputStream#readLine()}.
+ * <p>
+ * Not thread-safe.
+ */
+class RdbReader {
+
+	private static final int MAX_FAST_DIGITS = 15;
+
+	private static final double[] POWERS_OF_TEN = new double[] {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final InputStream in;
+
+	private final byte separator;
+
+	private byte[] buf;
+
+	/** start of the unconsumed data in buf */
+	private int bufStart = 0;
+
+	/** end of the valid data in buf */
+	private int bufEnd = 0;
+
+	private boolean eof = false;
+
+	private int lineStart = 0;
+	private int lineEnd = 0;
+
+	private int[] fieldStarts = new int[32];
+	private int[] fieldEnds = new int[32];
+	private int fieldCount = 0;
+
+	private final FieldChars fieldChars = new FieldChars();
+
+	public RdbReader(InputStream in) {
+		this(in, '\t', 8192);
+	}
+
+	public RdbReader(InputStream in, char separator, int bufferSize) {
+		this.in = in;
+		this.separator = (byte)separator;
+		this.buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Advance to the next line, splitting it into fields.
+	 * @return false if the end of the stream has been reached
+	 */
+	public boolean readLine() throws IOException {
+		int scanFrom = bufStart;
+
+		while(true) {
+			for(int a = scanFrom; a < bufEnd; a++) {
+				if(buf[a] == '\n') {
+					setLine(bufStart, a);
+					bufStart = a + 1;
+					return true;
+				}
+			}
+
+			if(eof) {
+				if(bufStart == bufEnd) {
+					fieldCount = 0;
+					lineStart = lineEnd = bufStart;
+					return false;
+				}
+				//last line has no terminator
+				setLine(bufStart, bufEnd);
+				bufStart = bufEnd;
+				return true;
+			}
+
+			scanFrom = bufEnd - bufStart;
+			fill();
+			//positions shift when the buffer is compacted
+			scanFrom += bufStart;
+		}
+	}
+
+	/**
+	 * Make room at the end of the buffer and read more data into it, compacting or growing
+	 * the buffer as needed so that the current partial line is kept.
+	 */
+	private void fill() throws IOException {
+		if(bufStart > 0) {
+			System.arraycopy(buf, bufStart, buf, 0, bufEnd - bufStart);
+			bufEnd -= bufStart;
+			bufStart = 0;
+		}
+		if(bufEnd == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+			buf = newBuf;
+		}
+		int count = in.read(buf, bufEnd, buf.length - bufEnd);
+		if(count == -1) {
+			eof = true;
+		} else {
+			bufEnd += count;
+		}
+	}
+
+	private void setLine(int start, int end) {
+		//treat CRLF like LF
+		if(end > start && buf[end - 1] == '\r') {
+			end--;
+		}
+		lineStart = start;
+		lineEnd = end;
+
+		fieldCount = 0;
+		int fieldStart = start;
+		for(int a = start; a <= end; a++) {
+			if(a == end || buf[a] == separator) {
+				if(fieldCount == fieldStarts.length) {
+					int[] newStarts = new int[fieldCount * 2];
+					int[] newEnds = new int[fieldCount * 2];
+					System.arraycopy(fieldStarts, 0, newStarts, 0, fieldCount);
+					System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+					fieldStarts = newStarts;
+					fieldEnds = newEnds;
+				}
+				fieldStarts[fieldCount] = fieldStart;
+				fieldEnds[fieldCount] = a;
+				fieldCount++;
+				fieldStart = a + 1;
+			}
+		}
+	}
+
+	public int getLineLength() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * @return the first character of the current line, or -1 if the line is empty
+	 */
+	public int firstChar() {
+		if(lineEnd == lineStart) {
+			return -1;
+		}
+		return buf[lineStart] & 0xff;
+	}
+
+	public boolean lineStartsWith(String prefix) {
+		if(prefix.length() > lineEnd - lineStart) {
+			return false;
+		}
+		for(int a = 0; a < prefix.length(); a++) {
+			if((buf[lineStart + a] & 0xff) != prefix.charAt(a)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current line as a String. Allocates.
+	 */
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+
+	/**
+	 * @return the number of fields in the current line. An empty line has one empty field.
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public int getFieldLength(int field) {
+		checkField(field);
+		return fieldEnds[field] - fieldStarts[field];
+	}
+
+	/**
+	 * @return the value of a field as a String. Allocates.
+	 */
+	public String getField(int field) {
+		checkField(field);
+		return decode(fieldStarts[field], fieldEnds[field]);
+	}
+
+	/**
+	 * @return a view of a field that is only valid until the next call to this method or
+	 * {@link #readLine()}. Doesn't allocate.
+	 */
+	public CharSequence getFieldChars(int field) {
+		checkField(field);
+		fieldChars.start = fieldStarts[field];
+		fieldChars.end = fieldEnds[field];
+		return fieldChars;
+	}
+
+	public char charAt(int field, int index) {
+		checkField(field);
+		if(index < 0 || index >= fieldEnds[field] - fieldStarts[field]) {
+			throw new StringIndexOutOfBoundsException(index);
+		}
+		return (char)(buf[fieldStarts[field] + index] & 0xff);
+	}
+
+	/**
+	 * Compare a field to a String without allocating.
+	 */
+	public boolean fieldEquals(int field, String value) {
+		checkField(field);
+		if(value == null) {
+			return false;
+		}
+		int start = fieldStarts[field];
+		int length = fieldEnds[field] - start;
+		if(length != value.length()) {
+			return false;
+		}
+		for(int a = 0; a < length; a++) {
+			if((buf[start + a] & 0xff) != value.charAt(a)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a field as a decimal number without creating an intermediate String.
+	 * Plain decimals that can be represented exactly are converted directly; anything
+	 * else falls back to {@link Double#parseDouble(String)}.
+	 * @return the value of the field, or NaN if it is not a number
+	 */
+	public double parseDouble(int field) {
+		checkField(field);
+		return parseDouble(buf, fieldStarts[field], fieldEnds[field]);
+	}
+
+	/**
+	 * @see #parseDouble(int)
+	 */
+	static double parseDouble(byte[] buf, int start, int end) {
+		int pos = start;
+		boolean negative = false;
+
+		if(pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+			negative = (buf[pos] == '-');
+			pos++;
+		}
+
+		long mantissa = 0;
+		boolean sawDigit = false;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean inFraction = false;
+
+		for(; pos < end; pos++) {
+			byte b = buf[pos];
+			if(b >= '0' && b <= '9') {
+				if(digits == MAX_FAST_DIGITS) {
+					return parseDoubleSlow(buf, start, end);
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				sawDigit = true;
+				//leading zeros aren't significant
+				if(mantissa != 0) {
+					digits++;
+				}
+				if(inFraction) {
+					fractionDigits++;
+				}
+			} else if(b == '.' && !inFraction) {
+				inFraction = true;
+			} else if(b == 'e' || b == 'E' || b == ' ') {
+				return parseDoubleSlow(buf, start, end);
+			} else {
+				return Double.NaN;
+			}
+		}
+
+		if(!sawDigit) {
+			return Double.NaN;
+		}
+
+		if(fractionDigits >= POWERS_OF_TEN.length) {
+			return parseDoubleSlow(buf, start, end);
+		}
+
+		//both operands are exact, so the quotient is correctly rounded, just like Double.parseDouble()
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+
+		return negative ? -value : value;
+	}
+
+	private static double parseDoubleSlow(byte[] buf, int start, int end) {
+		try {
+			return Double.parseDouble(decode(buf, start, end));
+		} catch(NumberFormatException nfe) {
+			return Double.NaN;
+		}
+	}
+
+	private String decode(int start, int end) {
+		return decode(buf, start, end);
+	}
+
+	/**
+	 * @return ISO-8859-1 bytes as a String
+	 */
+	static String decode(byte[] buf, int start, int end) {
+		char[] chars = new char[end - start];
+		for(int a = 0; a < chars.length; a++) {
+			chars[a] = (char)(buf[start + a] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	private void checkField(int field) {
+		if(field < 0 || field >= fieldCount) {
+			throw new ArrayIndexOutOfBoundsException(field);
+		}
+	}
+
+	private class FieldChars implements CharSequence {
+		int start;
+		int end;
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if(index < 0 || index >= end - start) {
+				throw new StringIndexOutOfBoundsException(index);
+			}
+			return (char)(buf[start + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int subStart, int subEnd) {
+			return toString().subSequence(subStart, subEnd);
+		}
+
+		@Override
+		public String toString() {
+			return decode(start, end);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.text.ParseException;
+
+/**
+ * The current line of a tab-delimited site list.  Only the columns needed to decide whether a
+ * line is a usable site are decoded up front.
+ */
+class RdbSiteRecord extends SiteRecord {
+
+	private static final Log LOG = LogFactory.getLog(RdbSiteRecord.class);
+
+	private static final int COL_REMOTE_ID = 0;
+	private static final int COL_AGENCY = 1;
+	private static final int COL_ID = 2;
+	private static final int COL_NAME = 3;
+	private static final int COL_LATITUDE = 4;
+	private static final int COL_LONGITUDE = 5;
+	private static final int COL_STATE = 6;
+	private static final int COL_VARIABLES = 7;
+	private static final int COL_RECENT_READING = 8;
+	private static final int COL_RECENT_READING_TIME = 9;
+	private static final int COL_RECENT_READING_VARIABLE = 10;
+	private static final int COLUMN_COUNT = 11;
+
+	private final RdbReader reader;
+
+	private String agency;
+	private String id;
+	private String name;
+	private USState state;
+
+	/** integer IDs from {@link VariableRegistry} */
+	private int[] variableIds = new int[8];
+	private int variableCount;
+
+	private Variable recentReadingVariable;
+	private boolean recentReadingLoaded;
+
+	RdbSiteRecord(RdbReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Read the reader's current line, logging the reason if it isn't a usable site.
+	 * @return false if the site should be skipped
+	 */
+	boolean load() {
+		agency = column(COL_AGENCY);
+		id = column(COL_ID);
+		name = column(COL_NAME);
+		state = null;
+		variableCount = 0;
+		recentReadingVariable = null;
+		recentReadingLoaded = false;
+
+		for(int col = COLUMN_COUNT; col < reader.getFieldCount(); col++) {
+			LOG.error("extra column for " + agency + "/" + id + ": " + reader.getField(col).trim());
+		}
+
+		if(name == null) {
+			LOG.error("missing name for " + agency + "/" + id);
+			return false;
+		}
+		if(id == null) {
+			LOG.error("missing id for " + agency + "/" + name);
+			return false;
+		}
+		if(agency == null) {
+			LOG.error("missing agency for " + name + "/" + id);
+			return false;
+		}
+		if(reader.getFieldCount() <= COL_STATE) {
+			LOG.error("missing state for " + name + "/" + id);
+			return false;
+		}
+		if(!VariableRegistry.isRegistered(agency)) {
+			LOG.info(id + " " + name + " has an unknown agency: " + agency);
+			return false;
+		}
+
+		String variables = column(COL_VARIABLES);
+		if(variables != null) {
+			for(String varId: variables.split(" ")) {
+				int variableId = VariableRegistry.getId(agency, varId);
+				if(variableId == -1) {
+					LOG.warn(agency + " does not recognize variable: " + varId + " for site: " + id);
+					continue;
+				}
+				if(variableCount == variableIds.length) {
+					int[] newIds = new int[variableCount * 2];
+					System.arraycopy(variableIds, 0, newIds, 0, variableCount);
+					variableIds = newIds;
+				}
+				variableIds[variableCount++] = variableId;
+			}
+		}
+
+		if(variableCount == 0) {
+			LOG.warn("ignoring site: " + agency + "/" + id + " since it has no supported variables");
+			return false;
+		}
+
+		if(reader.getFieldCount() > COL_LATITUDE && (Double.isNaN(getLatitude()) || Double.isNaN(getLongitude()))) {
+			//the site is still used, without coordinates
+			LOG.error("invalid lat/lon coordinate for " + agency + "/" + id + ": " + column(COL_LATITUDE) + "," + column(COL_LONGITUDE));
+		}
+		return true;
+	}
+
+	/**
+	 * @return the trimmed value of a column, or null if the line doesn't have it
+	 */
+	private String column(int col) {
+		if(col >= reader.getFieldCount()) {
+			return null;
+		}
+		return reader.getField(col).trim();
+	}
+
+	@Override
+	public int getRemoteId() {
+		return Integer.parseInt(column(COL_REMOTE_ID));
+	}
+
+	@Override
+	public String getAgency() {
+		return agency;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public USState getState() {
+		if(state == null) {
+			state = USState.valueOf(column(COL_STATE));
+		}
+		return state;
+	}
+
+	@Override
+	public double getLatitude() {
+		return coordinate(COL_LATITUDE);
+	}
+
+	@Override
+	public double getLongitude() {
+		return coordinate(COL_LONGITUDE);
+	}
+
+	private double coordinate(int col) {
+		if(col >= reader.getFieldCount()) {
+			return Double.NaN;
+		}
+		return reader.parseDouble(col);
+	}
+
+	@Override
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	@Override
+	public int getVariableId(int index) {
+		if(index >= variableCount) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return variableIds[index];
+	}
+
+	@Override
+	Variable getRecentReadingVariable() {
+		if(!recentReadingLoaded) {
+			recentReadingVariable = loadRecentReadingVariable();
+			recentReadingLoaded = true;
+		}
+		return recentReadingVariable;
+	}
+
+	private Variable loadRecentReadingVariable() {
+		String recentReading = column(COL_RECENT_READING);
+		String recentReadingTime = column(COL_RECENT_READING_TIME);
+		String recentReadingVariable = column(COL_RECENT_READING_VARIABLE);
+
+		if(recentReading == null
+				|| recentReading.length() == 0
+				|| recentReadingVariable == null
+				|| recentReadingTime == null) {
+			return null;
+		}
+
+		Variable var = VariableRegistry.getVariable(agency, recentReadingVariable);
+		if(var == null) {
+			LOG.warn(agency + " does not recognize variable: " + recentReadingVariable + " for site: " + id);
+			return null;
+		}
+
+		try {
+			Double.parseDouble(recentReading);
+			DataSourceController.RECENT_READING_TIME_CODEC.parseMillis(recentReadingTime);
+		} catch(NumberFormatException nfe) {
+			LOG.error("invalid reading value: " + recentReading);
+			return null;
+		} catch(ParseException pe) {
+			LOG.error("invalid reading time: " + recentReadingTime);
+			return null;
+		}
+		return var;
+	}
+}
@@ -0,0 +1,784 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteGridIndex;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+import com.riverflows.data.Variable.CommonVariable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary copy of a site list, so that a list served from the response cache is memory-mapped
+ * instead of being parsed again.  Sites are only decoded when they are visited or asked for by index.
+ * <p>
+ * Like {@link ParsedDataCache}, a snapshot is only used for the same cached response it was
+ * written from, identified by {@link WrappedHttpResponse#cacheTimestamp}.
+ * <p>
+ * File layout, big-endian:
+ * <ul>
+ * <li>header: magic, format version, cache timestamp, site count, variable count, record size,
+ * heap offset, the heap offsets of the URL and the sync token (or -1), and when it was synced</li>
+ * <li>variable table: heap offsets of the agency and ID of each variable that records refer to</li>
+ * <li>records: a fixed-width record per site, holding its remote ID, heap offsets of its agency,
+ * ID, name and state, its coordinates, its recent reading variable, the heap offset of its
+ * ordered variable list and a bitmap of its variables</li>
+ * <li>heap: strings, as an unsigned short length followed by UTF-8, and variable lists, as an
+ * unsigned short count followed by unsigned short variable table indexes</li>
+ * </ul>
+ */
+public class SiteListSnapshot {
+
+	private static final Log LOG = LogFactory.getLog(SiteListSnapshot.class);
+
+	private static final int MAGIC = 0x52465331;
+
+	/**
+	 * increment to discard all existing snapshots when the file format changes
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CACHE_TIMESTAMP = 8;
+	private static final int HEADER_SITE_COUNT = 16;
+	private static final int HEADER_VARIABLE_COUNT = 20;
+	private static final int HEADER_RECORD_SIZE = 24;
+	private static final int HEADER_HEAP_OFFSET = 28;
+	private static final int HEADER_URL = 32;
+	private static final int HEADER_SYNC_TOKEN = 36;
+	private static final int HEADER_SYNC_TIME = 40;
+	private static final int HEADER_SIZE = 48;
+
+	/** snapshots are written to files with this suffix, then renamed */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int RECORD_REMOTE_ID = 0;
+	private static final int RECORD_AGENCY = 4;
+	private static final int RECORD_ID = 8;
+	private static final int RECORD_NAME = 12;
+	private static final int RECORD_STATE = 16;
+	private static final int RECORD_LATITUDE = 20;
+	private static final int RECORD_LONGITUDE = 28;
+	private static final int RECORD_RECENT_VARIABLE = 36;
+	private static final int RECORD_VARIABLES = 40;
+	private static final int RECORD_BITMAP = 44;
+
+	private static volatile File installedDir;
+
+	/** changes whenever a snapshot is written, or snapshots are installed or uninstalled */
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	private final ByteBuffer buffer;
+	private final int siteCount;
+	private final int recordSize;
+	private final int recordsOffset;
+	private final int heapOffset;
+	private final int bitmapWords;
+
+	/** variable table index -> VariableRegistry ID */
+	private final int[] registryIds;
+
+	/** VariableRegistry ID -> variable table index, or -1 */
+	private final int[] tableIndexes;
+
+	private SiteListSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		this.siteCount = buffer.getInt(HEADER_SITE_COUNT);
+		this.recordSize = buffer.getInt(HEADER_RECORD_SIZE);
+		this.heapOffset = buffer.getInt(HEADER_HEAP_OFFSET);
+
+		int variableCount = buffer.getInt(HEADER_VARIABLE_COUNT);
+		this.recordsOffset = HEADER_SIZE + (variableCount * 8);
+		this.bitmapWords = (recordSize - RECORD_BITMAP) / 8;
+
+		if(siteCount < 0 || variableCount < 0 || bitmapWords * 64 < variableCount
+				|| recordsOffset + ((long)siteCount * recordSize) > heapOffset
+				|| heapOffset > buffer.limit()) {
+			throw new IOException("corrupt site list snapshot");
+		}
+
+		registryIds = new int[variableCount];
+		tableIndexes = new int[VariableRegistry.size()];
+		for(int a = 0; a < tableIndexes.length; a++) {
+			tableIndexes[a] = -1;
+		}
+		for(int a = 0; a < variableCount; a++) {
+			int id = VariableRegistry.getId(getString(buffer.getInt(HEADER_SIZE + (a * 8))),
+					getString(buffer.getInt(HEADER_SIZE + (a * 8) + 4)));
+			if(id == -1) {
+				throw new IOException("site list snapshot refers to a variable that no longer exists");
+			}
+			registryIds[a] = id;
+			tableIndexes[id] = a;
+		}
+	}
+
+	/**
+	 * Start keeping snapshots of site lists.
+	 * @param directory a directory used exclusively for snapshots
+	 */
+	public static void install(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("could not create " + directory);
+		}
+		//left behind by snapshots that were being written when the process died
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File f: files) {
+				if(f.getName().endsWith(TEMP_SUFFIX)) {
+					f.delete();
+				}
+			}
+		}
+		installedDir = directory;
+		generation.incrementAndGet();
+	}
+
+	public static void uninstall() {
+		installedDir = null;
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * @return a number which changes whenever {@link #getLatest(String)} may return a different
+	 * snapshot
+	 */
+	static int getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the snapshot of this cached response, or null if the response needs to be parsed.
+	 * The response is closed if a snapshot is returned.
+	 */
+	static SiteListSnapshot get(String url, WrappedHttpResponse response) {
+		File dir = installedDir;
+		if(dir == null || response.cacheTimestamp == 0) {
+			return null;
+		}
+
+		File file = new File(dir, DiskLruResponseCache.key(url));
+		if(!file.exists()) {
+			return null;
+		}
+
+		SiteListSnapshot snapshot;
+		try {
+			snapshot = open(file, url, response.cacheTimestamp);
+		} catch(IOException ioe) {
+			LOG.warn("failed to open site list snapshot for " + url, ioe);
+			return null;
+		}
+
+		if(snapshot == null) {
+			return null;
+		}
+
+		try {
+			response.responseStream.close();
+		} catch(IOException ioe) {
+			LOG.warn("failed to close InputStream: ", ioe);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the most recent snapshot of this URL, whichever response it was written from, or null
+	 * if there isn't one
+	 */
+	static SiteListSnapshot getLatest(String url) {
+		File dir = installedDir;
+		if(dir == null) {
+			return null;
+		}
+
+		File file = new File(dir, DiskLruResponseCache.key(url));
+		if(!file.exists()) {
+			return null;
+		}
+
+		try {
+			return open(file, url, null);
+		} catch(IOException ioe) {
+			LOG.warn("failed to open site list snapshot for " + url, ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * @param cacheTimestamp null to accept a snapshot of any copy of the response
+	 * @return null if the file is a snapshot of a different URL or a different copy of its response
+	 */
+	static SiteListSnapshot open(File file, String url, Long cacheTimestamp) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			//the mapping remains valid after the file is closed, or replaced by a newer snapshot
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if(buffer.getInt(HEADER_MAGIC) != MAGIC
+				|| buffer.getInt(HEADER_VERSION) != FORMAT_VERSION
+				|| (cacheTimestamp != null && buffer.getLong(HEADER_CACHE_TIMESTAMP) != cacheTimestamp)) {
+			return null;
+		}
+
+		SiteListSnapshot snapshot = new SiteListSnapshot(buffer);
+
+		if(!url.equals(snapshot.getString(buffer.getInt(HEADER_URL)))) {
+			//hash collision
+			return null;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param visitor receives each site as it is parsed
+	 * @return a visitor which also writes the sites to a snapshot of the response, or null if
+	 * the response can't be snapshotted
+	 */
+	static Writer newWriter(String url, WrappedHttpResponse response, SiteListVisitor visitor) {
+		if(response.cacheTimestamp == 0) {
+			return null;
+		}
+		return newWriter(url, response.cacheTimestamp, visitor);
+	}
+
+	/**
+	 * @param cacheTimestamp 0 if the snapshot isn't backed by a cached response, so it is only
+	 * returned by {@link #getLatest(String)}
+	 * @param visitor receives each site as it is written; may be null
+	 * @return null if snapshots aren't installed
+	 */
+	static Writer newWriter(String url, long cacheTimestamp, SiteListVisitor visitor) {
+		File dir = installedDir;
+		if(dir == null) {
+			return null;
+		}
+		return new Writer(new File(dir, DiskLruResponseCache.key(url)), url, cacheTimestamp, visitor);
+	}
+
+	public int size() {
+		return siteCount;
+	}
+
+	/**
+	 * @return the token to send to the site list endpoint for the changes since this snapshot,
+	 * or null if the endpoint didn't provide one
+	 */
+	String getSyncToken() {
+		int offset = buffer.getInt(HEADER_SYNC_TOKEN);
+		return (offset == -1) ? null : getString(offset);
+	}
+
+	/**
+	 * @return when the sync token was received
+	 */
+	long getSyncTime() {
+		return buffer.getLong(HEADER_SYNC_TIME);
+	}
+
+	public SiteData getSiteData(int index) {
+		return record(index).toSiteData();
+	}
+
+	public Site getSite(int index) {
+		return record(index).toSite();
+	}
+
+	private Record record(int index) {
+		if(index < 0 || index >= siteCount) {
+			throw new IndexOutOfBoundsException("index: " + index + " size: " + siteCount);
+		}
+		Record record = new Record();
+		record.position = index;
+		return record;
+	}
+
+	/**
+	 * Index the locations of the sites in some snapshots.  The index only holds the coordinates
+	 * and position of each site, and reads anything else from the snapshots when a query needs it.
+	 * A site that is in more than one snapshot is only indexed once.
+	 */
+	static SiteGridIndex index(List<SiteListSnapshot> snapshots) {
+		IndexRecords records = new IndexRecords(snapshots);
+		SiteGridIndex index = new SiteGridIndex(records);
+
+		Set<String> indexed = (records.snapshots.length > 1) ? new HashSet<String>() : null;
+
+		for(int a = 0; a < records.snapshots.length; a++) {
+			SiteListSnapshot snapshot = records.snapshots[a];
+			Record record = snapshot.new Record();
+			for(record.position = 0; record.position < snapshot.siteCount; record.position++) {
+				double latitude = record.getLatitude();
+				double longitude = record.getLongitude();
+				if(Double.isNaN(latitude) || Double.isNaN(longitude)) {
+					continue;
+				}
+				if(indexed != null && !indexed.add(record.getAgency() + "/" + record.getId())) {
+					continue;
+				}
+				index.add(records.firstRecords[a] + record.position, latitude, longitude);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Numbers the sites of several snapshots one after the other.
+	 */
+	private static class IndexRecords implements SiteGridIndex.Records {
+		final SiteListSnapshot[] snapshots;
+
+		/** record number of the first site of each snapshot */
+		final int[] firstRecords;
+
+		IndexRecords(List<SiteListSnapshot> snapshots) {
+			int nonEmpty = 0;
+			for(SiteListSnapshot snapshot: snapshots) {
+				if(snapshot.siteCount > 0) {
+					nonEmpty++;
+				}
+			}
+			this.snapshots = new SiteListSnapshot[nonEmpty];
+			this.firstRecords = new int[nonEmpty];
+
+			int a = 0;
+			int recordCount = 0;
+			for(SiteListSnapshot snapshot: snapshots) {
+				if(snapshot.siteCount > 0) {
+					this.snapshots[a] = snapshot;
+					this.firstRecords[a++] = recordCount;
+					recordCount += snapshot.siteCount;
+				}
+			}
+		}
+
+		private Record record(int record) {
+			int a = Arrays.binarySearch(firstRecords, record);
+			if(a < 0) {
+				a = -a - 2;
+			}
+			return snapshots[a].record(record - firstRecords[a]);
+		}
+
+		@Override
+		public Site getSite(int record) {
+			return record(record).toSite();
+		}
+
+		@Override
+		public String getAgency(int record) {
+			return record(record).getAgency();
+		}
+
+		@Override
+		public boolean hasVariable(int record, CommonVariable variable) {
+			Record r = record(record);
+			int count = r.getVariableCount();
+			for(int a = 0; a < count; a++) {
+				if(VariableRegistry.getVariable(r.getVariableId(a)).getCommonVariable() == variable) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Pass each site to a visitor, in the order they appeared in the site list.
+	 * @return false if the visitor stopped early
+	 */
+	public boolean visit(SiteListVisitor visitor) {
+		Record record = new Record();
+		for(record.position = 0; record.position < siteCount; record.position++) {
+			if(!visitor.visit(record)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getString(int offset) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(heapOffset + offset);
+		byte[] bytes = new byte[source.getShort() & 0xffff];
+		source.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new RuntimeException(uee);
+		}
+	}
+
+	private class Record extends SiteRecord {
+		int position;
+
+		private int field(int offset) {
+			return recordsOffset + (position * recordSize) + offset;
+		}
+
+		@Override
+		public int getRemoteId() {
+			return buffer.getInt(field(RECORD_REMOTE_ID));
+		}
+
+		@Override
+		public String getAgency() {
+			return getString(buffer.getInt(field(RECORD_AGENCY)));
+		}
+
+		@Override
+		public String getId() {
+			return getString(buffer.getInt(field(RECORD_ID)));
+		}
+
+		@Override
+		public String getName() {
+			return getString(buffer.getInt(field(RECORD_NAME)));
+		}
+
+		@Override
+		public USState getState() {
+			return USState.valueOf(getString(buffer.getInt(field(RECORD_STATE))));
+		}
+
+		@Override
+		public double getLatitude() {
+			return buffer.getDouble(field(RECORD_LATITUDE));
+		}
+
+		@Override
+		public double getLongitude() {
+			return buffer.getDouble(field(RECORD_LONGITUDE));
+		}
+
+		@Override
+		public int getVariableCount() {
+			return buffer.getShort(heapOffset + buffer.getInt(field(RECORD_VARIABLES))) & 0xffff;
+		}
+
+		@Override
+		public int getVariableId(int index) {
+			if(index < 0 || index >= getVariableCount()) {
+				throw new ArrayIndexOutOfBoundsException(index);
+			}
+			int listOffset = heapOffset + buffer.getInt(field(RECORD_VARIABLES));
+			return registryIds[buffer.getShort(listOffset + 2 + (index * 2)) & 0xffff];
+		}
+
+		@Override
+		public boolean hasVariable(int variableId) {
+			int tableIndex = (variableId >= 0 && variableId < tableIndexes.length) ? tableIndexes[variableId] : -1;
+			if(tableIndex == -1) {
+				return false;
+			}
+			long word = buffer.getLong(field(RECORD_BITMAP) + ((tableIndex >>> 6) * 8));
+			return (word & (1L << (tableIndex & 63))) != 0;
+		}
+
+		@Override
+		Variable getRecentReadingVariable() {
+			int tableIndex = buffer.getInt(field(RECORD_RECENT_VARIABLE));
+			return (tableIndex == -1) ? null : VariableRegistry.getVariable(registryIds[tableIndex]);
+		}
+	}
+
+	/**
+	 * Copies each site it visits into a new snapshot, which replaces the existing one when
+	 * {@link #commit()} is called.
+	 * <p>
+	 * Records and the heap are streamed to temporary files next to the snapshot as sites are
+	 * visited, so only the heap offsets of distinct strings and variable lists are kept in memory.
+	 */
+	static class Writer implements SiteListVisitor {
+
+		private final File file;
+		private final String url;
+		private final long cacheTimestamp;
+		private final SiteListVisitor visitor;
+
+		/** variables are stored by their VariableRegistry ID as of when the snapshot was written */
+		private final int variableCount = VariableRegistry.size();
+		private final int bitmapWords = (variableCount + 63) / 64;
+		private final long[] bitmap = new long[bitmapWords];
+
+		/** the new snapshot: space for the header and variable table, followed by the records */
+		private File recordsFile;
+		private DataOutputStream records;
+		private int siteCount = 0;
+
+		/** appended to the records when the snapshot is committed */
+		private File heapFile;
+		private DataOutputStream heap;
+		private final Map<String, Integer> heapOffsets = new HashMap<String, Integer>();
+
+		private final StringBuilder variableListKey = new StringBuilder();
+
+		private String syncToken;
+
+		/** set if the snapshot can't be completed */
+		private boolean abandoned = false;
+
+		Writer(File file, String url, long cacheTimestamp, SiteListVisitor visitor) {
+			this.file = file;
+			this.url = url;
+			this.cacheTimestamp = cacheTimestamp;
+			this.visitor = visitor;
+		}
+
+		@Override
+		public boolean visit(SiteRecord site) {
+			if(!abandoned) {
+				try {
+					writeRecord(site);
+				} catch(IOException ioe) {
+					LOG.warn("can't write site list snapshot for " + url, ioe);
+					discard();
+				}
+			}
+
+			if(visitor != null && !visitor.visit(site)) {
+				//the rest of the list isn't read
+				discard();
+				return false;
+			}
+			return true;
+		}
+
+		private void open() throws IOException {
+			File dir = file.getParentFile();
+			recordsFile = File.createTempFile(file.getName() + "-", TEMP_SUFFIX, dir);
+			records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordsFile), 8192));
+			heapFile = File.createTempFile(file.getName() + "-heap-", TEMP_SUFFIX, dir);
+			heap = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(heapFile), 8192));
+
+			//filled in by commit()
+			records.write(new byte[HEADER_SIZE + (variableCount * 8)]);
+		}
+
+		private void writeRecord(SiteRecord site) throws IOException {
+			if(records == null) {
+				open();
+			}
+
+			records.writeInt(site.getRemoteId());
+			records.writeInt(string(site.getAgency()));
+			records.writeInt(string(site.getId()));
+			records.writeInt(string(site.getName()));
+			records.writeInt(string(site.getState().name()));
+			records.writeDouble(site.getLatitude());
+			records.writeDouble(site.getLongitude());
+
+			Variable recentReadingVariable = site.getRecentReadingVariable();
+			records.writeInt(recentReadingVariable == null ? -1 : VariableRegistry.getId(recentReadingVariable));
+
+			for(int a = 0; a < bitmapWords; a++) {
+				bitmap[a] = 0;
+			}
+			variableListKey.setLength(0);
+			variableListKey.append('\u0000');
+			int count = site.getVariableCount();
+			for(int a = 0; a < count; a++) {
+				int id = site.getVariableId(a);
+				bitmap[id >>> 6] |= 1L << (id & 63);
+				variableListKey.append((char)id);
+			}
+			records.writeInt(variableList(site, variableListKey.toString()));
+
+			for(long word: bitmap) {
+				records.writeLong(word);
+			}
+
+			siteCount++;
+		}
+
+		/**
+		 * @return the heap offset of a string, adding it to the heap if it isn't there already
+		 */
+		private int string(String s) throws IOException {
+			Integer offset = heapOffsets.get(s);
+			if(offset != null) {
+				return offset;
+			}
+			byte[] bytes = s.getBytes("UTF-8");
+			if(bytes.length > 0xffff) {
+				throw new IOException("string too long for site list snapshot");
+			}
+			offset = heap.size();
+			heap.writeShort(bytes.length);
+			heap.write(bytes);
+			heapOffsets.put(s, offset);
+			return offset;
+		}
+
+		/**
+		 * @param key identifies the list, and can't clash with a string since it starts with a NUL
+		 * @return the heap offset of the site's variable list
+		 */
+		private int variableList(SiteRecord site, String key) throws IOException {
+			Integer offset = heapOffsets.get(key);
+			if(offset != null) {
+				return offset;
+			}
+			offset = heap.size();
+			int count = site.getVariableCount();
+			heap.writeShort(count);
+			for(int a = 0; a < count; a++) {
+				heap.writeShort(site.getVariableId(a));
+			}
+			heapOffsets.put(key, offset);
+			return offset;
+		}
+
+		void setSyncToken(String syncToken) {
+			this.syncToken = syncToken;
+		}
+
+		/**
+		 * Replace the existing snapshot, if the whole site list has been visited.  The temporary
+		 * files are removed either way.
+		 * @return true if the snapshot was replaced
+		 */
+		boolean commit() {
+			if(abandoned) {
+				return false;
+			}
+
+			try {
+				if(records == null) {
+					open();
+				}
+
+				int urlOffset = string(url);
+				int syncTokenOffset = (syncToken == null) ? -1 : string(syncToken);
+
+				int[] tableOffsets = new int[variableCount * 2];
+				for(int a = 0; a < variableCount; a++) {
+					tableOffsets[a * 2] = string(VariableRegistry.getAgency(a));
+					tableOffsets[(a * 2) + 1] = string(VariableRegistry.getVariable(a).getId());
+				}
+
+				int heapOffset = records.size();
+
+				heap.close();
+				heap = null;
+				FileInputStream heapIn = new FileInputStream(heapFile);
+				try {
+					byte[] b = new byte[8192];
+					int count;
+					while((count = heapIn.read(b)) != -1) {
+						records.write(b, 0, count);
+					}
+				} finally {
+					heapIn.close();
+				}
+				records.close();
+				records = null;
+
+				ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(HEADER_SIZE + (variableCount * 8));
+				DataOutputStream header = new DataOutputStream(headerBytes);
+				header.writeInt(MAGIC);
+				header.writeInt(FORMAT_VERSION);
+				header.writeLong(cacheTimestamp);
+				header.writeInt(siteCount);
+				header.writeInt(variableCount);
+				header.writeInt(RECORD_BITMAP + (bitmapWords * 8));
+				header.writeInt(heapOffset);
+				header.writeInt(urlOffset);
+				header.writeInt(syncTokenOffset);
+				header.writeLong(syncToken == null ? 0 : System.currentTimeMillis());
+				for(int tableOffset: tableOffsets) {
+					header.writeInt(tableOffset);
+				}
+
+				RandomAccessFile raf = new RandomAccessFile(recordsFile, "rw");
+				try {
+					raf.write(headerBytes.toByteArray());
+					raf.getFD().sync();
+				} finally {
+					raf.close();
+				}
+
+				if(!recordsFile.renameTo(file)) {
+					//some platforms won't rename over an existing file
+					file.delete();
+					if(!recordsFile.renameTo(file)) {
+						throw new IOException("could not rename " + recordsFile + " to " + file);
+					}
+				}
+				recordsFile = null;
+				generation.incrementAndGet();
+
+				if(LOG.isInfoEnabled()) LOG.info("wrote site list snapshot of " + siteCount + " sites for " + url);
+				return true;
+			} catch(IOException ioe) {
+				LOG.warn("failed to write site list snapshot for " + url, ioe);
+				return false;
+			} finally {
+				discard();
+			}
+		}
+
+		/**
+		 * Give up on the snapshot, removing its temporary files.  Does nothing after
+		 * {@link #commit()}, so it can be called whether or not the site list was visited completely.
+		 */
+		void discard() {
+			abandoned = true;
+			if(records != null) {
+				closeQuietly(records);
+				records = null;
+			}
+			if(heap != null) {
+				closeQuietly(heap);
+				heap = null;
+			}
+			if(recordsFile != null) {
+				recordsFile.delete();
+				recordsFile = null;
+			}
+			if(heapFile != null) {
+				heapFile.delete();
+				heapFile = null;
+			}
+		}
+
+		private void closeQuietly(DataOutputStream out) {
+			try {
+				out.close();
+			} catch(IOException ioe) {
+				LOG.warn("failed to close site list snapshot for " + url, ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Series;
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+import com.riverflows.data.WrappedHttpResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the snapshot of a site list up to date by asking the site list endpoint only for the
+ * sites that have changed.
+ * <p>
+ * A site list which supports this includes a <code>#sync_token</code> line, whose second column
+ * is stored with the list's {@link SiteListSnapshot}.  Adding <code>since=&lt;token&gt;</code> to
+ * the list's URL returns a list that starts with a <code>#delta</code> line, followed by a line
+ * for each added or changed site and a <code>-&lt;tab&gt;agency&lt;tab&gt;id</code> line for each
+ * removed site, along with the next sync token.  If the token has expired, the endpoint either
+ * responds with a 404 or 410 or returns the whole list without a <code>#delta</code> line.  A
+ * response without a sync token is treated the same way as an expired token.
+ */
+class SiteListSync {
+
+	private static final Log LOG = LogFactory.getLog(SiteListSync.class);
+
+	enum Result {
+		/** the visitor has been given every site */
+		VISITED,
+		/** the list has no sync token, so it must be loaded as usual */
+		UNAVAILABLE,
+		/** the sync token has expired, so the whole list must be downloaded again */
+		EXPIRED
+	}
+
+	/**
+	 * Receives the comment and deletion lines of a site list.
+	 */
+	static class Directives {
+		String syncToken;
+		boolean delta = false;
+
+		/** agency/id of each removed site */
+		final Set<String> deleted = new HashSet<String>();
+
+		void readComment(RdbReader reader) {
+			if(reader.fieldEquals(0, "#delta")) {
+				delta = true;
+			} else if(reader.fieldEquals(0, "#sync_token") && reader.getFieldCount() > 1) {
+				syncToken = reader.getField(1).trim();
+			}
+		}
+
+		void readDeletion(RdbReader reader) {
+			if(reader.getFieldCount() < 3) {
+				LOG.error("invalid deletion: " + reader.getLine());
+				return;
+			}
+			deleted.add(key(reader.getField(1).trim(), reader.getField(2).trim()));
+		}
+	}
+
+	/** null to connect directly */
+	private final HttpClientWrapper wrapper;
+
+	/** don't ask for changes more often than this, unless it's a hard refresh */
+	private final long minSyncInterval;
+
+	SiteListSync(HttpClientWrapper wrapper, long minSyncInterval) {
+		this.wrapper = wrapper;
+		this.minSyncInterval = minSyncInterval;
+	}
+
+	/**
+	 * @return the same key as {@link SiteId#SiteId(String, String)}
+	 */
+	private static String key(String agency, String id) {
+		return agency + "/" + id;
+	}
+
+	Result visit(String url, boolean hardRefresh, SiteListVisitor visitor) throws IOException {
+		SiteListSnapshot snapshot = SiteListSnapshot.getLatest(url);
+		if(snapshot == null) {
+			return Result.UNAVAILABLE;
+		}
+		String syncToken = snapshot.getSyncToken();
+		if(syncToken == null) {
+			return Result.UNAVAILABLE;
+		}
+
+		if(!hardRefresh && System.currentTimeMillis() - snapshot.getSyncTime() < minSyncInterval) {
+			snapshot.visit(visitor);
+			return Result.VISITED;
+		}
+
+		String deltaUrl = url + (url.indexOf('?') == -1 ? '?' : '&') + "since=" + URLEncoder.encode(syncToken, "UTF-8");
+
+		if(LOG.isInfoEnabled()) LOG.info("site list delta URL: " + deltaUrl);
+
+		long startTime = System.currentTimeMillis();
+
+		WrappedHttpResponse response;
+		try {
+			response = (wrapper == null) ? connect(deltaUrl) : wrapper.doGet(deltaUrl, true);
+		} catch(FileNotFoundException fnfe) {
+			//HttpURLConnection's response to a 404 or 410
+			return Result.EXPIRED;
+		}
+
+		Directives directives = new Directives();
+		final Map<String, SiteData> upserts = new LinkedHashMap<String, SiteData>();
+
+		InputStream in = response.responseStream;
+		try {
+			if(response.statusCode == HttpURLConnection.HTTP_NOT_FOUND || response.statusCode == HttpURLConnection.HTTP_GONE) {
+				return Result.EXPIRED;
+			}
+			if(response.statusCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("unexpected response to " + deltaUrl + ": " + response.statusCode + " " + response.message);
+			}
+			in = new BufferedInputStream(response.responseStream, 8192);
+			DataSourceController.visitSiteList(in, new SiteListVisitor() {
+				@Override
+				public boolean visit(SiteRecord site) {
+					upserts.put(key(site.getAgency(), site.getId()), site.toSiteData());
+					return true;
+				}
+			}, directives);
+		} finally {
+			try {
+				if(in != null) {
+					in.close();
+				}
+			} catch(IOException ioe) {
+				LOG.error("failed to close InputStream: ", ioe);
+			}
+		}
+
+		if(directives.syncToken == null) {
+			//a snapshot without a token can't be synced again, and would be replaced by the
+			// list from the HTTP cache the next time it's loaded
+			LOG.warn("no sync token in site list delta for " + url);
+			return Result.EXPIRED;
+		}
+
+		if(!directives.delta) {
+			if(LOG.isInfoEnabled()) LOG.info("site list sync token expired; received full list of " + upserts.size() + " sites");
+			snapshot = null;
+		} else {
+			if(LOG.isInfoEnabled()) LOG.info("received " + upserts.size() + " changed and " + directives.deleted.size()
+					+ " removed sites in " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+
+		SiteListSnapshot.Writer writer = SiteListSnapshot.newWriter(url, 0L, visitor);
+		if(writer == null) {
+			//snapshots have been uninstalled
+			return Result.UNAVAILABLE;
+		}
+		writer.setSyncToken(directives.syncToken);
+
+		try {
+			if(!merge(snapshot, upserts, directives.deleted, writer)) {
+				//the visitor stopped early
+				return Result.VISITED;
+			}
+			writer.commit();
+		} finally {
+			writer.discard();
+		}
+		return Result.VISITED;
+	}
+
+	private static WrappedHttpResponse connect(String url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+
+		conn.setRequestProperty("Accept", "text/csv");
+
+		//changes are stored in the snapshot, not the HTTP cache
+		conn.setUseCaches(false);
+
+		DataSourceController.prepareConnection(conn);
+
+		int statusCode = conn.getResponseCode();
+		if(statusCode != HttpURLConnection.HTTP_OK) {
+			return new WrappedHttpResponse(conn.getErrorStream(), null, statusCode, conn.getResponseMessage());
+		}
+		return new WrappedHttpResponse(conn.getInputStream(), null, statusCode, conn.getResponseMessage());
+	}
+
+	/**
+	 * Write the sites of a snapshot to a writer, replacing and removing the given sites. Changed
+	 * sites stay in place, and new ones are added at the end.
+	 * @param snapshot null if the upserts are the whole list
+	 * @return false if the writer's visitor stopped early
+	 */
+	private static boolean merge(SiteListSnapshot snapshot, final Map<String, SiteData> upserts, final Set<String> deleted,
+			final SiteListSnapshot.Writer writer) {
+		final SiteDataRecord upsertRecord = new SiteDataRecord();
+
+		if(snapshot != null) {
+			boolean completed = snapshot.visit(new SiteListVisitor() {
+				@Override
+				public boolean visit(SiteRecord site) {
+					String key = key(site.getAgency(), site.getId());
+					if(deleted.contains(key)) {
+						return true;
+					}
+					SiteData upsert = upserts.remove(key);
+					if(upsert == null) {
+						return writer.visit(site);
+					}
+					upsertRecord.setSiteData(upsert);
+					return writer.visit(upsertRecord);
+				}
+			});
+			if(!completed) {
+				return false;
+			}
+		}
+
+		for(SiteData upsert: upserts.values()) {
+			upsertRecord.setSiteData(upsert);
+			if(!writer.visit(upsertRecord)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A site that has already been materialized.
+	 */
+	private static class SiteDataRecord extends SiteRecord {
+		private SiteData data;
+		private Site site;
+		private int[] variableIds;
+
+		void setSiteData(SiteData data) {
+			this.data = data;
+			this.site = data.getSite();
+
+			Variable[] variables = site.getSupportedVariables();
+			variableIds = new int[variables.length];
+			for(int a = 0; a < variables.length; a++) {
+				variableIds[a] = VariableRegistry.getId(variables[a]);
+			}
+		}
+
+		@Override
+		public int getRemoteId() {
+			return site.getSiteId().getPrimaryKey();
+		}
+
+		@Override
+		public String getAgency() {
+			return site.getAgency();
+		}
+
+		@Override
+		public String getId() {
+			return site.getId();
+		}
+
+		@Override
+		public String getName() {
+			return site.getName();
+		}
+
+		@Override
+		public USState getState() {
+			return site.getState();
+		}
+
+		@Override
+		public double getLatitude() {
+			return (site.getLatitude() == null) ? Double.NaN : site.getLatitude();
+		}
+
+		@Override
+		public double getLongitude() {
+			return (site.getLongitude() == null) ? Double.NaN : site.getLongitude();
+		}
+
+		@Override
+		public int getVariableCount() {
+			return variableIds.length;
+		}
+
+		@Override
+		public int getVariableId(int index) {
+			return variableIds[index];
+		}
+
+		@Override
+		Variable getRecentReadingVariable() {
+			for(Series series: data.getDatasets().values()) {
+				return series.getVariable();
+			}
+			return null;
+		}
+	}
+}
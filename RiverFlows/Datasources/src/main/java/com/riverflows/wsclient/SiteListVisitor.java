@@ -0,0 +1,15 @@
+package com.riverflows.wsclient;
+
+/**
+ * Receives the sites in a site list one at a time, while the list is still being read.
+ * @see DataSourceController#visitAllSites(boolean, SiteListVisitor)
+ */
+public interface SiteListVisitor {
+
+	/**
+	 * @param site only valid until this method returns. Use {@link SiteRecord#toSiteData()} to
+	 * keep a copy.
+	 * @return false to stop reading the list
+	 */
+	boolean visit(SiteRecord site);
+}
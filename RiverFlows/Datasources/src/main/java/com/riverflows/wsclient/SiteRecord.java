@@ -0,0 +1,138 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Series;
+import com.riverflows.data.Site;
+import com.riverflows.data.SiteData;
+import com.riverflows.data.SiteId;
+import com.riverflows.data.USState;
+import com.riverflows.data.Variable;
+
+/**
+ * The current site of a site list.  Fields are only decoded when they are asked for, so sites
+ * that a {@link SiteListVisitor} skips cost little more than the bytes they take up.
+ * <p>
+ * A record is reused for each site in the list; use {@link #toSiteData()} to keep a site.
+ */
+public abstract class SiteRecord {
+
+	SiteRecord() {
+	}
+
+	/**
+	 * @return the primary key of this site in the RiverFlows web service
+	 * @throws NumberFormatException
+	 */
+	public abstract int getRemoteId();
+
+	public abstract String getAgency();
+
+	public abstract String getId();
+
+	public abstract String getName();
+
+	/**
+	 * @throws IllegalArgumentException if the site list has an invalid state abbreviation
+	 */
+	public abstract USState getState();
+
+	/**
+	 * @return NaN if the site has no latitude
+	 */
+	public abstract double getLatitude();
+
+	/**
+	 * @return NaN if the site has no longitude
+	 */
+	public abstract double getLongitude();
+
+	/**
+	 * @return the number of this site's variables which are recognized by its agency
+	 */
+	public abstract int getVariableCount();
+
+	/**
+	 * @return the {@link VariableRegistry} integer ID of a variable
+	 */
+	public abstract int getVariableId(int index);
+
+	/**
+	 * @return the variable of the site's most recent reading, or null if the list doesn't have a
+	 * valid one
+	 */
+	abstract Variable getRecentReadingVariable();
+
+	public Variable getVariable(int index) {
+		return VariableRegistry.getVariable(getVariableId(index));
+	}
+
+	/**
+	 * @param variableId a {@link VariableRegistry} integer ID
+	 */
+	public boolean hasVariable(int variableId) {
+		int count = getVariableCount();
+		for(int a = 0; a < count; a++) {
+			if(getVariableId(a) == variableId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the site has coordinates and they are inside the given box. Boxes which
+	 * cross the antimeridian aren't supported.
+	 */
+	public boolean isWithin(double south, double west, double north, double east) {
+		double latitude = getLatitude();
+		if(!(latitude >= south && latitude <= north)) {
+			return false;
+		}
+		double longitude = getLongitude();
+		return longitude >= west && longitude <= east;
+	}
+
+	/**
+	 * @return a copy of this site's {@link Site}, without its recent reading
+	 */
+	Site toSite() {
+		SiteId siteId = new SiteId(getAgency(), getId());
+		siteId.setPrimaryKey(getRemoteId());
+
+		int variableCount = getVariableCount();
+		Variable[] supportedVariables = new Variable[variableCount];
+		for(int a = 0; a < variableCount; a++) {
+			supportedVariables[a] = getVariable(a);
+		}
+
+		Site site = new Site(siteId, getName(), getState(), supportedVariables);
+
+		double longitude = getLongitude();
+		double latitude = getLatitude();
+		if(!Double.isNaN(longitude) && !Double.isNaN(latitude)) {
+			site.setLongitude(longitude);
+			site.setLatitude(latitude);
+		}
+		return site;
+	}
+
+	/**
+	 * @return a copy of this site which remains valid after the list moves on to the next site
+	 */
+	public SiteData toSiteData() {
+		SiteData data = new SiteData();
+		data.setSite(toSite());
+
+		Variable recentReadingVariable = getRecentReadingVariable();
+		if(recentReadingVariable != null) {
+			//decided not to support this for the time being while I figure out a
+			// way to update the readings more efficiently
+			Series recentReadings = new Series();
+			recentReadings.setVariable(recentReadingVariable);
+			recentReadings.initReadings(0);
+
+			data.getDatasets().put(recentReadingVariable.getCommonVariable(), recentReadings);
+		}
+
+		return data;
+	}
+}
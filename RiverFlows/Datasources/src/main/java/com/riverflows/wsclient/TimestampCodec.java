@@ -0,0 +1,482 @@
+package com.riverflows.wsclient;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe replacement for the {@link SimpleDateFormat}s used to read agency timestamps.
+ * <p>
+ * The pattern is a SimpleDateFormat pattern. Numeric date and time fields (yyyy, MM, dd, HH,
+ * mm, ss, SSS), literals and numeric UTC offsets (Z or X) are parsed directly into epoch
+ * milliseconds, with the UTC offset of each local day cached per timezone. Patterns using
+ * any other field, and inputs the fast path doesn't understand, are handed to a per-thread
+ * SimpleDateFormat so that results and errors are the same as they always were.
+ */
+public class TimestampCodec {
+
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/** local times are never more than this far from UTC */
+	private static final long MAX_OFFSET_MILLIS = 14L * 60L * 60L * 1000L;
+
+	private static final int CACHE_SIZE = 16;
+
+	private static final int F_LITERAL = 0;
+	private static final int F_YEAR = 1;
+	private static final int F_MONTH = 2;
+	private static final int F_DAY = 3;
+	private static final int F_HOUR = 4;
+	private static final int F_MINUTE = 5;
+	private static final int F_SECOND = 6;
+	private static final int F_MILLIS = 7;
+	private static final int F_OFFSET = 8;
+
+	private final String pattern;
+
+	private final TimeZone defaultZone;
+
+	/** field type of each token, or null if the pattern can only be handled by SimpleDateFormat */
+	private final int[] tokenTypes;
+
+	/** literal text of F_LITERAL tokens */
+	private final String[] tokenLiterals;
+
+	/** number of digits to read for numeric tokens, or 0 to read as many as there are */
+	private final int[] tokenWidths;
+
+	private final boolean hasOffset;
+
+	/**
+	 * UTC offsets of recently-seen local days. Entries are immutable, so a thread can only
+	 * ever see a complete entry, possibly for a different zone or day.
+	 */
+	private final DayOffset[] offsetCache = new DayOffset[CACHE_SIZE];
+
+	private final ThreadLocal<SimpleDateFormat> fallbackFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(pattern);
+		}
+	};
+
+	private final ThreadLocal<Calendar> calendar = new ThreadLocal<Calendar>() {
+		@Override
+		protected Calendar initialValue() {
+			return new GregorianCalendar();
+		}
+	};
+
+	private static class DayOffset {
+		final TimeZone zone;
+		final long day;
+		final int offset;
+
+		DayOffset(TimeZone zone, long day, int offset) {
+			this.zone = zone;
+			this.day = day;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * @param pattern a SimpleDateFormat pattern
+	 */
+	public TimestampCodec(String pattern) {
+		this(pattern, null);
+	}
+
+	/**
+	 * @param pattern a SimpleDateFormat pattern
+	 * @param defaultZone zone used when none is passed in, or null for the JVM default zone
+	 */
+	public TimestampCodec(String pattern, TimeZone defaultZone) {
+		this.pattern = pattern;
+		this.defaultZone = defaultZone;
+
+		List<Integer> types = new ArrayList<Integer>();
+		List<String> literals = new ArrayList<String>();
+		List<Integer> counts = new ArrayList<Integer>();
+		boolean supported = true;
+		boolean offset = false;
+
+		int pos = 0;
+		while(pos < pattern.length()) {
+			char c = pattern.charAt(pos);
+
+			if(c == '\'') {
+				int end = pattern.indexOf('\'', pos + 1);
+				if(end == -1) {
+					throw new IllegalArgumentException("unterminated quote in " + pattern);
+				}
+				//'' is a literal quote
+				String literal = (end == pos + 1) ? "'" : pattern.substring(pos + 1, end);
+				types.add(F_LITERAL);
+				literals.add(literal);
+				counts.add(0);
+				pos = end + 1;
+				continue;
+			}
+
+			if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+				types.add(F_LITERAL);
+				literals.add(String.valueOf(c));
+				counts.add(0);
+				pos++;
+				continue;
+			}
+
+			int count = 1;
+			while(pos + count < pattern.length() && pattern.charAt(pos + count) == c) {
+				count++;
+			}
+			pos += count;
+
+			int type;
+			switch(c) {
+			case 'y':
+				//two-digit years are resolved relative to the current date
+				type = F_YEAR;
+				supported &= (count != 2);
+				break;
+			case 'M':
+				//month names
+				type = F_MONTH;
+				supported &= (count <= 2);
+				break;
+			case 'd':
+				type = F_DAY;
+				break;
+			case 'H':
+				type = F_HOUR;
+				break;
+			case 'm':
+				type = F_MINUTE;
+				break;
+			case 's':
+				type = F_SECOND;
+				break;
+			case 'S':
+				type = F_MILLIS;
+				break;
+			case 'Z':
+			case 'X':
+				type = F_OFFSET;
+				offset = true;
+				break;
+			default:
+				type = F_LITERAL;
+				supported = false;
+			}
+			types.add(type);
+			literals.add(null);
+			counts.add(count);
+		}
+
+		this.hasOffset = offset;
+
+		if(!supported) {
+			this.tokenTypes = null;
+			this.tokenLiterals = null;
+			this.tokenWidths = null;
+			return;
+		}
+
+		this.tokenTypes = new int[types.size()];
+		this.tokenLiterals = new String[types.size()];
+		this.tokenWidths = new int[types.size()];
+
+		for(int a = 0; a < tokenTypes.length; a++) {
+			tokenTypes[a] = types.get(a);
+			tokenLiterals[a] = literals.get(a);
+
+			//like SimpleDateFormat, only fields abutting another numeric field have a fixed width
+			boolean nextIsNumeric = (a + 1 < types.size())
+					&& types.get(a + 1) != F_LITERAL && types.get(a + 1) != F_OFFSET;
+			if(tokenTypes[a] != F_LITERAL && tokenTypes[a] != F_OFFSET && nextIsNumeric) {
+				tokenWidths[a] = counts.get(a);
+			}
+		}
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public Date parse(CharSequence text) throws ParseException {
+		return new Date(parseMillis(text, null));
+	}
+
+	public Date parse(CharSequence text, TimeZone zone) throws ParseException {
+		return new Date(parseMillis(text, zone));
+	}
+
+	public long parseMillis(CharSequence text) throws ParseException {
+		return parseMillis(text, null);
+	}
+
+	/**
+	 * Like {@link SimpleDateFormat#parse(String)}, text following a complete timestamp is ignored.
+	 * @param zone zone of the local time, or null to use this codec's default zone. Ignored if the
+	 * text includes a UTC offset.
+	 * @return milliseconds since the epoch
+	 */
+	public long parseMillis(CharSequence text, TimeZone zone) throws ParseException {
+		if(zone == null) {
+			zone = (defaultZone == null) ? TimeZone.getDefault() : defaultZone;
+		}
+
+		if(tokenTypes != null) {
+			long result = parseFast(text, zone);
+			if(result != Long.MIN_VALUE) {
+				return result;
+			}
+		}
+
+		return parseSlow(text.toString(), zone);
+	}
+
+	/**
+	 * @return epoch millis, or Long.MIN_VALUE if the text has to be handled by SimpleDateFormat
+	 */
+	private long parseFast(CharSequence text, TimeZone zone) {
+		int year = 1970;
+		int month = 1;
+		int day = 1;
+		long hour = 0;
+		long minute = 0;
+		long second = 0;
+		long millis = 0;
+		boolean sawOffset = false;
+		int offsetMillis = 0;
+
+		int pos = 0;
+		int length = text.length();
+
+		for(int t = 0; t < tokenTypes.length; t++) {
+			int type = tokenTypes[t];
+
+			if(type == F_LITERAL) {
+				String literal = tokenLiterals[t];
+				if(pos + literal.length() > length) {
+					return Long.MIN_VALUE;
+				}
+				for(int a = 0; a < literal.length(); a++) {
+					if(text.charAt(pos++) != literal.charAt(a)) {
+						return Long.MIN_VALUE;
+					}
+				}
+				continue;
+			}
+
+			if(type == F_OFFSET) {
+				if(pos >= length) {
+					return Long.MIN_VALUE;
+				}
+				char sign = text.charAt(pos++);
+				if(sign == 'Z') {
+					sawOffset = true;
+					offsetMillis = 0;
+					continue;
+				}
+				if(sign != '+' && sign != '-') {
+					return Long.MIN_VALUE;
+				}
+				if(pos + 2 > length) {
+					return Long.MIN_VALUE;
+				}
+				int offsetHours = twoDigits(text, pos);
+				pos += 2;
+				int offsetMinutes = 0;
+				if(pos < length && text.charAt(pos) == ':') {
+					pos++;
+				}
+				if(pos + 2 <= length && isDigit(text.charAt(pos))) {
+					offsetMinutes = twoDigits(text, pos);
+					pos += 2;
+				}
+				if(offsetHours < 0 || offsetMinutes < 0) {
+					return Long.MIN_VALUE;
+				}
+				offsetMillis = (offsetHours * 60 + offsetMinutes) * 60 * 1000;
+				if(sign == '-') {
+					offsetMillis = -offsetMillis;
+				}
+				sawOffset = true;
+				continue;
+			}
+
+			int width = tokenWidths[t];
+			int maxEnd = (width == 0) ? Math.min(length, pos + 9) : pos + width;
+			if(maxEnd > length) {
+				return Long.MIN_VALUE;
+			}
+			int value = 0;
+			int start = pos;
+			while(pos < maxEnd && isDigit(text.charAt(pos))) {
+				value = value * 10 + (text.charAt(pos) - '0');
+				pos++;
+			}
+			if(pos == start || (width != 0 && pos != maxEnd)) {
+				return Long.MIN_VALUE;
+			}
+
+			switch(type) {
+			case F_YEAR:
+				year = value;
+				break;
+			case F_MONTH:
+				month = value;
+				break;
+			case F_DAY:
+				day = value;
+				break;
+			case F_HOUR:
+				hour = value;
+				break;
+			case F_MINUTE:
+				minute = value;
+				break;
+			case F_SECOND:
+				second = value;
+				break;
+			case F_MILLIS:
+				millis = value;
+				break;
+			}
+		}
+
+		//leave the Julian calendar and out-of-range months to SimpleDateFormat
+		if(year < 1600 || month < 1 || month > 12) {
+			return Long.MIN_VALUE;
+		}
+
+		//days and times beyond their normal range roll over, like a lenient SimpleDateFormat
+		long epochDay = epochDay(year, month) + day - 1;
+		long localMillis = epochDay * MILLIS_PER_DAY
+				+ ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+
+		if(sawOffset) {
+			return localMillis - offsetMillis;
+		}
+
+		long localDay = floorDiv(localMillis, MILLIS_PER_DAY);
+		//TimeZone.getTimeZone() and getDefault() return a new copy every time, so the slot can't depend on identity
+		int cacheIndex = (int)((localDay ^ zone.getID().hashCode()) & (CACHE_SIZE - 1));
+
+		DayOffset cached = offsetCache[cacheIndex];
+		if(cached != null && cached.day == localDay && sameZone(cached.zone, zone)) {
+			return localMillis - cached.offset;
+		}
+
+		long dayStart = localDay * MILLIS_PER_DAY;
+		int offset = zone.getOffset(dayStart - MAX_OFFSET_MILLIS);
+		if(offset == zone.getOffset(dayStart + MILLIS_PER_DAY + MAX_OFFSET_MILLIS)) {
+			//no transition anywhere near this day
+			offsetCache[cacheIndex] = new DayOffset(zone, localDay, offset);
+			return localMillis - offset;
+		}
+
+		//daylight savings transition day; let Calendar resolve skipped and repeated times
+		Calendar cal = calendar.get();
+		cal.clear();
+		cal.setTimeZone(zone);
+		cal.set(Calendar.YEAR, year);
+		cal.set(Calendar.MONTH, month - 1);
+		cal.set(Calendar.DAY_OF_MONTH, day);
+		cal.set(Calendar.HOUR_OF_DAY, (int)hour);
+		cal.set(Calendar.MINUTE, (int)minute);
+		cal.set(Calendar.SECOND, (int)second);
+		cal.set(Calendar.MILLISECOND, (int)millis);
+		return cal.getTimeInMillis();
+	}
+
+	private long parseSlow(String text, TimeZone zone) throws ParseException {
+		SimpleDateFormat format = fallbackFormat.get();
+		format.setTimeZone(zone);
+
+		if(hasOffset) {
+			//SimpleDateFormat doesn't understand ISO-8601 offsets like -07:00
+			int colon = text.lastIndexOf(':');
+			int sign = Math.max(text.lastIndexOf('+'), text.lastIndexOf('-'));
+			if(sign != -1 && colon == sign + 3) {
+				String rfc822 = text.substring(0, colon) + text.substring(colon + 1);
+				Date result = format.parse(rfc822, new ParsePosition(0));
+				if(result != null) {
+					return result.getTime();
+				}
+			}
+		}
+
+		return format.parse(text).getTime();
+	}
+
+	public String format(Date date) {
+		return format(date, null);
+	}
+
+	/**
+	 * @param zone zone to format the date in, or null to use this codec's default zone
+	 */
+	public String format(Date date, TimeZone zone) {
+		if(zone == null) {
+			zone = (defaultZone == null) ? TimeZone.getDefault() : defaultZone;
+		}
+		SimpleDateFormat format = fallbackFormat.get();
+		format.setTimeZone(zone);
+		return format.format(date);
+	}
+
+	private static boolean sameZone(TimeZone a, TimeZone b) {
+		if(a == b) {
+			return true;
+		}
+		//TimeZone.getDefault() returns a new copy every time
+		return a.getID().equals(b.getID()) && a.hasSameRules(b);
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * @return the value of two digits, or -1 if they aren't digits
+	 */
+	private static int twoDigits(CharSequence text, int pos) {
+		char c1 = text.charAt(pos);
+		char c2 = text.charAt(pos + 1);
+		if(!isDigit(c1) || !isDigit(c2)) {
+			return -1;
+		}
+		return (c1 - '0') * 10 + (c2 - '0');
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if((x % y != 0) && ((x < 0) != (y < 0))) {
+			q--;
+		}
+		return q;
+	}
+
+	/**
+	 * @return days between 1970-01-01 and the first day of the given month of the
+	 * proleptic Gregorian calendar
+	 */
+	static long epochDay(int year, int month) {
+		//shift the year to start in March so the leap day comes last
+		long y = (month <= 2) ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		int m = (month + 9) % 12;
+		long dayOfYear = (153 * m + 2) / 5;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
@@ -3,7 +3,7 @@ package com.riverflows.wsclient;
 import com.riverflows.data.Favorite;
 import com.riverflows.data.FavoriteData;
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
+import com.riverflows.data.QualifierDictionary;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -14,26 +14,19 @@ import com.riverflows.data.Variable.CommonVariable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.ClientProtocolException;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.parser.Parser;
-import org.jsoup.select.Elements;
-import org.xml.sax.SAXException;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class USACEDataSource implements RESTDataSource {
 	
@@ -54,8 +47,15 @@ public class USACEDataSource implements RESTDataSource {
 	
 	private HttpClientWrapper httpClientWrapper = new DefaultHttpClientWrapper();
 	
+	private static final String SITE_DATA_HOST = "rivergages.mvr.usace.army.mil";
+	
+	/** loads the pages needed by one request at the same time */
+	private static final FetchExecutor requestExecutor = new FetchExecutor("usace-fetch", 3, 3);
+	
 	private static final Map<String,TimeZone> timeZoneMap = new HashMap<String,TimeZone>();
 	
+	private static final TimestampCodec READING_DATE_CODEC = new TimestampCodec("MM/dd/yyyy HH:mm");
+	
 	static {
 		timeZoneMap.put("Eastern Time Zone", TimeZone.getTimeZone("US/Eastern"));
 		timeZoneMap.put("Central Time Zone", TimeZone.getTimeZone("US/Central"));
@@ -77,6 +77,23 @@ public class USACEDataSource implements RESTDataSource {
 	};
 	
 	public static final String AGENCY = "USACE";
+	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 2;
+	
+	private static final int ROW_OTHER = 0;
+	private static final int ROW_INFO1 = 1;
+	private static final int ROW_INFO2 = 2;
+	private static final int ROW_TIMEZONE = 3;
+	private static final int ROW_HEADER = 4;
+	private static final int ROW_DATA = 5;
+	/** the current row has already been handled */
+	private static final int ROW_DONE = 6;
+	
+	/** hourly rows in the longest period we ask for; the row count isn't known until the table has been read */
+	private static final int EXPECTED_ROWS = 7 * 24;
+
+	static final QualifierDictionary QUALIFIERS = QualifierDictionary.register(AGENCY);
 
 	@Override
 	public String getAgency() {
@@ -85,21 +102,11 @@ public class USACEDataSource implements RESTDataSource {
 
 	@Override
 	public Variable getVariable(String variableId) {
-		for(Variable var: ACCEPTED_VARIABLES) {
-			if(var.getId().equals(variableId)) {
-				return var;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariable(AGENCY, variableId);
 	}
 	
 	private Variable getVariableByExactName(String exactName) {
-		for(Variable var: ACCEPTED_VARIABLES) {
-			if(exactName.equals(var.getExactName())) {
-				return var;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariableByExactName(AGENCY, exactName);
 	}
 
 	@Override
@@ -107,37 +114,156 @@ public class USACEDataSource implements RESTDataSource {
 		return ACCEPTED_VARIABLES;
 	}
 
+	/**
+	 * Requests each distinct page once, no matter how many favorites need it, and every page at the same time.
+	 * Each favorite gets the data from all of the pages requested for its site.
+	 */
 	@Override
 	public List<FavoriteData> getSiteData(List<Favorite> favorites,
 			boolean hardRefresh) throws ClientProtocolException, IOException {
-			//TODO if this is slow, we may have to fork each request off into its own thread, like AHPSXmlDataSource
-			List<FavoriteData> result = new ArrayList<FavoriteData>();
-            HashMap<SiteId, SiteData> siteData = new HashMap<SiteId, SiteData>(favorites.size());
-			Variable[] variables = new Variable[1];
-			for(Favorite favorite: favorites) {
-				variables[0] = getVariable(favorite.getVariable());
-				if(variables[0] == null) {
-					LOG.error("unknown variable: " + favorite.getVariable());
-					continue;
+		RequestPlan plan = new RequestPlan();
+		for(Favorite favorite: favorites) {
+			Variable variable = getVariable(favorite.getVariable());
+			if(variable != null) {
+				plan.add(favorite.getSite(), variable, 1);
+			}
+		}
+		
+		Map<SiteId, SiteData> siteData = plan.execute(hardRefresh);
+		
+		List<FavoriteData> result = new ArrayList<FavoriteData>(favorites.size());
+		for(Favorite favorite: favorites) {
+			Variable variable = getVariable(favorite.getVariable());
+			if(variable == null) {
+				LOG.error("unknown variable: " + favorite.getVariable());
+				continue;
+			}
+			
+			//each FavoriteData object returned contains data for other favorite
+			// variables at the same site, if there are any
+			SiteData data = siteData.get(favorite.getSite().getSiteId());
+			if(data == null) {
+				Exception error = plan.getFailure(favorite.getSite().getSiteId());
+				if(error == null) {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable);
+				} else {
+					data = DataSourceController.dataSourceDownData(favorite.getSite(), variable,
+							DataSourceController.failureQualifier(error));
 				}
+				result.add(new FavoriteData(favorite, data, variable, error));
+			} else {
+				result.add(new FavoriteData(favorite, data, variable));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Works out the distinct pages needed for a set of site/variable pairs and fetches them.
+	 * Every variable at a site comes back in the same page, except that stage and elevation
+	 * are alternatives chosen by the dt parameter, so a site never needs more than two pages.
+	 */
+	private class RequestPlan {
+		/** site of each distinct URL, in the order they were first needed */
+		private final Map<String, Site> urlSites = new LinkedHashMap<String, Site>();
+		
+		/** variable each URL was first needed for */
+		private final Map<String, Variable> urlVariables = new HashMap<String, Variable>();
+		
+		private final Map<SiteId, List<String>> siteUrls = new LinkedHashMap<SiteId, List<String>>();
+		
+		/** failure of each URL that couldn't be loaded */
+		private final Map<String, Exception> urlFailures = new HashMap<String, Exception>();
+		
+		void add(Site site, Variable variable, int days) {
+			String url = getSiteDataUrl(site.getId(), variable, days);
+			if(urlSites.containsKey(url)) {
+				return;
+			}
+			urlSites.put(url, site);
+			urlVariables.put(url, variable);
+			
+			List<String> urls = siteUrls.get(site.getSiteId());
+			if(urls == null) {
+				urls = new ArrayList<String>(2);
+				siteUrls.put(site.getSiteId(), urls);
+			}
+			urls.add(url);
+		}
+		
+		/**
+		 * @return the data from all of the pages for each site, or nothing for a site if all of its pages failed
+		 * @see FetchExecutor#awaitAll(Map, String, FetchExecutor.Callback)
+		 */
+		Map<SiteId, SiteData> execute(final boolean hardRefresh) throws IOException {
+			final Map<String, SiteData> urlData = new HashMap<String, SiteData>(urlSites.size());
+			
+			if(urlSites.size() == 1) {
+				String url = urlSites.keySet().iterator().next();
+				urlData.put(url, getSiteData(urlSites.get(url), urlVariables.get(url), url, hardRefresh));
+			} else {
+				Map<String, Future<SiteData>> futures = new LinkedHashMap<String, Future<SiteData>>(urlSites.size());
 				
-				SiteData newdata = getSiteData(favorite.getSite(), variables[0], getSiteDataUrl(favorite.getSite().getId(), variables[0], 1), hardRefresh);
+				for(final Map.Entry<String, Site> entry: urlSites.entrySet()) {
+					futures.put(entry.getKey(), requestExecutor.submit(SITE_DATA_HOST, new Callable<SiteData>() {
+						@Override
+						public SiteData call() throws IOException {
+							String url = entry.getKey();
+							return getSiteData(entry.getValue(), urlVariables.get(url), url, hardRefresh);
+						}
+					}));
+				}
 				
-				SiteData existingData = siteData.get(favorite.getSite().getSiteId());
-
-                //each FavoriteData object returned should contain data for other favorite
-                // variables at the same site, if there are any
-				if(existingData != null) {
-					Map<CommonVariable, Series> newDataSets = newdata.getDatasets();
-					existingData.getDatasets().putAll(newDataSets);
-				} else {
-                    existingData = newdata;
-					siteData.put(favorite.getSite().getSiteId(), newdata);
+				FetchExecutor.awaitAll(futures, futures.size() + " pages", new FetchExecutor.Callback<String, SiteData>() {
+					@Override
+					public void onResult(String url, SiteData data) {
+						urlData.put(url, data);
+					}
+					
+					@Override
+					public void onFailure(String url, Exception failure) {
+						urlFailures.put(url, failure);
+					}
+				});
+			}
+			
+			Map<SiteId, SiteData> result = new HashMap<SiteId, SiteData>(siteUrls.size());
+			
+			for(Map.Entry<SiteId, List<String>> entry: siteUrls.entrySet()) {
+				SiteData merged = null;
+				for(String url: entry.getValue()) {
+					SiteData data = urlData.get(url);
+					if(data == null) {
+						continue;
+					}
+					if(merged == null) {
+						merged = data;
+					} else {
+						merged.getDatasets().putAll(data.getDatasets());
+					}
+				}
+				if(merged != null) {
+					result.put(entry.getKey(), merged);
 				}
-
-                result.add(new FavoriteData(favorite, existingData, variables[0]));
 			}
 			return result;
+		}
+		
+		/**
+		 * @return the failure of the last of a site's pages that failed, or null if none of them did
+		 */
+		Exception getFailure(SiteId siteId) {
+			Exception failure = null;
+			List<String> urls = siteUrls.get(siteId);
+			if(urls != null) {
+				for(String url: urls) {
+					if(urlFailures.containsKey(url)) {
+						failure = urlFailures.get(url);
+					}
+				}
+			}
+			return failure;
+		}
 	}
 	
 	private String getSiteDataUrl(String siteId, Variable var, int days) {
@@ -157,16 +283,11 @@ public class USACEDataSource implements RESTDataSource {
 	@Override
 	public SiteData getSiteData(Site site, Variable[] variableTypes,
 			boolean hardRefresh) throws ClientProtocolException, IOException {
-		SiteData data = null;
+		RequestPlan plan = new RequestPlan();
 		for(Variable var:variableTypes) {
-			SiteData newData = getSiteData(site, var, getSiteDataUrl(site.getId(), var, 7), hardRefresh);
-			if(data == null) {
-				data = newData;
-			} else if(newData != null){
-				data.getDatasets().putAll(newData.getDatasets());
-			}
+			plan.add(site, var, 7);
 		}
-		return data;
+		return plan.execute(hardRefresh).get(site.getSiteId());
 	}
 
 	@Override
@@ -207,25 +328,26 @@ public class USACEDataSource implements RESTDataSource {
 				throw new IOException(response.statusCode + " " + response.message + " response from " + urlStr);
 			}
 			
+			data = ParsedDataCache.get(urlStr, PARSER_VERSION, response, sites);
+			if(data != null) {
+				return data;
+			}
+			
 			contentInputStream = response.responseStream;
 			
-			if(response.cacheFile == null) {
-				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			} else {
-				bufferedStream = new CachingBufferedInputStream(contentInputStream, 8192, response.cacheFile);
-			}
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192);
 			
 			data = parse(sites, variable, bufferedStream, urlStr);
 			
+			ParsedDataCache.put(urlStr, PARSER_VERSION, response, data);
+			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
-		} catch(Exception e) {
-			LOG.error("",e);
 		} finally {
 			try {
 				contentInputStream.close();
 				bufferedStream.close();
 			} catch(NullPointerException npe) {
-				//this is the result of an error which will have already been logged
+				//the request failed before there was a stream to close
 			} catch(IOException ioe) {
 				LOG.error("failed to close InputStream: ", ioe);
 			}
@@ -234,32 +356,20 @@ public class USACEDataSource implements RESTDataSource {
 		return data;
 	}
 
-	private SiteData parse(Site site, Variable variable, InputStream s, String sourceUrl) throws IOException, ParserConfigurationException, SAXException {
+	/**
+	 * Streams through the page looking for the frm_daily table, without building a DOM.  Only the
+	 * direct rows of the table are considered; its first row contains a table of its own.
+	 */
+	private SiteData parse(Site site, Variable variable, InputStream s, String sourceUrl) throws IOException {
 		SiteData data = new SiteData();
 		data.setSite(site);
 		
-		Document doc = Jsoup.parse(s, "iso-8859-1", sourceUrl, Parser.htmlParser());
-		
-		Elements timezoneRow = doc.select("form[name=frm_daily] > table > tbody > tr:eq(2)");
+		HtmlTagScanner scanner = new HtmlTagScanner(s);
 		
-		LOG.info("timezoneRow: " + timezoneRow);
-		
-		String timezone = timezoneRow.first().text().trim();
-		
-		LOG.info("timezone: " + timezone);
-		
-		TimeZone zone = timeZoneMap.get(timezone);
-		
-		if(zone == null) {
-			throw new DataParseException("no timezone found for " + timezone);
+		if(!skipToDataTable(scanner)) {
+			throw new DataParseException("could not find data table");
 		}
 		
-		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
-		dateFormat.setTimeZone(zone);
-
-		Elements infoRow1 = doc.select("form[name=frm_daily] > table > tbody > tr:eq(0) td");
-		Elements infoRow2 = doc.select("form[name=frm_daily] > table > tbody > tr.style11:gt(4) td");
-		
 		StringBuilder dataInfo = new StringBuilder();
 		dataInfo.append("<h2> <a href=\"" + getExternalSiteUrl(site.getId()) + "\">" + site.getName() + " (" + site.getId() + ")</a></h2>");
 		dataInfo.append("<h4>Source: <a href=\"");
@@ -267,104 +377,273 @@ public class USACEDataSource implements RESTDataSource {
 		dataInfo.append("\">RiverGages.com - United States Army Corps of Engineers</a></h4>");
 		dataInfo.append("<h5><a href=\"").append(sourceUrl).append("\">original data</a></h5><br/>");
 		
-		if(infoRow1.first() != null) {
-			dataInfo.append(infoRow1.first().html());
-		} else {
-			LOG.warn("could not find data info row 1");
-		}
+		StringBuilder info1 = null;
+		StringBuilder info2 = null;
 		
-		if(infoRow2.first() != null) {
-			String info2 = infoRow2.first().html();
-			
-			//convert to absolute URLs
-			dataInfo.append(info2.replace("/WaterControl/", SITE_DATA_URL));
-		} else {
-			LOG.warn("could not find data info row 2");
-		}
-		
-		if(LOG.isDebugEnabled()) LOG.debug("Data Info:" + dataInfo);
+		StringBuilder text = new StringBuilder();
+		List<String> headerNames = new ArrayList<String>();
 		
-		data.setDataInfo(dataInfo.toString());
+		TimeZone zone = null;
 		
-		Elements headerColumns = doc.select("form[name=frm_daily] > table > tbody > tr.style2 td");
+		Variable[] columns = null;
+		Series[] columnSeries = null;
 		
-		if(LOG.isInfoEnabled()) LOG.info("header columns: " + headerColumns.html());
+		//the values of the current data row
+		double[] rowValues = null;
+		String[] rowQualifiers = null;
+		long rowTime = 0L;
+		boolean rowTimeFound = false;
 		
-		Elements dataRows = doc.select("form[name=frm_daily] > table > tbody > tr.style3");
+		int tableDepth = 1;
+		int rowIndex = -1;
+		int rowType = ROW_OTHER;
+		int cellIndex = -1;
+		boolean inCell = false;
+		boolean cellHasText = false;
 		
-		Variable[] columns = parseColumns(headerColumns, data, dataRows.size(), sourceUrl);
+		//raw HTML of the first cell of an info row
+		StringBuilder capture = null;
 		
-		for(int rowIndex = (dataRows.size() - 1); rowIndex >= 0; rowIndex--) {
-			Element row = dataRows.get(rowIndex);
+		while(true) {
+			int token = scanner.next();
 			
-			if(LOG.isInfoEnabled()) LOG.info(row);
+			if(token == HtmlTagScanner.EOF) {
+				break;
+			}
 			
-			Elements dataColumns = row.select("td");
+			if(scanner.isTag("table")) {
+				tableDepth += (token == HtmlTagScanner.START_TAG) ? 1 : -1;
+			}
 			
-			if(dataColumns.size() != columns.length) {
-				LOG.error("unexpected number of columns in row " + rowIndex);
-				continue;
+			boolean rowEnd = tableDepth == 0
+					|| (tableDepth == 1 && (scanner.isEndTag("tr") || scanner.isStartTag("tr")));
+			
+			if(rowEnd && rowIndex >= 0 && rowType != ROW_DONE) {
+				switch(rowType) {
+				case ROW_TIMEZONE:
+					String timezone = text.toString().trim();
+					
+					LOG.info("timezone: " + timezone);
+					
+					zone = timeZoneMap.get(timezone);
+					
+					if(zone == null) {
+						throw new DataParseException("no timezone found for " + timezone);
+					}
+					break;
+				case ROW_HEADER:
+					if(LOG.isInfoEnabled()) LOG.info("header columns: " + headerNames);
+					
+					columns = parseColumns(headerNames, data, sourceUrl);
+					
+					//more than one column can map to the same common variable, in which case they share the last one's series
+					columnSeries = new Series[columns.length];
+					for(int colIndex = 1; colIndex < columns.length; colIndex++) {
+						if(columns[colIndex] != null) {
+							columnSeries[colIndex] = data.getDatasets().get(columns[colIndex].getCommonVariable());
+						}
+					}
+					rowValues = new double[columns.length];
+					rowQualifiers = new String[columns.length];
+					break;
+				case ROW_DATA:
+					if(cellIndex + 1 != columns.length) {
+						LOG.error("unexpected number of columns in row " + rowIndex);
+						break;
+					}
+					if(!rowTimeFound) {
+						break;
+					}
+					
+					//rows are newest first, so they are added backwards and reversed at the end
+					for(int colIndex = columns.length - 1; colIndex > 0; colIndex--) {
+						if(columnSeries[colIndex] != null) {
+							columnSeries[colIndex].addObservation(rowTime, rowValues[colIndex], rowQualifiers[colIndex]);
+						}
+					}
+					break;
+				}
+				rowType = ROW_DONE;
+				inCell = false;
 			}
 			
-			String dateStr = dataColumns.first().text().trim();
-			Date date = null;
+			if(tableDepth == 0) {
+				break;
+			}
 			
-			try {
-				date = dateFormat.parse(dateStr);
-			} catch(ParseException pe) {
-				LOG.error("couldn't parse date: " + dateStr,pe);
+			if(capture != null) {
+				if(rowEnd || (tableDepth == 1 && scanner.isTag("td"))) {
+					capture = null;
+					inCell = false;
+				} else {
+					scanner.appendRaw(capture);
+					continue;
+				}
+			}
+			
+			if(tableDepth != 1) {
 				continue;
 			}
 			
-			for(int colIndex = 1; colIndex < dataColumns.size(); colIndex++) {
+			if(scanner.isStartTag("tr")) {
+				rowIndex++;
+				cellIndex = -1;
 				
-				if(columns[colIndex] == null) {
-					//ignore column- this error has already been logged
-					continue;
+				if(rowIndex == 0) {
+					rowType = ROW_INFO1;
+				} else if(rowIndex == 2) {
+					rowType = ROW_TIMEZONE;
+					text.setLength(0);
+				} else if(scanner.hasClass("style2")) {
+					rowType = ROW_HEADER;
+				} else if(scanner.hasClass("style3")) {
+					if(columns == null) {
+						LOG.error("no header before row " + rowIndex);
+						rowType = ROW_OTHER;
+					} else if(zone == null) {
+						throw new DataParseException("no timezone found before row " + rowIndex);
+					} else {
+						rowType = ROW_DATA;
+						rowTimeFound = false;
+					}
+				} else if(rowIndex > 4 && info2 == null && scanner.hasClass("style11")) {
+					rowType = ROW_INFO2;
+				} else {
+					rowType = ROW_OTHER;
 				}
+				continue;
+			}
+			
+			if(scanner.isStartTag("td")) {
+				cellIndex++;
+				inCell = true;
+				cellHasText = false;
 				
-				String valueStr = dataColumns.get(colIndex).text().trim();
-				
-				if(LOG.isInfoEnabled()) LOG.info(dateStr + " " + valueStr + " (" + columns[colIndex] + ")");
-				
-				Reading r = new Reading();
-				
-				try {
-					r.setValue(Double.valueOf(valueStr));
-				} catch(NumberFormatException nfe) {
-					if(LOG.isInfoEnabled()) LOG.info("couldn't parse value: " + valueStr);
-					r.setQualifiers(valueStr);
+				if(cellIndex == 0 && rowType == ROW_INFO1) {
+					capture = info1 = new StringBuilder();
+				} else if(cellIndex == 0 && rowType == ROW_INFO2) {
+					capture = info2 = new StringBuilder();
+				} else if(rowType == ROW_HEADER) {
+					text.setLength(0);
+				} else if(rowType == ROW_DATA && cellIndex < columns.length) {
+					//an empty cell has no value
+					rowValues[cellIndex] = Double.NaN;
+					rowQualifiers[cellIndex] = "";
 				}
-				
-				r.setDate(date);
-				
-				Series series = data.getDatasets().get(columns[colIndex].getCommonVariable());
-
-				series.getReadings().add(r);
+				continue;
+			}
+			
+			if(scanner.isEndTag("td")) {
+				if(inCell && rowType == ROW_HEADER) {
+					headerNames.add(text.toString().trim());
+				}
+				inCell = false;
+				continue;
+			}
+			
+			if(token != HtmlTagScanner.TEXT || scanner.getTextLength() == 0) {
+				continue;
 			}
 			
+			if(rowType == ROW_TIMEZONE || (rowType == ROW_HEADER && inCell)) {
+				if(text.length() > 0) {
+					text.append(' ');
+				}
+				scanner.appendText(text);
+			} else if(rowType == ROW_DATA && inCell && !cellHasText && cellIndex < columns.length) {
+				cellHasText = true;
+				
+				if(cellIndex == 0) {
+					String dateStr = scanner.getText();
+					try {
+						rowTime = READING_DATE_CODEC.parseMillis(dateStr, zone);
+						rowTimeFound = true;
+					} catch(ParseException pe) {
+						LOG.error("couldn't parse date: " + dateStr,pe);
+					}
+				} else {
+					double value = scanner.parseTextDouble();
+					rowValues[cellIndex] = value;
+					
+					if(Double.isNaN(value)) {
+						String valueStr = scanner.getText();
+						if(LOG.isInfoEnabled()) LOG.info("couldn't parse value: " + valueStr);
+						rowQualifiers[cellIndex] = valueStr;
+					} else {
+						rowQualifiers[cellIndex] = null;
+					}
+				}
+			}
+		}
+		
+		if(columns == null) {
+			LOG.warn("could not find header row");
+		}
+		
+		for(Series series: data.getDatasets().values()) {
+			series.reverseObservations();
+		}
+		
+		if(info1 != null) {
+			dataInfo.append(info1);
+		} else {
+			LOG.warn("could not find data info row 1");
 		}
 		
-	    return data;
+		if(info2 != null) {
+			//convert to absolute URLs
+			dataInfo.append(info2.toString().replace("/WaterControl/", SITE_DATA_URL));
+		} else {
+			LOG.warn("could not find data info row 2");
+		}
+		
+		if(LOG.isDebugEnabled()) LOG.debug("Data Info:" + dataInfo);
+		
+		data.setDataInfo(dataInfo.toString());
+		
+		return data;
+	}
+	
+	/**
+	 * Advance to the start of the table in the frm_daily form.
+	 * @return false if there isn't one
+	 */
+	private static boolean skipToDataTable(HtmlTagScanner scanner) throws IOException {
+		boolean inForm = false;
+		while(true) {
+			int token = scanner.next();
+			if(token == HtmlTagScanner.EOF) {
+				return false;
+			}
+			if(token != HtmlTagScanner.START_TAG) {
+				continue;
+			}
+			if(scanner.isTag("form")) {
+				inForm = "frm_daily".equals(scanner.getAttribute("name"));
+			} else if(inForm && scanner.isTag("table")) {
+				return true;
+			}
+		}
 	}
 	
-	private Variable[] parseColumns(Elements headerColumns, SiteData data, int dataRowCount, String sourceUrl) {
-		Variable[] columns = new Variable[headerColumns.size()];
+	private Variable[] parseColumns(List<String> headerNames, SiteData data, String sourceUrl) {
+		Variable[] columns = new Variable[headerNames.size()];
 		
 		if(LOG.isInfoEnabled()) LOG.info("header column count: " + columns.length);
 		
 		//skip first column because it is the Date/Time column
-		for(int colIndex = 1; colIndex < headerColumns.size(); colIndex++) {
-			columns[colIndex] = getVariableByExactName(headerColumns.get(colIndex).text());
+		for(int colIndex = 1; colIndex < headerNames.size(); colIndex++) {
+			columns[colIndex] = getVariableByExactName(headerNames.get(colIndex));
 			if(columns[colIndex] == null) {
-				LOG.warn("no variable found for " + headerColumns.get(colIndex).text());
+				LOG.warn("no variable found for " + headerNames.get(colIndex));
 				continue;
 			}
 			
 			Series s = new Series();
+			s.setQualifierDictionary(QUALIFIERS);
 			s.setSourceUrl(sourceUrl);
 			s.setVariable(columns[colIndex]);
-			s.setReadings(new ArrayList<Reading>(dataRowCount));
+			s.initReadings(EXPECTED_ROWS);
 			
 			data.getDatasets().put(columns[colIndex].getCommonVariable(), s);
 		}
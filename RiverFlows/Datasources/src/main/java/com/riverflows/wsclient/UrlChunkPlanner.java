@@ -0,0 +1,80 @@
+package com.riverflows.wsclient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads the values of a list parameter, like USGS's <code>sites=</code>, across as few URLs as
+ * possible without letting any URL grow longer than servers and proxies will accept.
+ * <p>
+ * Values are packed into chunks in the order given. A value too long to share a URL with
+ * any other still gets a URL of its own.
+ */
+class UrlChunkPlanner {
+
+	private static final Log LOG = LogFactory.getLog(UrlChunkPlanner.class);
+
+	/** the longest URL that every server and proxy we talk to is known to accept */
+	static final int DEFAULT_MAX_URL_LENGTH = 2048;
+
+	private final String prefix;
+	private final String separator;
+	private final String suffix;
+	private final int maxUrlLength;
+
+	/**
+	 * @param prefix the URL up to and including the list parameter's name
+	 * @param separator what goes between the values
+	 * @param suffix the rest of the URL, if any
+	 */
+	UrlChunkPlanner(String prefix, String separator, String suffix, int maxUrlLength) {
+		this.prefix = prefix;
+		this.separator = separator;
+		this.suffix = (suffix == null) ? "" : suffix;
+		this.maxUrlLength = maxUrlLength;
+	}
+
+	/**
+	 * @return the values in each URL; empty values are left out
+	 */
+	List<String[]> plan(String[] values) {
+		List<String[]> chunks = new ArrayList<String[]>();
+		List<String> chunk = new ArrayList<String>();
+
+		int fixedLength = prefix.length() + suffix.length();
+		int length = fixedLength;
+
+		for(String value: values) {
+			if(value == null || value.length() == 0) {
+				continue;
+			}
+			int addedLength = chunk.isEmpty() ? value.length() : separator.length() + value.length();
+
+			if(!chunk.isEmpty() && length + addedLength > maxUrlLength) {
+				chunks.add(chunk.toArray(new String[chunk.size()]));
+				chunk.clear();
+				length = fixedLength;
+				addedLength = value.length();
+			}
+
+			if(chunk.isEmpty() && fixedLength + addedLength > maxUrlLength) {
+				LOG.warn("value too long for a " + maxUrlLength + " character URL: " + value);
+			}
+
+			chunk.add(value);
+			length += addedLength;
+		}
+
+		if(!chunk.isEmpty()) {
+			chunks.add(chunk.toArray(new String[chunk.size()]));
+		}
+		return chunks;
+	}
+
+	String getUrl(String[] chunk) {
+		return prefix + Utils.join(separator, chunk) + suffix;
+	}
+}
@@ -3,7 +3,7 @@ package com.riverflows.wsclient;
 import com.riverflows.data.Favorite;
 import com.riverflows.data.FavoriteData;
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
+import com.riverflows.data.QualifierDictionary;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -18,19 +18,19 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.ClientProtocolException;
 
 import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class UsgsCsvDataSource implements RESTDataSource {
 	
@@ -38,6 +38,17 @@ public class UsgsCsvDataSource implements RESTDataSource {
 	
 	public static final String AGENCY = "USGS";
 	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 1;
+
+	/** value codes shown in place of a reading, and approval codes */
+	static final QualifierDictionary QUALIFIERS = QualifierDictionary.register(AGENCY, "Ice", "Eqp", "Ssn", "Bkw", "Dis", "Mnt", "Rat", "ZFl", "Fld", "Pr", "Tst", "Dry", "***", "P", "A", "e");
+
+	/** one day of 15-minute readings; series grow as needed */
+	private static final int INITIAL_READING_CAPACITY = 96;
+
+	private static final TimestampCodec VALUE_DATE_CODEC = new TimestampCodec("yyyy-MM-dd HH:mm");
+	
 	public static final Variable VTYPE_STREAMFLOW_CFS = new Variable(CommonVariable.STREAMFLOW_CFS, "00060", -99999d);
 	public static final Variable VTYPE_GAUGE_HEIGHT_FT = new Variable(CommonVariable.GAUGE_HEIGHT_FT, "00065", -99999d);
 	public static final Variable VTYPE_GAUGE_HEIGHT_ABOVE_DATUM_M = new Variable(CommonVariable.GAUGE_HEIGHT_ABOVE_DATUM_M, "99065", -99999d);//Gage height, above datum, m
@@ -75,6 +86,17 @@ public class UsgsCsvDataSource implements RESTDataSource {
 	
 	private HttpClientWrapper httpClientWrapper = new DefaultHttpClientWrapper();
 	
+	private static final String SITE_DATA_HOST = "waterservices.usgs.gov";
+	
+	/** runs the requests for a site list too long for one URL */
+	private static final FetchExecutor chunkExecutor = new FetchExecutor("usgs-fetch", 4, 4);
+	
+	private static volatile int maxUrlLength = UrlChunkPlanner.DEFAULT_MAX_URL_LENGTH;
+	
+	/** formats for {@link DataSourceController#enableUsgsFormatSelection()} to choose between */
+	static final int FORMAT_RDB = 0;
+	static final int FORMAT_WATERML = 1;
+	
 	/**
 	 * The order of this array affects the behavior of {@link com.riverflows.wsclient.DataSourceController#getPreferredSeries(SiteData)}
 	 */
@@ -119,12 +141,7 @@ public class UsgsCsvDataSource implements RESTDataSource {
 	}
 	
 	public Variable getVariable(String id) {
-		for(Variable v: ACCEPTED_VARIABLES) {
-			if(v.getId().equals(id)){
-				return v;
-			}
-		}
-		return null;
+		return VariableRegistry.getVariable(AGENCY, id);
 	}
 	
 	@Override
@@ -153,7 +170,8 @@ public class UsgsCsvDataSource implements RESTDataSource {
 
         ArrayList<FavoriteData> result = new ArrayList<FavoriteData>(favorites.size());
 
-        Map<SiteId,SiteData> data = getSiteData(sitesArray, vars, true, hardRefresh);
+        Map<SiteId,Exception> siteErrors = new HashMap<SiteId,Exception>();
+        Map<SiteId,SiteData> data = getSiteData(sitesArray, vars, true, hardRefresh, siteErrors);
 
         for(int a = 0; a < favorites.size(); a++) {
 
@@ -162,11 +180,18 @@ public class UsgsCsvDataSource implements RESTDataSource {
 			SiteData siteData = data.get(fav.getSite().getSiteId());
 
 			if(siteData == null) {
-				siteData = DataSourceController.dataSourceDownData(fav.getSite(), getVariable(fav.getVariable()));
+				Exception error = siteErrors.get(fav.getSite().getSiteId());
+				if(error == null) {
+					siteData = DataSourceController.dataSourceDownData(fav.getSite(), vars[a]);
+				} else {
+					siteData = DataSourceController.dataSourceDownData(fav.getSite(), vars[a],
+							DataSourceController.failureQualifier(error));
+				}
 				siteData.setDataInfo(getExternalSiteUrl(fav.getSite().getId()));
+				result.add(new FavoriteData(fav, siteData, vars[a], error));
+			} else {
+				result.add(new FavoriteData(fav, siteData, vars[a]));
 			}
-
-            result.add(new FavoriteData(fav, siteData, vars[a]));
         }
 		
 		return result;
@@ -190,7 +215,7 @@ public class UsgsCsvDataSource implements RESTDataSource {
 		String sourceSite = SITE_DATA_URL + "stateCd=" + state.getAbbrev();
 		sourceSite += "&parameterCd=" + Utils.join(",", variableTypes);
 
-		return getSiteData(sites, ACCEPTED_VARIABLES, sourceSite, hardRefresh);
+		return getSiteData(httpClientWrapper, sites, ACCEPTED_VARIABLES, sourceSite, hardRefresh);
 	}
 	
 	@Override
@@ -205,6 +230,14 @@ public class UsgsCsvDataSource implements RESTDataSource {
 	}
 
 	public Map<SiteId,SiteData> getSiteData(Site[] sites, Variable[] variableTypes, boolean singleReading, boolean hardRefresh) throws ClientProtocolException, IOException {
+		return getSiteData(sites, variableTypes, singleReading, hardRefresh, null);
+	}
+	
+	/**
+	 * @param siteErrors if not null, receives the failure of the request for each site in a chunk that failed
+	 */
+	Map<SiteId,SiteData> getSiteData(Site[] sites, Variable[] variableTypes, boolean singleReading, boolean hardRefresh,
+			Map<SiteId,Exception> siteErrors) throws ClientProtocolException, IOException {
 		
 		//remove duplicate sites
 		Set<String> siteIdsSet = new HashSet<String>(sites.length);
@@ -222,14 +255,194 @@ public class UsgsCsvDataSource implements RESTDataSource {
 		String[] variableIds = new String[variableIdsSet.size()];
 		variableIdsSet.toArray(variableIds);
 		
-		String sourceUrl = SITE_DATA_URL + "sites=" + Utils.join(",",siteIds);
-		sourceUrl += "&parameterCd=" + Utils.join(",", variableIds);
+		String urlSuffix = "&parameterCd=" + Utils.join(",", variableIds);
 		
 		if(!singleReading) {
-			sourceUrl += "&period=P7D";
+			urlSuffix += "&period=P7D";
+		}
+		
+		FormatSelector selector = DataSourceController.getUsgsFormatSelector();
+		String shape = getRequestShape(siteIds.length, singleReading);
+		int format = (selector == null) ? FORMAT_RDB : selector.choose(shape);
+		
+		String urlPrefix = (format == FORMAT_WATERML) ? UsgsXmlDataSource.SITE_DATA_URL : SITE_DATA_URL;
+		
+		UrlChunkPlanner planner = new UrlChunkPlanner(urlPrefix + "sites=", ",", urlSuffix, maxUrlLength);
+		List<String[]> chunks = planner.plan(siteIds);
+		
+		CacheHitDetector wrapper = new CacheHitDetector(httpClientWrapper);
+		
+		long startTime = System.currentTimeMillis();
+		
+		Map<SiteId,SiteData> result;
+		if(chunks.size() <= 1) {
+			String sourceUrl = planner.getUrl(chunks.isEmpty() ? new String[0] : chunks.get(0));
+			result = getSiteData(format, wrapper, sites, variableTypes, sourceUrl, singleReading, hardRefresh);
+		} else {
+			result = getSiteData(format, wrapper, sites, variableTypes, planner, chunks, singleReading, hardRefresh, siteErrors);
+		}
+		
+		//a cached response says nothing about how fast its format is
+		if(selector != null && !wrapper.cacheHit) {
+			selector.record(shape, format, siteIds.length, System.currentTimeMillis() - startTime);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Requests for similar numbers of sites fall into the same shape.
+	 */
+	static String getRequestShape(int siteCount, boolean singleReading) {
+		String sites;
+		if(siteCount <= 1) {
+			sites = "1";
+		} else if(siteCount <= 10) {
+			sites = "10";
+		} else if(siteCount <= 100) {
+			sites = "100";
+		} else {
+			sites = "many";
+		}
+		return (singleReading ? "latest/" : "P7D/") + sites;
+	}
+	
+	/**
+	 * Notes whether any response was served from a cache rather than downloaded, including
+	 * responses whose parsed data is in {@link ParsedDataCache}.
+	 */
+	private static class CacheHitDetector implements HttpClientWrapper {
+		private final HttpClientWrapper delegate;
+		
+		volatile boolean cacheHit = false;
+		
+		CacheHitDetector(HttpClientWrapper delegate) {
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public WrappedHttpResponse doGet(String url, boolean hardRefresh) throws IOException {
+			WrappedHttpResponse response = delegate.doGet(url, hardRefresh);
+			//a downloaded response is either not cached or still being written to the cache
+			if(response.cacheTimestamp != 0 && response.cacheEditor == null) {
+				cacheHit = true;
+			}
+			return response;
+		}
+	}
+	
+	private Map<SiteId,SiteData> getSiteData(int format, HttpClientWrapper wrapper, Site[] sites, Variable[] variables, String urlStr,
+			boolean singleReading, boolean hardRefresh) throws ClientProtocolException, IOException {
+		if(format == FORMAT_WATERML) {
+			return getWaterMLSiteData(wrapper, sites, urlStr, singleReading, hardRefresh);
+		}
+		return getSiteData(wrapper, sites, variables, urlStr, hardRefresh);
+	}
+	
+	/**
+	 * Load data through {@link UsgsXmlDataSource}, attaching the requested sites to it as the
+	 * RDB parser does.
+	 */
+	private Map<SiteId,SiteData> getWaterMLSiteData(HttpClientWrapper wrapper, Site[] sites, String urlStr, boolean singleReading,
+			boolean hardRefresh) throws ClientProtocolException, IOException {
+		Map<String,SiteData> parsed = UsgsXmlDataSource.getSiteData(wrapper, urlStr, singleReading, hardRefresh);
+		
+		HashMap<String,Site> sitesById = new HashMap<String,Site>(sites.length * 2);
+		for(Site site: sites) {
+			if(!sitesById.containsKey(site.getId())) {
+				sitesById.put(site.getId(), site);
+			}
+		}
+		
+		Map<SiteId,SiteData> result = new HashMap<SiteId,SiteData>(parsed.size() * 2);
+		for(Map.Entry<String,SiteData> entry: parsed.entrySet()) {
+			SiteData data = entry.getValue();
+			
+			Site site = sitesById.get(entry.getKey());
+			if(site == null) {
+				if(LOG.isWarnEnabled()) LOG.warn( "unexpected site: " + entry.getKey());
+			} else {
+				data.setSite(site);
+			}
+			data.setDataInfo("<p>url: " + urlStr + "</p>");
+			
+			result.put(new SiteId(getAgency(), entry.getKey()), data);
+		}
+		return result;
+	}
+	
+	/**
+	 * Fetches and parses each chunk of sites on its own thread, a few at a time.  The sites in a
+	 * chunk that fails are left out of the result.
+	 * @param siteErrors if not null, receives the failure of the request for each site in a chunk that failed
+	 * @see FetchExecutor#awaitAll(Map, String, FetchExecutor.Callback)
+	 */
+	private Map<SiteId,SiteData> getSiteData(final int format, final HttpClientWrapper wrapper, Site[] sites, final Variable[] variableTypes,
+			UrlChunkPlanner planner, List<String[]> chunks, final boolean singleReading, final boolean hardRefresh,
+			final Map<SiteId,Exception> siteErrors) throws IOException {
+		
+		if(LOG.isInfoEnabled()) LOG.info("splitting request for " + sites.length + " sites into " + chunks.size() + " chunks");
+		
+		Map<String,List<Site>> sitesById = new HashMap<String,List<Site>>(sites.length * 2);
+		for(Site site: sites) {
+			List<Site> sameId = sitesById.get(site.getId());
+			if(sameId == null) {
+				sameId = new ArrayList<Site>(1);
+				sitesById.put(site.getId(), sameId);
+			}
+			sameId.add(site);
+		}
+		
+		Map<String,Future<Map<SiteId,SiteData>>> futures = new LinkedHashMap<String,Future<Map<SiteId,SiteData>>>(chunks.size());
+		final Map<String,Site[]> chunkUrlSites = new HashMap<String,Site[]>(chunks.size() * 2);
+		
+		for(String[] chunk: chunks) {
+			List<Site> chunkSites = new ArrayList<Site>(chunk.length);
+			for(String siteId: chunk) {
+				chunkSites.addAll(sitesById.get(siteId));
+			}
+			
+			final Site[] chunkSitesArray = chunkSites.toArray(new Site[chunkSites.size()]);
+			final String chunkUrl = planner.getUrl(chunk);
+			chunkUrlSites.put(chunkUrl, chunkSitesArray);
+			
+			futures.put(chunkUrl, chunkExecutor.submit(SITE_DATA_HOST, new Callable<Map<SiteId,SiteData>>() {
+				@Override
+				public Map<SiteId,SiteData> call() throws IOException {
+					return getSiteData(format, wrapper, chunkSitesArray, variableTypes, chunkUrl, singleReading, hardRefresh);
+				}
+			}));
 		}
 		
-		return getSiteData(sites, variableTypes, sourceUrl, hardRefresh);
+		final Map<SiteId,SiteData> result = new HashMap<SiteId,SiteData>(sites.length * 2);
+		
+		FetchExecutor.awaitAll(futures, sites.length + " sites", new FetchExecutor.Callback<String,Map<SiteId,SiteData>>() {
+			@Override
+			public void onResult(String chunkUrl, Map<SiteId,SiteData> chunkData) {
+				if(chunkData != null) {
+					result.putAll(chunkData);
+				}
+			}
+			
+			@Override
+			public void onFailure(String chunkUrl, Exception failure) {
+				if(siteErrors == null) {
+					return;
+				}
+				for(Site site: chunkUrlSites.get(chunkUrl)) {
+					siteErrors.put(site.getSiteId(), failure);
+				}
+			}
+		});
+		
+		return result;
+	}
+	
+	/**
+	 * @param length the longest URL to request; longer site lists are split across several requests
+	 */
+	static void setMaxUrlLength(int length) {
+		maxUrlLength = length;
 	}
 	
 	/*
@@ -241,7 +454,8 @@ public class UsgsCsvDataSource implements RESTDataSource {
 		return getSiteData(sourceSite);
 	}*/
 	
-	private Map<SiteId,SiteData> getSiteData(Site[] sites, Variable[] variables, String urlStr, boolean hardRefresh) throws ClientProtocolException, IOException {
+	private Map<SiteId,SiteData> getSiteData(HttpClientWrapper wrapper, Site[] sites, Variable[] variables, String urlStr,
+			boolean hardRefresh) throws ClientProtocolException, IOException {
 		
 		if(LOG.isInfoEnabled()) LOG.info("site data URL: " + urlStr);
 		
@@ -253,17 +467,21 @@ public class UsgsCsvDataSource implements RESTDataSource {
 		try {
 			long startTime = System.currentTimeMillis();
 
-			WrappedHttpResponse response = httpClientWrapper.doGet(urlStr, hardRefresh);
-			contentInputStream = response.responseStream;
+			WrappedHttpResponse response = wrapper.doGet(urlStr, hardRefresh);
 			
-			if(response.cacheFile == null) {
-				bufferedStream = new BufferedInputStream(contentInputStream, 8192);
-			} else {
-				bufferedStream = new CachingBufferedInputStream(contentInputStream, 8192, response.cacheFile);
+			data = ParsedDataCache.get(urlStr, PARSER_VERSION, response, sites);
+			if(data != null) {
+				return data;
 			}
 			
+			contentInputStream = response.responseStream;
+			
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192);
+			
 			data = parse(sites, variables, bufferedStream, urlStr);
 			
+			ParsedDataCache.put(urlStr, PARSER_VERSION, response, data.values());
+			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
 			
 		} finally {
@@ -291,19 +509,17 @@ public class UsgsCsvDataSource implements RESTDataSource {
 
 		HashMap<SiteId,SiteData> siteDataMap = new HashMap<SiteId,SiteData>();
 		
-		DataInputStream ds = new DataInputStream(s);
-		
-		String line;
+		RdbReader reader = new RdbReader(s);
 		
 		StringBuilder dataInfo = new StringBuilder();
 		dataInfo.append("<div><strong>Warning:</strong>");
 		
 		//find the header line, save boilerplate comment
 		 while(true) {
-			line = ds.readLine();
-			if(line == null) {
+			if(!reader.readLine()) {
 				throw new RuntimeException("unexpected EOF");
 			}
+			String line = reader.getLine();
 			if(!line.trim().startsWith("#")) {
 				break;
 			}
@@ -336,34 +552,74 @@ public class UsgsCsvDataSource implements RESTDataSource {
 		
 		if(LOG.isDebugEnabled()) LOG.debug( "boilerplate end");
 		
+		//index the requested sites so each row doesn't require a linear search
+		HashMap<String,Site> sitesById = new HashMap<String,Site>(sites.length * 2);
+		for(Site site: sites) {
+			if(!sitesById.containsKey(site.getId())) {
+				sitesById.put(site.getId(), site);
+			}
+		}
+		
 		SiteData currentSiteData = null;
-		List<String> titleOrder = null;
+		
+		//column index -> series, resolved once per header block
+		Series[] columnSeries = null;
+		Variable[] columnVariables = null;
+		double[] columnNullValues = null;
+		
+		//last qualifier string seen in each column, so repeated qualifiers share one String
+		String[] columnQualifiers = null;
+		
+		//rows for one site are contiguous, so the site only needs to be looked up when it changes
+		String currentSiteId = null;
 		
 		long lineCount = 0;
 		
 		long dateParseTimeCount = 0;
 		
 		//looking up the timezone is a spendy operation.  So,
-		// I'll parse/resolve the timezone only once per site and then associate it
-		// with the SimpleDateFormat so it is appended to all the dates.
-		SimpleDateFormat valueDateFormat = null;
+		// I'll parse/resolve the timezone only once per site and then use it
+		// for all the dates.
+		TimeZone valueTimeZone = null;
 		
 		do {
-			if(line.length() == 0 || line.charAt(0) == '#') {
+			int firstChar = reader.firstChar();
+			if(firstChar == -1 || firstChar == '#') {
 				continue;
 			}
 			lineCount++;
-			if(line.startsWith(EXPECTED_COLUMNS[0])) {
+			if(reader.lineStartsWith(EXPECTED_COLUMNS[0])) {
 				
 				if(LOG.isDebugEnabled()) LOG.debug( "found site header");
 				
-				titleOrder = new ArrayList<String>();
-				currentSiteData = parseHeaders(variables, line, titleOrder, sourceUrl, dataInfo.toString());
+				List<String> titleOrder = new ArrayList<String>();
+				currentSiteData = parseHeaders(variables, reader.getLine(), titleOrder, sourceUrl, dataInfo.toString());
+				
+				columnVariables = new Variable[titleOrder.size()];
+				columnSeries = new Series[titleOrder.size()];
+				columnNullValues = new double[titleOrder.size()];
+				columnQualifiers = new String[titleOrder.size()];
+				
+				for(int a = EXPECTED_COLUMNS.length; a < titleOrder.size(); a++) {
+					Variable var = getVariable(titleOrder.get(a));
+					if(var == null) {
+						//not a series value column
+						continue;
+					}
+					columnVariables[a] = var;
+					columnSeries[a] = currentSiteData.getDatasets().get(var.getCommonVariable());
+					
+					if(columnSeries[a] != null) {
+						Double magicNullValue = columnSeries[a].getVariable().getMagicNullValue();
+						columnNullValues[a] = (magicNullValue == null) ? Double.NaN : magicNullValue;
+					}
+				}
 				
 				//changing sites, ergo changing timezones
-				valueDateFormat = null;
+				valueTimeZone = null;
+				currentSiteId = null;
 				
-				if(ds.readLine() == null) {
+				if(!reader.readLine()) {
 					if(LOG.isWarnEnabled()) LOG.warn( "missing parsing instructions");
 				}
 
@@ -375,92 +631,83 @@ public class UsgsCsvDataSource implements RESTDataSource {
 				throw new DataParseException("missing headers");
 			}
 			
-			String[] values = Utils.split(line, '\t');
-			
-			String siteId = values[1];
-			
-			Site currentSite = null;
-			
-			//get the Station object that this siteId references
-			for(int a = 0; a < sites.length; a++) {
-				if(sites[a].getId().equals(siteId)) {
-					currentSite = sites[a];
-					break;
+			if(!reader.fieldEquals(1, currentSiteId)) {
+				currentSiteId = reader.getField(1);
+				
+				//get the Station object that this siteId references
+				Site currentSite = sitesById.get(currentSiteId);
+				
+				if(currentSite == null) {
+					if(LOG.isWarnEnabled()) LOG.warn( "unexpected site: " + currentSiteId);
 				}
-			}
-			
-			if(currentSite == null) {
-				if(LOG.isWarnEnabled()) LOG.warn( "unexpected site: " + siteId);
-			}
-			
-			currentSiteData.setSite(currentSite);
+				
+				currentSiteData.setSite(currentSite);
 
-			siteDataMap.put(new SiteId(getAgency(), siteId), currentSiteData);
+				siteDataMap.put(new SiteId(getAgency(), currentSiteId), currentSiteData);
+			}
 			
-			Date currentDate = null;
+			long currentTime;
 			
 			long dateParseStartTime = System.currentTimeMillis();
 			
-			if(valueDateFormat == null) {
-				valueDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-
+			if(valueTimeZone == null) {
 				//initialize the timezone
-				USTimeZone usZone = USTimeZone.valueOf(values[3]);
+				String tzStr = reader.getField(3);
+				USTimeZone usZone = USTimeZone.valueOf(tzStr);
 				if(usZone != null) {
-					TimeZone tz = usZone.getTimeZone();
-					valueDateFormat.setTimeZone(tz);
+					valueTimeZone = usZone.getTimeZone();
 				} else {
-					LOG.warn("could not find timezone: " + values[3]);
+					LOG.warn("could not find timezone: " + tzStr);
+					valueTimeZone = TimeZone.getDefault();
 				}
 			}
 			try {
-				currentDate = valueDateFormat.parse(values[2]);
+				currentTime = VALUE_DATE_CODEC.parseMillis(reader.getFieldChars(2), valueTimeZone);
 			} catch(ParseException pe) {
-				throw new DataParseException("invalid date: " + values[2], pe);
+				throw new DataParseException("invalid date: " + reader.getField(2), pe);
 			} catch(ArrayIndexOutOfBoundsException aioobe) {
 				throw new DataParseException("missing value date column");
 			}
 			
 			dateParseTimeCount += (System.currentTimeMillis() - dateParseStartTime);
 			
-			if(titleOrder.size() > values.length) {
-				LOG.warn("unexpected number of value columns. found: " + values.length + " columns in \"" + line + "\", but expected " + titleOrder.size());
+			if(columnSeries.length > reader.getFieldCount()) {
+				LOG.warn("unexpected number of value columns. found: " + reader.getFieldCount() + " columns in \"" + reader.getLine() + "\", but expected " + columnSeries.length);
 			}
 			
 			//get values for each series
-			for(int a = EXPECTED_COLUMNS.length; a < titleOrder.size(); a++) {
-				Variable var = getVariable(titleOrder.get(a));
-				if(var == null) {
+			for(int a = EXPECTED_COLUMNS.length; a < columnSeries.length; a++) {
+				if(columnVariables[a] == null) {
 					//not a series value column
 					continue;
 				}
 				
-				Series currentSeries = currentSiteData.getDatasets().get(var.getCommonVariable());
+				Series currentSeries = columnSeries[a];
 
-                if(currentSeries == null) {
-                    throw new NullPointerException("dataset for " + var.getCommonVariable() + " not found");
-                }
+				if(currentSeries == null) {
+					throw new NullPointerException("dataset for " + columnVariables[a].getCommonVariable() + " not found");
+				}
 				
-				Reading newReading = new Reading();
-				try {
-					Double value = Double.valueOf(values[a]);
-					if(currentSeries.getVariable().getMagicNullValue().equals(value)) {
-						value = null;
-					}
-					
-					newReading.setValue(value);
-				} catch(NumberFormatException nfe) {
-					if(LOG.isDebugEnabled()) LOG.debug("couldn't parse value: " + values[a]);
-					newReading.setValue(null);
-					newReading.setQualifiers(values[a]);
-				} catch(ArrayIndexOutOfBoundsException aioobe) {
+				if(a >= reader.getFieldCount()) {
 					throw new DataParseException("missing reading column " + a);
 				}
-				newReading.setDate(currentDate);
 				
-				currentSeries.getReadings().add(newReading);
+				double value = reader.parseDouble(a);
+				String qualifiers = null;
+				
+				if(Double.isNaN(value)) {
+					if(!reader.fieldEquals(a, columnQualifiers[a])) {
+						columnQualifiers[a] = reader.getField(a);
+						if(LOG.isDebugEnabled()) LOG.debug("couldn't parse value: " + columnQualifiers[a]);
+					}
+					qualifiers = columnQualifiers[a];
+				} else if(value == columnNullValues[a]) {
+					value = Double.NaN;
+				}
+				
+				currentSeries.addObservation(currentTime, value, qualifiers);
 			}
-		}while((line = ds.readLine()) != null);
+		} while(reader.readLine());
 
 		
 		if(LOG.isDebugEnabled()) LOG.debug("parsed dates in " + dateParseTimeCount);
@@ -512,8 +759,9 @@ public class UsgsCsvDataSource implements RESTDataSource {
 			
 			//create a series for each variable
 			Series s = new Series();
+			s.setQualifierDictionary(QUALIFIERS);
 			s.setVariable(v);
-			s.setReadings(new ArrayList<Reading>());
+			s.initReadings(INITIAL_READING_CAPACITY);
 			s.setSourceUrl(sourceUrl);
 			currentSiteData.getDatasets().put(v.getCommonVariable(), s);
 		}
@@ -4,13 +4,13 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -24,9 +24,9 @@ import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 import com.riverflows.data.WrappedHttpResponse;
-import com.riverflows.data.Reading;
 import com.riverflows.data.Series;
 import com.riverflows.data.Site;
 import com.riverflows.data.SiteData;
@@ -36,10 +36,13 @@ import com.riverflows.data.Variable;
 
 public class UsgsXmlDataSource implements ContentHandler {
 	
-	public static final String SITE_DATA_URL = "http://waterservices.usgs.gov/nwis/iv/?format=waterml,1.1&";
+	public static final String SITE_DATA_URL = "https://waterservices.usgs.gov/nwis/iv/?format=waterml,1.1&";
 	
 	private static final Log LOG = LogFactory.getLog(UsgsXmlDataSource.class);
 	
+	/** @see ParsedDataCache */
+	static final int PARSER_VERSION = 1;
+	
 	public static final USState[] STATES_SORTED_BY_CODE = new USState[] {null,//0 is not used
 		USState.AL,
 		USState.AK,
@@ -157,7 +160,10 @@ public class UsgsXmlDataSource implements ContentHandler {
 	}
 	
 	static Map<String,SiteData> getSiteData(String urlStr, boolean singleReading) throws ClientProtocolException, IOException {
-		XMLReader reader = null;
+		return getSiteData(getHttpClientWrapper(), urlStr, singleReading, true);
+	}
+	
+	static Map<String,SiteData> getSiteData(HttpClientWrapper wrapper, String urlStr, boolean singleReading, boolean hardRefresh) throws ClientProtocolException, IOException {
 		
 		if(LOG.isInfoEnabled()) LOG.info("site data URL: " + urlStr);
 		
@@ -166,32 +172,44 @@ public class UsgsXmlDataSource implements ContentHandler {
 		InputStream contentInputStream = null;
 		BufferedInputStream bufferedStream = null;
 		
+		XMLReader reader = acquireReader();
+		boolean parsed = false;
+		
 		try {
 			long startTime = System.currentTimeMillis();
 			
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setFeature("http://xml.org/sax/features/namespaces", true);
-			factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-			
-			//reader = XMLReaderFactory.createXMLReader("org.xmlpull.v1.sax2.Driver");
-			reader = factory.newSAXParser().getXMLReader();
 			reader.setContentHandler(dataSource);
 
-			//URL url = new URL(urlStr);
-			//URLConnection connection = url.openConnection();
-			//InputStream contentInputStream = connection.getInputStream();
-
-			WrappedHttpResponse response = getHttpClientWrapper().doGet(urlStr, true);
+			WrappedHttpResponse response = wrapper.doGet(urlStr, hardRefresh);
+			
+			Map<SiteId,SiteData> cached = ParsedDataCache.get(urlStr, PARSER_VERSION, response, (Site[])null);
+			if(cached != null) {
+				parsed = true;
+				Map<String,SiteData> result = new HashMap<String,SiteData>(cached.size() * 2);
+				for(Map.Entry<SiteId,SiteData> entry: cached.entrySet()) {
+					result.put(entry.getKey().getId(), entry.getValue());
+				}
+				return result;
+			}
+			
 			contentInputStream = response.responseStream;
-			bufferedStream = new BufferedInputStream(contentInputStream, 8192);
+			bufferedStream = CachingBufferedInputStream.wrap(response, 8192);
 			
 			reader.parse(new InputSource(bufferedStream));
+			parsed = true;
+			
+			ParsedDataCache.put(urlStr, PARSER_VERSION, response, dataSource.siteData.values());
+			
 			if(LOG.isInfoEnabled()) LOG.info("loaded site data in " + (System.currentTimeMillis() - startTime) + "ms");
-		} catch(ParserConfigurationException pce) {
-			throw new RuntimeException(pce);
 		} catch(SAXException se) {
-			throw new RuntimeException(se);
+			throw new DataParseException("invalid WaterML from " + urlStr, se);
 		} finally {
+			//don't hold on to the data until the reader's next use
+			reader.setContentHandler(NO_OP_HANDLER);
+			if(parsed) {
+				releaseReader(reader);
+			}
+			
 			try {
 				contentInputStream.close();
 				bufferedStream.close();
@@ -205,6 +223,56 @@ public class UsgsXmlDataSource implements ContentHandler {
 		return dataSource.siteData;
 	}
 	
+	private static final SAXParserFactory PARSER_FACTORY = SAXParserFactory.newInstance();
+	
+	static {
+		try {
+			PARSER_FACTORY.setNamespaceAware(true);
+			PARSER_FACTORY.setFeature("http://xml.org/sax/features/namespaces", true);
+			PARSER_FACTORY.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+		} catch(ParserConfigurationException pce) {
+			throw new RuntimeException(pce);
+		} catch(SAXException se) {
+			throw new RuntimeException(se);
+		}
+	}
+	
+	private static final ContentHandler NO_OP_HANDLER = new DefaultHandler();
+	
+	/** readers are reused rather than created for every request */
+	private static final int MAX_POOLED_READERS = 4;
+	
+	private static final LinkedList<XMLReader> readerPool = new LinkedList<XMLReader>();
+	
+	private static XMLReader acquireReader() {
+		//also guards the factory, which isn't thread-safe
+		synchronized(readerPool) {
+			XMLReader reader = readerPool.poll();
+			if(reader != null) {
+				return reader;
+			}
+			try {
+				return PARSER_FACTORY.newSAXParser().getXMLReader();
+			} catch(ParserConfigurationException pce) {
+				throw new RuntimeException(pce);
+			} catch(SAXException se) {
+				throw new RuntimeException(se);
+			}
+		}
+	}
+	
+	/**
+	 * Only readers that finished parsing a document are returned, since the state of a reader
+	 * after an error is unknown.
+	 */
+	private static void releaseReader(XMLReader reader) {
+		synchronized(readerPool) {
+			if(readerPool.size() < MAX_POOLED_READERS) {
+				readerPool.add(reader);
+			}
+		}
+	}
+	
 	private Map<String,SiteData> siteData;
 	private SiteData currentSiteData;
 	private Series currentTimeSeries;
@@ -212,13 +280,9 @@ public class UsgsXmlDataSource implements ContentHandler {
 	
 	public static String waterMLNamespaceURI = "http://www.cuahsi.org/waterML/1.1/";
 	
-	public static final HashSet<String> elementNames = new HashSet<String>();
-	
 	public static int INITIAL_READING_CAPACITY = 700;
-	private static SimpleDateFormat valueDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZ");
+	private static final TimestampCodec valueDateFormat = new TimestampCodec("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZ");
 
-	//IMPORTANT remember to add new elements to the elementNames set in the static constructer
-	
 	private static String EN_TIMESERIES = "timeSeries";
 	private static String EN_SOURCE_INFO = "sourceInfo";
 	private static String EN_SITE_NAME = "siteName";
@@ -226,42 +290,55 @@ public class UsgsXmlDataSource implements ContentHandler {
 	private static String EN_SITE_PROPERTY = "siteProperty";
 	private static String AN_SITE_PROPERTY_NAME = "name";
 	private static String NOTE_TITLE_STATE_CODE = "stateCd";
-	private static String EN_SITE_LOCATION = "geogLocation";
 	private static String EN_SITE_LATITUDE = "latitude";
 	private static String EN_SITE_LONGITUDE = "longitude";
 	private static String EN_VARIABLE = "variable";
-	private static String EN_VARIABLE_NAME = "variableName";
 	private static String EN_VARIABLE_CODE = "variableCode";
 	private static String EN_VARIABLE_MAGIC_NULL_VALUE = "noDataValue";
 	private static String EN_VALUES = "values";
 	private static String EN_VALUE = "value";
-	private static String EN_VALUE_TIME = "dateTime";
+	private static String AN_VALUE_TIME = "dateTime";
+	private static String AN_VALUE_QUALIFIERS = "qualifiers";
+	
+	//element codes, so each element name is only looked up once
+	private static final int E_OTHER = 0;
+	private static final int E_TIMESERIES = 1;
+	private static final int E_SOURCE_INFO = 2;
+	private static final int E_SITE_NAME = 3;
+	private static final int E_SITE_CODE = 4;
+	private static final int E_SITE_PROPERTY = 5;
+	private static final int E_SITE_LATITUDE = 6;
+	private static final int E_SITE_LONGITUDE = 7;
+	private static final int E_VARIABLE = 8;
+	private static final int E_VARIABLE_CODE = 9;
+	private static final int E_VARIABLE_MAGIC_NULL_VALUE = 10;
+	private static final int E_VALUES = 11;
+	private static final int E_VALUE = 12;
+	
+	private static final HashMap<String,Integer> elementCodes = new HashMap<String,Integer>();
 	
 	static {
-		//performance:
-		elementNames.add(EN_TIMESERIES);
-		elementNames.add(EN_SOURCE_INFO);
-		elementNames.add(EN_SITE_NAME);
-		elementNames.add(EN_SITE_CODE);
-		elementNames.add(EN_SITE_PROPERTY);
-		elementNames.add(EN_SITE_LOCATION);
-		elementNames.add(EN_SITE_LATITUDE);
-		elementNames.add(EN_SITE_LONGITUDE);
-		elementNames.add(EN_VARIABLE);
-		elementNames.add(EN_VARIABLE_NAME);
-		elementNames.add(EN_VARIABLE_CODE);
-		elementNames.add(EN_VARIABLE_MAGIC_NULL_VALUE);
-		elementNames.add(EN_VALUES);
-		elementNames.add(EN_VALUE);
-		elementNames.add(EN_VALUE_TIME);
+		elementCodes.put(EN_TIMESERIES, E_TIMESERIES);
+		elementCodes.put(EN_SOURCE_INFO, E_SOURCE_INFO);
+		elementCodes.put(EN_SITE_NAME, E_SITE_NAME);
+		elementCodes.put(EN_SITE_CODE, E_SITE_CODE);
+		elementCodes.put(EN_SITE_PROPERTY, E_SITE_PROPERTY);
+		elementCodes.put(EN_SITE_LATITUDE, E_SITE_LATITUDE);
+		elementCodes.put(EN_SITE_LONGITUDE, E_SITE_LONGITUDE);
+		elementCodes.put(EN_VARIABLE, E_VARIABLE);
+		elementCodes.put(EN_VARIABLE_CODE, E_VARIABLE_CODE);
+		elementCodes.put(EN_VARIABLE_MAGIC_NULL_VALUE, E_VARIABLE_MAGIC_NULL_VALUE);
+		elementCodes.put(EN_VALUES, E_VALUES);
+		elementCodes.put(EN_VALUE, E_VALUE);
 	}
 	
+	/**
+	 * Approval and estimate codes that USGS reports in a separate column of the RDB format,
+	 * rather than in place of a missing value.
+	 */
+	private static final Set<String> APPROVAL_CODES = new HashSet<String>(Arrays.asList("P", "A", "e", "R", "<", ">"));
+	
 	public static Date parseDate(String dateStr) throws ParseException {
-
-		//remove colon in the timezone, which doesn't adhere to RFC 822
-		int tzColonLoc = dateStr.lastIndexOf(':');
-		dateStr = dateStr.substring(0, tzColonLoc) + dateStr.substring(tzColonLoc + 1);
-		
 		return valueDateFormat.parse(dateStr);
 	}
 	
@@ -272,10 +349,28 @@ public class UsgsXmlDataSource implements ContentHandler {
 	}
 	
 	/**
-	 * The last element begin tag traversed, or null if the last tag traversed was
+	 * Code of the last element begin tag traversed, or E_OTHER if the last tag traversed was
 	 * an element closing tag.
 	 */
-	private String curElement;
+	private int curElement = E_OTHER;
+	
+	/** text of the current element */
+	private final StringBuilder text = new StringBuilder();
+	
+	/** time of the current value element, or Series.NO_DATE if it is missing or invalid */
+	private long valueTime;
+	
+	/** qualifiers attribute of the current value element */
+	private String valueQualifiers;
+	
+	private String lastValueQualifiers;
+	private String lastMissingValueQualifiers;
+	
+	/**
+	 * noDataValue of the current series.  This is kept here rather than on the series' Variable,
+	 * which is shared with every other parser through the variable registry.
+	 */
+	private Double seriesNullValue;
 	
 	@Override
 	public void startDocument() throws SAXException {
@@ -285,65 +380,65 @@ public class UsgsXmlDataSource implements ContentHandler {
 	@Override
 	public void startElement(String uri, String localName, String qName,
 			Attributes atts) throws SAXException {
-		/*REMOVED FOR PERFORMANCE REASONS
-		//not in the WaterML namespace for whatever reason- don't try processing any elements
-		if(!uri.equals(waterMLNamespaceURI)) {
-			curElement = null;
-			return;
-		}*/
+		Integer code = elementCodes.get(localName);
 		
-		curElement = localName;
+		text.setLength(0);
 		
-		if(!elementNames.contains(curElement)) {
-			curElement = null;
+		if(code == null) {
+			curElement = E_OTHER;
 			return;
 		}
+		
+		curElement = code;
 
 		if(currentTimeSeries != null) {
 			if(currentTimeSeries.getReadings() == null) {
-				if(localName.equals(EN_VALUES)) {
+				if(curElement == E_VALUES) {
 					if(singleReading) {
-						currentTimeSeries.setReadings(new ArrayList<Reading>());
+						currentTimeSeries.initReadings(1);
 					} else {
-						currentTimeSeries.setReadings(new ArrayList<Reading>(INITIAL_READING_CAPACITY));
+						currentTimeSeries.initReadings(INITIAL_READING_CAPACITY);
 					}
 					return;
 				}
-			} else {
-				if(localName.equals(EN_VALUE)) {
-					String dateStr = atts.getValue(EN_VALUE_TIME);
-					
-					try {
-						Reading r = new Reading();
-						r.setDate(parseDate(dateStr));
-						currentTimeSeries.getReadings().add(r);
-					} catch(ParseException pe) {
-						LOG.error("invalid date: " + dateStr, pe);
-					} catch(IndexOutOfBoundsException ioobe) {
-						LOG.error("invalid date: " + dateStr, ioobe);
-					} catch(NullPointerException npe) {
-						LOG.error("missing date", npe);
-					}
-					return;
+			} else if(curElement == E_VALUE) {
+				String dateStr = atts.getValue(AN_VALUE_TIME);
+				valueTime = Series.NO_DATE;
+				
+				try {
+					valueTime = valueDateFormat.parseMillis(dateStr);
+				} catch(ParseException pe) {
+					LOG.error("invalid date: " + dateStr, pe);
+				} catch(IndexOutOfBoundsException ioobe) {
+					LOG.error("invalid date: " + dateStr, ioobe);
+				} catch(NullPointerException npe) {
+					LOG.error("missing date", npe);
 				}
+				
+				valueQualifiers = atts.getValue(AN_VALUE_QUALIFIERS);
+				return;
 			}
 		}
-		if(localName.equals(EN_TIMESERIES)) {
-			
+		
+		switch(curElement) {
+		case E_TIMESERIES:
 			currentSiteData = new SiteData();
 			currentTimeSeries = new Series();
+			seriesNullValue = null;
+			currentTimeSeries.setQualifierDictionary(UsgsCsvDataSource.QUALIFIERS);
 			return;
-		}
-		if(localName.equals(EN_SITE_PROPERTY)) {
+		case E_SITE_PROPERTY:
 			currentNote = atts.getValue(AN_SITE_PROPERTY_NAME);
-		} else {
+			break;
+		default:
 			currentNote = null;
 		}
+		
 		if(currentSiteData == null) {
 			return;
 		}
 		if(currentSiteData.getSite() == null) {
-			if(localName.equals(EN_SOURCE_INFO)) {
+			if(curElement == E_SOURCE_INFO) {
 				currentSiteData.setSite(new Site());
 				currentSiteData.getSite().setSupportedVariables(new Variable[0]);
 				return;
@@ -351,7 +446,7 @@ public class UsgsXmlDataSource implements ContentHandler {
 		}
 		
 		if(currentTimeSeries != null && currentTimeSeries.getVariable() == null) {
-			if(localName.equals(EN_VARIABLE)) {
+			if(curElement == E_VARIABLE) {
 				currentTimeSeries.setVariable(new Variable());
 			}
 			return;
@@ -361,182 +456,194 @@ public class UsgsXmlDataSource implements ContentHandler {
 	@Override
 	public void characters(char[] ch, int start, int length)
 			throws SAXException {
-		if(curElement == null)
-			return;
-		
-		String curStr = new String(ch,start,length);
+		if(curElement != E_OTHER) {
+			text.append(ch, start, length);
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+		int element = curElement;
+		curElement = E_OTHER;
 		
-		if(curElement.equals(EN_SITE_LATITUDE)) {
+		switch(element) {
+		case E_SITE_LATITUDE:
 			try {
-				double latitude = Double.valueOf(curStr);
-				currentSiteData.getSite().setLatitude(latitude);
+				currentSiteData.getSite().setLatitude(Double.valueOf(text.toString()));
 			} catch(NullPointerException npe) {
-//				Log.e(this.getClass().getName(), EN_SITE_LATITUDE + " in unexpected location");
+				//latitude in unexpected location
 			} catch(NumberFormatException nfe) {
-//				Log.e(this.getClass().getName(), "not a latitude coordinate", nfe);
+				//not a latitude coordinate
 			}
 			return;
-		}
-		if(curElement.equals(EN_SITE_LONGITUDE)) {
+		case E_SITE_LONGITUDE:
 			try {
-				double longitude = Double.valueOf(curStr);
-				currentSiteData.getSite().setLongitude(longitude);
+				currentSiteData.getSite().setLongitude(Double.valueOf(text.toString()));
 			} catch(NullPointerException npe) {
-//				Log.e(this.getClass().getName(), EN_SITE_LONGITUDE + " in unexpected location");
+				//longitude in unexpected location
 			} catch(NumberFormatException nfe) {
-//				Log.e(this.getClass().getName(), "not a longitude coordinate",nfe);
+				//not a longitude coordinate
 			}
 			return;
-		}
-		if(curElement.equals(EN_SITE_NAME)) {
+		case E_SITE_NAME:
 			try {
-				
-				String name = curStr;
-				
-				//typically, the site's name will end with a state abbreviation.  Chop this off.
-				/*String[] words = name.split(", ");
-				if(words.length > 0) {
-					String stateAbbrev = words[words.length - 1];
-					USState state = USState.getUSStateText(stateAbbrev);
-					if(state != null) {
-						name = name.substring(0, curStr.length() - stateAbbrev.length() - 2);
-					}
-				}*/
-				//name may be spread across multiple elements if it contains entity characters
 				String curName = currentSiteData.getSite().getName();
-				currentSiteData.getSite().setName(((curName != null) ? curName : "") + name);
+				currentSiteData.getSite().setName(((curName != null) ? curName : "") + text);
 			} catch(NullPointerException npe) {
 				LOG.error(EN_SITE_NAME + " in unexpected location");
 			}
 			return;
-		}
-		if(curElement.equals(EN_SITE_CODE)) {
-			try {
-				//check for existing SiteData object for this site
-				if(siteData.get(curStr) == null) {
-					currentSiteData.getSite().setSiteId(new SiteId("USGS", curStr));
-					siteData.put(curStr, currentSiteData);
-				} else {
-					if(currentSiteData.getDatasets().size() > 0) {
-//						Log.w(getClass().getSimpleName(), curStr + " data precedes " + EN_SITE_CODE + "?");
-					}
-					
-					//discard site data collected so far- this should only be
-					// information on the site itself, which will be redundant
-					// with that of the existing SiteData object
-					currentSiteData = siteData.get(curStr);
-				}
-			} catch(NullPointerException npe) {
-//				Log.e(this.getClass().getName(), EN_SITE_CODE + " in unexpected location");
-			}
+		case E_SITE_CODE:
+			endSiteCode(text.toString());
 			return;
-		}
-		if(curElement.equals(EN_SITE_PROPERTY)) {
+		case E_SITE_PROPERTY:
 			if(NOTE_TITLE_STATE_CODE.equals(currentNote)) {
+				String stateCode = text.toString();
 				try {
-					USState state = STATES_SORTED_BY_CODE[Integer.parseInt(curStr)];
+					USState state = STATES_SORTED_BY_CODE[Integer.parseInt(stateCode)];
 					currentSiteData.getSite().setState(state);
 				} catch(NumberFormatException nfe) {
 					LOG.error("invalid state code: " + nfe.getMessage());
 				} catch(ArrayIndexOutOfBoundsException aioobe) {
-					LOG.error("invalid state code: " + curStr);
+					LOG.error("invalid state code: " + stateCode);
 				}
 			}
 			return;
-		}
-		if(curElement.equals(EN_VARIABLE_CODE)) {
-			try {
-				if(currentTimeSeries == null) {
-					return;
-				}
-				
-				currentTimeSeries.setVariable(DataSourceController.getVariable("USGS", curStr));
-				if(currentTimeSeries.getVariable() == null) {
-					LOG.error("unknown variable: " + curStr + "; ignoring series data");
-					currentTimeSeries = null;
-					return;
-				}
-				
-				Series existingSeries = currentSiteData.getDatasets().put(currentTimeSeries.getVariable().getCommonVariable(), currentTimeSeries);
-				if(existingSeries != null) {
-					if(LOG.isWarnEnabled()) LOG.warn("duplicate data for variable " + existingSeries.getVariable().getId() + ", site " + currentSiteData.getSite().getId());
-				} else {
-					Variable[] supportedVars = currentSiteData.getSite().getSupportedVariables();
-					
-					Variable[] newSupportedVars = null;
-					
-					newSupportedVars = new Variable[supportedVars.length + 1];
-					System.arraycopy(supportedVars, 0, newSupportedVars, 0, supportedVars.length);
-	
-					newSupportedVars[newSupportedVars.length - 1] = currentTimeSeries.getVariable();
-					
-					currentSiteData.getSite().setSupportedVariables(newSupportedVars);
-				}
-			} catch(NullPointerException npe) {
-				LOG.error(EN_VARIABLE_CODE + " in unexpected location");
-			}
-			return;
-		}
-		/*if(curElement.equals(EN_VARIABLE_NAME)) {
-			try {
-				//Log.d(this.getClass().getSimpleName(), EN_VARIABLE_NAME + ": " + curStr);
-				String curName = currentTimeSeries.getVariable().getName();
-				if(curName == null) {
-					currentTimeSeries.getVariable().setName(curStr);
-				} else {
-					currentTimeSeries.getVariable().setName(curName + curStr);
-				}
-			} catch(NullPointerException npe) {
-				Log.e(this.getClass().getName(), EN_VARIABLE_NAME + " in unexpected location");
-			}
+		case E_VARIABLE_CODE:
+			endVariableCode(text.toString());
 			return;
-		}*/
-		if(curElement.equals(EN_VARIABLE_MAGIC_NULL_VALUE)) {
+		case E_VARIABLE_MAGIC_NULL_VALUE:
 			if(currentTimeSeries == null) {
 				// this may happen if the variable is unrecognized
 				return;
 			}
 			try {
-				currentTimeSeries.getVariable().setMagicNullValue(Double.valueOf(curStr));
-			} catch(NullPointerException npe) {
-				LOG.error(EN_VARIABLE_MAGIC_NULL_VALUE + " in unexpected location");
+				seriesNullValue = Double.valueOf(text.toString());
 			} catch(NumberFormatException nfe) {
 				LOG.error("invalid value for " + EN_VARIABLE_MAGIC_NULL_VALUE,nfe);
 			}
 			return;
+		case E_VALUE:
+			endValue();
+			return;
 		}
-		if(curElement.equals(EN_VALUE)) {
+	}
+	
+	private void endSiteCode(String siteCode) {
+		try {
+			//check for existing SiteData object for this site
+			SiteData existing = siteData.get(siteCode);
+			if(existing == null) {
+				currentSiteData.getSite().setSiteId(new SiteId("USGS", siteCode));
+				siteData.put(siteCode, currentSiteData);
+			} else {
+				//discard site data collected so far- this should only be
+				// information on the site itself, which will be redundant
+				// with that of the existing SiteData object
+				currentSiteData = existing;
+			}
+		} catch(NullPointerException npe) {
+			//siteCode in unexpected location
+		}
+	}
+	
+	private void endVariableCode(String variableCode) {
+		try {
 			if(currentTimeSeries == null) {
-				// this may happen if the variable is unrecognized
 				return;
 			}
+			
+			currentTimeSeries.setVariable(DataSourceController.getVariable("USGS", variableCode));
+			if(currentTimeSeries.getVariable() == null) {
+				LOG.error("unknown variable: " + variableCode + "; ignoring series data");
+				currentTimeSeries = null;
+				return;
+			}
+			
+			Series existingSeries = currentSiteData.getDatasets().put(currentTimeSeries.getVariable().getCommonVariable(), currentTimeSeries);
+			if(existingSeries != null) {
+				if(LOG.isWarnEnabled()) LOG.warn("duplicate data for variable " + existingSeries.getVariable().getId() + ", site " + currentSiteData.getSite().getId());
+			} else {
+				Variable[] supportedVars = currentSiteData.getSite().getSupportedVariables();
+				
+				Variable[] newSupportedVars = new Variable[supportedVars.length + 1];
+				System.arraycopy(supportedVars, 0, newSupportedVars, 0, supportedVars.length);
+
+				newSupportedVars[newSupportedVars.length - 1] = currentTimeSeries.getVariable();
+				
+				currentSiteData.getSite().setSupportedVariables(newSupportedVars);
+			}
+		} catch(NullPointerException npe) {
+			LOG.error(EN_VARIABLE_CODE + " in unexpected location");
+		}
+	}
+	
+	/**
+	 * Append the current value element to the current series.
+	 */
+	private void endValue() {
+		if(currentTimeSeries == null) {
+			// this may happen if the variable is unrecognized
+			return;
+		}
+		if(currentTimeSeries.getReadings() == null) {
+			LOG.error(EN_VALUE + " in unexpected location");
+			return;
+		}
+		if(valueTime == Series.NO_DATE) {
+			return;
+		}
+		
+		double value = Double.NaN;
+		if(text.length() > 0) {
 			try {
-				List<Reading> readings = currentTimeSeries.getReadings();
-				Reading currentReading = readings.get(readings.size() - 1);
-				currentReading.setValue(new Double(curStr));
-				try {
-					if(currentReading.getValue().equals(currentTimeSeries.getVariable().getMagicNullValue())) {
-						currentReading.setValue(null);
-					}
-				} catch(NullPointerException npe) {
-					//EN_VARIABLE_MAGIC_NULL_VALUE should come earlier in the stream, so this shouldn't happen
-					LOG.error(EN_VARIABLE_MAGIC_NULL_VALUE + " in unexpected location");
-				}
-			} catch(NullPointerException npe) {
-				LOG.error(EN_VALUE + " in unexpected location");
-			} catch(ArrayIndexOutOfBoundsException aioobe) {
-				LOG.error("no reading to set value for");
+				value = Double.parseDouble(text.toString());
 			} catch(NumberFormatException nfe) {
 				LOG.error("invalid value for " + EN_VALUE,nfe);
 			}
-			return;
 		}
+		
+		String qualifiers = null;
+		
+		if(seriesNullValue == null) {
+			//EN_VARIABLE_MAGIC_NULL_VALUE should come earlier in the stream, so this shouldn't happen
+			LOG.error(EN_VARIABLE_MAGIC_NULL_VALUE + " in unexpected location");
+		} else if(value == seriesNullValue) {
+			value = Double.NaN;
+			qualifiers = getMissingValueQualifiers(valueQualifiers);
+		}
+		
+		currentTimeSeries.addObservation(valueTime, value, qualifiers);
 	}
-
-	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-		curElement = null;
+	
+	/**
+	 * @return the qualifiers that the RDB format would have shown in place of a missing value,
+	 * such as "Ice" or "Eqp", or null if there are none
+	 */
+	private String getMissingValueQualifiers(String qualifiers) {
+		if(qualifiers == null) {
+			return null;
+		}
+		if(qualifiers.equals(lastValueQualifiers)) {
+			//most values in a series share the same qualifiers
+			return lastMissingValueQualifiers;
+		}
+		
+		StringBuilder result = new StringBuilder();
+		for(String token: Utils.split(qualifiers, ' ')) {
+			if(token.length() == 0 || APPROVAL_CODES.contains(token)) {
+				continue;
+			}
+			if(result.length() > 0) {
+				result.append(' ');
+			}
+			result.append(token);
+		}
+		
+		lastValueQualifiers = qualifiers;
+		lastMissingValueQualifiers = (result.length() == 0) ? null : result.toString();
+		return lastMissingValueQualifiers;
 	}
 
 	@Override
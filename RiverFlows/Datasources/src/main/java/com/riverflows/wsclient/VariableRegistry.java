@@ -0,0 +1,152 @@
+package com.riverflows.wsclient;
+
+import com.riverflows.data.Variable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every agency's accepted variables, indexed by agency and variable ID.  Each variable is also
+ * assigned a dense integer ID, so per-variable state can be kept in arrays of
+ * {@link #size()} elements.
+ * <p>
+ * Integer IDs depend on the order of each data source's ACCEPTED_VARIABLES, so they must not be
+ * stored anywhere that outlives the process.
+ */
+public final class VariableRegistry {
+
+	/** variables by integer ID */
+	private static final Variable[] variables;
+	private static final String[] agencies;
+
+	private static final Map<String, Map<String, Integer>> idsByAgency = new HashMap<String, Map<String, Integer>>();
+	private static final Map<String, Map<String, Integer>> exactNamesByAgency = new HashMap<String, Map<String, Integer>>();
+	private static final Map<Variable, Integer> idsByVariable = new IdentityHashMap<Variable, Integer>();
+
+	static {
+		List<Variable> variableList = new ArrayList<Variable>();
+		List<String> agencyList = new ArrayList<String>();
+
+		register(UsgsCsvDataSource.AGENCY, UsgsCsvDataSource.ACCEPTED_VARIABLES, variableList, agencyList);
+		register(AHPSXmlDataSource.AGENCY, AHPSXmlDataSource.ACCEPTED_VARIABLES, variableList, agencyList);
+		register(CODWRDataSource.AGENCY, CODWRDataSource.ACCEPTED_VARIABLES, variableList, agencyList);
+		register(CDECDataSource.AGENCY, CDECDataSource.ACCEPTED_VARIABLES, variableList, agencyList);
+		register(USACEDataSource.AGENCY, USACEDataSource.ACCEPTED_VARIABLES, variableList, agencyList);
+
+		variables = variableList.toArray(new Variable[variableList.size()]);
+		agencies = agencyList.toArray(new String[agencyList.size()]);
+	}
+
+	private VariableRegistry() {
+	}
+
+	private static void register(String agency, Variable[] accepted, List<Variable> variableList, List<String> agencyList) {
+		Map<String, Integer> ids = new HashMap<String, Integer>(accepted.length * 2);
+		Map<String, Integer> exactNames = new HashMap<String, Integer>();
+
+		for(Variable v: accepted) {
+			Integer id = variableList.size();
+			variableList.add(v);
+			agencyList.add(agency);
+
+			//the first variable with a given ID or name wins, as it did when they were searched in order
+			if(!ids.containsKey(v.getId())) {
+				ids.put(v.getId(), id);
+			}
+			if(v.getExactName() != null && !exactNames.containsKey(v.getExactName())) {
+				exactNames.put(v.getExactName(), id);
+			}
+			if(!idsByVariable.containsKey(v)) {
+				idsByVariable.put(v, id);
+			}
+		}
+
+		idsByAgency.put(agency, ids);
+		exactNamesByAgency.put(agency, exactNames);
+	}
+
+	/**
+	 * @return the number of registered variables; integer IDs range from 0 to size() - 1
+	 */
+	public static int size() {
+		return variables.length;
+	}
+
+	/**
+	 * @return the integer ID of an agency's variable, or -1 if it isn't registered
+	 */
+	public static int getId(String agency, String variableId) {
+		Map<String, Integer> ids = idsByAgency.get(agency);
+		if(ids == null) {
+			return -1;
+		}
+		Integer id = ids.get(variableId);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * @return the integer ID of this variable instance, or -1 if it isn't registered
+	 */
+	public static int getId(Variable variable) {
+		Integer id = idsByVariable.get(variable);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * @return integer IDs of the registered variables among variableIds, in the same order
+	 */
+	public static int[] getIds(String agency, String[] variableIds) {
+		int[] result = new int[variableIds.length];
+		int count = 0;
+		for(String variableId: variableIds) {
+			int id = getId(agency, variableId);
+			if(id != -1) {
+				result[count++] = id;
+			}
+		}
+		if(count < result.length) {
+			int[] shortened = new int[count];
+			System.arraycopy(result, 0, shortened, 0, count);
+			return shortened;
+		}
+		return result;
+	}
+
+	public static Variable getVariable(int id) {
+		return variables[id];
+	}
+
+	public static String getAgency(int id) {
+		return agencies[id];
+	}
+
+	/**
+	 * @return null if the agency or variable isn't registered
+	 */
+	public static Variable getVariable(String agency, String variableId) {
+		int id = getId(agency, variableId);
+		return (id == -1) ? null : variables[id];
+	}
+
+	/**
+	 * @return null if the agency has no variable with this exact name
+	 */
+	public static Variable getVariableByExactName(String agency, String exactName) {
+		Map<String, Integer> exactNames = exactNamesByAgency.get(agency);
+		if(exactNames == null) {
+			return null;
+		}
+		Integer id = exactNames.get(exactName);
+		return (id == null) ? null : variables[id];
+	}
+
+	/**
+	 * @return true if there is a registry entry for this agency
+	 */
+	public static boolean isRegistered(String agency) {
+		return idsByAgency.containsKey(agency);
+	}
+}
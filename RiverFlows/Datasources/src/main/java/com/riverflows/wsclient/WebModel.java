@@ -20,7 +20,6 @@ import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -35,14 +34,10 @@ public abstract class WebModel<T extends RemoteObject> {
 
 	private static final Log LOG = LogFactory.getLog(WebModel.class);
 
-	protected static final SimpleDateFormat RAILS_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+	protected static final TimestampCodec RAILS_DATE_FORMAT = new TimestampCodec("yyyy-MM-dd'T'HH:mm:ss'Z'", USTimeZone.MDT.getTimeZone());
 
     public static final String REQUEST_ENCODING = "UTF-8";
 
-	static {
-		RAILS_DATE_FORMAT.setTimeZone(USTimeZone.MDT.getTimeZone());
-	}
-
     private static HttpClientFactory httpClientFactory = new SSLHttpClientFactory();
 
     public static HttpClientFactory getHttpClientFactory() {